@@ -7,6 +7,7 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
@@ -33,6 +34,8 @@ public class ETextWindow extends EWindow implements PTextListener {
     protected String filename;
     protected File file;
     private long lastModifiedTime;
+    // The hash of the bytes we last read from or wrote to the file. See PTextBuffer.hashFileContent.
+    private long diskContentHash = PTextBuffer.UNKNOWN_CONTENT_HASH;
     protected ETextArea textArea;
     private BirdView birdView;
     private TagsUpdater tagsUpdater;
@@ -315,6 +318,7 @@ public class ETextWindow extends EWindow implements PTextListener {
         try {
             lastModifiedTime = file.lastModified();
             textArea.getTextBuffer().readFromFile(file);
+            diskContentHash = textArea.getTextBuffer().getFileContentHash();
             
             reconfigureForGuessedFileType();
             updateWatermarkAndTitleBar();
@@ -618,17 +622,19 @@ public class ETextWindow extends EWindow implements PTextListener {
             return false;
         }
         
-        // If the on-disk content is the same as what we have in memory, then
-        // the fact that the time stamp is different isn't significant.
-        try {
-            String currentContentInMemory = textArea.getText();
-            String currentContentOnDisk = StringUtilities.readFile(file);
-            if (currentContentInMemory.equals(currentContentOnDisk)) {
-                lastModifiedTime = file.lastModified();
-                return false;
+        // If the on-disk content is the same as what we last read or wrote,
+        // then the fact that the time stamp is different isn't significant.
+        // Comparing hashes means we never need the whole file in memory.
+        if (diskContentHash != PTextBuffer.UNKNOWN_CONTENT_HASH) {
+            try {
+                long newModifiedTime = file.lastModified();
+                if (PTextBuffer.hashFileContent(file) == diskContentHash) {
+                    lastModifiedTime = newModifiedTime;
+                    return false;
+                }
+            } catch (Exception ex) {
+                Log.warn("Couldn't compare with on-disk copy.", ex);
             }
-        } catch (Exception ex) {
-            Log.warn("Couldn't compare with on-disk copy.", ex);
         }
         
         return true;
@@ -639,45 +645,35 @@ public class ETextWindow extends EWindow implements PTextListener {
         Evergreen editor = Evergreen.getInstance();
         
         PTextBuffer buffer = textArea.getTextBuffer();
-        String charsetName = (String) buffer.getProperty(PTextBuffer.CHARSET_PROPERTY);
-        if (buffer.attemptEncoding(charsetName) == false) {
-            Evergreen.getInstance().showAlert("Can't encode file with encoding", "The " + charsetName + " encoding is not capable of representing all characters found in this file. You can change the file's encoding in the File Properties dialog, available from the View menu.");
-            return false;
-        }
-        
         if (file.exists() && isOutOfDateWithRespectToDisk()) {
             if (showPatchAndAskForConfirmation("Overwrite", "Overwrite the currently saved version of \"" + file.getName() + "\"? (Equivalent to applying the following patch.)", false) == false) {
                 return false;
             }
         }
         
-        // Try to save a backup copy first. Ideally, we should do this from
-        // a timer and always have a recent backup around.
-        File backupFile = FileUtilities.fileFromString(this.filename + ".bak");
-        if (file.exists()) {
-            try {
-                writeToFile(backupFile);
-            } catch (Exception ex) {
-                editor.showAlert("Couldn't save \"" + this.filename + "\"", "Couldn't create backup file.");
-                return false;
-            }
-        }
-        
         try {
             editor.showStatus("Saving " + filename + "...");
-            // The file may be a symbolic link on a CIFS server.
-            // In this case, it's important that we write into the original file rather than creating a new one.
-            writeToFile(file);
+            // The buffer writes a backup copy alongside the file first, and only then replaces the file's content.
+            // The file may be a symbolic link on a CIFS server; the buffer takes care to write into the original file rather than creating a new one.
+            this.diskContentHash = writeToFile(file);
             buffer.getUndoBuffer().setCurrentStateClean();
             getTitleBar().repaint();
             editor.showStatus("Saved " + filename);
-            backupFile.delete();
             this.lastModifiedTime = file.lastModified();
             reconfigureForGuessedFileType();
             updateWatermarkAndTitleBar();
             tagsUpdater.updateTags();
+            Workspace workspace = getWorkspace();
+            if (workspace != null) {
+                workspace.getFileList().fileSaved(filename);
+            }
             SaveMonitor.getInstance().fireSaveListeners();
             return true;
+        } catch (CharacterCodingException ex) {
+            // Nothing was written, so the file on disk is just as it was.
+            editor.showStatus("");
+            String charsetName = (String) buffer.getProperty(PTextBuffer.CHARSET_PROPERTY);
+            editor.showAlert("Can't encode file with encoding", "The " + charsetName + " encoding is not capable of representing all characters found in this file. You can change the file's encoding in the File Properties dialog, available from the View menu.");
         } catch (Exception ex) {
             editor.showStatus("");
             editor.showAlert("Couldn't save file \"" + filename + "\"", ex.getMessage());
@@ -706,9 +702,9 @@ public class ETextWindow extends EWindow implements PTextListener {
         return false;
     }
     
-    private void writeToFile(File file) {
+    private long writeToFile(File file) throws IOException {
         ensureBufferEndsInNewline();
-        textArea.getTextBuffer().writeToFile(file);
+        return textArea.getTextBuffer().writeToFile(file);
     }
     
     /**
@@ -622,6 +622,10 @@ public class Evergreen {
         JFrameUtilities.writeGeometriesTo(getDialogGeometriesPreferenceFilename());
         
         writeSavedState();
+        
+        for (Workspace workspace : getWorkspaces()) {
+            workspace.getFileList().rememberState();
+        }
     }
     
     /** Returns the full pathname for the given preference file. */
@@ -29,10 +29,23 @@ public class FileIgnorer {
     }
     
     public static boolean isIgnoredExtension(String filename) {
+        return FileIgnorer.nameEndsWithOneOf(filename, getIgnoredExtensions());
+    }
+    
+    private static String[] getIgnoredExtensions() {
         if (ignoredExtensions == null) {
             ignoredExtensions = Parameters.getArrayOfSemicolonSeparatedElements("files.uninterestingExtensions");
         }
-        return FileIgnorer.nameEndsWithOneOf(filename, ignoredExtensions);
+        return ignoredExtensions;
+    }
+    
+    /**
+     * Returns a hash of the settings that decide what we ignore, so that
+     * anything remembered from a scan with different settings can be
+     * recognized as out of date.
+     */
+    public int getConfigurationHash() {
+        return 31 * uninterestingDirectoryNames.pattern().hashCode() + Arrays.hashCode(getIgnoredExtensions());
     }
     
     private static String getUninterestingDirectoryPattern(File rootDirectory) {
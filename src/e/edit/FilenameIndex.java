@@ -0,0 +1,429 @@
+package e.edit;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Finds the files in a workspace best matching what the user's typed into
+ * Open Quickly.
+ * 
+ * A query matches a path if its characters appear in the path in order,
+ * though not necessarily together, ignoring case unless the query contains
+ * an upper-case letter. Matches are ranked by a score that rewards query
+ * characters that match consecutively, and those that match at the start of
+ * a path segment, a word, or a camel-case hump, and that penalizes gaps, so
+ * "oqp" finds "src/e/edit/OpenQuicklyPanel.java" before anything that just
+ * happens to contain an 'o', a 'q' and a 'p'.
+ * 
+ * An index is immutable apart from its memory of the last query. Each path
+ * has a bit mask of the characters it contains, so most paths are rejected
+ * without looking at them. The rest are checked against a copy of all the
+ * paths end to end in one byte array, which is several times quicker to
+ * work through than a million separate strings. (Paths containing non-ASCII
+ * characters are the exception, and are checked as they are.) If the user extends the last query (by typing
+ * another character, say), only the paths that matched that query can
+ * match, so only those are checked. Only the best matches are kept, in a
+ * heap, rather than sorting all of them.
+ * 
+ * When a few files are added or removed, a new index can be made from the
+ * old one, copying what it knows about the paths that are still there.
+ */
+class FilenameIndex {
+    private static final int SCORE_MATCH = 16;
+    private static final int PENALTY_GAP_START = 3;
+    private static final int PENALTY_GAP_EXTENSION = 1;
+    private static final int BONUS_CONSECUTIVE = 4;
+    private static final int BONUS_SEGMENT_START = 9;
+    private static final int BONUS_WORD_START = 8;
+    private static final int BONUS_CAMEL_CASE = 7;
+    // The first character of the query matters more than the rest.
+    private static final int FIRST_CHARACTER_BONUS_MULTIPLIER = 2;
+    // For matches entirely within the leafname: people mostly type filenames.
+    private static final int BONUS_LEAFNAME = 16;
+    
+    private static final int NO_MATCH = Integer.MIN_VALUE;
+    
+    /**
+     * The best matches for a query, best first, and how many there were in all.
+     */
+    static class Matches {
+        final List<String> paths;
+        final int matchCount;
+        
+        Matches(List<String> paths, int matchCount) {
+            this.paths = paths;
+            this.matchCount = matchCount;
+        }
+    }
+    
+    private final List<String> paths;
+    private final long[] characterMasks;
+    
+    private final byte[] asciiPaths;
+    // The offset of the end of each path in asciiPaths. Non-ASCII paths take no space there.
+    private final int[] asciiPathEnds;
+    private final BitSet nonAsciiPaths;
+    private final AsciiSequence asciiSequence = new AsciiSequence();
+    
+    // The last query, and the indexes of all the paths it matched.
+    private String lastQuery;
+    private int[] lastMatchIndexes;
+    
+    /**
+     * Indexes the given sorted list of workspace-relative paths, which
+     * mustn't be modified afterwards.
+     */
+    FilenameIndex(List<String> paths) {
+        this(null, paths, Collections.<String>emptySet(), Collections.<String>emptySet());
+    }
+    
+    /**
+     * Indexes 'paths', which must be the paths 'previous' indexed, less
+     * 'removedPaths', plus 'addedPaths', in order. Only the added paths
+     * are looked at; everything else is copied from 'previous'.
+     */
+    FilenameIndex(FilenameIndex previous, List<String> paths, Set<String> removedPaths, Set<String> addedPaths) {
+        this.paths = paths;
+        this.characterMasks = new long[paths.size()];
+        this.asciiPathEnds = new int[paths.size()];
+        this.nonAsciiPaths = new BitSet();
+        // Where each path's bytes are in previous.asciiPaths, or -1 if it's new.
+        int[] previousAsciiStarts = new int[paths.size()];
+        int asciiLength = 0;
+        int previousIndex = 0;
+        for (int i = 0; i < characterMasks.length; ++i) {
+            String path = paths.get(i);
+            previousAsciiStarts[i] = -1;
+            if (previous != null && addedPaths.contains(path) == false) {
+                while (removedPaths.contains(previous.paths.get(previousIndex))) {
+                    ++previousIndex;
+                }
+                characterMasks[i] = previous.characterMasks[previousIndex];
+                if (previous.nonAsciiPaths.get(previousIndex)) {
+                    nonAsciiPaths.set(i);
+                } else {
+                    previousAsciiStarts[i] = (previousIndex == 0) ? 0 : previous.asciiPathEnds[previousIndex - 1];
+                    asciiLength += path.length();
+                }
+                ++previousIndex;
+            } else {
+                characterMasks[i] = characterMask(path);
+                if (isAscii(path)) {
+                    asciiLength += path.length();
+                } else {
+                    nonAsciiPaths.set(i);
+                }
+            }
+            asciiPathEnds[i] = asciiLength;
+        }
+        this.asciiPaths = new byte[asciiLength];
+        int offset = 0;
+        for (int i = 0; i < asciiPathEnds.length; ++i) {
+            if (nonAsciiPaths.get(i)) {
+                continue;
+            }
+            String path = paths.get(i);
+            if (previousAsciiStarts[i] != -1) {
+                System.arraycopy(previous.asciiPaths, previousAsciiStarts[i], asciiPaths, offset, path.length());
+                offset += path.length();
+            } else {
+                for (int j = 0; j < path.length(); ++j) {
+                    asciiPaths[offset++] = (byte) path.charAt(j);
+                }
+            }
+        }
+    }
+    
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private CharSequence getPath(int index) {
+        if (nonAsciiPaths.get(index)) {
+            return paths.get(index);
+        }
+        return asciiSequence.set((index == 0) ? 0 : asciiPathEnds[index - 1], asciiPathEnds[index]);
+    }
+    
+    /**
+     * Returns at most 'maxResults' of the paths matching 'query', best first.
+     * An empty query matches everything, in order.
+     */
+    synchronized Matches find(String query, int maxResults) {
+        if (query.length() == 0) {
+            return new Matches(paths.subList(0, Math.min(maxResults, paths.size())), paths.size());
+        }
+        
+        final boolean caseSensitive = query.equals(query.toLowerCase()) == false;
+        final char[] queryChars = query.toCharArray();
+        if (caseSensitive == false) {
+            for (int i = 0; i < queryChars.length; ++i) {
+                queryChars[i] = fold(queryChars[i]);
+            }
+        }
+        final long queryMask = characterMask(query);
+        
+        // Anything matching an extension of the last query must have matched the last query.
+        final boolean narrowing = (lastQuery != null && query.startsWith(lastQuery));
+        final int candidateCount = narrowing ? lastMatchIndexes.length : paths.size();
+        int[] matchIndexes = new int[narrowing ? candidateCount : 1024];
+        int matchCount = 0;
+        TopMatches topMatches = new TopMatches(maxResults);
+        for (int candidate = 0; candidate < candidateCount; ++candidate) {
+            final int index = narrowing ? lastMatchIndexes[candidate] : candidate;
+            if ((queryMask & ~characterMasks[index]) != 0) {
+                continue;
+            }
+            CharSequence path = getPath(index);
+            int score = score(path, queryChars, caseSensitive);
+            if (score == NO_MATCH) {
+                continue;
+            }
+            if (matchCount == matchIndexes.length) {
+                matchIndexes = Arrays.copyOf(matchIndexes, matchCount * 2);
+            }
+            matchIndexes[matchCount++] = index;
+            topMatches.offer(index, score, path.length());
+        }
+        lastQuery = query;
+        lastMatchIndexes = Arrays.copyOf(matchIndexes, matchCount);
+        
+        return new Matches(topMatches.getPaths(), matchCount);
+    }
+    
+    /**
+     * Scores 'path' against the query, or returns NO_MATCH. We find the
+     * rightmost place the query could start (by matching backwards from the
+     * end), which favors matches in the leafname, and then match forwards
+     * from there, which finds the tightest match from that start.
+     */
+    private static int score(CharSequence path, char[] query, boolean caseSensitive) {
+        int j = query.length - 1;
+        int start = path.length() - 1;
+        for (; start >= 0 && j >= 0; --start) {
+            if (charAt(path, start, caseSensitive) == query[j]) {
+                --j;
+            }
+        }
+        if (j >= 0) {
+            return NO_MATCH;
+        }
+        ++start;
+        
+        int score = 0;
+        int previousMatch = -1;
+        j = 0;
+        for (int i = start; j < query.length; ++i) {
+            if (charAt(path, i, caseSensitive) != query[j]) {
+                continue;
+            }
+            int bonus = bonusAt(path, i);
+            if (j == 0) {
+                bonus *= FIRST_CHARACTER_BONUS_MULTIPLIER;
+            } else if (previousMatch == i - 1) {
+                bonus = Math.max(bonus, BONUS_CONSECUTIVE);
+            } else {
+                score -= PENALTY_GAP_START + PENALTY_GAP_EXTENSION * (i - previousMatch - 2);
+            }
+            score += SCORE_MATCH + bonus;
+            previousMatch = i;
+            ++j;
+        }
+        if (isInLeafname(path, start)) {
+            score += BONUS_LEAFNAME;
+        }
+        return score;
+    }
+    
+    private static boolean isInLeafname(CharSequence path, int start) {
+        for (int i = path.length() - 1; i >= start; --i) {
+            if (path.charAt(i) == File.separatorChar) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int bonusAt(CharSequence path, int i) {
+        if (i == 0) {
+            return BONUS_SEGMENT_START;
+        }
+        char previous = path.charAt(i - 1);
+        char ch = path.charAt(i);
+        if (previous == '/' || previous == File.separatorChar) {
+            return BONUS_SEGMENT_START;
+        } else if (previous == '.' || previous == '_' || previous == '-' || previous == ' ') {
+            return BONUS_WORD_START;
+        } else if (Character.isLowerCase(previous) && Character.isUpperCase(ch)) {
+            return BONUS_CAMEL_CASE;
+        } else if (Character.isDigit(previous) == false && Character.isDigit(ch)) {
+            return BONUS_CAMEL_CASE;
+        }
+        return 0;
+    }
+    
+    private static char charAt(CharSequence path, int i, boolean caseSensitive) {
+        char ch = path.charAt(i);
+        return caseSensitive ? ch : fold(ch);
+    }
+    
+    private static char fold(char ch) {
+        if (ch < 0x80) {
+            return (ch >= 'A' && ch <= 'Z') ? (char) (ch + ('a' - 'A')) : ch;
+        }
+        return Character.toLowerCase(ch);
+    }
+    
+    /**
+     * Returns a bit mask of the characters in 's', ignoring case. Letters
+     * and digits have a bit each; everything else shares the remaining bits.
+     */
+    private static long characterMask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char ch = fold(s.charAt(i));
+            int bit;
+            if (ch >= 'a' && ch <= 'z') {
+                bit = ch - 'a';
+            } else if (ch >= '0' && ch <= '9') {
+                bit = 26 + (ch - '0');
+            } else {
+                bit = 36 + (ch % 28);
+            }
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+    
+    /**
+     * A view of one of the paths in asciiPaths, reused for each path we look at.
+     */
+    private class AsciiSequence implements CharSequence {
+        private int start;
+        private int end;
+        
+        AsciiSequence set(int start, int end) {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+        
+        public char charAt(int index) {
+            return (char) asciiPaths[start + index];
+        }
+        
+        public int length() {
+            return end - start;
+        }
+        
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+        
+        @Override
+        public String toString() {
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; ++i) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+    
+    /**
+     * Keeps the best few matches offered, in a heap with the worst at the top.
+     */
+    private class TopMatches {
+        private final int[] indexes;
+        private final int[] scores;
+        private final int[] lengths;
+        private int size;
+        
+        TopMatches(int capacity) {
+            this.indexes = new int[capacity];
+            this.scores = new int[capacity];
+            this.lengths = new int[capacity];
+        }
+        
+        void offer(int index, int score, int length) {
+            if (size < indexes.length) {
+                set(size, index, score, length);
+                siftUp(size++);
+            } else if (size > 0 && isBetter(score, length, index, 0)) {
+                set(0, index, score, length);
+                siftDown(0);
+            }
+        }
+        
+        /**
+         * Returns the paths, best first. Ties go to the shorter path, and
+         * then to the path earlier in the (alphabetical) list.
+         */
+        List<String> getPaths() {
+            String[] result = new String[size];
+            while (size > 0) {
+                result[size - 1] = paths.get(indexes[0]);
+                --size;
+                set(0, indexes[size], scores[size], lengths[size]);
+                siftDown(0);
+            }
+            return Arrays.asList(result);
+        }
+        
+        private boolean isBetter(int score, int length, int index, int slot) {
+            if (score != scores[slot]) {
+                return score > scores[slot];
+            } else if (length != lengths[slot]) {
+                return length < lengths[slot];
+            }
+            return index < indexes[slot];
+        }
+        
+        private void set(int slot, int index, int score, int length) {
+            indexes[slot] = index;
+            scores[slot] = score;
+            lengths[slot] = length;
+        }
+        
+        private void swap(int a, int b) {
+            int index = indexes[a];
+            int score = scores[a];
+            int length = lengths[a];
+            set(a, indexes[b], scores[b], lengths[b]);
+            set(b, index, score, length);
+        }
+        
+        private void siftUp(int slot) {
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                // The worst belongs at the top.
+                if (isBetter(scores[parent], lengths[parent], indexes[parent], slot) == false) {
+                    return;
+                }
+                swap(slot, parent);
+                slot = parent;
+            }
+        }
+        
+        private void siftDown(int slot) {
+            while (true) {
+                int worst = slot;
+                for (int child = 2 * slot + 1; child <= 2 * slot + 2 && child < size; ++child) {
+                    if (isBetter(scores[worst], lengths[worst], indexes[worst], child)) {
+                        worst = child;
+                    }
+                }
+                if (worst == slot) {
+                    return;
+                }
+                swap(slot, worst);
+                slot = worst;
+            }
+        }
+    }
+}
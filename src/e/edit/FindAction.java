@@ -117,7 +117,16 @@ public class FindAction extends ETextAction implements MinibufferUser {
         currentTextWindow.setCurrentRegularExpression(regularExpression);
         ETextArea textArea = currentTextWindow.getTextArea();
         try {
-            textArea.findAllMatches(regularExpression, currentTextWindow.getBirdView());
+            // The matches arrive in batches, so keep the match count in the status line up to date as they do.
+            // Another window's search finishing in the background shouldn't take over the status line, though.
+            final ETextWindow textWindow = currentTextWindow;
+            textArea.findAllMatchesInBackground(regularExpression, textWindow.getBirdView(), new Runnable() {
+                public void run() {
+                    if (textWindow == currentTextWindow) {
+                        textWindow.updateStatusLine();
+                    }
+                }
+            });
             currentTextWindow.updateStatusLine();
         } catch (PatternSyntaxException patternSyntaxException) {
             Evergreen.getInstance().showStatus(patternSyntaxException.getDescription());
@@ -2,9 +2,12 @@ package e.edit;
 
 import e.forms.*;
 import e.gui.*;
+import e.ptextarea.*;
 import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.regex.*;
 import javax.swing.*;
@@ -119,25 +122,50 @@ public class FindAndReplaceAction extends ETextAction {
         currentTextArea = null;
     }
     
+    /**
+     * Replaces every match in the scope (the selection, if it's meant as a
+     * scope, or the whole text) with its own edit, working back to front so
+     * the earlier offsets stay valid. All the edits are one compound edit,
+     * so they're undone together, but the undo history only has to remember
+     * the matched and replacement text rather than two copies of the file,
+     * and anchors and highlights away from the matches survive.
+     */
     public boolean doReplacementsInText() {
         try {
-            if (isSelectionMeantAsScope()) {
-                // There's a suitable selection, so only replace in that.
-                int selectionStart = currentTextArea.getSelectionStart();
-                String newText = makeReplacedText(currentTextArea.getSelectedText());
-                currentTextArea.replaceSelection(newText);
-                currentTextArea.select(selectionStart, selectionStart + newText.length());
+            PTextBuffer buffer = currentTextArea.getTextBuffer();
+            final boolean replaceInSelection = isSelectionMeantAsScope();
+            final int selectionStart = currentTextArea.getSelectionStart();
+            final int selectionEnd = currentTextArea.getSelectionEnd();
+            int caretPosition = currentTextArea.getUnanchoredSelectionExtreme();
+            
+            List<Replacement> replacements = findReplacements(buffer, replaceInSelection ? selectionStart : 0, replaceInSelection ? selectionEnd : buffer.length());
+            int lengthChange = 0;
+            int caretLengthChange = 0;
+            for (Replacement replacement : replacements) {
+                lengthChange += replacement.lengthChange();
+                if (replacement.end <= caretPosition) {
+                    caretLengthChange += replacement.lengthChange();
+                } else if (replacement.start < caretPosition) {
+                    // The caret was inside this match, so put it at the start of the match's replacement.
+                    caretLengthChange += replacement.start - caretPosition;
+                }
+            }
+            
+            buffer.getUndoBuffer().startCompoundEdit();
+            try {
+                for (int i = replacements.size() - 1; i >= 0; --i) {
+                    Replacement replacement = replacements.get(i);
+                    currentTextArea.replaceRange(replacement.text, replacement.start, replacement.end);
+                }
+            } finally {
+                buffer.getUndoBuffer().finishCompoundEdit();
+            }
+            
+            if (replaceInSelection) {
+                currentTextArea.select(selectionStart, selectionEnd + lengthChange);
             } else {
-                // There's no suitable selection, so do the whole text.
                 // FIXME - can we try to maintain the selection?
-                int caretPosition = currentTextArea.getUnanchoredSelectionExtreme();
-                currentTextArea.setText(makeReplacedText(currentTextArea.getText()));
-                // If replacement has shortened the buffer, don't try and put the caret back beyond the end.
-                // FIXME - this is still wrong, it's just less wrong.
-                if (caretPosition > currentTextArea.getTextBuffer().length()) {
-                    caretPosition = currentTextArea.getTextBuffer().length();
-                }
-                currentTextArea.setCaretPosition(caretPosition);
+                currentTextArea.setCaretPosition(caretPosition + caretLengthChange);
             }
             return true;
         } catch (Exception ex) {
@@ -145,14 +173,91 @@ public class FindAndReplaceAction extends ETextAction {
             return false;
         }
     }
-
-    public String makeReplacedText(String oldText) {
+    
+    /**
+     * Returns the replacements for the matches in [start, end) of 'text', in
+     * order. Matches whose replacement is the same as the matched text are
+     * left out, since replacing them wouldn't change anything.
+     */
+    private List<Replacement> findReplacements(CharSequence text, int start, int end) {
         String regularExpression = patternField.getText();
         String replacementPattern = StringUtilities.unescapeJava(replacementField.getText());
         Pattern pattern = Pattern.compile(regularExpression, Pattern.MULTILINE);
-        return pattern.matcher(oldText).replaceAll(replacementPattern);
+        Matcher matcher = pattern.matcher(text);
+        matcher.region(start, end);
+        ArrayList<Replacement> result = new ArrayList<Replacement>();
+        StringBuilder replacement = new StringBuilder();
+        while (matcher.find()) {
+            replacement.setLength(0);
+            appendReplacement(matcher, replacementPattern, replacement);
+            String replacementText = replacement.toString();
+            if (replacementText.contentEquals(text.subSequence(matcher.start(), matcher.end())) == false) {
+                result.add(new Replacement(matcher.start(), matcher.end(), replacementText));
+            }
+        }
+        return result;
     }
-
+    
+    /**
+     * Appends the replacement for the current match of 'matcher' to
+     * 'result', interpreting 'replacementPattern' exactly as
+     * Matcher.appendReplacement would. We can't use that because it also
+     * appends all the text since the previous match.
+     */
+    private static void appendReplacement(Matcher matcher, String replacementPattern, StringBuilder result) {
+        final int length = replacementPattern.length();
+        for (int i = 0; i < length; ++i) {
+            char ch = replacementPattern.charAt(i);
+            if (ch == '\\') {
+                ++i;
+                if (i == length) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                result.append(replacementPattern.charAt(i));
+            } else if (ch == '$') {
+                ++i;
+                if (i == length || Character.isDigit(replacementPattern.charAt(i)) == false) {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                // As many digits as still make a valid group number, but always at least one.
+                int group = replacementPattern.charAt(i) - '0';
+                while (i + 1 < length && Character.isDigit(replacementPattern.charAt(i + 1))) {
+                    int longerGroup = group * 10 + (replacementPattern.charAt(i + 1) - '0');
+                    if (longerGroup > matcher.groupCount()) {
+                        break;
+                    }
+                    group = longerGroup;
+                    ++i;
+                }
+                if (group > matcher.groupCount()) {
+                    throw new IndexOutOfBoundsException("No group " + group);
+                }
+                String groupText = matcher.group(group);
+                if (groupText != null) {
+                    result.append(groupText);
+                }
+            } else {
+                result.append(ch);
+            }
+        }
+    }
+    
+    private static class Replacement {
+        private final int start;
+        private final int end;
+        private final String text;
+        
+        Replacement(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+        
+        int lengthChange() {
+            return text.length() - (end - start);
+        }
+    }
+    
     public static class DisplayableMatchRenderer extends EListCellRenderer {
         public DisplayableMatchRenderer() {
             super(true);
@@ -279,67 +384,196 @@ public class FindAndReplaceAction extends ETextAction {
         statusLabel.setText(explanation);
     }
     
-    private static final int MAX_DISPLAYED_MATCH_COUNT = 1000;
+    /**
+     * The lines of a snapshot containing a match, found by a MatchFinder.
+     * Only their positions are recorded; the DisplayableMatch for a line
+     * isn't made until a MatchListModel is asked for it, so there can be
+     * any number of matches without building HTML for every one of them.
+     */
+    private static class MatchedLines {
+        private int[] lineNumbers = new int[16];
+        private int[] lineStarts = new int[16];
+        private int[] lineEnds = new int[16];
+        private int size = 0;
+        // The line that will take the most room in a list, or -1 if there are no lines.
+        private int widestLine = -1;
+        private int widestLineWidth = -1;
+        
+        void add(int lineNumber, int lineStart, int lineEnd, int width) {
+            if (size == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, size * 2);
+                lineStarts = Arrays.copyOf(lineStarts, size * 2);
+                lineEnds = Arrays.copyOf(lineEnds, size * 2);
+            }
+            if (width > widestLineWidth) {
+                widestLine = size;
+                widestLineWidth = width;
+            }
+            lineNumbers[size] = lineNumber;
+            lineStarts[size] = lineStart;
+            lineEnds[size] = lineEnd;
+            ++size;
+        }
+    }
+    
+    /**
+     * Shows the MatchedLines, either as they are or with the replacement
+     * applied. A few recently used DisplayableMatch instances are kept,
+     * since a JList asks for the same visible elements over and over.
+     */
+    @SuppressWarnings({ "rawtypes", "serial" })
+    private class MatchListModel extends AbstractListModel {
+        private static final int MAX_CACHED_MATCH_COUNT = 256;
+        
+        private PTextSnapshot text;
+        private Pattern pattern;
+        private String regex;
+        private String replacement;
+        private MatchedLines lines;
+        
+        private LinkedHashMap<Integer, DisplayableMatch> cache = new LinkedHashMap<Integer, DisplayableMatch>(MAX_CACHED_MATCH_COUNT, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, DisplayableMatch> eldest) {
+                return size() > MAX_CACHED_MATCH_COUNT;
+            }
+        };
+        
+        /**
+         * Pass a null 'replacement' to show the matches themselves.
+         */
+        MatchListModel(PTextSnapshot text, Pattern pattern, String regex, String replacement, MatchedLines lines) {
+            this.text = text;
+            this.pattern = pattern;
+            this.regex = regex;
+            this.replacement = replacement;
+            this.lines = lines;
+        }
+        
+        public int getSize() {
+            return lines.size;
+        }
+        
+        public Object getElementAt(int index) {
+            DisplayableMatch result = cache.get(index);
+            if (result == null) {
+                String line = text.subSequence(lines.lineStarts[index], lines.lineEnds[index]).toString();
+                Matcher matcher = pattern.matcher(line);
+                matcher.find();
+                result = new DisplayableMatch(lines.lineNumbers[index], matcher, line, regex, replacement);
+                cache.put(index, result);
+            }
+            return result;
+        }
+        
+        /**
+         * Returns the element that sets the size of every cell, or null if there aren't any.
+         * Giving a JList a prototype stops it rendering every element just to find the widest.
+         */
+        Object getPrototypeCellValue() {
+            return (lines.widestLine == -1) ? null : getElementAt(lines.widestLine);
+        }
+    }
+    
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void setPrototypeCellValue(JList list, Object prototype) {
+        if (prototype != null) {
+            list.setPrototypeCellValue(prototype);
+        } else {
+            list.setFixedCellWidth(-1);
+            list.setFixedCellHeight(-1);
+        }
+    }
     
-    public class MatchFinder extends SwingWorker<DefaultListModel, Object> {
+    public class MatchFinder extends SwingWorker<Object, Object> {
         private String regex;
         private String replacement;
         
-        private DefaultListModel matchModel;
-        private DefaultListModel replacementsModel;
+        // Read on the event dispatch thread, so the background thread doesn't have to touch the text area.
+        // Everything else, even copying the text, waits for the background thread.
+        private PTextBuffer buffer;
+        private int selectionStart;
+        private int selectionEnd;
+        
+        private PTextSnapshot text;
+        
+        private MatchListModel matchModel;
+        private MatchListModel replacementsModel;
+        private Object matchPrototype;
+        private Object replacementPrototype;
         
         private PatternSyntaxException patternSyntaxError;
         private IndexOutOfBoundsException replacementSyntaxError;
-        private boolean aborted = false;
         
         public MatchFinder(String pattern, String replacement) {
-            this.matchModel = new DefaultListModel();
-            this.replacementsModel = new DefaultListModel();
             this.regex = pattern;
             this.replacement = StringUtilities.unescapeJava(replacement);
+            this.buffer = currentTextArea.getTextBuffer();
+            this.selectionStart = currentTextArea.getSelectionStart();
+            this.selectionEnd = currentTextArea.getSelectionEnd();
         }
         
         @Override
-        protected DefaultListModel doInBackground() {
+        protected Object doInBackground() {
+            text = buffer.snapshot();
+            // The same test as isSelectionMeantAsScope, without copying the selection on the event dispatch thread.
+            boolean isSelectionMeantAsScope = false;
+            for (int i = selectionStart; i < selectionEnd && i < text.length(); ++i) {
+                if (text.charAt(i) == '\n') {
+                    isSelectionMeantAsScope = true;
+                    break;
+                }
+            }
+            
+            MatchedLines lines = new MatchedLines();
             if (regex.length() == 0) {
+                matchModel = new MatchListModel(text, null, regex, null, lines);
+                replacementsModel = new MatchListModel(text, null, regex, replacement, lines);
                 return matchModel;
             }
-
+            
             try {
                 Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE);
-                String[] lines = currentTextArea.getText().split("\n");
-                int lineStartOffset = 0; // Track our position in the text.
-                int matchCount = 0;
-                String line;
-                for (int i = 0; i < lines.length; ++i, lineStartOffset += line.length() + 1) {
-                    line = lines[i];
-                    Matcher matcher = pattern.matcher(line);
-                    if (matcher.find()) {
-                        if (matchCount > MAX_DISPLAYED_MATCH_COUNT || isCancelled()) {
-                            aborted = true;
-                            return null;
+                matchModel = new MatchListModel(text, pattern, regex, null, lines);
+                replacementsModel = new MatchListModel(text, pattern, regex, replacement, lines);
+                
+                // Each line is matched separately, straight from the snapshot.
+                Matcher matcher = pattern.matcher("");
+                final int length = text.length();
+                int lineNumber = 1;
+                for (int lineStart = 0; lineStart < length; ++lineNumber) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    int lineEnd = lineStart;
+                    int tabCount = 0;
+                    while (lineEnd < length && text.charAt(lineEnd) != '\n') {
+                        if (text.charAt(lineEnd) == '\t') {
+                            ++tabCount;
                         }
-                        if (isSelectionMeantAsScope()) {
+                        ++lineEnd;
+                    }
+                    matcher.reset(text.subSequence(lineStart, lineEnd));
+                    if (matcher.find()) {
+                        if (isSelectionMeantAsScope) {
                             // Matches before the selection don't count.
-                            if (lineStartOffset + matcher.start() < currentTextArea.getSelectionStart()) {
+                            if (lineStart + matcher.start() < selectionStart) {
+                                lineStart = lineEnd + 1;
                                 continue;
                             }
                             // If we're past the end of the selection, we can
                             // stop.
-                            if (lineStartOffset + matcher.end() > currentTextArea.getSelectionEnd()) {
+                            if (lineStart + matcher.end() > selectionEnd) {
                                 break;
                             }
                         }
-                        ++matchCount;
-                        final int lineNumber = 1 + i;
-                        
-                        // Record the match.
-                        matchModel.addElement(new DisplayableMatch(lineNumber, matcher, line, regex, null));
-                        
-                        // Record the rewritten line.
-                        replacementsModel.addElement(new DisplayableMatch(lineNumber, matcher, line, regex, replacement));
+                        // DisplayableMatch shows a tab as four spaces.
+                        lines.add(lineNumber, lineStart, lineEnd, lineEnd - lineStart + 3 * tabCount);
                     }
+                    lineStart = lineEnd + 1;
                 }
+                
+                // Making the prototypes here also finds any problem with the replacement.
+                matchPrototype = matchModel.getPrototypeCellValue();
+                replacementPrototype = replacementsModel.getPrototypeCellValue();
             } catch (PatternSyntaxException ex) {
                 patternSyntaxError = ex;
             } catch (IndexOutOfBoundsException ex) {
@@ -358,14 +592,14 @@ public class FindAndReplaceAction extends ETextAction {
                 return;
             }
             
-            if (aborted) {
-                setStatus("More than " + MAX_DISPLAYED_MATCH_COUNT + " matches. No matches will be shown.");
-            } else if (patternSyntaxError != null) {
+            if (patternSyntaxError != null) {
                 setStatusToBad(patternSyntaxError.getDescription(), patternField);
             } else if (replacementSyntaxError != null) {
                 setStatusToBad(replacementSyntaxError.getMessage(), replacementField);
             } else {
-                setStatusToGood(matchModel.size());
+                setStatusToGood(matchModel.getSize());
+                setPrototypeCellValue(matchList, matchPrototype);
+                setPrototypeCellValue(replacementsList, replacementPrototype);
                 matchList.setModel(matchModel);
                 replacementsList.setModel(replacementsModel);
             }
@@ -35,17 +35,21 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
     /** We share these between all workspaces, to make it harder to accidentally launch a denial-of-service attack against ourselves. */
     private static final ExecutorService definitionFinderExecutor = ThreadUtilities.newFixedThreadPool(8, "Find Definitions");
     
+    /** Searches run on these threads, which outlive any one search. */
+    private static final int SEARCH_THREAD_COUNT = Runtime.getRuntime().availableProcessors() + 1;
+    private static final ExecutorService fileSearchExecutor = ThreadUtilities.newFixedThreadPool(SEARCH_THREAD_COUNT, "Find in Files");
+    
     public interface ClickableTreeItem {
         public void open();
     }
     
     public class MatchingLine implements ClickableTreeItem {
-        private String line;
+        private FileSearcher.LineMatch match;
         private File file;
         private Pattern pattern;
         
-        public MatchingLine(String line, File file, Pattern pattern) {
-            this.line = line;
+        public MatchingLine(FileSearcher.LineMatch match, File file, Pattern pattern) {
+            this.match = match;
             this.file = file;
             this.pattern = pattern;
         }
@@ -55,20 +59,60 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
             if (window instanceof ETextWindow) {
                 ETextWindow textWindow = (ETextWindow) window;
                 FindAction.INSTANCE.findInText(textWindow, PatternUtilities.toString(pattern));
-                
-                String noHTMLLine = line;
-                if (line.startsWith("<html>")) {
-                    noHTMLLine = line.replaceAll("\\<.*?>","");
+                textWindow.getTextArea().goToLine(match.lineNumber);
+            }
+        }
+        
+        /**
+         * Returns the HTML the tree shows for this line, with the matches
+         * emphasized. This is only done when the line is rendered, which for
+         * a big result set is only a small fraction of the lines we find.
+         */
+        public String toHtml() {
+            final String line = match.line;
+            int start = 0;
+            int end = line.length();
+            while (start < end && line.charAt(start) <= ' ') {
+                ++start;
+            }
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                --end;
+            }
+            StringBuilder result = new StringBuilder("<html><font color=\"gray\">");
+            result.append(match.lineNumber).append(": ");
+            final int[] offsets = match.matchOffsets;
+            int i = start;
+            for (int m = 0; m < offsets.length; m += 2) {
+                final int matchStart = Math.max(start, Math.min(end, offsets[m]));
+                final int matchEnd = Math.max(matchStart, Math.min(end, offsets[m + 1]));
+                appendHtml(result, line, i, matchStart);
+                result.append("<font color=\"black\"><i>");
+                appendHtml(result, line, matchStart, matchEnd);
+                result.append("</i></font>");
+                i = matchEnd;
+            }
+            appendHtml(result, line, i, end);
+            result.append("</font></html>");
+            return result.toString();
+        }
+        
+        private void appendHtml(StringBuilder result, String line, int start, int end) {
+            for (int i = start; i < end; ++i) {
+                char ch = line.charAt(i);
+                if (ch == '<') {
+                    result.append("&lt;");
+                } else if (ch == '>') {
+                    result.append("&gt;");
+                } else if (ch == '&') {
+                    result.append("&amp;");
+                } else {
+                    result.append(ch);
                 }
-                
-                int lineNumber = Integer.parseInt(
-                    noHTMLLine.substring(0, noHTMLLine.indexOf(':', 1)));
-                textWindow.getTextArea().goToLine(lineNumber);
             }
         }
         
         public String toString() {
-            return line;
+            return match.lineNumber + ": " + match.line.trim();
         }
     }
     
@@ -152,6 +196,8 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
     
     public class FileFinder extends SwingWorker<DefaultMutableTreeNode, DefaultMutableTreeNode> {
         private List<String> fileList;
+        // The files we actually have to search, which may be fewer than fileList if the content index rules some out.
+        private List<String> candidateFileList;
         private DefaultMutableTreeNode matchRoot;
         private String regex;
         private String fileRegex;
@@ -204,20 +250,28 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
             try {
                 Pattern pattern = PatternUtilities.smartCaseCompile(regex);
                 
-                final int threadCount = Runtime.getRuntime().availableProcessors() + 1;
-                ThreadPoolExecutor executor = (ThreadPoolExecutor) ThreadUtilities.newFixedThreadPool(threadCount, "find-in-files");
-                for (String candidate : fileList) {
-                    executor.execute(new FileSearchRunnable(candidate, pattern));
+                candidateFileList = fileList;
+                if (regex.length() != 0) {
+                    candidateFileList = workspace.getFileList().getFilesPossiblyContaining(fileList, pattern);
+                    // The files we don't need to search count as done, for the progress percentage.
+                    doneFileCount.addAndGet(totalFileCount - candidateFileList.size());
+                }
+                
+                // Rather than queuing a task per file, each thread takes the next unsearched file when it's done with its last one.
+                // That balances the load between threads however uneven the files are, and lets each thread reuse one FileSearcher's buffers.
+                AtomicInteger nextFileIndex = new AtomicInteger(0);
+                CountDownLatch doneLatch = new CountDownLatch(SEARCH_THREAD_COUNT);
+                for (int i = 0; i < SEARCH_THREAD_COUNT; ++i) {
+                    fileSearchExecutor.execute(new FileSearchRunnable(pattern, nextFileIndex, doneLatch));
                 }
-                executor.shutdown();
                 try {
-                    executor.awaitTermination(3600, TimeUnit.SECONDS);
+                    doneLatch.await();
                 } catch (InterruptedException ex) {
                     ex = ex; // Fine; we're still finished.
                 }
                 
                 endTimeMs = System.currentTimeMillis();
-                Log.warn("Search for \"" + regex + "\" in files matching \"" + fileRegex + "\" took " + (endTimeMs - startTimeMs) + " ms.");
+                Log.warn("Search for \"" + regex + "\" in files matching \"" + fileRegex + "\" took " + (endTimeMs - startTimeMs) + " ms; searched " + candidateFileList.size() + " of " + totalFileCount + " files.");
             } catch (PatternSyntaxException ex) {
                 errorMessage = ex.getDescription();
             } catch (Exception ex) {
@@ -287,21 +341,36 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
         }
         
         private class FileSearchRunnable implements Runnable {
-            private String candidate;
             private Pattern pattern;
+            private FileSearcher fileSearcher;
+            private AtomicInteger nextFileIndex;
+            private CountDownLatch doneLatch;
             
-            private FileSearchRunnable(String candidate, Pattern pattern) {
-                this.candidate = candidate;
+            private FileSearchRunnable(Pattern pattern, AtomicInteger nextFileIndex, CountDownLatch doneLatch) {
                 this.pattern = pattern;
+                this.fileSearcher = new FileSearcher(pattern);
+                this.nextFileIndex = nextFileIndex;
+                this.doneLatch = doneLatch;
             }
             
             public void run() {
-                if (currentSequenceNumber.get() != sequenceNumber) {
-                    return;
+                try {
+                    // Give up as soon as we notice that a newer search has started.
+                    while (currentSequenceNumber.get() == sequenceNumber) {
+                        int index = nextFileIndex.getAndIncrement();
+                        if (index >= candidateFileList.size()) {
+                            break;
+                        }
+                        searchFile(candidateFileList.get(index));
+                    }
+                } finally {
+                    doneLatch.countDown();
                 }
+            }
+            
+            private void searchFile(String candidate) {
                 try {
                     long t0 = System.currentTimeMillis();
-                    FileSearcher fileSearcher = new FileSearcher(pattern);
                     File file = FileUtilities.fileFromParentAndString(workspace.getRootDirectory(), candidate);
                     
                     // Update our percentage-complete status, but only if we've
@@ -313,7 +382,7 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
                     }
                     
                     if (regex.length() != 0) {
-                        ArrayList<String> matches = new ArrayList<String>();
+                        ArrayList<FileSearcher.LineMatch> matches = new ArrayList<FileSearcher.LineMatch>();
                         boolean wasText = fileSearcher.searchFile(file, matches);
                         if (wasText == false) {
                             // FIXME: should we do the grep(1) thing of "binary file <x> matches"?
@@ -329,8 +398,8 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
                                 DefaultMutableTreeNode pathNode = getPathNode(candidate);
                                 MatchingFile matchingFile = new MatchingFile(file, candidate, matchCount, pattern);
                                 DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(matchingFile);
-                                for (String line : matches) {
-                                    fileNode.add(new DefaultMutableTreeNode(new MatchingLine(line, file, pattern)));
+                                for (FileSearcher.LineMatch match : matches) {
+                                    fileNode.add(new DefaultMutableTreeNode(new MatchingLine(match, file, pattern)));
                                 }
                                 pathNode.add(fileNode);
                                 matchTreeModel.nodesWereInserted(pathNode, new int[] { pathNode.getIndex(fileNode) });
@@ -352,7 +421,7 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
                     // A common case is when the index contains generated files that may be removed during a build.
                     ex = ex;
                 } catch (Throwable th) {
-                    Log.warn("FileSearchRunnable.call caught something", th);
+                    Log.warn("FileSearchRunnable.searchFile caught something", th);
                 }
             }
         }
@@ -402,7 +471,7 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
     public void initMatchList() {
         matchTreeModel = new DefaultTreeModel(null);
         matchView = new ETree(matchTreeModel);
-
+        
         matchView.setRootVisible(false);
         matchView.setShowsRootHandles(true);
         matchView.putClientProperty("JTree.lineStyle", "None");
@@ -472,15 +541,19 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
             }
             c.setFont(defaultFont);
             
+            DefaultTreeCellRenderer render = (DefaultTreeCellRenderer) c;
+            DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
+            
+            if (node.getUserObject() instanceof MatchingLine) {
+                setText(((MatchingLine) node.getUserObject()).toHtml());
+            }
+            
             // Work around JLabel's tab-rendering stupidity.
             String text = getText();
             if (text != null && text.contains("\t")) {
                 setText(text.replaceAll("\t", "    "));
             }
             
-            DefaultTreeCellRenderer render = (DefaultTreeCellRenderer) c;
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
-            
             if (node.getUserObject() instanceof MatchingFile) {
                 MatchingFile file = (MatchingFile) node.getUserObject();
                 if (file.containsDefinition()) {
@@ -518,7 +591,7 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
         
         workspace.getFileList().addFileListListener(this);
     }
-
+    
     private void addSearchFieldActions(SearchField entry) {
         ActionMap am = entry.getActionMap();
         am.put("next-result", new AbstractAction() {
@@ -543,31 +616,31 @@ public class FindInFilesPanel extends JPanel implements WorkspaceFileList.Listen
     private void initUI() {
         addSearchFieldActions(regexField);
         addSearchFieldActions(filenameRegexField);
-
-        changeTimeout = new TextChangeTimeout(new JTextComponent[] { 
-            regexField, 
-            filenameRegexField 
+        
+        changeTimeout = new TextChangeTimeout(new JTextComponent[] {
+            regexField,
+            filenameRegexField
         }, new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
                     showMatches();
                 }
             });
-
+        
         addFocusListener(new FocusAdapter() {
                 public void focusGained(FocusEvent e) {
                    regexField.requestFocus();
                 }
             });
-
+        
         JPanel entries = new JPanel(new BorderLayout());
         entries.add(regexField, BorderLayout.NORTH); // Files Containing
         entries.add(filenameRegexField, BorderLayout.SOUTH); // Whose Names Match
-
+        
         JPanel entriesStatus = new JPanel(new BorderLayout());
         entriesStatus.add(entries, BorderLayout.NORTH);
-        entriesStatus.add(PatternUtilities.addRegularExpressionHelpToComponent(status), 
+        entriesStatus.add(PatternUtilities.addRegularExpressionHelpToComponent(status),
                           BorderLayout.SOUTH);
-
+        
         add(entriesStatus, BorderLayout.NORTH);
         add(new JScrollPane(matchView), BorderLayout.CENTER); // Matches
     }
@@ -23,7 +23,7 @@ public class OpenQuicklyAction extends ETextAction {
         } else {
             // Jujitsu uses the sidebar version
             //Evergreen.getInstance().getCurrentWorkspace().showOpenQuicklyDialog(StringUtilities.regularExpressionFromLiteral(filename));
-            Evergreen.getInstance().getCurrentWorkspace().showOpenQuicklyPanel(StringUtilities.regularExpressionFromLiteral(filename));
+            Evergreen.getInstance().getCurrentWorkspace().showOpenQuicklyPanel(filename);
         }
     }
 }
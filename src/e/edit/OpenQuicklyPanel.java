@@ -5,21 +5,24 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
-import java.util.List;
-import java.util.regex.*;
 import javax.swing.*;
 import org.jdesktop.swingworker.SwingWorker;
 
 /**
  * Improves on Apple Project Builder's "Open Quickly", which just pops up a dialog where you type a name.
- * We have a list -- updated as you type in the filename field -- showing what files match the regular expression you've typed.
+ * We have a list -- updated as you type in the filename field -- showing the files that best match what you've typed, best first (see FilenameIndex).
  * You can double-click individual entries to open them, or hit Return to open just the selected one(s).
  */
 public class OpenQuicklyPanel extends JPanel implements WorkspaceFileList.Listener {
+    // More than anyone will scroll through; the status line says how many more there were.
+    private static final int MAX_RESULTS = 1000;
+    
     private SearchField filenameField = new SearchField("Open Quickly");
     private JList matchList;
     private JLabel status = new JLabel(" ");
     private TextChangeTimeout changeTimeout;
+    // Matching is fast enough to happen as the user types, so results can arrive out of order; only the latest are shown.
+    private volatile MatchFinder latestMatchFinder;
     
     /** Which workspace is this "Open Quickly" for? */
     private Workspace workspace;
@@ -30,49 +33,48 @@ public class OpenQuicklyPanel extends JPanel implements WorkspaceFileList.Listen
     }
     
     private class MatchFinder extends SwingWorker<Object, Object> {
-        private String regularExpression;
+        private String query;
         private DefaultListModel model;
         private boolean statusGood;
         private String statusText;
         
-        private MatchFinder(String regularExpression) {
-            this.regularExpression = regularExpression;
+        private MatchFinder(String query) {
+            this.query = query;
         }
         
         @Override
         protected Object doInBackground() {
             model = new DefaultListModel();
             statusGood = true;
-            try {
-                long startTimeMs = System.currentTimeMillis();
-                
-                List<String> fileList = workspace.getFileList().getListOfFilesMatching(regularExpression);
-                ArrayList<String> shortPathList = new ArrayList<String>();
-                for (String path : fileList) {
-                    shortPathList.add(workspace.getFileList().getUniqueFilePath(path));
-                }
-                Collections.sort(shortPathList, String.CASE_INSENSITIVE_ORDER);
-
-                for (String shortPath : shortPathList) {
-                    model.addElement(shortPath);
-                }
-
-                final int indexedFileCount = workspace.getFileList().getIndexedFileCount();
-                if (indexedFileCount != -1) {
-                    statusText = fileList.size() + " / " + StringUtilities.pluralize(indexedFileCount, "file", "files") + " match";
+            if (this != latestMatchFinder) {
+                // The user's typed more since we were created.
+                return null;
+            }
+            final long t0 = System.nanoTime();
+            
+            FilenameIndex.Matches matches = workspace.getFileList().getBestMatches(query, MAX_RESULTS);
+            for (String path : matches.paths) {
+                String shortPath = workspace.getFileList().getUniqueFilePath(path);
+                model.addElement((shortPath != null) ? shortPath : path);
+            }
+            
+            final int indexedFileCount = workspace.getFileList().getIndexedFileCount();
+            if (indexedFileCount != -1) {
+                statusText = matches.matchCount + " / " + StringUtilities.pluralize(indexedFileCount, "file", "files") + " match";
+                if (matches.matchCount > matches.paths.size()) {
+                    statusText += " (showing the best " + matches.paths.size() + ")";
                 }
-                
-                long endTimeMs = System.currentTimeMillis();
-                Log.warn("Search for files matching \"" + regularExpression + "\" took " + (endTimeMs - startTimeMs) + " ms.");
-            } catch (PatternSyntaxException ex) {
-                statusGood = false;
-                statusText = ex.getDescription();
             }
+            
+            Log.warn("Search for files matching \"" + query + "\" took " + TimeUtilities.nsToString(System.nanoTime() - t0) + ".");
             return null;
         }
         
         @Override
         public void done() {
+            if (this != latestMatchFinder) {
+                return;
+            }
             setStatus(statusGood, statusText);
             matchList.setModel(model);
             matchList.setEnabled(true);
@@ -85,15 +87,18 @@ public class OpenQuicklyPanel extends JPanel implements WorkspaceFileList.Listen
     public synchronized void showMatches() {
         // Only bother if the user can see the results, and we're not currently rescanning the index.
         if (matchList.isShowing() && workspace.getFileList().getIndexedFileCount() != -1) {
-            new MatchFinder(filenameField.getText()).execute();
+            latestMatchFinder = new MatchFinder(filenameField.getText());
+            latestMatchFinder.execute();
         }
     }
     
     private void openFileAtIndex(int index) {
         String filename = (String) matchList.getModel().getElementAt(index);
         
-        // FIXME: This is a slow hack.
-        filename = workspace.getFileList().getFullFilePath(filename);
+        String fullPath = workspace.getFileList().getFullFilePath(filename);
+        if (fullPath != null) {
+            filename = fullPath;
+        }
 
         Evergreen.getInstance().openFile(workspace.prependRootDirectory(filename));
         
@@ -174,7 +179,7 @@ public class OpenQuicklyPanel extends JPanel implements WorkspaceFileList.Listen
         */
 
         addSearchFieldActions(filenameField);
-        changeTimeout = new TextChangeTimeout(filenameField, new ActionListener() {
+        changeTimeout = new TextChangeTimeout(filenameField, 0, new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
                     showMatches();
                 }
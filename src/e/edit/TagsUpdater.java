@@ -24,6 +24,9 @@ public class TagsUpdater {
     private boolean followCaretChanges;
     private File temporaryFile;
     private String tagsDigest;
+    // The buffer version and file type of our last successful scan. Only accessed on the tags updater thread.
+    private int scannedVersion = -1;
+    private FileType scannedFileType;
     
     public TagsUpdater(ETextWindow textWindow) {
         this.textWindow = textWindow;
@@ -288,16 +291,27 @@ public class TagsUpdater {
         
         public void scanTags() {
             try {
+                PTextSnapshot snapshot = getTextArea().getTextBuffer().snapshot();
+                FileType fileType = getTextWindow().getFileType();
+                if (snapshot.getVersion() == scannedVersion && fileType == scannedFileType) {
+                    // Nothing has changed since we last scanned, so neither will the tags.
+                    return;
+                }
+                
                 // Ctags writes the name of the file into its output, so we need to use the same file each time so that md5 hashes can be compared.
                 if (temporaryFile == null) {
                     // It's important to use the same suffix as the original file, because that's how ctags guesses the file's type, and hence which parser to use.
                     temporaryFile = File.createTempFile("e.edit.TagsUpdater-", getFilenameSuffix());
                     temporaryFile.deleteOnExit();
                 }
-                getTextArea().getTextBuffer().writeToFile(temporaryFile);
-                String charsetName = (String) getTextArea().getTextBuffer().getProperty(PTextBuffer.CHARSET_PROPERTY);
-                TagReader tagReader = new TagReader(temporaryFile, getTextWindow().getFileType(), charsetName, tagsDigest, this);
+                // Ctags can only read files, but writing from a snapshot means we don't hold the buffer's lock while we do it.
+                snapshot.writeToFile(temporaryFile);
+                TagReader tagReader = new TagReader(temporaryFile, fileType, snapshot.getCharsetName(), tagsDigest, this);
                 newDigest = tagReader.getTagsDigest();
+                if (successful) {
+                    scannedVersion = snapshot.getVersion();
+                    scannedFileType = fileType;
+                }
                 // See the comment above for why we don't delete our temporary files, except on exit.
                 //temporaryFile.delete();
             } catch (Exception ex) {
@@ -15,10 +15,18 @@ class TextChangeTimeout implements DocumentListener, ComponentListener, ActionLi
     private Timer textChangeTimer;
 
     public TextChangeTimeout(JTextComponent[] textComponents, ActionListener listener) {
+        this(textComponents, 500, listener);
+    }
+
+    /**
+     * Waits until the text hasn't changed for 'delayMs' before telling the
+     * listener. A delay of 0 just coalesces changes made together.
+     */
+    public TextChangeTimeout(JTextComponent[] textComponents, int delayMs, ActionListener listener) {
         this.listener = listener;
         this.isListenerUpToDate = true;
 
-        this.textChangeTimer = new Timer(500, this);
+        this.textChangeTimer = new Timer(delayMs, this);
         textChangeTimer.setRepeats(false);
 
         for (JTextComponent field : textComponents) {
@@ -31,6 +39,10 @@ class TextChangeTimeout implements DocumentListener, ComponentListener, ActionLi
         this(new JTextComponent[] { textComponent }, listener);
     }
 
+    public TextChangeTimeout(JTextComponent textComponent, int delayMs, ActionListener listener) {
+        this(new JTextComponent[] { textComponent }, delayMs, listener);
+    }
+
     public void changedUpdate(DocumentEvent e) {
         textChanged();
     }
@@ -0,0 +1,153 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The shortest unique name of each file in a workspace, which is the
+ * shortest trailing part of its path, starting at a path segment, that no
+ * other file's path shares. Open Quickly shows these rather than whole paths.
+ * 
+ * A file's unique name depends only on how much its path has in common with
+ * the paths either side of it when they're all reversed and sorted, since
+ * paths with a common suffix are then neighbors. So we keep the reversed
+ * paths in a sorted set, and when files are added or removed, we only
+ * work out again the names of the files next to the changes.
+ * 
+ * Only one thread at a time may call update, but any thread can look names
+ * up while it runs. WorkspaceScanner keeps these up to date along with its
+ * file list, so they're saved and read back together.
+ */
+class UniqueFilePaths {
+    // In case-sensitive order, so whichever path has the longest suffix in common with a path is next to it.
+    // Built when first needed, since names read back from a snapshot are often never updated.
+    private TreeSet<String> reversedPaths;
+    private final ConcurrentHashMap<String, String> uniquePaths = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, String> fullPaths = new ConcurrentHashMap<String, String>();
+    
+    /**
+     * Works out the unique names of the given workspace-relative paths.
+     */
+    UniqueFilePaths(Collection<String> paths) {
+        buildReversedPaths(paths);
+        for (String reversedPath : reversedPaths) {
+            updateUniquePath(reversedPath);
+        }
+    }
+    
+    /**
+     * Uses the given unique names, such as those saved with a snapshot, for
+     * the given paths. Any path without one gets its whole path.
+     */
+    UniqueFilePaths(Collection<String> paths, Map<String, String> knownUniquePaths) {
+        for (String path : paths) {
+            String uniquePath = knownUniquePaths.get(path);
+            setUniquePath(path, (uniquePath != null) ? uniquePath : path);
+        }
+    }
+    
+    private void buildReversedPaths(Collection<String> paths) {
+        reversedPaths = new TreeSet<String>();
+        for (String path : paths) {
+            reversedPaths.add(reverse(path));
+        }
+    }
+    
+    /**
+     * Returns the unique name of the given path, or null if we don't know it.
+     */
+    String getUniquePath(String path) {
+        return uniquePaths.get(path);
+    }
+    
+    /**
+     * Returns the path whose unique name is 'uniquePath', or null.
+     */
+    String getFullPath(String uniquePath) {
+        return fullPaths.get(uniquePath);
+    }
+    
+    /**
+     * Does the slow part of the first update now, so that update itself is
+     * quick enough to call while holding a lock.
+     */
+    void prepareForUpdate() {
+        if (reversedPaths == null) {
+            buildReversedPaths(uniquePaths.keySet());
+        }
+    }
+    
+    /**
+     * Forgets the removed paths, learns the added ones, and works out the
+     * unique names of the added paths and their new neighbors, and of the
+     * removed paths' old neighbors.
+     */
+    void update(Collection<String> removedPaths, Collection<String> addedPaths) {
+        prepareForUpdate();
+        HashSet<String> changedReversedPaths = new HashSet<String>();
+        for (String path : removedPaths) {
+            String reversedPath = reverse(path);
+            if (reversedPaths.remove(reversedPath)) {
+                String uniquePath = uniquePaths.remove(path);
+                if (uniquePath != null) {
+                    fullPaths.remove(uniquePath, path);
+                }
+                addNeighbors(reversedPath, changedReversedPaths);
+            }
+        }
+        for (String path : addedPaths) {
+            String reversedPath = reverse(path);
+            if (reversedPaths.add(reversedPath)) {
+                changedReversedPaths.add(reversedPath);
+                addNeighbors(reversedPath, changedReversedPaths);
+            }
+        }
+        for (String reversedPath : changedReversedPaths) {
+            // A neighbor of an early change may have been removed by a later one.
+            if (reversedPaths.contains(reversedPath)) {
+                updateUniquePath(reversedPath);
+            }
+        }
+    }
+    
+    private void addNeighbors(String reversedPath, Set<String> result) {
+        String lower = reversedPaths.lower(reversedPath);
+        if (lower != null) {
+            result.add(lower);
+        }
+        String higher = reversedPaths.higher(reversedPath);
+        if (higher != null) {
+            result.add(higher);
+        }
+    }
+    
+    private void updateUniquePath(String reversedPath) {
+        // Longer than the longest suffix we share with either neighbor...
+        int length = Math.max(lengthOfCommonPrefix(reversedPath, reversedPaths.lower(reversedPath)), lengthOfCommonPrefix(reversedPath, reversedPaths.higher(reversedPath)));
+        // ...and then back to the start of that path segment. If what we share ends at a separator, as with "Makefile" and "src/Makefile", we need the segment before it.
+        length = reversedPath.indexOf(File.separatorChar, length + 1);
+        if (length < 0) {
+            length = reversedPath.length();
+        }
+        String path = reverse(reversedPath);
+        setUniquePath(path, path.substring(path.length() - length));
+    }
+    
+    private void setUniquePath(String path, String uniquePath) {
+        String oldUniquePath = uniquePaths.put(path, uniquePath);
+        if (oldUniquePath != null && oldUniquePath.equals(uniquePath) == false) {
+            fullPaths.remove(oldUniquePath, path);
+        }
+        fullPaths.put(uniquePath, path);
+    }
+    
+    private static int lengthOfCommonPrefix(String reversedPath, String neighbor) {
+        return (neighbor != null) ? StringUtilities.lengthOfCommonPrefix(reversedPath, neighbor) : 0;
+    }
+    
+    private static String reverse(String s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+}
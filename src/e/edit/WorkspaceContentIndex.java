@@ -0,0 +1,128 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Keeps a TrigramIndex of the content of a workspace's files, so "Find in
+ * Files" only has to search the files that might match.
+ * 
+ * The index is updated on a background thread whenever the file list is
+ * rescanned, re-reading only the files whose modification time or length
+ * has changed, and it's saved in the preferences directory so that we
+ * don't have to read every file again next time. Files we save ourselves
+ * are re-indexed straight away. Files changed by other programs are picked
+ * up by the next rescan (which, where the file alteration monitor can tell
+ * us which files changed, only re-checks those). Until then, they're always
+ * searched: a search checks the modification time and length of each file
+ * the index would rule out, and only rules it out if they still match.
+ */
+class WorkspaceContentIndex {
+    private String rootDirectory;
+    private ExecutorService executorService;
+    private volatile TrigramIndex index;
+    
+    public WorkspaceContentIndex(String rootDirectory) {
+        this.rootDirectory = rootDirectory;
+        this.executorService = ThreadUtilities.newSingleThreadExecutor("Content Indexer for " + rootDirectory);
+    }
+    
+    public void dispose() {
+        executorService.shutdownNow();
+    }
+    
+    private File getIndexFile() {
+        return FileUtilities.fileFromString(Evergreen.getInstance().getPreferenceFilename("content-index-" + rootDirectory.replaceAll("[^A-Za-z0-9]+", "-")));
+    }
+    
+    /**
+     * Brings the index up to date with the given list of workspace-relative
+     * files, in the background. If 'changedFiles' isn't null, only those
+     * files are checked for changes; otherwise, all of them are.
+     */
+    public void update(final List<String> files, final Collection<String> changedFiles) {
+        executorService.execute(new Runnable() {
+            public void run() {
+                TrigramIndex index = getIndex();
+                index.retainAll(files);
+                Collection<String> filesToCheck = files;
+                if (changedFiles != null) {
+                    filesToCheck = new ArrayList<String>(changedFiles);
+                    filesToCheck.retainAll(new HashSet<String>(files));
+                }
+                for (String path : filesToCheck) {
+                    if (executorService.isShutdown()) {
+                        return;
+                    }
+                    File file = FileUtilities.fileFromParentAndString(rootDirectory, path);
+                    if (index.isUpToDate(path, file) == false) {
+                        indexFile(index, path, file);
+                    }
+                }
+                if (index.isModified()) {
+                    try {
+                        index.writeTo(getIndexFile());
+                    } catch (IOException ex) {
+                        Log.warn("Failed to save content index for \"" + rootDirectory + "\".", ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Re-indexes a file we've just saved. Until that's done, the file is
+     * always searched.
+     */
+    public void fileSaved(final String path) {
+        TrigramIndex currentIndex = index;
+        if (currentIndex != null) {
+            currentIndex.removeFile(path);
+        }
+        executorService.execute(new Runnable() {
+            public void run() {
+                indexFile(getIndex(), path, FileUtilities.fileFromParentAndString(rootDirectory, path));
+            }
+        });
+    }
+    
+    /**
+     * Returns the index, reading it from disk the first time. Only called on our executor's thread.
+     */
+    private TrigramIndex getIndex() {
+        if (index == null) {
+            File indexFile = getIndexFile();
+            TrigramIndex newIndex = new TrigramIndex();
+            if (indexFile.exists()) {
+                try {
+                    newIndex = TrigramIndex.readFrom(indexFile);
+                } catch (IOException ex) {
+                    Log.warn("Failed to read content index for \"" + rootDirectory + "\"; rebuilding it.", ex);
+                }
+            }
+            index = newIndex;
+        }
+        return index;
+    }
+    
+    private void indexFile(TrigramIndex index, String path, File file) {
+        try {
+            index.indexFile(path, file);
+        } catch (IOException ex) {
+            // The file's probably been removed since the scan. Either way, it'll have to be searched.
+            index.removeFile(path);
+        }
+    }
+    
+    /**
+     * Returns those of the given files that might contain a match for
+     * 'pattern'. Until the index has been read, that's all of them.
+     */
+    public List<String> getFilesPossiblyMatching(List<String> files, Pattern pattern) {
+        TrigramIndex currentIndex = index;
+        return (currentIndex != null) ? currentIndex.getFilesPossiblyMatching(rootDirectory, files, pattern) : files;
+    }
+}
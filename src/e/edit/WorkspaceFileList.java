@@ -9,12 +9,17 @@ import org.jdesktop.swingworker.SwingWorker;
 
 public class WorkspaceFileList {
     private Workspace workspace;
-    private ArrayList<String> fileList;
-
-    private HashMap<String, String> minPathFileList;
+    // Replaced, never modified, so readers can take a reference and use it without locking.
+    private volatile ArrayList<String> fileList;
+    
+    // The scanner's, which it updates in place as files come and go; replaced along with the scanner.
+    private volatile UniqueFilePaths uniqueFilePaths;
+    private volatile FilenameIndex filenameIndex;
     
     private FileAlterationMonitor fileAlterationMonitor;
     private ExecutorService fileListUpdateExecutorService;
+    private WorkspaceContentIndex contentIndex;
+    private WorkspaceScanner scanner;
     
     private ArrayList<Listener> listeners = new ArrayList<Listener>();
     
@@ -33,6 +38,7 @@ public class WorkspaceFileList {
     
     public void dispose() {
         fileAlterationMonitor.dispose();
+        contentIndex.dispose();
     }
     
     /**
@@ -59,9 +65,19 @@ public class WorkspaceFileList {
      * Fills the file list. It can take some time to scan for files, so we do
      * the job in the background. New requests that arrive while a scan is
      * already in progress will be queued behind the in-progress scan.
+     * Any existing list remains available until the new one replaces it.
      */
     public synchronized void updateFileList() {
-        FileListUpdater fileListUpdater = new FileListUpdater();
+        updateFileList(null);
+    }
+    
+    /**
+     * Like updateFileList(), but only looks at the given absolute pathnames,
+     * which the file alteration monitor tells us have changed. Null means
+     * anything might have.
+     */
+    private synchronized void updateFileList(Collection<String> changedPathnames) {
+        FileListUpdater fileListUpdater = new FileListUpdater(changedPathnames);
         fileListUpdateExecutorService.execute(fileListUpdater);
     }
     
@@ -83,20 +99,70 @@ public class WorkspaceFileList {
         }
         return result;
     }
-
+    
+    /**
+     * Returns those of the given files that might contain a match for the
+     * given Pattern, according to the content index. The rest certainly
+     * don't, so there's no need to search them.
+     */
+    public List<String> getFilesPossiblyContaining(List<String> files, Pattern pattern) {
+        return contentIndex.getFilesPossiblyMatching(files, pattern);
+    }
+    
+    /**
+     * Tells us that the given file has been saved, so its content may have changed.
+     */
+    public void fileSaved(String filename) {
+        String rootDirectory = workspace.getRootDirectory();
+        if (filename.startsWith(rootDirectory)) {
+            contentIndex.fileSaved(filename.substring(rootDirectory.length()));
+        }
+    }
+    
+    /**
+     * Saves the file list, if it's changed since it was last saved, so it's
+     * available as soon as we start next time.
+     */
+    public void rememberState() {
+        WorkspaceScanner currentScanner = scanner;
+        if (currentScanner != null && currentScanner.isModified()) {
+            writeSnapshot(currentScanner, workspace.getRootDirectory());
+        }
+    }
+    
+    private File getSnapshotFile(String rootDirectory) {
+        return FileUtilities.fileFromString(Evergreen.getInstance().getPreferenceFilename("file-list-" + rootDirectory.replaceAll("[^A-Za-z0-9]+", "-")));
+    }
+    
+    private void writeSnapshot(WorkspaceScanner scanner, String rootDirectory) {
+        try {
+            scanner.writeTo(getSnapshotFile(rootDirectory));
+        } catch (IOException ex) {
+            Log.warn("Failed to save file list for \"" + rootDirectory + "\".", ex);
+        }
+    }
+    
     public String getUniqueFilePath(String path) {
-        return minPathFileList.get(path);
+        UniqueFilePaths names = uniqueFilePaths;
+        return (names != null) ? names.getUniquePath(path) : null;
     }
-
+    
     public String getFullFilePath(String uniquePath) {
-        for (Map.Entry<String, String> entry : minPathFileList.entrySet()) {
-            if (entry.getValue() == uniquePath) {
-                return entry.getKey();
-            }
+        UniqueFilePaths names = uniqueFilePaths;
+        return (names != null) ? names.getFullPath(uniquePath) : null;
+    }
+    
+    /**
+     * Returns the files best matching the given Open Quickly query, best first.
+     */
+    FilenameIndex.Matches getBestMatches(String query, int maxResults) {
+        FilenameIndex index = filenameIndex;
+        if (index == null) {
+            return new FilenameIndex.Matches(Collections.<String>emptyList(), 0);
         }
-        return null;
+        return index.find(query, maxResults);
     }
-
+    
     private void initFileAlterationMonitorForRoot(String rootDirectory) {
         // Get rid of any existing file alteration monitor.
         if (fileAlterationMonitor != null) {
@@ -108,136 +174,149 @@ public class WorkspaceFileList {
         this.fileAlterationMonitor = new FileAlterationMonitor(rootDirectory);
         // And another thread to update our list of files...
         this.fileListUpdateExecutorService = ThreadUtilities.newSingleThreadExecutor("File List Updater for " + rootDirectory);
+        // And another to index their content.
+        if (contentIndex != null) {
+            contentIndex.dispose();
+        }
+        this.contentIndex = new WorkspaceContentIndex(rootDirectory);
+        // The old list and what we know about the old root's directories are no use now.
+        this.scanner = new WorkspaceScanner(rootDirectory, workspace.getCanonicalRootDirectory());
+        this.fileList = null;
+        this.uniqueFilePaths = null;
+        this.filenameIndex = null;
         
+        final String monitoredRootDirectory = rootDirectory;
         fileAlterationMonitor.addListener(new FileAlterationMonitor.Listener() {
-            public void fileTouched(String pathname) {
-                updateFileList();
+            public void filesTouched(Set<String> pathnames) {
+                // If we're told about the root itself, we don't know what's changed.
+                updateFileList(pathnames.contains(monitoredRootDirectory) ? null : pathnames);
             }
         });
         
-        fileAlterationMonitor.addPathname(rootDirectory);
+        fileAlterationMonitor.addDirectoryTree(rootDirectory);
     }
     
     private class FileListUpdater extends SwingWorker<ArrayList<String>, Object> {
-        public FileListUpdater() {
-            fireListeners(false);
-            fileList = null;
+        private Collection<String> changedPathnames;
+        private String rootDirectory;
+        private WorkspaceScanner scanner;
+        private WorkspaceContentIndex contentIndex;
+        private boolean listChanged;
+        
+        public FileListUpdater(Collection<String> changedPathnames) {
+            this.changedPathnames = changedPathnames;
+            // Remember the root we were asked to scan, in case it changes before we run.
+            this.rootDirectory = workspace.getRootDirectory();
+            this.scanner = WorkspaceFileList.this.scanner;
+            this.contentIndex = WorkspaceFileList.this.contentIndex;
+            if (fileList == null) {
+                fireListeners(false);
+            }
         }
         
         @Override
         protected ArrayList<String> doInBackground() {
+            if (fileList == null) {
+                // We've nothing to update, so we need a full scan whatever we were told.
+                changedPathnames = null;
+                // Until that's done, what we found last time is better than nothing, and usually right.
+                readSnapshot();
+            }
+            
             // Don't hog the CPU while we're still getting started.
             Evergreen.getInstance().awaitInitialization();
             
             ArrayList<String> newFileList = scanWorkspaceForFiles();
-            // Many file systems will have returned the files not in alphabetical order, so we sort them ourselves here.
-            // Users of the list can then assume it's in order.
-            Collections.sort(newFileList, String.CASE_INSENSITIVE_ORDER);
-            fileList = newFileList;
-
-            minPathFileList = makeMinPaths(newFileList);
-
-            return fileList;
-        }
-
-        private HashMap<String, String> makeMinPaths(ArrayList<String> paths) {
-            ArrayList<String> revPaths = new ArrayList<String>();
-            HashMap<String, String> pathToMinPath = new HashMap<String, String>();
-
-            for (String path : paths) {
-                revPaths.add(new StringBuilder(path).reverse().toString());
+            if (scanner != WorkspaceFileList.this.scanner) {
+                // The root changed while we were scanning, so this list is no use.
+                return newFileList;
             }
-            Collections.sort(revPaths, String.CASE_INSENSITIVE_ORDER);
-
-            System.out.println("makeMinPaths2!! files=" + revPaths.size());
-
-            for (int i = 0; i < revPaths.size(); i++) {
-                String s1 = revPaths.get(i);
-                String s2 = "";
-                if (revPaths.size() > 1) {
-                    if (i < revPaths.size() - 1) {
-                        s2 = revPaths.get(i + 1);
-                    } else {
-                        s2 = revPaths.get(i - 1);
-                    }
+            // The content index checks for files changed in place, so it needs updating even if the list hasn't changed.
+            contentIndex.update(newFileList, getWorkspaceRelativePaths(changedPathnames));
+            if (newFileList != fileList) {
+                // Usually only a few files have come or gone, and there's no need to start again.
+                WorkspaceScanner.Changes changes = scanner.getChangesFrom(fileList);
+                if (changes != null && filenameIndex != null) {
+                    filenameIndex = new FilenameIndex(filenameIndex, newFileList, changes.removedFiles, new HashSet<String>(changes.addedFiles));
+                } else {
+                    filenameIndex = new FilenameIndex(newFileList);
                 }
-
-                int n = 0;
-                while (n < s1.length() && n < s2.length() &&
-                       s1.charAt(n) == s2.charAt(n)) {
-                    n++;
+                uniqueFilePaths = scanner.getUniqueFilePaths();
+                fileList = newFileList;
+                listChanged = true;
+            }
+            // Saving after every change would be a waste of time; rememberState catches those since the last full scan.
+            if (changedPathnames == null && scanner.isModified()) {
+                writeSnapshot(scanner, rootDirectory);
+            }
+            
+            return newFileList;
+        }
+        
+        private void readSnapshot() {
+            File file = getSnapshotFile(rootDirectory);
+            if (file.exists() == false) {
+                return;
+            }
+            final long t0 = System.nanoTime();
+            try {
+                scanner.readFrom(file);
+                if (scanner != WorkspaceFileList.this.scanner) {
+                    return;
                 }
-                n = s1.indexOf(File.separator, n);
-                if (n < 0) {
-                    n = s1.length();
+                uniqueFilePaths = scanner.getUniqueFilePaths();
+                filenameIndex = new FilenameIndex(scanner.getFileList());
+                fileList = scanner.getFileList();
+                // Tell the listeners now, rather than after the scan.
+                publish(fileList);
+                Log.warn("Read file list for " + rootDirectory + " in " + TimeUtilities.nsToString(System.nanoTime() - t0) + "; found " + fileList.size() + " files.");
+            } catch (IOException ex) {
+                Log.warn("Failed to read saved file list for \"" + rootDirectory + "\"; scanning instead.", ex);
+            }
+        }
+        
+        @Override
+        protected void process(List<Object> chunks) {
+            fireListeners(true);
+        }
+        
+        private List<String> getWorkspaceRelativePaths(Collection<String> pathnames) {
+            if (pathnames == null) {
+                return null;
+            }
+            String prefix = FileUtilities.parseUserFriendlyName(rootDirectory);
+            ArrayList<String> result = new ArrayList<String>();
+            for (String pathname : pathnames) {
+                if (pathname.startsWith(prefix)) {
+                    result.add(pathname.substring(prefix.length()));
                 }
-
-                StringBuilder sb = new StringBuilder(s1).reverse();
-                pathToMinPath.put(sb.toString(), sb.substring(sb.length() - n));
-
-                System.out.println("Got shortest path: \'" + sb.substring(sb.length() - n) + "\' for \'" + sb.toString());
             }
-
-            return pathToMinPath;
+            return result;
         }
         
         /**
          * Builds a list of files for Open Quickly.
          */
         private ArrayList<String> scanWorkspaceForFiles() {
+            if (changedPathnames != null) {
+                // Only a few files will have changed, so this will be quick; we don't need to tell the user about it.
+                return scanner.scan(changedPathnames);
+            }
             Log.warn("Scanning " + workspace.getRootDirectory() + " for interesting files.");
             final long t0 = System.nanoTime();
             
-            FileIgnorer fileIgnorer = new FileIgnorer(workspace.getRootDirectory());
-            ArrayList<String> result = new ArrayList<String>();
-            scanDirectory(workspace.getRootDirectory(), fileIgnorer, result);
+            ArrayList<String> result = scanner.scan();
             Evergreen.getInstance().showStatus("Scan of \"" + workspace.getRootDirectory() + "\" complete (" + result.size() + " files)");
             
             Log.warn("Scan of " + workspace.getRootDirectory() + " took " + TimeUtilities.nsToString(System.nanoTime() - t0) + "; found " + result.size() + " files.");
             return result;
         }
         
-        private boolean isSymbolicLinkWithinWorkspace(File file) {
-            if (FileUtilities.isSymbolicLink(file) == false) {
-                return false;
-            }
-            try {
-                String canonicalFileName = file.getCanonicalFile().toString();
-                String canonicalWorkspaceRootDirectory = workspace.getCanonicalRootDirectory();
-                return canonicalFileName.startsWith(canonicalWorkspaceRootDirectory);
-            } catch (IOException ex) {
-                // (If we can't find the root directory of the workspace, then what are we scanning?)
-                // If we can't find the target of a symbolic link, then we can't very well edit it.
-                return true;
-            }
-        }
-        
-        private void scanDirectory(String directory, FileIgnorer fileIgnorer, ArrayList<String> result) {
-            File dir = FileUtilities.fileFromString(directory);
-            File[] files = dir.listFiles();
-            if (files == null) {
-                return;
-            }
-            for (File file : files) {
-                if (fileIgnorer.isIgnored(file)) {
-                    continue;
-                }
-                if (isSymbolicLinkWithinWorkspace(file)) {
-                    continue;
-                }
-                String filename = file.toString();
-                if (file.isDirectory()) {
-                    scanDirectory(filename, fileIgnorer, result);
-                } else {
-                    int prefixCharsToSkip = FileUtilities.parseUserFriendlyName(workspace.getRootDirectory()).length();
-                    result.add(filename.substring(prefixCharsToSkip));
-                }
-            }
-        }
-        
         @Override
         public void done() {
-            fireListeners(true);
+            if (listChanged) {
+                fireListeners(true);
+            }
         }
     }
     
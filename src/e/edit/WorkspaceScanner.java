@@ -0,0 +1,629 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Finds the interesting files in a workspace, for Open Quickly and Find in
+ * Files.
+ * 
+ * Listing a directory means a system call for each of its entries to find
+ * out whether it's hidden, a directory, or a symbolic link, so a scanner
+ * remembers what it found in each directory, together with the directory's
+ * modification time. Adding, removing or renaming an entry changes that
+ * time, so a rescan only has to check the time of each directory, and list
+ * just those that have changed. Directories are scanned by a few threads at
+ * once, which helps most on network file systems, where most of the time
+ * is spent waiting.
+ * 
+ * The result of a scan is a new sorted list, made by merging the files
+ * that were added into the previous list, less those that were removed.
+ * If nothing changed, the previous list itself is returned.
+ * 
+ * When we're told exactly which pathnames have changed, a rescan need only
+ * look at the directories containing them, plus any new directories.
+ * 
+ * A scanner's state can be saved to disk and read back the next time we
+ * start, so the file list is available straight away; the first scan then
+ * only has to list the directories that changed while we weren't running.
+ * The files' unique short names are kept up to date along with the list,
+ * so a snapshot never pairs a list with names worked out for another.
+ * 
+ * Listings are only good for the FileIgnorer settings they were made with,
+ * so they're kept together with a hash of those settings, and thrown away
+ * if the settings have changed.
+ * 
+ * Scans hold the scanner's lock throughout, so only one runs at a time. The
+ * results of the last finished scan are replaced all at once, under a
+ * separate lock that's only ever held briefly, and never modified, so
+ * getFileList, isModified and writeTo don't have to wait for a scan.
+ */
+class WorkspaceScanner {
+    // Shared by all workspaces. Scanning is mostly waiting for the file system, so this needn't be related to the number of CPUs.
+    private static final ExecutorService executor = ThreadUtilities.newFixedThreadPool(4, "Workspace Scanner");
+    
+    // A directory modified this recently might be modified again without its time changing, if the file system only records whole seconds.
+    private static final long MODIFICATION_TIME_GRANULARITY_MS = 2000;
+    
+    private static final int MAGIC = 0x65666c73; // "efls"
+    private static final int VERSION = 3;
+    
+    private static class DirectoryState {
+        // 0 if we shouldn't trust our listing next time.
+        private long lastModified;
+        // Workspace-relative.
+        private String[] files;
+        private String[] subdirectories;
+    }
+    
+    /**
+     * The files one scan added to the list and removed from it, so that
+     * whatever's derived from the list can be brought up to date without
+     * starting again. 'addedFiles' is sorted.
+     */
+    static class Changes {
+        private final ArrayList<String> previousFileList;
+        final Set<String> removedFiles;
+        final List<String> addedFiles;
+        
+        private Changes(ArrayList<String> previousFileList, Set<String> removedFiles, List<String> addedFiles) {
+            this.previousFileList = previousFileList;
+            this.removedFiles = removedFiles;
+            this.addedFiles = addedFiles;
+        }
+    }
+    
+    private String rootDirectory;
+    private String canonicalRootDirectory;
+    private int prefixCharsToSkip;
+    
+    // Guards the following fields. Only scans and readFrom change them, while also holding the scanner's lock.
+    private final Object stateLock = new Object();
+    private HashMap<String, DirectoryState> directories = new HashMap<String, DirectoryState>();
+    private ArrayList<String> fileList = new ArrayList<String>();
+    // The FileIgnorer.getConfigurationHash that 'directories' were listed with.
+    private int ignorerConfigurationHash;
+    // True if our state has changed since it was last written or read.
+    private boolean modified = false;
+    // How the last scan that changed the list changed it.
+    private Changes lastChanges;
+    // The unique short names of the files in 'fileList'. Replaced, or updated in place, only while holding this lock too.
+    private UniqueFilePaths uniqueFilePaths;
+    
+    // Held while writing a snapshot, so two writers don't share the temporary file.
+    private final Object writeLock = new Object();
+    
+    public WorkspaceScanner(String rootDirectory, String canonicalRootDirectory) {
+        this.rootDirectory = rootDirectory;
+        this.canonicalRootDirectory = canonicalRootDirectory;
+        this.prefixCharsToSkip = FileUtilities.parseUserFriendlyName(rootDirectory).length();
+    }
+    
+    /**
+     * Scans the workspace, returning a sorted list of workspace-relative
+     * filenames. If nothing has changed since the last scan, the list
+     * returned by that scan is returned again. Lists returned by scan are
+     * never modified.
+     */
+    public synchronized ArrayList<String> scan() {
+        Scan scan = new Scan(null);
+        scan.run();
+        return finishScan(scan);
+    }
+    
+    /**
+     * Like scan, but only checks the directories containing the given
+     * absolute pathnames (and those pathnames that are themselves
+     * directories), assuming nothing else has changed. Pathnames in
+     * directories we've never listed, because they're ignored, are ignored.
+     */
+    public synchronized ArrayList<String> scan(Collection<String> changedPathnames) {
+        HashSet<String> directoriesToCheck = new HashSet<String>();
+        for (String pathname : changedPathnames) {
+            File file = new File(pathname);
+            if (directories.containsKey(file.getPath())) {
+                directoriesToCheck.add(file.getPath());
+            }
+            String parent = file.getParent();
+            if (parent != null && directories.containsKey(parent)) {
+                directoriesToCheck.add(parent);
+            }
+        }
+        if (directoriesToCheck.isEmpty()) {
+            return fileList;
+        }
+        Scan scan = new Scan(directoriesToCheck);
+        // Scan falls back to a full scan if the ignore settings have changed.
+        scan.run();
+        return finishScan(scan);
+    }
+    
+    private ArrayList<String> finishScan(Scan scan) {
+        // Work out what's changed, looking only at the directories we had to list.
+        HashSet<String> removedFiles = new HashSet<String>();
+        ArrayList<String> addedFiles = new ArrayList<String>();
+        for (Map.Entry<String, DirectoryState> entry : scan.directories.entrySet()) {
+            DirectoryState oldState = directories.get(entry.getKey());
+            DirectoryState newState = entry.getValue();
+            if (oldState == newState) {
+                continue;
+            }
+            List<String> oldFiles = (oldState != null) ? Arrays.asList(oldState.files) : Collections.<String>emptyList();
+            HashSet<String> newFiles = new HashSet<String>(Arrays.asList(newState.files));
+            for (String file : oldFiles) {
+                if (newFiles.remove(file) == false) {
+                    removedFiles.add(file);
+                }
+            }
+            addedFiles.addAll(newFiles);
+        }
+        for (Map.Entry<String, DirectoryState> entry : directories.entrySet()) {
+            if (scan.directories.containsKey(entry.getKey()) == false) {
+                removedFiles.addAll(Arrays.asList(entry.getValue().files));
+            }
+        }
+        boolean changed = (scan.listedDirectoryCount.get() > 0 || scan.directories.size() != directories.size());
+        HashMap<String, DirectoryState> newDirectories = new HashMap<String, DirectoryState>(scan.directories);
+        ArrayList<String> newFileList = fileList;
+        Changes changes = null;
+        if (addedFiles.isEmpty() == false || removedFiles.isEmpty() == false) {
+            newFileList = merge(fileList, removedFiles, addedFiles);
+            changes = new Changes(fileList, removedFiles, addedFiles);
+        }
+        // Working out every name takes a while, so only a small update of names already published happens under the lock.
+        UniqueFilePaths newUniqueFilePaths = uniqueFilePaths;
+        if (newUniqueFilePaths == null) {
+            newUniqueFilePaths = new UniqueFilePaths(newFileList);
+        } else if (changes != null) {
+            newUniqueFilePaths.prepareForUpdate();
+        }
+        synchronized (stateLock) {
+            directories = newDirectories;
+            fileList = newFileList;
+            if (newUniqueFilePaths == uniqueFilePaths && changes != null) {
+                uniqueFilePaths.update(changes.removedFiles, changes.addedFiles);
+            }
+            uniqueFilePaths = newUniqueFilePaths;
+            if (changes != null) {
+                lastChanges = changes;
+            }
+            ignorerConfigurationHash = scan.ignorerConfigurationHash;
+            modified = modified || changed;
+        }
+        return newFileList;
+    }
+    
+    /**
+     * Returns the list returned by the last scan, or read by readFrom.
+     */
+    public ArrayList<String> getFileList() {
+        synchronized (stateLock) {
+            return fileList;
+        }
+    }
+    
+    /**
+     * Returns the unique short names of the files in the list returned by
+     * getFileList, or null before the first scan or readFrom. They're
+     * updated in place by later scans.
+     */
+    public UniqueFilePaths getUniqueFilePaths() {
+        synchronized (stateLock) {
+            return uniqueFilePaths;
+        }
+    }
+    
+    public boolean isModified() {
+        synchronized (stateLock) {
+            return modified;
+        }
+    }
+    
+    /**
+     * Returns the changes that turned 'previousFileList' into the current
+     * list, or null if it didn't become the current list in one scan.
+     */
+    public Changes getChangesFrom(ArrayList<String> previousFileList) {
+        synchronized (stateLock) {
+            if (lastChanges == null || lastChanges.previousFileList != previousFileList) {
+                return null;
+            }
+            return lastChanges;
+        }
+    }
+    
+    /**
+     * Writes our state to 'file', along with the unique short names of our
+     * files (see WorkspaceFileList.getUniqueFilePath). The file list is
+     * written once, in order, and directories refer to files and
+     * subdirectories by index, so the snapshot is little bigger than the
+     * list itself.
+     * 
+     * We write the state left by the last finished scan, without waiting for
+     * any scan in progress; we're called on the event dispatch thread when
+     * quitting.
+     */
+    public void writeTo(File file) throws IOException {
+        synchronized (writeLock) {
+            HashMap<String, DirectoryState> directories;
+            ArrayList<String> fileList;
+            int[] uniquePathLengths;
+            int ignorerConfigurationHash;
+            synchronized (stateLock) {
+                directories = this.directories;
+                fileList = this.fileList;
+                // The names change in place, so we take what we need of them while they still match the list.
+                uniquePathLengths = getUniquePathLengths(fileList, uniqueFilePaths);
+                ignorerConfigurationHash = this.ignorerConfigurationHash;
+            }
+            writeTo(file, uniquePathLengths, directories, fileList, ignorerConfigurationHash);
+            synchronized (stateLock) {
+                // A scan may have finished while we were writing, in which case there's still more to save.
+                if (this.directories == directories && this.fileList == fileList) {
+                    modified = false;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the length of each file's unique short name, or of its whole
+     * path if we don't know the name yet.
+     */
+    private static int[] getUniquePathLengths(ArrayList<String> fileList, UniqueFilePaths uniqueFilePaths) {
+        int[] result = new int[fileList.size()];
+        for (int i = 0; i < result.length; ++i) {
+            String path = fileList.get(i);
+            String uniquePath = (uniqueFilePaths != null) ? uniqueFilePaths.getUniquePath(path) : null;
+            result[i] = (uniquePath != null) ? uniquePath.length() : path.length();
+        }
+        return result;
+    }
+    
+    private void writeTo(File file, int[] uniquePathLengths, HashMap<String, DirectoryState> directories, ArrayList<String> fileList, int ignorerConfigurationHash) throws IOException {
+        HashMap<String, Integer> fileIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < fileList.size(); ++i) {
+            fileIndexes.put(fileList.get(i), i);
+        }
+        ArrayList<String> directoryPaths = new ArrayList<String>(directories.keySet());
+        HashMap<String, Integer> directoryIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < directoryPaths.size(); ++i) {
+            directoryIndexes.put(directoryPaths.get(i), i);
+        }
+        
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, rootDirectory);
+            out.writeInt(ignorerConfigurationHash);
+            out.writeInt(fileList.size());
+            for (int i = 0; i < fileList.size(); ++i) {
+                writeString(out, fileList.get(i));
+                out.writeInt(uniquePathLengths[i]);
+            }
+            out.writeInt(directoryPaths.size());
+            for (String path : directoryPaths) {
+                DirectoryState state = directories.get(path);
+                writeString(out, path);
+                out.writeLong(state.lastModified);
+                out.writeInt(state.files.length);
+                for (String filename : state.files) {
+                    out.writeInt(fileIndexes.get(filename));
+                }
+                out.writeInt(state.subdirectories.length);
+                for (String subdirectory : state.subdirectories) {
+                    out.writeInt(directoryIndexes.get(subdirectory));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && file.delete() == false || temporaryFile.renameTo(file) == false) {
+            throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + file + "\"");
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Replaces our state with that written by writeTo. The file list and
+     * its unique short names are then available from getFileList and
+     * getUniqueFilePaths, and the next scan brings them up to date. Throws
+     * IOException if 'file' is missing, damaged, written by an incompatible
+     * version, for a different root directory, or with different FileIgnorer
+     * settings.
+     */
+    public synchronized void readFrom(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            readFrom(buffer);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("\"" + file + "\" is truncated");
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("\"" + file + "\" is corrupt");
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+    
+    private void readFrom(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("not a compatible snapshot");
+        }
+        if (readString(in).equals(rootDirectory) == false) {
+            throw new IOException("snapshot of a different directory");
+        }
+        final int snapshotIgnorerConfigurationHash = in.getInt();
+        if (snapshotIgnorerConfigurationHash != new FileIgnorer(rootDirectory).getConfigurationHash()) {
+            throw new IOException("snapshot made with different ignore settings");
+        }
+        final int fileCount = readCount(in);
+        ArrayList<String> newFileList = new ArrayList<String>(fileCount);
+        HashMap<String, String> uniquePaths = new HashMap<String, String>();
+        for (int i = 0; i < fileCount; ++i) {
+            String path = readString(in);
+            newFileList.add(path);
+            uniquePaths.put(path, path.substring(path.length() - in.getInt()));
+        }
+        final int directoryCount = readCount(in);
+        String[] directoryPaths = new String[directoryCount];
+        int[][] subdirectoryIndexes = new int[directoryCount][];
+        DirectoryState[] states = new DirectoryState[directoryCount];
+        for (int i = 0; i < directoryCount; ++i) {
+            directoryPaths[i] = readString(in);
+            DirectoryState state = new DirectoryState();
+            state.lastModified = in.getLong();
+            state.files = new String[readCount(in)];
+            for (int j = 0; j < state.files.length; ++j) {
+                state.files[j] = newFileList.get(in.getInt());
+            }
+            subdirectoryIndexes[i] = new int[readCount(in)];
+            for (int j = 0; j < subdirectoryIndexes[i].length; ++j) {
+                subdirectoryIndexes[i][j] = in.getInt();
+            }
+            states[i] = state;
+        }
+        HashMap<String, DirectoryState> newDirectories = new HashMap<String, DirectoryState>();
+        for (int i = 0; i < directoryCount; ++i) {
+            DirectoryState state = states[i];
+            state.subdirectories = new String[subdirectoryIndexes[i].length];
+            for (int j = 0; j < state.subdirectories.length; ++j) {
+                state.subdirectories[j] = directoryPaths[subdirectoryIndexes[i][j]];
+            }
+            newDirectories.put(directoryPaths[i], state);
+        }
+        UniqueFilePaths newUniqueFilePaths = new UniqueFilePaths(newFileList, uniquePaths);
+        synchronized (stateLock) {
+            directories = newDirectories;
+            fileList = newFileList;
+            uniqueFilePaths = newUniqueFilePaths;
+            lastChanges = null;
+            ignorerConfigurationHash = snapshotIgnorerConfigurationHash;
+            modified = false;
+        }
+    }
+    
+    /**
+     * Reads the count of a following sequence, checking it's plausible
+     * before we allocate anything that big. Every item takes at least four bytes.
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 4) {
+            throw new IOException("bad count " + count);
+        }
+        return count;
+    }
+    
+    private static String readString(ByteBuffer in) throws IOException {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    /**
+     * Returns a new list containing the elements of the sorted list
+     * 'oldList' not in 'removed', plus those in 'added'. Sorting just the
+     * additions and merging is much cheaper than sorting everything again.
+     */
+    private static ArrayList<String> merge(List<String> oldList, Set<String> removed, List<String> added) {
+        // Many file systems will have returned the files not in alphabetical order, so we sort them ourselves here.
+        // Users of the list can then assume it's in order.
+        Collections.sort(added, String.CASE_INSENSITIVE_ORDER);
+        ArrayList<String> result = new ArrayList<String>(oldList.size() - removed.size() + added.size());
+        int i = 0;
+        int j = 0;
+        while (i < oldList.size() || j < added.size()) {
+            if (i < oldList.size() && removed.contains(oldList.get(i))) {
+                ++i;
+            } else if (j == added.size() || (i < oldList.size() && String.CASE_INSENSITIVE_ORDER.compare(oldList.get(i), added.get(j)) <= 0)) {
+                result.add(oldList.get(i++));
+            } else {
+                result.add(added.get(j++));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * One walk of the directory tree, or of just some directories and any
+     * new subdirectories. Each directory is a separate task on the shared
+     * executor; a task submits tasks for the directory's subdirectories
+     * before it finishes, so the walk is over when the count of outstanding
+     * tasks falls to zero.
+     */
+    private class Scan {
+        private final long startTime = System.currentTimeMillis();
+        private final String rootPath = FileUtilities.fileFromString(rootDirectory).toString();
+        private final FileIgnorer fileIgnorer = new FileIgnorer(rootDirectory);
+        private final int ignorerConfigurationHash = fileIgnorer.getConfigurationHash();
+        // Null for a full scan.
+        private final Set<String> directoriesToCheck;
+        // Only read during the scan, so it's safe to share between threads without locking.
+        private final HashMap<String, DirectoryState> previousDirectories;
+        private final ConcurrentHashMap<String, DirectoryState> directories = new ConcurrentHashMap<String, DirectoryState>();
+        private final AtomicInteger outstandingTaskCount = new AtomicInteger(0);
+        private final AtomicInteger listedDirectoryCount = new AtomicInteger(0);
+        
+        private Scan(Set<String> directoriesToCheck) {
+            if (ignorerConfigurationHash == WorkspaceScanner.this.ignorerConfigurationHash) {
+                this.directoriesToCheck = directoriesToCheck;
+                this.previousDirectories = WorkspaceScanner.this.directories;
+            } else {
+                // What we listed before may include files we'd now ignore, or lack ones we wouldn't, so list everything again.
+                this.directoriesToCheck = null;
+                this.previousDirectories = new HashMap<String, DirectoryState>();
+            }
+        }
+        
+        private void run() {
+            if (directoriesToCheck == null) {
+                scanDirectoryLater(new File(rootPath));
+            } else {
+                // Everything we're not checking stays as it was.
+                directories.putAll(previousDirectories);
+                for (String path : directoriesToCheck) {
+                    directories.remove(path);
+                }
+                for (String path : directoriesToCheck) {
+                    scanDirectoryLater(new File(path));
+                }
+            }
+            synchronized (this) {
+                while (outstandingTaskCount.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        ex = ex; // Keep waiting; the tasks will finish soon enough.
+                    }
+                }
+            }
+            if (directoriesToCheck != null) {
+                removeUnreachableDirectories();
+            }
+        }
+        
+        /**
+         * Removes the directories whose parents no longer list them, and
+         * everything beneath them.
+         */
+        private void removeUnreachableDirectories() {
+            HashSet<String> reachable = new HashSet<String>();
+            ArrayList<String> pending = new ArrayList<String>();
+            pending.add(rootPath);
+            while (pending.isEmpty() == false) {
+                String path = pending.remove(pending.size() - 1);
+                DirectoryState state = directories.get(path);
+                if (state != null && reachable.add(path)) {
+                    pending.addAll(Arrays.asList(state.subdirectories));
+                }
+            }
+            directories.keySet().retainAll(reachable);
+        }
+        
+        private void scanDirectoryLater(final File directory) {
+            outstandingTaskCount.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        scanDirectory(directory);
+                    } catch (Throwable th) {
+                        Log.warn("Problem scanning \"" + directory + "\".", th);
+                    } finally {
+                        if (outstandingTaskCount.decrementAndGet() == 0) {
+                            synchronized (Scan.this) {
+                                Scan.this.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        
+        private void scanDirectory(File directory) {
+            final String path = directory.toString();
+            final long lastModified = directory.lastModified();
+            DirectoryState state = previousDirectories.get(path);
+            if (state == null || state.lastModified == 0 || state.lastModified != lastModified) {
+                state = listDirectory(directory, lastModified);
+            }
+            directories.put(path, state);
+            for (String subdirectory : state.subdirectories) {
+                if (needsScanning(subdirectory)) {
+                    scanDirectoryLater(new File(subdirectory));
+                }
+            }
+        }
+        
+        /**
+         * Tests whether a subdirectory needs its own task. A partial scan
+         * only descends into new subdirectories, keeping what the previous
+         * scan found for the others; those being checked already have tasks.
+         */
+        private boolean needsScanning(String subdirectory) {
+            if (directoriesToCheck == null) {
+                return true;
+            }
+            return directoriesToCheck.contains(subdirectory) == false && previousDirectories.containsKey(subdirectory) == false;
+        }
+        
+        private DirectoryState listDirectory(File directory, long lastModified) {
+            listedDirectoryCount.incrementAndGet();
+            DirectoryState state = new DirectoryState();
+            state.lastModified = (startTime - lastModified < MODIFICATION_TIME_GRANULARITY_MS) ? 0 : lastModified;
+            ArrayList<String> files = new ArrayList<String>();
+            ArrayList<String> subdirectories = new ArrayList<String>();
+            File[] entries = directory.listFiles();
+            if (entries != null) {
+                for (File file : entries) {
+                    if (fileIgnorer.isIgnored(file)) {
+                        continue;
+                    }
+                    if (isSymbolicLinkWithinWorkspace(file)) {
+                        continue;
+                    }
+                    String filename = file.toString();
+                    if (file.isDirectory()) {
+                        subdirectories.add(filename);
+                    } else {
+                        files.add(filename.substring(prefixCharsToSkip));
+                    }
+                }
+            }
+            state.files = files.toArray(new String[files.size()]);
+            state.subdirectories = subdirectories.toArray(new String[subdirectories.size()]);
+            return state;
+        }
+        
+        private boolean isSymbolicLinkWithinWorkspace(File file) {
+            if (FileUtilities.isSymbolicLink(file) == false) {
+                return false;
+            }
+            try {
+                String canonicalFileName = file.getCanonicalFile().toString();
+                return canonicalFileName.startsWith(canonicalRootDirectory);
+            } catch (IOException ex) {
+                // (If we can't find the root directory of the workspace, then what are we scanning?)
+                // If we can't find the target of a symbolic link, then we can't very well edit it.
+                return true;
+            }
+        }
+    }
+}
@@ -202,6 +202,30 @@ public class BirdView extends JComponent {
         maybeRepaint();
     }
 
+    /**
+     * Removes the marks on lines firstLine to lastLine inclusive.
+     */
+    public synchronized void removeMatchingLines(int firstLine, int lastLine) {
+        matchingLines.clear(firstLine, lastLine + 1);
+        maybeRepaint();
+    }
+    
+    /**
+     * Moves the marks on lines from fromLine on by lineCountDelta lines, for when lines have been inserted or removed just before fromLine.
+     * If lines were removed, any marks on them go too.
+     */
+    public synchronized void shiftMatchingLines(int fromLine, int lineCountDelta) {
+        if (lineCountDelta == 0) {
+            return;
+        }
+        BitSet newMatchingLines = matchingLines.get(0, Math.max(0, fromLine + Math.min(0, lineCountDelta)));
+        for (int i = matchingLines.nextSetBit(fromLine); i >= 0; i = matchingLines.nextSetBit(i + 1)) {
+            newMatchingLines.set(i + lineCountDelta);
+        }
+        matchingLines = newMatchingLines;
+        maybeRepaint();
+    }
+    
     public synchronized void clearMatchingLines() {
         matchingLines = new BitSet();
         maybeRepaint();
@@ -26,6 +26,7 @@ public class DebugMenu {
         menu.add(new ShowFramesAction());
         menu.add(new ShowSwingTimersAction());
         menu.add(new ShowStopwatchesAction());
+        menu.add(new ShowTextLockStatisticsAction());
         menu.addSeparator();
         menu.add(new KeyEventTester());
         menu.addSeparator();
@@ -237,6 +238,34 @@ public class DebugMenu {
         }
     }
     
+    @SuppressWarnings("serial")
+    private static class ShowTextLockStatisticsAction extends AbstractAction {
+        public ShowTextLockStatisticsAction() {
+            super("Show Text Lock Statistics");
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            final PTextArea textArea = JFrameUtilities.makeTextArea("");
+            
+            JButton refreshButton = new JButton("Refresh");
+            refreshButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    textArea.setText(PLock.getStatisticsReport());
+                }
+            });
+            JButton resetButton = new JButton("Reset");
+            resetButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    PLock.resetStatistics();
+                    textArea.setText(PLock.getStatisticsReport());
+                }
+            });
+            refreshButton.doClick(0);
+            
+            showFrameWithButtonPanel(Log.getApplicationName() + " Text Lock Statistics", makeButtonPanel(refreshButton, resetButton), new JScrollPane(textArea), new Dimension(600, 400));
+        }
+    }
+    
     private static class ShowUiDefaultsAction extends AbstractAction {
         public ShowUiDefaultsAction() {
             super("Show UI Defaults");
@@ -0,0 +1,56 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Styles runs of characters that all belong to some simple class, such as
+ * tabs. This is equivalent to a RegularExpressionStyleApplicator for a
+ * pattern like "([\t]+)", but a simple loop over the characters is much
+ * cheaper, and these applicators run over every segment of every line.
+ */
+abstract class CharacterRunStyleApplicator implements StyleApplicator {
+    protected PTextArea textArea;
+    
+    public CharacterRunStyleApplicator(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
+    /**
+     * Tests whether the given character belongs in a run.
+     */
+    protected abstract boolean isRunCharacter(char ch);
+    
+    /**
+     * Returns a new segment for the run of characters in [start, end) of the text.
+     */
+    protected abstract PLineSegment makeRunSegment(int start, int end);
+    
+    public void applyStylingTo(String line, int lineStart, PLineSegment segment, List<PLineSegment> result) {
+        final int segmentStart = segment.getOffset() - lineStart;
+        final int segmentEnd = segment.getEnd() - lineStart;
+        int normalStart = segmentStart;
+        int i = segmentStart;
+        while (i < segmentEnd) {
+            if (isRunCharacter(line.charAt(i)) == false) {
+                ++i;
+                continue;
+            }
+            int runEnd = i + 1;
+            while (runEnd < segmentEnd && isRunCharacter(line.charAt(runEnd))) {
+                ++runEnd;
+            }
+            if (i > normalStart) {
+                result.add(segment.subSegment(normalStart - segmentStart, i - segmentStart));
+            }
+            result.add(makeRunSegment(lineStart + i, lineStart + runEnd));
+            normalStart = runEnd;
+            i = runEnd;
+        }
+        if (normalStart == segmentStart) {
+            // The common case: nothing to do.
+            result.add(segment);
+        } else if (normalStart < segmentEnd) {
+            result.add(segment.subSegment(normalStart - segmentStart));
+        }
+    }
+}
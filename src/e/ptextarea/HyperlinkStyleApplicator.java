@@ -36,6 +36,12 @@ class HyperlinkStyleApplicator extends RegularExpressionStyleApplicator {
         return (style == PStyle.NORMAL || style == PStyle.COMMENT);
     }
     
+    @Override
+    protected boolean mightMatch(String line, int start, int end) {
+        int colonSlashSlash = line.indexOf("://", start);
+        return (colonSlashSlash != -1 && colonSlashSlash + 3 <= end);
+    }
+    
     @Override
     protected void configureSegment(PTextSegment segment, Matcher matcher) {
         String url = matcher.group(1);
@@ -1,7 +1,6 @@
 package e.ptextarea;
 
 import java.util.*;
-import e.util.*;
 
 /**
  * A PAbstractLanguageStyler does the main work for most of the various
@@ -19,13 +18,14 @@ import e.util.*;
  * @author Phil Norman
  */
 public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet commentCache;
+    private static final String DEFAULT_KEYWORD_REGULAR_EXPRESSION = "\\b(\\w+)\\b";
+    
+    // Whether each line starts inside a multi-line comment, kept up to date in the background.
+    private PLexerStates lexerStates;
     
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
-        initCommentCache();
-        initTextListener();
+        initLexerStates();
         textArea.setTextStyler(this);
     }
     
@@ -56,7 +56,7 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
      * The value of the first capturing group will be tested to ensure that it's a member of the styler's keyword set.
      */
     protected String getKeywordRegularExpression() {
-        return "\\b(\\w+)\\b";
+        return DEFAULT_KEYWORD_REGULAR_EXPRESSION;
     }
     
     /**
@@ -94,43 +94,49 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     public void initStyleApplicators() {
         Set<String> keywords = makeKeywordSet();
         addKeywordsTo(keywords);
-        if (keywords.size() > 0) {
-            textArea.addStyleApplicator(new KeywordStyleApplicator(textArea, keywords, getKeywordRegularExpression(), PStyle.KEYWORD));
-        }
-        
         Set<String> types = makeKeywordSet();
         addTypesTo(types);
-        if (keywords.size() > 0) {
+        if (keywords.size() == 0) {
+            return;
+        }
+        
+        if (getKeywordRegularExpression().equals(DEFAULT_KEYWORD_REGULAR_EXPRESSION)) {
+            // The usual case, where we can find both keywords and types in a single pass without using regular expressions.
+            textArea.addStyleApplicator(new WordStyleApplicator(textArea, keywords, types, keywordsAreCaseSensitive()));
+        } else {
+            textArea.addStyleApplicator(new KeywordStyleApplicator(textArea, keywords, getKeywordRegularExpression(), PStyle.KEYWORD));
             textArea.addStyleApplicator(new KeywordStyleApplicator(textArea, types, getKeywordRegularExpression(), PStyle.TYPE));
         }
     }
     
-    private void initTextListener() {
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
-            public void textCompletelyReplaced(PTextEvent event) {
-                initCommentCache();
-            }
-            
-            public void textInserted(PTextEvent event) {
-                dirtyFromOffset(event);
-            }
-            
-            public void textRemoved(PTextEvent event) {
-                dirtyFromOffset(event);
+    private void initLexerStates() {
+        lexerStates = new PLexerStates(textArea, this, new PLexerStates.Lexer() {
+            public int getExitState(String line, int entryState) {
+                return lineEndsCommented(line, entryState != 0) ? 1 : 0;
             }
         });
     }
     
-    private void initCommentCache() {
-        lastGoodLine = 0;
-        commentCache = new BitSet();
-    }
-    
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
         return getMainSegments(lineIndex, line);
     }
     
+    @Override
+    public int getLineStartState(int lineIndex) {
+        return startsCommented(lineIndex) ? 1 : 0;
+    }
+    
+    @Override
+    public void updateLineStartStatesThrough(int lineIndex) {
+        lexerStates.lexThrough(lineIndex);
+    }
+    
+    @Override
+    public void detachFromTextArea() {
+        lexerStates.detach();
+    }
+    
     private List<PLineSegment> getMainSegments(int lineIndex, String line) {
         TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
         boolean comment = startsCommented(lineIndex);
@@ -213,16 +219,13 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return result;
     }
     
+    /**
+     * Returns the last known answer to whether the given line starts inside
+     * a multi-line comment. If the text has just changed, this may be out of
+     * date, but the line will be repainted when we know better.
+     */
     private boolean startsCommented(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLine(i).getContents().toString();
-                commentCache.set(i + 1, lineEndsCommented(line, commentCache.get(i)));
-            }
-            lastGoodLine = lineIndex;
-        }
-        return commentCache.get(lineIndex);
+        return (lexerStates.getState(lineIndex) != 0);
     }
     
     /**
@@ -279,40 +282,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return comment;
     }
     
-    private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        
-        boolean startsOrEndsMultiLineComment = false;
-        if (supportMultiLineComments()) {
-            int HORIZON = Math.max(multiLineCommentStart().length(), multiLineCommentEnd().length());
-            CharSequence entireText = textArea.getTextBuffer();
-            String prefix = entireText.subSequence(Math.max(0, event.getOffset() - HORIZON), event.getOffset()).toString();
-            int endIndex = event.getOffset();
-            if (event.isInsert()) {
-                endIndex += event.getLength();
-            }
-            String suffix = entireText.subSequence(endIndex, Math.min(endIndex + HORIZON, entireText.length())).toString();
-            String withMiddleText = prefix + event.getCharacters() + suffix;
-            String withoutMiddleText = prefix + suffix;
-            startsOrEndsMultiLineComment = hasCommentMarker(withMiddleText) || hasCommentMarker(withoutMiddleText);
-        }
-        
-        if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
-        }
-    }
-    
-    private boolean hasNewline(CharSequence text) {
-        return StringUtilities.contains(text, '\n');
-    }
-    
-    private boolean hasCommentMarker(String text) {
-        return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
-    }
-    
     protected class TextSegmentListBuilder {
         private ArrayList<PLineSegment> list = new ArrayList<PLineSegment>();
         private int lineStartOffset;
@@ -67,6 +67,15 @@ public abstract class PAbstractSegment implements PLineSegment {
     
     public abstract void paint(Graphics2D g, int x, int yBaseline);
     
+    /**
+     * Moves this segment 'delta' characters through the text, for the benefit
+     * of PSegmentCache when text is inserted or removed before this segment.
+     */
+    void moveBy(int delta) {
+        start += delta;
+        end += delta;
+    }
+    
     public String toString() {
         return "PAbstractSegment[" + style + ",start=" + start + ",end=" + end + ",\"" + getViewText() + "\"]";
     }
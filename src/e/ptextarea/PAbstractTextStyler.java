@@ -12,6 +12,19 @@ public abstract class PAbstractTextStyler implements PTextStyler {
     
     public abstract List<PLineSegment> getTextSegments(int line);
     
+    public int getLineStartState(int lineIndex) {
+        // By default, each line is styled independently of all the others.
+        return 0;
+    }
+    
+    public void updateLineStartStatesThrough(int lineIndex) {
+        // The default line start state is always right.
+    }
+    
+    public void detachFromTextArea() {
+        // Do nothing.
+    }
+    
     public boolean keywordsAreCaseSensitive() {
         return true;
     }
@@ -13,7 +13,17 @@ package e.ptextarea;
  */
 
 public abstract class PAnchor implements Comparable<PAnchor> {
-    private int index;
+    // While this anchor is in a PAnchorSet, this is only correct once the pending deltas of its ancestors in the set's tree are added.
+    int index;
+    
+    // The PAnchorSet's tree. The anchors are the nodes, so finding or moving one doesn't need any other objects.
+    PAnchorSet anchorSet;
+    PAnchor parent;
+    PAnchor left;
+    PAnchor right;
+    int priority;
+    // An amount still to be added to the index of everything in this anchor's subtrees (but not this anchor itself).
+    int pendingDelta;
     
     public PAnchor(int index) {
         this.index = index;
@@ -21,12 +31,20 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     
     /** Returns the current index at which this anchor is anchored. */
     public int getIndex() {
-        return index;
+        PAnchorSet set = anchorSet;
+        return (set != null) ? set.getIndex(this) : index;
     }
     
     /** Changes the index at which this anchor is anchored. */
     public void setIndex(int index) {
-        this.index = index;
+        PAnchorSet set = anchorSet;
+        if (set != null) {
+            set.remove(this);
+            this.index = index;
+            set.add(this);
+        } else {
+            this.index = index;
+        }
     }
     
     /**
@@ -40,24 +58,24 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     public int hashCode() {
         // FIXME: because this class is mutable, instances MUST NOT be stored long-term in hashes.
         // FIXME: instances are hashed, so we (a) don't want to return a constant here because we want O(1) lookup, and (b) should investigate the performance of this implementation.
-        return index;
+        return getIndex();
     }
     
     @Override
     public final boolean equals(Object obj) {
         if (obj instanceof PAnchor) {
-            return (index == ((PAnchor) obj).index);
+            return (getIndex() == ((PAnchor) obj).getIndex());
         }
         return false;
     }
     
     //@Override // FIXME: Java 5's javac(1) is broken.
     public final int compareTo(PAnchor other) {
-        return (index - other.index);
+        return (getIndex() - other.getIndex());
     }
     
     @Override
     public String toString() {
-        return "PAnchor[index=" + index + "]";
+        return "PAnchor[index=" + getIndex() + "]";
     }
 }
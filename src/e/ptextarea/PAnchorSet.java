@@ -1,156 +1,217 @@
 package e.ptextarea;
 
-import e.util.*;
 import java.util.*;
 
 /**
  * Contains all the PAnchor instances related to a given text buffer.
  * Responsible for ensuring that their offsets are updated when the text changes.
+ * 
+ * The anchors are the nodes of a treap ordered by index. Rather than visit
+ * every anchor after an edit, we split the tree at the edit, add the change
+ * in length to the root of the later part as a pending delta, and merge the
+ * parts again, all in O(log n). An anchor's index is its own index plus the
+ * pending deltas of its ancestors, which PAnchor.getIndex adds up without
+ * allocating anything.
  */
-class PAnchorSet implements PTextListener {
-    // This list is sorted so we can binarySearch it.
-    private ArrayList<PAnchor> anchors = new ArrayList<PAnchor>();
+public class PAnchorSet implements PTextListener {
+    private PAnchor root;
+    private Random random = new Random();
     
-    synchronized void add(PAnchor anchor) {
-        int index = getFirstAnchorIndex(anchor.getIndex());
-        anchors.add(index, anchor);
-    }
+    // The results of the last split, so splitting doesn't need to allocate.
+    private PAnchor splitLeft;
+    private PAnchor splitRight;
     
-    /**
-     * Bulk remove.
-     * Assumes you're trying to remove "most" of the anchors, perhaps when canceling a find.
-     */
-    synchronized void removeAll(IdentityHashMap<PAnchor, Object> deadAnchors) {
-        // Sun 6529800: as of Java 7, this is significantly quicker than ArrayList.removeAll.
-        // Sun's fix for that bug could perform even better than simple work-around, so if you're reading this in 2009 or later, think about removing this code.
-        // Note that *identity* is important here.
-        // PAnchor.equals only checks the offset, but we could have multiple PAnchor instances in anchors with the same offset.
-        for (int i = anchors.size() - 1; i >= 0; --i) {
-            if (deadAnchors.containsKey(anchors.get(i))) {
-                anchors.remove(i);
-            }
+    public synchronized void add(PAnchor anchor) {
+        if (anchor.anchorSet != null) {
+            throw new IllegalArgumentException(anchor + " is already in a PAnchorSet");
         }
+        anchor.anchorSet = this;
+        anchor.priority = random.nextInt();
+        anchor.pendingDelta = 0;
+        anchor.parent = anchor.left = anchor.right = null;
+        // New anchors go before any existing anchors at the same index.
+        split(root, anchor.index);
+        PAnchor after = splitRight;
+        setRoot(merge(merge(splitLeft, anchor), after));
     }
     
-    synchronized void remove(PAnchor anchor) {
-        int start = getFirstAnchorIndex(anchor.getIndex());
-        for (int i = start; i < anchors.size(); i++) {
-            if (anchor == anchors.get(i)) {
-                anchors.remove(i);
-                return;
-            }
-            if (get(i).getIndex() > anchor.getIndex()) {
-                break;
-            }
+    public synchronized void remove(PAnchor anchor) {
+        if (anchor.anchorSet != this) {
+            // Already destroyed, most likely.
+            return;
         }
+        pushDownFromRoot(anchor);
+        PAnchor replacement = merge(anchor.left, anchor.right);
+        PAnchor parent = anchor.parent;
+        if (replacement != null) {
+            replacement.parent = parent;
+        }
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == anchor) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+        detach(anchor);
     }
     
-    /**
-     * Used as an argument to binarySearch.
-     */
-    private static class UnownedAnchor extends PAnchor {
-        public UnownedAnchor(int index) {
-            super(index);
-        }
-        
-        // We don't add this to the anchor set, so it's never removed, so no-one needs to be notified of anything.
-        @Override
-        public void anchorDestroyed() {
+    synchronized int getIndex(PAnchor anchor) {
+        int result = anchor.index;
+        for (PAnchor ancestor = anchor.parent; ancestor != null; ancestor = ancestor.parent) {
+            result += ancestor.pendingDelta;
         }
+        return result;
     }
     
-    // Returns the first position where an anchor for the textIndex could be inserted
-    // without violating the ordering.
-    // This is what the STL calls "lower_bound".
-    private int getFirstAnchorIndex(int textIndex) {
-//        checkLinearity();    // Comment this out to improve speed, but remove warnings when our state goes wrong.
-        int index = Collections.binarySearch(anchors, new UnownedAnchor(textIndex));
-        if (index < 0) {
-            index = -index - 1;
+    public synchronized void textInserted(PTextEvent event) {
+        split(root, event.getOffset());
+        PAnchor before = splitLeft;
+        PAnchor after = splitRight;
+        shift(after, event.getLength());
+        setRoot(merge(before, after));
+    }
+    
+    public synchronized void textRemoved(PTextEvent event) {
+        final int offset = event.getOffset();
+        final int deletionLength = event.getLength();
+        split(root, offset);
+        PAnchor before = splitLeft;
+        split(splitRight, offset + deletionLength);
+        PAnchor removed = splitLeft;
+        PAnchor after = splitRight;
+        shift(after, -deletionLength);
+        setRoot(merge(before, after));
+        // Note that the sub-class of PAnchor in PHighlight relies upon this
+        // in order to properly destroy itself when one of its extremes is
+        // removed.  If you delete this code, the selection will turn into a
+        // phantom highlight if you kill one end, such that one extreme of
+        // the highlight will drift when changes are made to the preceding
+        // text, and the other will be stably attached.
+        // The anchors are already out of the tree, so removing a highlight's other anchor in response is safe.
+        destroyAll(removed);
+    }
+    
+    public synchronized void textCompletelyReplaced(PTextEvent event) {
+        PAnchor oldRoot = root;
+        root = null;
+        destroyAll(oldRoot);
+    }
+    
+    private void destroyAll(PAnchor subtreeRoot) {
+        ArrayList<PAnchor> doomed = new ArrayList<PAnchor>();
+        collect(subtreeRoot, doomed);
+        for (PAnchor anchor : doomed) {
+            detach(anchor);
         }
-        while (index > 0 && get(index - 1).getIndex() == textIndex) {
-            --index;
+        for (PAnchor anchor : doomed) {
+            anchor.anchorDestroyed();
         }
-        return index;
     }
     
-    private void checkLinearity() {
-        int lastIndex = -1;
-        for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            if (anchor.getIndex() < lastIndex) {
-                dumpAnchorIndices();
-                throw new IllegalStateException("Linearity out of order at index " + i);
-            }
-            lastIndex = anchor.getIndex();
+    /**
+     * Adds the anchors in the given subtree to 'result' in order, with their final indexes.
+     */
+    private void collect(PAnchor node, List<PAnchor> result) {
+        if (node == null) {
+            return;
         }
+        pushDown(node);
+        collect(node.left, result);
+        result.add(node);
+        collect(node.right, result);
     }
     
-    private PAnchor get(int index) {
-        return anchors.get(index);
+    private void detach(PAnchor anchor) {
+        anchor.anchorSet = null;
+        anchor.parent = anchor.left = anchor.right = null;
+        anchor.pendingDelta = 0;
     }
     
-    public synchronized void textInserted(PTextEvent event) {
-        int start = getFirstAnchorIndex(event.getOffset());
-        int insertionLength = event.getLength();
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() + insertionLength);
+    private void setRoot(PAnchor newRoot) {
+        root = newRoot;
+        if (root != null) {
+            root.parent = null;
         }
     }
     
-    private synchronized void dumpAnchorIndices() {
-        Log.warn("Dumping anchor indices:");
-        for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            Log.warn("  Anchor " + i + ": " + anchor);
+    /**
+     * Adds 'delta' to the index of every anchor in the given subtree.
+     */
+    private static void shift(PAnchor subtreeRoot, int delta) {
+        if (subtreeRoot != null) {
+            subtreeRoot.index += delta;
+            subtreeRoot.pendingDelta += delta;
         }
     }
     
-    private int countAnchorsInRegion(int firstAnchorIndex, int offset, int length) {
-        int result = 0;
-        int endOffset = offset + length;
-        for (int i = firstAnchorIndex; i < anchors.size(); i++) {
-            if (get(i).getIndex() < endOffset) {
-                result++;
-            } else {
-                break;
-            }
+    /**
+     * Passes any pending delta on to the node's children, so its children's indexes are correct if its own is.
+     */
+    private static void pushDown(PAnchor node) {
+        if (node.pendingDelta != 0) {
+            shift(node.left, node.pendingDelta);
+            shift(node.right, node.pendingDelta);
+            node.pendingDelta = 0;
         }
-        return result;
     }
     
-    public synchronized void textRemoved(PTextEvent event) {
-        int deletionLength = event.getLength();
-        int firstAnchorIndex = getFirstAnchorIndex(event.getOffset());
-        int removeCount = countAnchorsInRegion(firstAnchorIndex, event.getOffset(), deletionLength);
-        // Copy the to-be-removed PAnchor instances to safety, then remove them from "anchors".
-        List<PAnchor> unsafeAnchorsToRemove = anchors.subList(firstAnchorIndex, firstAnchorIndex + removeCount);
-        List<PAnchor> anchorsToRemove = new ArrayList<PAnchor>(unsafeAnchorsToRemove);
-        unsafeAnchorsToRemove.clear();
-        // Note that the sub-class of PAnchor in PHighlight relies upon this delete
-        // call in order to properly destroy itself when one of its extremes is
-        // removed.  If you delete this code, some highlights (notably 'find'
-        // highlights) will turn into phantom highlights if you kill one end, such
-        // that one extreme of the highlight will drift when changes are made to
-        // the preceding text, and the other will be stably attached.
-        for (PAnchor anchor : anchorsToRemove) {
-            anchor.anchorDestroyed();
+    private static void pushDownFromRoot(PAnchor node) {
+        if (node.parent != null) {
+            pushDownFromRoot(node.parent);
         }
-        // We must recalculate the first anchor index, because the one we calculated
-        // before could be wrong if an anchor's deletion caused the deletion of another.
-        int start = getFirstAnchorIndex(event.getOffset());
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() - deletionLength);
+        pushDown(node);
+    }
+    
+    /**
+     * Splits the subtree rooted at 'node' (whose index must be correct) into
+     * the anchors before 'offset', left in splitLeft, and those at or after
+     * it, left in splitRight.
+     */
+    private void split(PAnchor node, int offset) {
+        if (node == null) {
+            splitLeft = splitRight = null;
+            return;
+        }
+        pushDown(node);
+        if (node.index < offset) {
+            split(node.right, offset);
+            node.right = splitLeft;
+            if (splitLeft != null) {
+                splitLeft.parent = node;
+            }
+            splitLeft = node;
+        } else {
+            split(node.left, offset);
+            node.left = splitRight;
+            if (splitRight != null) {
+                splitRight.parent = node;
+            }
+            splitRight = node;
         }
+        node.parent = null;
     }
     
-    public synchronized void textCompletelyReplaced(PTextEvent event) {
-        ArrayList<PAnchor> oldAnchors = anchors;
-        anchors = new ArrayList<PAnchor>();
-        for (PAnchor anchor : oldAnchors) {
-            anchor.anchorDestroyed();
+    /**
+     * Joins two subtrees (whose roots' indexes must be correct), where every anchor in 'first' comes before every anchor in 'second'.
+     */
+    private static PAnchor merge(PAnchor first, PAnchor second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            pushDown(first);
+            first.right = merge(first.right, second);
+            first.right.parent = first;
+            return first;
+        } else {
+            pushDown(second);
+            second.left = merge(first, second.left);
+            second.left.parent = second;
+            return second;
         }
     }
 }
@@ -0,0 +1,544 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Knows where the brackets are in a PTextArea's code, so that finding a
+ * bracket's partner, or the brackets enclosing an offset, doesn't mean
+ * walking (and styling) every line in between.
+ * 
+ * Only brackets in NORMAL-style text are indexed, because brackets in
+ * comments and string literals don't nest with the code around them. A
+ * line's brackets are found when they're first needed, from the line's
+ * styled segments, and forgotten when the line changes or the lexer
+ * decides that it starts in a different state.
+ * 
+ * Round, square, and curly brackets nest with each other, and angle
+ * brackets only with themselves, so each family has its own nesting depth.
+ * The lines are grouped into blocks of LINES_PER_BLOCK, and we keep a
+ * segment tree over the blocks. For each family, each node records the
+ * change in depth across its blocks, and the lowest depth reached reading
+ * forwards and reading backwards. Finding a bracket's partner means finding
+ * where the depth first drops below where we started, and the tree lets us
+ * skip any subtree that doesn't go that low, so we get there in O(log n).
+ * Nodes covering lines we haven't looked at yet are filled in as searches
+ * pass through them, so a search only styles the lines it passes over,
+ * and only the first time.
+ * 
+ * Inserting or removing lines moves the lines after them into different
+ * blocks. The lines keep their brackets, but the blocks from there on are
+ * recomputed from them the next time we're asked anything.
+ * 
+ * All methods are synchronized, because the lexer tells us about lines
+ * whose starting state has changed while holding only the read lock.
+ */
+class PBracketIndex implements PLineListener {
+    /**
+     * Returned by findMatchingBracket if there's no indexed bracket at the
+     * given offset: it's not a bracket, or it's in a comment or string.
+     */
+    public static final int NOT_INDEXED = -2;
+    
+    private static final int LINES_PER_BLOCK = 64;
+    
+    // A bracket is stored as its offset within its line shifted left KIND_BITS, or'ed with its kind.
+    // Opening brackets' kinds are 0 to 3, and each closing bracket's kind is its partner's plus 4.
+    private static final int KIND_BITS = 3;
+    private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+    private static final String KINDS = "([{<)]}>";
+    private static final int[] NO_BRACKETS = new int[0];
+    
+    private static final int ROUND = 0;
+    private static final int ANGLE = 1;
+    private static final int FAMILY_COUNT = 2;
+    
+    // Larger than any depth, but still safe to add a depth to.
+    private static final int NEVER = Integer.MAX_VALUE / 2;
+    
+    // Returned by the scanning methods if they reach the end of their lines without the search stopping.
+    private static final int NOT_FOUND = -3;
+    
+    private final PTextArea textArea;
+    
+    private int lineCount;
+    // Each line's brackets in order, or null if we haven't looked at the line since it last changed.
+    private int[][] lineBrackets = new int[1024][];
+    
+    // The segment tree. Node 1 is the root, the children of node i are 2i
+    // and 2i+1, and block b is leaf leafCount + b. Leaves beyond the last
+    // block are known, and empty.
+    private int blockCount;
+    private int leafCount;
+    // Whether we've looked at every line under each node.
+    private boolean[] known;
+    // The change in depth, per family, across each node's brackets.
+    private int[][] sums;
+    // The lowest depth reached, per family, reading each node's brackets forwards, or NEVER.
+    private int[][] forwardMins;
+    // The lowest depth reached, per family, reading each node's brackets backwards (when closing brackets go deeper), or NEVER.
+    private int[][] backwardMins;
+    // How many round, square, and curly brackets there are under each node. They're not allowed inside angle brackets.
+    private int[] roundCounts;
+    // Leaves from this block on don't reflect lines inserted or removed since the tree was last brought up to date.
+    private int firstStaleBlock;
+    
+    // The depth reached by the current search.
+    private int searchDepth;
+    
+    public PBracketIndex(PTextArea textArea) {
+        this.textArea = textArea;
+        textArea.getLineList().addLineListener(this);
+        reset();
+    }
+    
+    /**
+     * Returns the offset of the partner of the bracket at 'offset', or -1 if
+     * it doesn't have one. A bracket whose partner is the wrong kind of
+     * bracket doesn't have one. Returns NOT_INDEXED if there's no bracket in
+     * code at 'offset', in which case the caller will have to look for
+     * itself.
+     */
+    public int findMatchingBracket(int offset) {
+        textArea.getLock().getReadLock();
+        try {
+            synchronized (this) {
+                ensureTreeValid();
+                final int lineIndex = textArea.getLineOfOffset(offset);
+                final int offsetInLine = offset - textArea.getLineStartOffset(lineIndex);
+                final int kind = getKindAt(lineIndex, offsetInLine);
+                if (kind == -1) {
+                    return NOT_INDEXED;
+                }
+                final int family = getFamily(kind);
+                int result;
+                if (isOpen(kind)) {
+                    result = findForward(lineIndex, offsetInLine + 1, family);
+                } else {
+                    result = findBackward(lineIndex, offsetInLine, family);
+                }
+                if (result != -1 && textArea.getTextBuffer().charAt(result) != KINDS.charAt(kind ^ 4)) {
+                    // The nesting of brackets is wrong.
+                    return -1;
+                }
+                return result;
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Returns the offset of the innermost round, square, or curly bracket
+     * that's open at 'offset', or -1 if there isn't one.
+     */
+    public int findEnclosingOpenBracket(int offset) {
+        textArea.getLock().getReadLock();
+        try {
+            synchronized (this) {
+                ensureTreeValid();
+                final int lineIndex = textArea.getLineOfOffset(offset);
+                return findBackward(lineIndex, offset - textArea.getLineStartOffset(lineIndex), ROUND);
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Returns the offset of the round, square, or curly bracket at or after
+     * 'offset' that closes the innermost bracket open at 'offset', or -1 if
+     * there isn't one.
+     */
+    public int findEnclosingCloseBracket(int offset) {
+        textArea.getLock().getReadLock();
+        try {
+            synchronized (this) {
+                ensureTreeValid();
+                final int lineIndex = textArea.getLineOfOffset(offset);
+                return findForward(lineIndex, offset - textArea.getLineStartOffset(lineIndex), ROUND);
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Forgets the brackets on the given lines, whose starting state the
+     * lexer has changed its mind about. The caller must hold the read lock.
+     */
+    public synchronized void invalidateLines(int firstLineIndex, int lastLineIndex) {
+        lastLineIndex = Math.min(lastLineIndex, lineCount - 1);
+        for (int lineIndex = firstLineIndex; lineIndex <= lastLineIndex; ++lineIndex) {
+            invalidateLine(lineIndex);
+        }
+    }
+    
+    /**
+     * Forgets everything, because the text is being styled differently.
+     */
+    public synchronized void clear() {
+        Arrays.fill(lineBrackets, 0, lineCount, null);
+        firstStaleBlock = 0;
+    }
+    
+    public synchronized void linesAdded(PLineEvent event) {
+        final int lineIndex = event.getLineIndex();
+        final int count = event.getLength();
+        if (lineCount + count > lineBrackets.length) {
+            lineBrackets = Arrays.copyOf(lineBrackets, Math.max(lineBrackets.length * 2, lineCount + count));
+        }
+        System.arraycopy(lineBrackets, lineIndex, lineBrackets, lineIndex + count, lineCount - lineIndex);
+        Arrays.fill(lineBrackets, lineIndex, lineIndex + count, null);
+        lineCount += count;
+        firstStaleBlock = Math.min(firstStaleBlock, lineIndex / LINES_PER_BLOCK);
+    }
+    
+    public synchronized void linesRemoved(PLineEvent event) {
+        final int lineIndex = event.getLineIndex();
+        final int count = event.getLength();
+        System.arraycopy(lineBrackets, lineIndex + count, lineBrackets, lineIndex, lineCount - lineIndex - count);
+        Arrays.fill(lineBrackets, lineCount - count, lineCount, null);
+        lineCount -= count;
+        firstStaleBlock = Math.min(firstStaleBlock, lineIndex / LINES_PER_BLOCK);
+    }
+    
+    public synchronized void linesChanged(PLineEvent event) {
+        for (int i = 0; i < event.getLength(); ++i) {
+            invalidateLine(event.getLineIndex() + i);
+        }
+    }
+    
+    public synchronized void linesCompletelyReplaced(PLineEvent event) {
+        reset();
+    }
+    
+    private void reset() {
+        lineCount = textArea.getLineList().size();
+        lineBrackets = new int[Math.max(1024, lineCount)][];
+        leafCount = 0;
+        firstStaleBlock = 0;
+    }
+    
+    private void invalidateLine(int lineIndex) {
+        lineBrackets[lineIndex] = null;
+        final int block = lineIndex / LINES_PER_BLOCK;
+        if (block < firstStaleBlock) {
+            for (int node = leafCount + block; node >= 1 && known[node]; node /= 2) {
+                known[node] = false;
+            }
+        }
+    }
+    
+    private static boolean isOpen(int kind) {
+        return (kind < 4);
+    }
+    
+    private static int getFamily(int kind) {
+        return ((kind & 3) == 3) ? ANGLE : ROUND;
+    }
+    
+    /**
+     * Returns the kind of the indexed bracket at the given offset in the given line, or -1.
+     */
+    private int getKindAt(int lineIndex, int offsetInLine) {
+        for (int bracket : getBrackets(lineIndex)) {
+            final int bracketOffset = bracket >> KIND_BITS;
+            if (bracketOffset == offsetInLine) {
+                return bracket & KIND_MASK;
+            } else if (bracketOffset > offsetInLine) {
+                break;
+            }
+        }
+        return -1;
+    }
+    
+    private int[] getBrackets(int lineIndex) {
+        int[] result = lineBrackets[lineIndex];
+        if (result == null) {
+            result = findBrackets(lineIndex);
+            lineBrackets[lineIndex] = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Finds the brackets in code on the given line.
+     */
+    private int[] findBrackets(int lineIndex) {
+        final String line = textArea.getLineContents(lineIndex).toString();
+        int count = 0;
+        for (int i = 0; i < line.length(); ++i) {
+            if (KINDS.indexOf(line.charAt(i)) != -1) {
+                ++count;
+            }
+        }
+        if (count == 0) {
+            // Most lines don't have any brackets, and there's no need to style those.
+            return NO_BRACKETS;
+        }
+        int[] result = new int[count];
+        count = 0;
+        final int lineStart = textArea.getLineStartOffset(lineIndex);
+        for (PLineSegment segment : textArea.getLineSegments(lineIndex)) {
+            if (segment.getStyle() != PStyle.NORMAL) {
+                continue;
+            }
+            final int end = Math.min(segment.getEnd() - lineStart, line.length());
+            for (int i = segment.getOffset() - lineStart; i < end; ++i) {
+                final int kind = KINDS.indexOf(line.charAt(i));
+                if (kind != -1) {
+                    result[count++] = (i << KIND_BITS) | kind;
+                }
+            }
+        }
+        return (count == 0) ? NO_BRACKETS : Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * Returns the offset of the bracket in the given family, at or after
+     * 'offsetInLine' in the given line, at which the depth first drops
+     * below zero, or -1.
+     */
+    private int findForward(int lineIndex, int offsetInLine, int family) {
+        searchDepth = 0;
+        final int block = lineIndex / LINES_PER_BLOCK;
+        int result = scanForward(lineIndex, offsetInLine, getLastLineOfBlock(block), family);
+        if (result == NOT_FOUND) {
+            final int stoppingBlock = searchForward(1, 0, leafCount, block + 1, family);
+            if (stoppingBlock == -1) {
+                return -1;
+            }
+            result = scanForward(stoppingBlock * LINES_PER_BLOCK, 0, getLastLineOfBlock(stoppingBlock), family);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the offset of the bracket in the given family, before
+     * 'offsetInLine' in the given line, at which the depth reading backwards
+     * first drops below zero, or -1.
+     */
+    private int findBackward(int lineIndex, int offsetInLine, int family) {
+        searchDepth = 0;
+        final int block = lineIndex / LINES_PER_BLOCK;
+        int result = scanBackward(lineIndex, offsetInLine, block * LINES_PER_BLOCK, family);
+        if (result == NOT_FOUND) {
+            final int stoppingBlock = searchBackward(1, 0, leafCount, block, family);
+            if (stoppingBlock == -1) {
+                return -1;
+            }
+            result = scanBackward(getLastLineOfBlock(stoppingBlock), Integer.MAX_VALUE, stoppingBlock * LINES_PER_BLOCK, family);
+        }
+        return result;
+    }
+    
+    private int getLastLineOfBlock(int block) {
+        return Math.min(lineCount, (block + 1) * LINES_PER_BLOCK) - 1;
+    }
+    
+    /**
+     * Reads forwards through the brackets from 'offsetInLine' in line
+     * 'firstLine' to the end of line 'lastLine', adjusting searchDepth.
+     * Returns the offset of the bracket where the search stops, -1 if it
+     * fails, or NOT_FOUND.
+     */
+    private int scanForward(int firstLine, int offsetInLine, int lastLine, int family) {
+        for (int lineIndex = firstLine; lineIndex <= lastLine; ++lineIndex) {
+            for (int bracket : getBrackets(lineIndex)) {
+                if (lineIndex == firstLine && (bracket >> KIND_BITS) < offsetInLine) {
+                    continue;
+                }
+                final int kind = bracket & KIND_MASK;
+                if (getFamily(kind) != family) {
+                    if (family == ANGLE) {
+                        // Illegal characters in the way: we're not going to find a match here.
+                        return -1;
+                    }
+                    continue;
+                }
+                searchDepth += isOpen(kind) ? 1 : -1;
+                if (searchDepth < 0) {
+                    return textArea.getLineStartOffset(lineIndex) + (bracket >> KIND_BITS);
+                }
+            }
+        }
+        return NOT_FOUND;
+    }
+    
+    /**
+     * Reads backwards through the brackets before 'offsetInLine' in line
+     * 'lastLine' to the start of line 'firstLine', adjusting searchDepth.
+     * Returns the offset of the bracket where the search stops, -1 if it
+     * fails, or NOT_FOUND.
+     */
+    private int scanBackward(int lastLine, int offsetInLine, int firstLine, int family) {
+        for (int lineIndex = lastLine; lineIndex >= firstLine; --lineIndex) {
+            int[] brackets = getBrackets(lineIndex);
+            for (int i = brackets.length - 1; i >= 0; --i) {
+                final int bracket = brackets[i];
+                if (lineIndex == lastLine && (bracket >> KIND_BITS) >= offsetInLine) {
+                    continue;
+                }
+                final int kind = bracket & KIND_MASK;
+                if (getFamily(kind) != family) {
+                    if (family == ANGLE) {
+                        return -1;
+                    }
+                    continue;
+                }
+                searchDepth += isOpen(kind) ? -1 : 1;
+                if (searchDepth < 0) {
+                    return textArea.getLineStartOffset(lineIndex) + (bracket >> KIND_BITS);
+                }
+            }
+        }
+        return NOT_FOUND;
+    }
+    
+    /**
+     * Returns the first block at or after 'from', among the blocks lo to hi
+     * (exclusive) under the given node, where a search from the current
+     * searchDepth stops, or -1. The depth changes of the blocks passed over
+     * are added to searchDepth.
+     */
+    private int searchForward(int node, int lo, int hi, int from, int family) {
+        if (hi <= from || lo >= blockCount) {
+            return -1;
+        }
+        if (lo >= from && known[node]) {
+            if (searchDepth + forwardMins[family][node] >= 0 && (family == ROUND || roundCounts[node] == 0)) {
+                searchDepth += sums[family][node];
+                return -1;
+            }
+            if (hi - lo == 1) {
+                return lo;
+            }
+        } else if (hi - lo == 1) {
+            computeLeaf(lo, true);
+            return searchForward(node, lo, hi, from, family);
+        }
+        final int mid = (lo + hi) / 2;
+        int result = searchForward(2 * node, lo, mid, from, family);
+        if (result == -1) {
+            result = searchForward(2 * node + 1, mid, hi, from, family);
+        }
+        updateNode(node);
+        return result;
+    }
+    
+    /**
+     * Returns the last block before 'to', among the blocks lo to hi
+     * (exclusive) under the given node, where a backwards search from the
+     * current searchDepth stops, or -1. The depth changes of the blocks
+     * passed over are added to searchDepth.
+     */
+    private int searchBackward(int node, int lo, int hi, int to, int family) {
+        if (lo >= to) {
+            return -1;
+        }
+        if (hi <= to && known[node]) {
+            if (searchDepth + backwardMins[family][node] >= 0 && (family == ROUND || roundCounts[node] == 0)) {
+                searchDepth -= sums[family][node];
+                return -1;
+            }
+            if (hi - lo == 1) {
+                return lo;
+            }
+        } else if (hi - lo == 1) {
+            computeLeaf(lo, true);
+            return searchBackward(node, lo, hi, to, family);
+        }
+        final int mid = (lo + hi) / 2;
+        int result = searchBackward(2 * node + 1, mid, hi, to, family);
+        if (result == -1) {
+            result = searchBackward(2 * node, lo, mid, to, family);
+        }
+        updateNode(node);
+        return result;
+    }
+    
+    /**
+     * Brings the tree up to date with any lines inserted or removed since we were last asked anything.
+     */
+    private void ensureTreeValid() {
+        final int newBlockCount = Math.max(1, (lineCount + LINES_PER_BLOCK - 1) / LINES_PER_BLOCK);
+        if (newBlockCount > leafCount) {
+            leafCount = Integer.highestOneBit(newBlockCount);
+            if (leafCount < newBlockCount) {
+                leafCount *= 2;
+            }
+            known = new boolean[2 * leafCount];
+            sums = new int[FAMILY_COUNT][2 * leafCount];
+            forwardMins = new int[FAMILY_COUNT][2 * leafCount];
+            backwardMins = new int[FAMILY_COUNT][2 * leafCount];
+            roundCounts = new int[2 * leafCount];
+            firstStaleBlock = 0;
+        }
+        blockCount = newBlockCount;
+        if (firstStaleBlock == Integer.MAX_VALUE) {
+            return;
+        }
+        for (int block = firstStaleBlock; block < leafCount; ++block) {
+            computeLeaf(block, false);
+        }
+        for (int node = leafCount - 1; node >= 1; --node) {
+            updateNode(node);
+        }
+        firstStaleBlock = Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Recomputes the given block's leaf from its lines' brackets. If 'findBrackets' is
+     * false, a block with any lines we haven't looked at is left unknown.
+     */
+    private void computeLeaf(int block, boolean findBrackets) {
+        final int node = leafCount + block;
+        for (int family = 0; family < FAMILY_COUNT; ++family) {
+            sums[family][node] = 0;
+            forwardMins[family][node] = NEVER;
+            backwardMins[family][node] = NEVER;
+        }
+        roundCounts[node] = 0;
+        known[node] = true;
+        if (block >= blockCount) {
+            return;
+        }
+        // The lowest depth reached before each family's last bracket, which is what the backward minimum depends on.
+        int[] minBefore = new int[FAMILY_COUNT];
+        final int lastLine = getLastLineOfBlock(block);
+        for (int lineIndex = block * LINES_PER_BLOCK; lineIndex <= lastLine; ++lineIndex) {
+            int[] brackets = findBrackets ? getBrackets(lineIndex) : lineBrackets[lineIndex];
+            if (brackets == null) {
+                known[node] = false;
+                return;
+            }
+            for (int bracket : brackets) {
+                final int kind = bracket & KIND_MASK;
+                final int family = getFamily(kind);
+                if (family == ROUND) {
+                    ++roundCounts[node];
+                }
+                minBefore[family] = Math.min(minBefore[family], sums[family][node]);
+                sums[family][node] += isOpen(kind) ? 1 : -1;
+                forwardMins[family][node] = Math.min(forwardMins[family][node], sums[family][node]);
+                // Reading backwards from the end, the depth just before this bracket is read is -(sum - depth before it).
+                backwardMins[family][node] = minBefore[family] - sums[family][node];
+            }
+        }
+    }
+    
+    private void updateNode(int node) {
+        final int left = 2 * node;
+        final int right = left + 1;
+        known[node] = known[left] && known[right];
+        if (known[node] == false) {
+            return;
+        }
+        for (int family = 0; family < FAMILY_COUNT; ++family) {
+            sums[family][node] = sums[family][left] + sums[family][right];
+            forwardMins[family][node] = Math.min(forwardMins[family][left], sums[family][left] + forwardMins[family][right]);
+            backwardMins[family][node] = Math.min(backwardMins[family][right], backwardMins[family][left] - sums[family][right]);
+        }
+        roundCounts[node] = roundCounts[left] + roundCounts[right];
+    }
+}
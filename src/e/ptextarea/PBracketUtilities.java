@@ -63,21 +63,49 @@ public class PBracketUtilities {
      * closing bracket. An exception is thrown if we're not next to a bracket.
      */
     public static int findMatchingBracketInSameStyle(PTextArea textArea, int offset) {
+        final boolean isForward;
         if (afterOpenBracket(textArea.getTextBuffer(), offset)) {
+            isForward = true;
+        } else if (beforeCloseBracket(textArea.getTextBuffer(), offset)) {
+            isForward = false;
+        } else {
+            throw new IllegalArgumentException("No bracket at offset " + offset);
+        }
+        
+        // Brackets in code are indexed, so we don't need to style everything between here and the match.
+        final int indexedMatch = textArea.getBracketIndex().findMatchingBracket(isForward ? offset - 1 : offset);
+        if (indexedMatch != PBracketIndex.NOT_INDEXED) {
+            return indexedMatch;
+        }
+        
+        // Brackets in comments and strings are rare enough that we can afford to go looking.
+        if (isForward) {
             Iterator<PLineSegment> segments = textArea.getLogicalSegmentIterator(offset - 1);
             segments = new PSameStyleSegmentIterator(segments);
             return findMatchingBracket(new PSegmentCharIterator(segments, offset - 1, true), true);
-            
-        } else if (beforeCloseBracket(textArea.getTextBuffer(), offset)) {
+        } else {
             Iterator<PLineSegment> segments = new PReverseSegmentIterator(textArea, offset);
             segments = new PSameStyleSegmentIterator(segments);
             return findMatchingBracket(new PSegmentCharIterator(segments, offset, false), false);
-            
-        } else {
-            throw new IllegalArgumentException("No bracket at offset " + offset);
         }
     }
     
+    /**
+     * Returns the offset of the innermost round, square, or curly bracket in
+     * code that's open at 'offset', or -1.
+     */
+    public static int findEnclosingOpenBracket(PTextArea textArea, int offset) {
+        return textArea.getBracketIndex().findEnclosingOpenBracket(offset);
+    }
+    
+    /**
+     * Returns the offset of the round, square, or curly bracket in code at or
+     * after 'offset' that closes the innermost bracket open at 'offset', or -1.
+     */
+    public static int findEnclosingCloseBracket(PTextArea textArea, int offset) {
+        return textArea.getBracketIndex().findEnclosingCloseBracket(offset);
+    }
+    
     /**
      * Returns true when the given offset is either just to the right of an open
      * bracket, or just to the left of a close bracket.
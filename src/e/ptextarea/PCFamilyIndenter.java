@@ -1,11 +1,19 @@
 package e.ptextarea;
 
 import java.util.*;
+import java.util.regex.*;
 
 /**
  * Implements indentation for members of the C family, parameterized to cater for their differences.
  */
 public abstract class PCFamilyIndenter extends PSimpleIndenter {
+    private static final Pattern SWITCH_LABEL_PATTERN = Pattern.compile("(case\\b.*|default\\s*):");
+    
+    // The last line calculateNewIndentation was asked about, and the last definitive line before it.
+    // When fixing a run of lines, that saves searching backwards from every line for the previous definitive line.
+    private int lastCalculatedLine = -1;
+    private int lastPreviousDefinitiveLine = -1;
+    
     public PCFamilyIndenter(PTextArea textArea) {
         super(textArea);
     }
@@ -41,7 +49,7 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     }
     
     public boolean isSwitchLabel(String activePartOfLine) {
-        return activePartOfLine.matches("(case\\b.*|default\\s*):");
+        return SWITCH_LABEL_PATTERN.matcher(activePartOfLine).matches();
     }
     
     /**
@@ -61,6 +69,10 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     }
     
     public int getPreviousDefinitiveLineNumber(int startLineNumber) {
+        if (startLineNumber == lastCalculatedLine + 1 && isEarlierLineOfRun(lastCalculatedLine)) {
+            // We only need to look at the line we just fixed, whose indentation may have changed what it looks like.
+            return isDefinitive(getActivePartOfLine(lastCalculatedLine)) ? lastCalculatedLine : lastPreviousDefinitiveLine;
+        }
         for (int lineIndex = startLineNumber - 1; lineIndex >= 0; --lineIndex) {
             String line = getActivePartOfLine(lineIndex);
             if (isDefinitive(line)) {
@@ -73,13 +85,15 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     @Override
     public String calculateNewIndentation(int lineIndex) {
         String activePartOfLine = getActivePartOfLine(lineIndex);
+        int previousDefinitive = getPreviousDefinitiveLineNumber(lineIndex);
+        lastCalculatedLine = lineIndex;
+        lastPreviousDefinitiveLine = previousDefinitive;
         
         if (shouldMoveHashToColumnZero() && activePartOfLine.startsWith("#")) {
             return "";
         }
         
         String indentation = "";
-        int previousDefinitive = getPreviousDefinitiveLineNumber(lineIndex);
         if (previousDefinitive != -1) {
             indentation = getCurrentIndentationOfLine(previousDefinitive);
             
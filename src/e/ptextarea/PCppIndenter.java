@@ -1,6 +1,10 @@
 package e.ptextarea;
 
+import java.util.regex.*;
+
 public class PCppIndenter extends PCFamilyIndenter {
+    private static final Pattern ACCESS_SPECIFIER_PATTERN = Pattern.compile("(private|public|protected)\\s*:");
+    
     public PCppIndenter(PTextArea textArea) {
         super(textArea);
     }
@@ -11,7 +15,7 @@ public class PCppIndenter extends PCFamilyIndenter {
     }
 
     private static boolean isCppAccessSpecifier(String activePartOfLine) {
-        return activePartOfLine.matches("(private|public|protected)\\s*:");
+        return ACCESS_SPECIFIER_PATTERN.matcher(activePartOfLine).matches();
     }
     
     @Override
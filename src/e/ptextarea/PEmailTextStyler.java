@@ -81,22 +81,30 @@ public class PEmailTextStyler extends PAbstractTextStyler {
         return result;
     }
     
+    private PStyle getLineStyle(int lineIndex, String line) {
+        if (lineIndex > signatureLineIndex) {
+            return SIGNATURE_STYLE;
+        }
+        int quoteLevel = getQuoteLevel(lineIndex, line);
+        return (quoteLevel > 0) ? QUOTE_STYLES[quoteLevel % QUOTE_STYLES.length] : PStyle.NORMAL;
+    }
+    
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
         int lineStartOffset = textArea.getLineStartOffset(lineIndex);
         List<PLineSegment> result = new ArrayList<PLineSegment>();
-        PStyle style = PStyle.NORMAL;
-        if (lineIndex > signatureLineIndex) {
-            style = SIGNATURE_STYLE;
-        } else {
-            int quoteLevel = getQuoteLevel(lineIndex, line);
-            if (quoteLevel > 0) {
-                style = QUOTE_STYLES[quoteLevel % QUOTE_STYLES.length];
-            }
-        }
-        result.add(new PTextSegment(textArea, lineStartOffset, lineStartOffset + line.length(), style));
+        result.add(new PTextSegment(textArea, lineStartOffset, lineStartOffset + line.length(), getLineStyle(lineIndex, line)));
         return result;
     }
     
+    /**
+     * A line's style depends on where the signature is, and sometimes on the
+     * line below, so the whole style is the state.
+     */
+    @Override
+    public int getLineStartState(int lineIndex) {
+        return getLineStyle(lineIndex, textArea.getLineContents(lineIndex).toString()).ordinal();
+    }
+    
     public void addKeywordsTo(Collection<String> collection) { }
 }
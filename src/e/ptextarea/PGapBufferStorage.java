@@ -0,0 +1,132 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * Stores text in a single char[] with a gap at the most recent edit
+ * position. Typing is very cheap because successive insertions happen at
+ * the gap, but moving the gap costs time proportional to the distance
+ * moved, so this is best suited to small and medium-sized documents.
+ * 
+ * @author Phil Norman
+ */
+class PGapBufferStorage implements PTextStorage {
+    private static final int MIN_BUFFER_EXTENSION = 100;
+    private static final int MAX_GAP_SIZE = 1024 * 2;
+    
+    private char[] text = new char[0];
+    private int gapPosition;
+    private int gapLength;
+    
+    public char charAt(int index) {
+        return (index < gapPosition) ? text[index] : text[index + gapLength];
+    }
+    
+    public int length() {
+        return text.length - gapLength;
+    }
+    
+    public void setText(char[] text, int length) {
+        // Any unused space at the end of the array becomes our gap.
+        this.text = text;
+        gapPosition = length;
+        gapLength = text.length - length;
+    }
+    
+    public void copyTo(int start, int charCount, char[] destination, int destinationOffset) {
+        int copyCount = 0;
+        if (start < gapPosition) {
+            copyCount = Math.min(charCount, gapPosition - start);
+            System.arraycopy(text, start, destination, destinationOffset, copyCount);
+        }
+        if (start + charCount >= gapPosition) {
+            int textPosition = Math.max(start, gapPosition) + gapLength;
+            System.arraycopy(text, textPosition, destination, destinationOffset + copyCount, charCount - copyCount);
+        }
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        // Just write out the two halves as they are.
+        if (gapPosition != 0) {
+            writer.write(text, 0, gapPosition);
+        }
+        final int gapEnd = gapPosition + gapLength;
+        if (gapEnd < text.length) {
+            writer.write(text, gapEnd, text.length - gapEnd);
+        }
+    }
+    
+    public PTextStorage copy() {
+        char[] copy = new char[length()];
+        copyTo(0, copy.length, copy, 0);
+        PGapBufferStorage result = new PGapBufferStorage();
+        result.setText(copy, copy.length);
+        return result;
+    }
+    
+    /** Moves the gap to the specified position. */
+    private void moveGap(int newPosition) {
+        if (gapPosition == newPosition) {
+            return;
+        }
+        if (newPosition < gapPosition) {
+            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
+        } else {
+            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
+        }
+        gapPosition = newPosition;
+    }
+    
+    private void changeBufferLength(int lengthChange) {
+        char[] newText = new char[text.length + lengthChange];
+        System.arraycopy(text, 0, newText, 0, gapPosition);
+        int endOffset = gapPosition + gapLength;
+        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
+        gapLength += lengthChange;
+        text = newText;
+    }
+    
+    /**
+     * Expands the buffer. The spare room grows with the text, so that a long
+     * run of edits that each add a few characters (re-indenting a whole file,
+     * say) doesn't copy the entire text every few lines.
+     */
+    private void expandBuffer(int requiredGapLength) {
+        int desiredGapIncrease = requiredGapLength + Math.max(Math.min(MAX_GAP_SIZE, requiredGapLength), length() / 16);
+        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
+    }
+    
+    /** Shrinks the buffer, if the gap is much bigger than expandBuffer would have made it. */
+    private void shrinkBuffer() {
+        if (gapLength > Math.max(MAX_GAP_SIZE, length() / 8)) {
+            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, length() / 16);
+            changeBufferLength(desiredGapLength - gapLength);
+        }
+    }
+    
+    public void remove(int position, int count) {
+        moveGap(position + count);
+        gapPosition -= count;
+        gapLength += count;
+        shrinkBuffer();
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        moveGap(position);
+        int textLength = chars.length();
+        while (textLength > gapLength) {
+            expandBuffer(textLength);
+        }
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
+        } else {
+            // This is the price you pay for giving us a String.
+            for (int i = 0; i < chars.length(); ++i) {
+                text[gapPosition + i] = chars.charAt(i);
+            }
+        }
+        gapPosition += textLength;
+        gapLength -= textLength;
+    }
+}
@@ -1,18 +1,24 @@
 package e.ptextarea;
 
 import java.awt.*;
-import java.util.*;
 
 /**
- * A PHighlight is an anchored region of text which is specially painted by PTextArea.
+ * A PHighlight is a region of text which is specially painted by PTextArea.
  * The PHighlight is automatically destroyed when either of its start and end points is
  * destroyed.  Painting is performed by implementing the abstract paint method.
  *
+ * Highlights added to a PTextArea are kept up to date by its PHighlightManager.
+ * A highlight that lives outside the manager (such as the selection) must call
+ * attachAnchors to have the buffer's PAnchorSet track it instead.
+ *
  * @author Phil Norman
  */
 
 public abstract class PHighlight {
     protected PTextArea textArea;
+    private int startIndex;
+    private int endIndex;
+    // Only non-null for highlights that called attachAnchors.
     private PAnchor start;
     private PAnchor end;
    
@@ -21,38 +27,51 @@ public abstract class PHighlight {
         if (endIndex < startIndex) {
             throw new IndexOutOfBoundsException("The end index (" + endIndex + ") may not be less than the start index (" + startIndex + ")");
         }
-        start = new HighlightAnchor(startIndex);
-        end = new HighlightAnchor(endIndex);
-        PAnchorSet anchorSet = textArea.getTextBuffer().getAnchorSet();
-        anchorSet.add(start);
-        anchorSet.add(end);
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
     }
     
     public int getStartIndex() {
-        return start.getIndex();
+        return (start != null) ? start.getIndex() : startIndex;
     }
     
     public int getEndIndex() {
-        return end.getIndex();
+        return (end != null) ? end.getIndex() : endIndex;
     }
     
     /**
-     * Removes the anchors marking the bounds of this highlight from the PAnchorSet.
-     * Use this if you have only one highlight to remove, otherwise see the documentation for collectAnchors.
+     * Called by the PHighlightManager as the text changes.
      */
-    void detachAnchors() {
+    void setIndexes(int startIndex, int endIndex) {
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+    }
+    
+    /**
+     * Adds anchors marking the bounds of this highlight to the PAnchorSet, for highlights not kept in the PHighlightManager.
+     */
+    void attachAnchors() {
+        start = new HighlightAnchor(startIndex);
+        end = new HighlightAnchor(endIndex);
         PAnchorSet anchorSet = textArea.getTextBuffer().getAnchorSet();
-        anchorSet.remove(start);
-        anchorSet.remove(end);
+        anchorSet.add(start);
+        anchorSet.add(end);
     }
     
     /**
-     * Adds the anchors marking the bounds of this highlight to a collection so they can be bulk-removed from the PAnchorSet using removeAll.
-     * Use this if you have many highlights to remove, otherwise see detachAnchors.
+     * Removes the anchors added by attachAnchors, if any, from the PAnchorSet.
      */
-    void collectAnchors(IdentityHashMap<PAnchor, Object> anchors) {
-        anchors.put(start, null);
-        anchors.put(end, null);
+    void detachAnchors() {
+        if (start == null) {
+            return;
+        }
+        startIndex = start.getIndex();
+        endIndex = end.getIndex();
+        PAnchorSet anchorSet = textArea.getTextBuffer().getAnchorSet();
+        anchorSet.remove(start);
+        anchorSet.remove(end);
+        start = null;
+        end = null;
     }
     
     public void paint(Graphics2D g) {
@@ -1,37 +1,89 @@
 package e.ptextarea;
 
+import e.util.*;
 import java.util.*;
 
-public class PHighlightManager {
+/**
+ * Keeps track of the highlights in a PTextArea, grouped by highlighter name,
+ * and keeps their offsets up to date as the text changes.
+ * 
+ * Each group stores its highlights' offsets in sorted int arrays rather than
+ * anchoring each end of each highlight in the buffer's PAnchorSet, so a
+ * search can add a million highlights as a couple of int[]s (see 'addAll'),
+ * with the PHighlight objects only made when something asks for them. The
+ * arrays double as an implicit interval tree, so the highlights overlapping
+ * part of the text (typically what's on the screen) can be found in
+ * O(log n + k) time, however long or overlapping the highlights are.
+ * 
+ * As with anchors, a highlight is destroyed when the character at its start
+ * or end offset is removed.
+ */
+public class PHighlightManager implements PTextListener {
+    private PTextArea textArea;
     private Map<String, HighlightSet> highlighterSets = new LinkedHashMap<String, HighlightSet>();
     
+    /**
+     * Makes the PHighlight objects for highlights added with 'addAll'.
+     */
+    public interface HighlightFactory {
+        public PHighlight makeHighlight(int startIndex, int endIndex);
+    }
+    
+    PHighlightManager(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
     public synchronized int countHighlightsOfType(String highlighterName) {
         HighlightSet set = highlighterSets.get(highlighterName);
         return (set != null) ? set.size() : 0;
     }
     
     public synchronized void add(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName) == false) {
-            highlighterSets.put(highlighterName, new HighlightSet());
+        getOrCreateSet(highlight.getHighlighterName()).add(highlight);
+    }
+    
+    /**
+     * Adds 'count' highlights, the i'th covering [starts[i], ends[i]), which
+     * must be in order of their start offsets. The PHighlight objects are
+     * made by 'factory' if and when they're needed.
+     */
+    public synchronized void addAll(String highlighterName, int[] starts, int[] ends, int count, HighlightFactory factory) {
+        getOrCreateSet(highlighterName).addAll(starts, ends, count, factory);
+    }
+    
+    private HighlightSet getOrCreateSet(String highlighterName) {
+        HighlightSet set = highlighterSets.get(highlighterName);
+        if (set == null) {
+            set = new HighlightSet();
+            highlighterSets.put(highlighterName, set);
         }
-        highlighterSets.get(highlighterName).add(highlight);
+        return set;
     }
     
     public synchronized void remove(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName)) {
-            highlighterSets.get(highlighterName).remove(highlight);
+        HighlightSet set = highlighterSets.get(highlight.getHighlighterName());
+        if (set != null) {
+            set.remove(highlight);
         }
     }
     
+    /**
+     * Removes all highlights matching highlighterName overlapping the range
+     * [beginOffset, endOffset). Returns the range of text they covered, or
+     * Range.NULL_RANGE if there weren't any.
+     */
+    public synchronized Range removeNamedHighlightsOverlapping(String highlighterName, int beginOffset, int endOffset) {
+        HighlightSet set = highlighterSets.get(highlighterName);
+        return (set != null) ? set.removeOverlapping(beginOffset, endOffset) : Range.NULL_RANGE;
+    }
+    
     /**
      * Returns all highlighters overlapping the range [beginOffset, endOffset).
      */
     public synchronized List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
         List<PHighlight> result = new ArrayList<PHighlight>();
-        for (String highlighter : highlighterSets.keySet()) {
-            result.addAll(getNamedHighlightsOverlapping(highlighter, beginOffset, endOffset));
+        for (HighlightSet set : highlighterSets.values()) {
+            set.addHighlightsOverlapping(beginOffset, endOffset, result);
         }
         return result;
     }
@@ -42,7 +94,9 @@ public class PHighlightManager {
     public synchronized List<PHighlight> getNamedHighlightsOverlapping(String highlighterName, int beginOffset, int endOffset) {
         HighlightSet set = highlighterSets.get(highlighterName);
         if (set != null) {
-            return set.getHighlightsOverlapping(beginOffset, endOffset);
+            List<PHighlight> result = new ArrayList<PHighlight>();
+            set.addHighlightsOverlapping(beginOffset, endOffset, result);
+            return result;
         } else {
             return Collections.emptyList();
         }
@@ -56,88 +110,399 @@ public class PHighlightManager {
         return next ? set.getHighlightAfter(offset) : set.getHighlightBefore(offset);
     }
     
+    public synchronized void textInserted(PTextEvent event) {
+        for (HighlightSet set : highlighterSets.values()) {
+            set.textInserted(event.getOffset(), event.getLength());
+        }
+    }
+    
+    public synchronized void textRemoved(PTextEvent event) {
+        boolean destroyedHighlights = false;
+        for (HighlightSet set : highlighterSets.values()) {
+            destroyedHighlights |= set.textRemoved(event.getOffset(), event.getLength());
+        }
+        if (destroyedHighlights) {
+            textArea.repaint();
+        }
+    }
+    
+    public synchronized void textCompletelyReplaced(PTextEvent event) {
+        highlighterSets.clear();
+        textArea.repaint();
+    }
+    
+    /**
+     * The highlights of one highlighter, in parallel arrays sorted by start
+     * offset (and then by end offset). The PHighlight for an entry may be
+     * null until it's asked for, in which case 'factory' makes it.
+     * 
+     * The arrays are also an implicit interval tree, as in Heng Li's
+     * cgranges: entry i is a node at level k if the lowest k bits of i are
+     * all 1 and the next bit is 0, its children are i - 2^(k-1) and
+     * i + 2^(k-1), and maxEnds[i] is the greatest end offset in its subtree.
+     * The tree is rebuilt, in linear time, the first time it's needed after
+     * highlights are added or removed. Edits to the text only ever move end
+     * offsets forward by the length of inserted text, so rather than rebuild
+     * the tree after every keystroke, we just add 'maxEndSlack' to the
+     * stored maxima to keep them safe upper bounds.
+     */
     private static class HighlightSet {
-        private TreeSet<Wrapper> highlights = new TreeSet<Wrapper>();
+        // Once this much text has been inserted, the tree is so loose that rebuilding it is worthwhile.
+        private static final int MAX_MAX_END_SLACK = 4096;
+        // Subtrees no deeper than this are scanned linearly.
+        private static final int LINEAR_SCAN_LEVEL = 3;
+        
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private PHighlight[] highlights = new PHighlight[8];
+        private int size = 0;
+        private HighlightFactory factory;
+        
+        private int[] maxEnds = new int[0];
+        private int rootLevel = -1;
+        private boolean treeIsValid = false;
+        private int maxEndSlack = 0;
+        
+        private int size() {
+            return size;
+        }
         
         private void add(PHighlight highlight) {
-            highlights.add(new Wrapper(highlight));
+            final int start = highlight.getStartIndex();
+            final int end = highlight.getEndIndex();
+            // After any equal highlights, so they come out in the order they went in.
+            int index = lowerBound(start);
+            while (index < size && starts[index] == start && ends[index] <= end) {
+                ++index;
+            }
+            ensureCapacity(size + 1);
+            System.arraycopy(starts, index, starts, index + 1, size - index);
+            System.arraycopy(ends, index, ends, index + 1, size - index);
+            System.arraycopy(highlights, index, highlights, index + 1, size - index);
+            starts[index] = start;
+            ends[index] = end;
+            highlights[index] = highlight;
+            ++size;
+            treeIsValid = false;
+        }
+        
+        private void addAll(int[] newStarts, int[] newEnds, int count, HighlightFactory newFactory) {
+            this.factory = newFactory;
+            int[] oldStarts = starts;
+            int[] oldEnds = ends;
+            PHighlight[] oldHighlights = highlights;
+            final int oldSize = size;
+            starts = new int[Math.max(8, oldSize + count)];
+            ends = new int[starts.length];
+            highlights = new PHighlight[starts.length];
+            // Merge the two sorted sequences.
+            int i = 0;
+            int j = 0;
+            size = 0;
+            while (i < oldSize || j < count) {
+                final boolean takeOld = (j == count) || (i < oldSize && (oldStarts[i] < newStarts[j] || (oldStarts[i] == newStarts[j] && oldEnds[i] <= newEnds[j])));
+                if (takeOld) {
+                    starts[size] = oldStarts[i];
+                    ends[size] = oldEnds[i];
+                    highlights[size] = oldHighlights[i];
+                    ++i;
+                } else {
+                    starts[size] = newStarts[j];
+                    ends[size] = newEnds[j];
+                    ++j;
+                }
+                ++size;
+            }
+            treeIsValid = false;
         }
         
         private void remove(PHighlight highlight) {
-            highlights.remove(new Wrapper(highlight));
+            for (int i = lowerBound(highlight.getStartIndex()); i < size && starts[i] == highlight.getStartIndex(); ++i) {
+                if (highlights[i] == highlight) {
+                    System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+                    System.arraycopy(ends, i + 1, ends, i, size - i - 1);
+                    System.arraycopy(highlights, i + 1, highlights, i, size - i - 1);
+                    --size;
+                    highlights[size] = null;
+                    treeIsValid = false;
+                    return;
+                }
+            }
         }
         
-        private int size() {
-            return highlights.size();
+        private Range removeOverlapping(int beginOffset, int endOffset) {
+            IndexList doomed = new IndexList();
+            findOverlapping(beginOffset, endOffset, doomed);
+            if (doomed.size == 0) {
+                return Range.NULL_RANGE;
+            }
+            int minStart = Integer.MAX_VALUE;
+            int maxEnd = Integer.MIN_VALUE;
+            for (int i = 0; i < doomed.size; ++i) {
+                minStart = Math.min(minStart, starts[doomed.values[i]]);
+                maxEnd = Math.max(maxEnd, ends[doomed.values[i]]);
+            }
+            removeAll(doomed);
+            return new Range(minStart, maxEnd);
+        }
+        
+        private void addHighlightsOverlapping(int beginOffset, int endOffset, List<PHighlight> result) {
+            IndexList indexes = new IndexList();
+            findOverlapping(beginOffset, endOffset, indexes);
+            for (int i = 0; i < indexes.size; ++i) {
+                result.add(getHighlight(indexes.values[i]));
+            }
         }
         
         private PHighlight getHighlightAfter(int offset) {
-            SortedSet<Wrapper> after = highlights.tailSet(new ProbeWrapper(offset));
-            return (after.size() == 0) ? null : after.first().get();
+            final int index = lowerBound(offset);
+            return (index < size) ? getHighlight(index) : null;
         }
         
         private PHighlight getHighlightBefore(int offset) {
-            SortedSet<Wrapper> before = highlights.headSet(new ProbeWrapper(offset));
-            return (before.size() == 0) ? null : before.last().get();
-        }
-        
-        private List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
-            // The 'firstItem' is to be the lowest-indexed highlight wrapper which *overlaps* the range.
-            // We must check highlights which start before beginOffset to determine if they end past beginOffset.
-            Wrapper firstItem = new ProbeWrapper(beginOffset);
-            SortedSet<Wrapper> highlightsBeforeStart = highlights.headSet(firstItem);
-            if (highlightsBeforeStart.size() > 0) {
-                Wrapper lastBefore = highlightsBeforeStart.last();
-                if (lastBefore.get().getEndIndex() > beginOffset) {
-                    firstItem = lastBefore;
+            final int index = lowerBound(offset) - 1;
+            return (index >= 0) ? getHighlight(index) : null;
+        }
+        
+        private PHighlight getHighlight(int index) {
+            if (highlights[index] == null) {
+                highlights[index] = factory.makeHighlight(starts[index], ends[index]);
+            }
+            return highlights[index];
+        }
+        
+        private void textInserted(int offset, int length) {
+            if (size == 0) {
+                return;
+            }
+            // Highlights that start before the insertion but end at or after it get longer...
+            IndexList spanning = new IndexList();
+            findIntersecting(offset, offset, spanning);
+            for (int i = 0; i < spanning.size; ++i) {
+                final int index = spanning.values[i];
+                ends[index] += length;
+                updateHighlight(index);
+            }
+            // ...and those that start at or after it move.
+            for (int i = lowerBound(offset); i < size; ++i) {
+                starts[i] += length;
+                ends[i] += length;
+                updateHighlight(i);
+            }
+            maxEndSlack += length;
+            if (maxEndSlack > MAX_MAX_END_SLACK) {
+                treeIsValid = false;
+            }
+        }
+        
+        /**
+         * Returns true if any highlights were destroyed.
+         */
+        private boolean textRemoved(int offset, int length) {
+            if (size == 0) {
+                return false;
+            }
+            final int removedEnd = offset + length;
+            IndexList doomed = new IndexList();
+            // Highlights that start before the removal but end within it are destroyed; those that end after it get shorter.
+            IndexList spanning = new IndexList();
+            findIntersecting(offset, offset, spanning);
+            for (int i = 0; i < spanning.size; ++i) {
+                final int index = spanning.values[i];
+                if (ends[index] < removedEnd) {
+                    doomed.add(index);
+                } else {
+                    ends[index] -= length;
+                    updateHighlight(index);
                 }
             }
-            
-            // Now we have the start, and the end too, so we can simply grab the subset between these two extremes (inclusive of firstItem) and return as a list.
-            SortedSet<Wrapper> highlightsInRange = highlights.subSet(firstItem, new ProbeWrapper(endOffset));
-            List<PHighlight> result = new ArrayList<PHighlight>(highlightsInRange.size());
-            for (Wrapper wrapper : highlightsInRange) {
-                result.add(wrapper.get());
+            // Highlights that start within the removal are destroyed; those that start after it move.
+            final int firstAfter = lowerBound(removedEnd);
+            for (int i = lowerBound(offset); i < firstAfter; ++i) {
+                doomed.add(i);
+            }
+            for (int i = firstAfter; i < size; ++i) {
+                starts[i] -= length;
+                ends[i] -= length;
+                updateHighlight(i);
+            }
+            // End offsets only went down, so the tree's maxima are still upper bounds.
+            if (doomed.size == 0) {
+                return false;
+            }
+            removeAll(doomed);
+            return true;
+        }
+        
+        private void updateHighlight(int index) {
+            if (highlights[index] != null) {
+                highlights[index].setIndexes(starts[index], ends[index]);
             }
-            return result;
         }
-    }
-    
-    private static class Wrapper implements Comparable<Wrapper> {
-        private PHighlight highlight;
         
-        private Wrapper(PHighlight highlight) {
-            this.highlight = highlight;
+        /**
+         * Removes the entries at the given indexes, which must be in increasing order.
+         */
+        private void removeAll(IndexList indexes) {
+            int destination = indexes.values[0];
+            int nextDoomed = 0;
+            for (int source = destination; source < size; ++source) {
+                if (nextDoomed < indexes.size && indexes.values[nextDoomed] == source) {
+                    ++nextDoomed;
+                    continue;
+                }
+                starts[destination] = starts[source];
+                ends[destination] = ends[source];
+                highlights[destination] = highlights[source];
+                ++destination;
+            }
+            Arrays.fill(highlights, destination, size, null);
+            size = destination;
+            treeIsValid = false;
         }
         
-        public boolean equals(Object obj) {
-            return (obj instanceof Wrapper) && (((Wrapper) obj).getOffset() == getOffset());
+        /**
+         * Returns the index of the first entry starting at or after 'offset'.
+         */
+        private int lowerBound(int offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (starts[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
         
-        public int compareTo(Wrapper other) {
-            return getOffset() - other.getOffset();
+        private void ensureCapacity(int capacity) {
+            if (capacity > starts.length) {
+                final int newCapacity = Math.max(capacity, starts.length * 2);
+                starts = Arrays.copyOf(starts, newCapacity);
+                ends = Arrays.copyOf(ends, newCapacity);
+                highlights = Arrays.copyOf(highlights, newCapacity);
+            }
         }
         
-        protected int getOffset() {
-            return highlight.getStartIndex();
+        /**
+         * Appends to 'result', in order, the index of every highlight
+         * overlapping [beginOffset, endOffset). An empty highlight overlaps if
+         * it's at or after beginOffset.
+         */
+        private void findOverlapping(int beginOffset, int endOffset, IndexList result) {
+            IndexList candidates = new IndexList();
+            findIntersecting(endOffset, beginOffset, candidates);
+            for (int i = 0; i < candidates.size; ++i) {
+                final int index = candidates.values[i];
+                if (ends[index] > beginOffset || starts[index] >= beginOffset) {
+                    result.add(index);
+                }
+            }
         }
         
-        private PHighlight get() {
-            return highlight;
+        /**
+         * Appends to 'result', in order, the index of every highlight that
+         * starts before 'startLimit' and ends at or after 'minEnd'.
+         */
+        private void findIntersecting(int startLimit, int minEnd, IndexList result) {
+            if (size == 0) {
+                return;
+            }
+            if (treeIsValid == false) {
+                buildTree();
+            }
+            // Each stack entry is a node, its level, and whether we've already dealt with its left subtree.
+            int[] nodes = new int[2 * (rootLevel + 2)];
+            int[] levels = new int[nodes.length];
+            boolean[] leftDone = new boolean[nodes.length];
+            int top = 0;
+            nodes[top] = (1 << rootLevel) - 1;
+            levels[top] = rootLevel;
+            leftDone[top] = false;
+            ++top;
+            while (top > 0) {
+                --top;
+                final int node = nodes[top];
+                final int level = levels[top];
+                if (level <= LINEAR_SCAN_LEVEL) {
+                    final int first = node >> level << level;
+                    final int last = Math.min(size, first + (1 << (level + 1)) - 1);
+                    for (int i = first; i < last && starts[i] < startLimit; ++i) {
+                        if (ends[i] >= minEnd) {
+                            result.add(i);
+                        }
+                    }
+                } else if (leftDone[top] == false) {
+                    // Come back to this node once its left subtree is done...
+                    leftDone[top] = true;
+                    ++top;
+                    // ...which is only worth visiting if it could contain something ending late enough.
+                    final int leftChild = node - (1 << (level - 1));
+                    if (leftChild >= size || maxEnds[leftChild] + maxEndSlack >= minEnd) {
+                        nodes[top] = leftChild;
+                        levels[top] = level - 1;
+                        leftDone[top] = false;
+                        ++top;
+                    }
+                } else if (node < size && starts[node] < startLimit) {
+                    if (ends[node] >= minEnd) {
+                        result.add(node);
+                    }
+                    nodes[top] = node + (1 << (level - 1));
+                    levels[top] = level - 1;
+                    leftDone[top] = false;
+                    ++top;
+                }
+            }
         }
-    }
-    
-    private static class ProbeWrapper extends Wrapper {
-        private int fixedOffset;
         
-        private ProbeWrapper(int fixedOffset) {
-            super(null);
-            this.fixedOffset = fixedOffset;
+        private void buildTree() {
+            if (maxEnds.length < size) {
+                maxEnds = new int[starts.length];
+            }
+            // The leaves (level 0) are the even indexes.
+            int lastNode = 0;
+            int lastMaxEnd = 0;
+            for (int i = 0; i < size; i += 2) {
+                lastNode = i;
+                lastMaxEnd = maxEnds[i] = ends[i];
+            }
+            // Each level up, a node's maximum comes from its own end and its two children.
+            // A missing right child's maximum is that of the last node we have at that level, which is tracked in 'lastMaxEnd'.
+            int level;
+            for (level = 1; (1 << level) <= size; ++level) {
+                final int halfWidth = 1 << (level - 1);
+                for (int i = (halfWidth << 1) - 1; i < size; i += halfWidth << 2) {
+                    final int leftMaxEnd = maxEnds[i - halfWidth];
+                    final int rightMaxEnd = (i + halfWidth < size) ? maxEnds[i + halfWidth] : lastMaxEnd;
+                    maxEnds[i] = Math.max(ends[i], Math.max(leftMaxEnd, rightMaxEnd));
+                }
+                lastNode = (((lastNode >> level) & 1) != 0) ? lastNode - halfWidth : lastNode + halfWidth;
+                if (lastNode < size && maxEnds[lastNode] > lastMaxEnd) {
+                    lastMaxEnd = maxEnds[lastNode];
+                }
+            }
+            rootLevel = level - 1;
+            maxEndSlack = 0;
+            treeIsValid = true;
         }
+    }
+    
+    /**
+     * A growable list of indexes, so queries don't box every result.
+     */
+    private static class IndexList {
+        private int[] values = new int[16];
+        private int size = 0;
         
-        @Override
-        protected int getOffset() {
-            return fixedOffset;
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
         }
     }
 }
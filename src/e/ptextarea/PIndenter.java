@@ -56,11 +56,25 @@ public abstract class PIndenter {
     
     /**
      * Corrects the indentation of the lines touched by the range of characters from startOffset to endOffset.
+     * However many lines change, it's a single edit as far as undo is concerned.
      */
     public final void fixIndentationBetween(final int startOffset, final int endOffset) {
         final int startLine = textArea.getLineOfOffset(startOffset);
         // I've thought about (and experimented with) the +-1 issue here.
         final int finishLine = textArea.getLineOfOffset(endOffset);
+        textArea.getTextBuffer().getUndoBuffer().startCompoundEdit();
+        try {
+            fixIndentationOnLines(startLine, finishLine);
+        } finally {
+            textArea.getTextBuffer().getUndoBuffer().finishCompoundEdit();
+        }
+    }
+    
+    /**
+     * Corrects the indentation of the lines from startLine to finishLine inclusive.
+     * This fixes one line at a time, but indenters that can do a run of lines in one go should override it.
+     */
+    protected void fixIndentationOnLines(int startLine, int finishLine) {
         for (int lineIndex = startLine; lineIndex <= finishLine; ++lineIndex) {
             fixIndentationOnLine(lineIndex);
         }
@@ -0,0 +1,316 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.awt.*;
+import java.util.concurrent.*;
+
+/**
+ * Remembers a lexer's state at the start of every line of a PTextArea, such
+ * as whether the line starts inside a multi-line comment, and keeps it up to
+ * date in the background.
+ * 
+ * The states live in a byte[], one per line. When lines are added or
+ * removed, the states of the lines after them are moved rather than thrown
+ * away, so they remain a good guess. After an edit, a background thread
+ * re-lexes forwards from the first changed line, a chunk at a time, holding
+ * the text's read lock only while it works on each chunk. Once it's past
+ * all the changed lines and it computes the same state for a line as that
+ * line already had, nothing further down can have changed either, so it
+ * stops there rather than re-lexing the rest of the file.
+ * 
+ * getState never lexes: painting uses the last known state for a line, even
+ * if the background thread hasn't caught up with it yet, and the lines whose
+ * states turn out to have been wrong are repainted when it does. This means
+ * jumping to the end of a large file doesn't have to wait while every line
+ * above it is lexed. Code that can't make do with a guess, such as an
+ * indenter, which can't take back the text it changes, calls lexThrough
+ * first.
+ */
+class PLexerStates implements PLineListener {
+    /**
+     * Computes the state at the end of a line, given its text and the state at its start.
+     * States must fit in a byte.
+     */
+    public interface Lexer {
+        public int getExitState(String line, int entryState);
+    }
+    
+    private static final int LINES_PER_CHUNK = 2000;
+    
+    // All text areas share one low-priority lexing thread.
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Background Lexer");
+    
+    private final PTextArea textArea;
+    private final PTextStyler styler;
+    private final Lexer lexer;
+    
+    // states[i] is the state at the start of line i, for the first knownLineCount lines.
+    private byte[] states = new byte[1024];
+    private int knownLineCount;
+    // The states of the first goodLineCount lines are correct. The others are our best guess.
+    private int goodLineCount;
+    // Lines before this have changed since their successors' states were computed, so we can't stop lexing before here.
+    private int changedLineEnd;
+    private int lineCount;
+    // The index of the last line whose state changed in the most recent lexChunk.
+    private int lastChangedLine;
+    
+    private boolean lexingScheduled;
+    
+    private final Runnable lexingTask = new Runnable() {
+        public void run() {
+            lexSomeLines();
+        }
+    };
+    
+    /**
+     * Tracks the states of 'lexer' for the lines of 'textArea', for as long
+     * as 'styler' is the text area's styler.
+     */
+    public PLexerStates(PTextArea textArea, PTextStyler styler, Lexer lexer) {
+        this.textArea = textArea;
+        this.styler = styler;
+        this.lexer = lexer;
+        textArea.getLineList().addLineListener(this);
+        reset();
+    }
+    
+    /**
+     * Stops tracking the states, because 'styler' has been replaced. The
+     * caller must hold the text's write lock, so we're not removed from the
+     * line list while it's telling its listeners about a change.
+     */
+    public void detach() {
+        textArea.getLineList().removeLineListener(this);
+        synchronized (this) {
+            // We won't hear about any more changes, so we'd only be wasting memory.
+            states = new byte[1];
+            knownLineCount = 1;
+            goodLineCount = 1;
+            lineCount = 1;
+        }
+    }
+    
+    /**
+     * Returns the last known state at the start of the given line. This may
+     * be out of date if the text has changed recently.
+     */
+    public synchronized int getState(int lineIndex) {
+        // We don't start lexing until we're first asked for a state, because until then our styler might still be under construction.
+        scheduleLexing();
+        return (lineIndex < knownLineCount) ? states[lineIndex] : 0;
+    }
+    
+    private synchronized void reset() {
+        lineCount = textArea.getLineList().size();
+        // The first line always starts in the initial state.
+        states[0] = 0;
+        knownLineCount = 1;
+        goodLineCount = 1;
+        changedLineEnd = 0;
+    }
+    
+    public synchronized void linesChanged(PLineEvent event) {
+        // A line's own text doesn't affect the state it starts in, only the states of the lines after it.
+        final int lineIndex = event.getLineIndex();
+        goodLineCount = Math.min(goodLineCount, lineIndex + 1);
+        changedLineEnd = Math.max(changedLineEnd, lineIndex + event.getLength());
+        scheduleLexing();
+    }
+    
+    public synchronized void linesAdded(PLineEvent event) {
+        final int lineIndex = event.getLineIndex();
+        final int count = event.getLength();
+        lineCount += count;
+        if (lineIndex < knownLineCount) {
+            if (knownLineCount + count > states.length) {
+                byte[] newStates = new byte[Math.max(states.length * 2, knownLineCount + count)];
+                System.arraycopy(states, 0, newStates, 0, knownLineCount);
+                states = newStates;
+            }
+            System.arraycopy(states, lineIndex, states, lineIndex + count, knownLineCount - lineIndex);
+            // Until we know better, assume the new lines start in the same state as the line they were split from.
+            byte guess = states[Math.max(0, lineIndex - 1)];
+            for (int i = lineIndex; i < lineIndex + count; ++i) {
+                states[i] = guess;
+            }
+            knownLineCount += count;
+        }
+        goodLineCount = Math.min(goodLineCount, lineIndex);
+        if (changedLineEnd > lineIndex) {
+            changedLineEnd += count;
+        }
+        changedLineEnd = Math.max(changedLineEnd, lineIndex + count);
+        scheduleLexing();
+    }
+    
+    public synchronized void linesRemoved(PLineEvent event) {
+        final int lineIndex = event.getLineIndex();
+        final int count = event.getLength();
+        lineCount -= count;
+        if (lineIndex < knownLineCount) {
+            final int removedCount = Math.min(count, knownLineCount - lineIndex);
+            System.arraycopy(states, lineIndex + removedCount, states, lineIndex, knownLineCount - lineIndex - removedCount);
+            knownLineCount -= removedCount;
+        }
+        goodLineCount = Math.max(1, Math.min(goodLineCount, lineIndex));
+        if (changedLineEnd >= lineIndex + count) {
+            changedLineEnd -= count;
+        } else {
+            changedLineEnd = Math.max(changedLineEnd, lineIndex);
+        }
+        scheduleLexing();
+    }
+    
+    public synchronized void linesCompletelyReplaced(PLineEvent event) {
+        reset();
+        scheduleLexing();
+    }
+    
+    private void scheduleLexing() {
+        if (lexingScheduled == false && goodLineCount < lineCount && textArea.getTextStyler() == styler) {
+            lexingScheduled = true;
+            executor.execute(lexingTask);
+        }
+    }
+    
+    /**
+     * Re-lexes the next chunk of lines, and arranges for the lines whose
+     * states changed to be repainted, and for the next chunk to be lexed.
+     */
+    private void lexSomeLines() {
+        if (textArea.getTextStyler() != styler) {
+            // We've been detached since this was scheduled, so there's nothing to do.
+            synchronized (this) {
+                lexingScheduled = false;
+            }
+            return;
+        }
+        
+        textArea.getLock().getReadLock();
+        try {
+            int firstChangedLine;
+            int lastChanged;
+            synchronized (this) {
+                firstChangedLine = lexChunk(Math.min(lineCount, goodLineCount + LINES_PER_CHUNK));
+                lastChanged = lastChangedLine;
+            }
+            statesChanged(firstChangedLine, lastChanged);
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+        
+        synchronized (this) {
+            lexingScheduled = false;
+            // If there's still work to do (including because of edits since we released the read lock), carry on.
+            // Going to the back of the queue lets other text areas have a turn.
+            scheduleLexing();
+        }
+    }
+    
+    /**
+     * Brings the states of all the lines up to and including the given one up
+     * to date, lexing them here and now if the background thread hasn't got
+     * that far yet. Usually there's little or nothing to do. The caller must
+     * hold the text's lock (either one), so the text can't change under us.
+     */
+    public void lexThrough(int lineIndex) {
+        if (textArea.getTextStyler() != styler) {
+            return;
+        }
+        int firstChangedLine = -1;
+        int lastChanged = -1;
+        synchronized (this) {
+            final int end = Math.min(lineCount, lineIndex + 1);
+            while (goodLineCount < end) {
+                int changedLine = lexChunk(end);
+                if (changedLine != -1) {
+                    if (firstChangedLine == -1) {
+                        firstChangedLine = changedLine;
+                    }
+                    lastChanged = lastChangedLine;
+                }
+            }
+        }
+        statesChanged(firstChangedLine, lastChanged);
+    }
+    
+    /**
+     * Tells the bracket index about, and arranges to repaint, the lines whose
+     * states changed, if firstChangedLine isn't -1. The caller must hold the
+     * text's lock, so the line numbers are still right, but not ours, because
+     * the bracket index may ask us for states.
+     */
+    private void statesChanged(int firstChangedLine, int lastChangedLine) {
+        if (firstChangedLine == -1) {
+            return;
+        }
+        // The brackets on lines that now start in a different state may have moved into or out of comments.
+        textArea.getBracketIndex().invalidateLines(firstChangedLine, lastChangedLine);
+        final int lineIndex = firstChangedLine;
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                repaintFromLine(lineIndex);
+            }
+        });
+    }
+    
+    /**
+     * Re-lexes lines, starting with the first line whose successor's state
+     * isn't known to be good, until the states of the first 'end' lines are
+     * good, or until we converge with the states we had before the latest
+     * edits. Returns the index of the first line whose state changed, or -1.
+     * The caller must hold the text's lock, so the text and our line count
+     * agree.
+     */
+    private synchronized int lexChunk(int end) {
+        int firstChangedLine = -1;
+        PLineList lineList = textArea.getLineList();
+        while (goodLineCount < end) {
+            final int lineIndex = goodLineCount - 1;
+            String line = lineList.getLine(lineIndex).getContents().toString();
+            byte newState = (byte) lexer.getExitState(line, states[lineIndex]);
+            final int nextLine = lineIndex + 1;
+            if (nextLine < knownLineCount) {
+                if (nextLine >= changedLineEnd && states[nextLine] == newState) {
+                    // We've converged with what we had before the edit, so everything after this is still right.
+                    goodLineCount = knownLineCount;
+                    changedLineEnd = 0;
+                    break;
+                }
+            } else {
+                if (nextLine >= states.length) {
+                    byte[] newStates = new byte[Math.max(states.length * 2, nextLine + 1)];
+                    System.arraycopy(states, 0, newStates, 0, knownLineCount);
+                    states = newStates;
+                }
+                // getState has been returning 0 for this line.
+                states[nextLine] = 0;
+                knownLineCount = nextLine + 1;
+            }
+            if (states[nextLine] != newState) {
+                states[nextLine] = newState;
+                if (firstChangedLine == -1) {
+                    firstChangedLine = nextLine;
+                }
+                lastChangedLine = nextLine;
+            }
+            goodLineCount = nextLine + 1;
+        }
+        if (goodLineCount == lineCount) {
+            changedLineEnd = 0;
+        }
+        return firstChangedLine;
+    }
+    
+    private void repaintFromLine(int lineIndex) {
+        textArea.getLock().getReadLock();
+        try {
+            if (lineIndex < textArea.getLineCount() && textArea.isLineWrappingInvalid() == false) {
+                textArea.repaintFromLine(textArea.getSplitLineIndex(lineIndex));
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+}
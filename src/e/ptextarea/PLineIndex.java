@@ -0,0 +1,495 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Holds the length, rendered width, and wrapped row count of every line of
+ * a document in primitive arrays, and answers line-to-offset, offset-to-line,
+ * and line-to-row queries in O(log n) time.
+ * 
+ * The lines are divided into blocks of at most MAX_BLOCK_SIZE consecutive
+ * lines. Each block keeps its lines' lengths and widths in parallel int[]s,
+ * and three Fenwick trees (binary indexed trees) over the blocks hold the
+ * number of characters, lines, and rows in each block. Finding a line
+ * is a Fenwick search for its block followed by a short scan within that
+ * block. Changing a line's length costs O(log n), as does inserting or
+ * removing lines within a block. Only when blocks are split or removed do the
+ * Fenwick trees have to be rebuilt, which costs time proportional to the
+ * number of blocks rather than the number of lines.
+ * 
+ * A line's row count is the number of rows it takes up on the screen once
+ * wrapped. Working that out means measuring every character, so the
+ * PTextArea only does it for the lines it's showing. Every other line's row
+ * count is an estimate, made from its width if we know it and its length if
+ * we don't, using the parameters last given to estimateRowCounts. Lines
+ * inserted later are estimated the same way. A line whose text changes
+ * keeps its row count, but that count becomes an estimate.
+ * 
+ * Once built, the index always has at least one line, though it may be empty.
+ */
+class PLineIndex {
+    private static final int MAX_BLOCK_SIZE = 64;
+    // New blocks are created part-full, so the next few insertions don't immediately split them.
+    private static final int NEW_BLOCK_SIZE = (MAX_BLOCK_SIZE * 3) / 4;
+    private static final int INVALID_WIDTH = -1;
+    // Which of the Fenwick trees to use.
+    private static final int CHARS = 0;
+    private static final int LINES = 1;
+    private static final int ROWS = 2;
+    
+    private ArrayList<Block> blocks = new ArrayList<Block>();
+    private int lineCount;
+    
+    // Fenwick trees over the blocks' character, line, and row counts, indexed by CHARS, LINES, and ROWS. Rebuilt lazily when the blocks change.
+    private int[][] trees = new int[3][];
+    private boolean treesValid;
+    
+    // The offset within the block returned by the most recent call to findBlock.
+    private int foundRemainder;
+    
+    // How row counts are estimated; see estimateRowCounts.
+    private int wrapWidth = Integer.MAX_VALUE;
+    private int averageCharWidth = 1;
+    
+    public PLineIndex() {
+        blocks.add(new Block(MAX_BLOCK_SIZE));
+    }
+    
+    /**
+     * Returns the number of lines.
+     */
+    public int size() {
+        return lineCount;
+    }
+    
+    /**
+     * Adds a line of the given length to the end of the document. A new
+     * index has no lines, so this is how it's filled.
+     */
+    public void append(int length) {
+        Block block = blocks.get(blocks.size() - 1);
+        if (block.size == MAX_BLOCK_SIZE) {
+            block = new Block(MAX_BLOCK_SIZE);
+            blocks.add(block);
+        }
+        block.lengths[block.size] = length;
+        block.widths[block.size] = INVALID_WIDTH;
+        block.rowCounts[block.size] = estimateRowCount(length, INVALID_WIDTH);
+        block.totalRowCount += block.rowCounts[block.size];
+        ++block.size;
+        block.totalLength += length;
+        ++lineCount;
+        treesValid = false;
+    }
+    
+    public int getLineStart(int lineIndex) {
+        checkLineIndex(lineIndex);
+        int blockIndex = findBlock(LINES, lineIndex);
+        int position = foundRemainder;
+        int start = prefixSum(trees[CHARS], blockIndex);
+        int[] lengths = blocks.get(blockIndex).lengths;
+        for (int i = 0; i < position; ++i) {
+            start += lengths[i];
+        }
+        return start;
+    }
+    
+    public int getLineLength(int lineIndex) {
+        checkLineIndex(lineIndex);
+        Block block = blocks.get(findBlock(LINES, lineIndex));
+        return block.lengths[foundRemainder];
+    }
+    
+    /**
+     * Sets the length of the given line, invalidating its width and making its row count an estimate.
+     */
+    public void setLineLength(int lineIndex, int length) {
+        checkLineIndex(lineIndex);
+        int blockIndex = findBlock(LINES, lineIndex);
+        Block block = blocks.get(blockIndex);
+        int delta = length - block.lengths[foundRemainder];
+        block.lengths[foundRemainder] = length;
+        block.widths[foundRemainder] = INVALID_WIDTH;
+        block.rowCountsExact[foundRemainder] = false;
+        block.totalLength += delta;
+        add(CHARS, blockIndex, delta);
+    }
+    
+    /**
+     * Returns the rendered width of the given line, or -1 if it's not known.
+     */
+    public int getWidth(int lineIndex) {
+        checkLineIndex(lineIndex);
+        Block block = blocks.get(findBlock(LINES, lineIndex));
+        return block.widths[foundRemainder];
+    }
+    
+    public void setWidth(int lineIndex, int width) {
+        checkLineIndex(lineIndex);
+        Block block = blocks.get(findBlock(LINES, lineIndex));
+        block.widths[foundRemainder] = width;
+    }
+    
+    public void invalidateWidths() {
+        for (Block block : blocks) {
+            Arrays.fill(block.widths, 0, block.size, INVALID_WIDTH);
+        }
+    }
+    
+    /**
+     * Returns the total number of rows the lines are wrapped into.
+     */
+    public int getRowCount() {
+        ensureTreesValid();
+        return prefixSum(trees[ROWS], blocks.size());
+    }
+    
+    /**
+     * Returns the number of rows the given line is wrapped into, which may be an estimate.
+     */
+    public int getRowCount(int lineIndex) {
+        checkLineIndex(lineIndex);
+        Block block = blocks.get(findBlock(LINES, lineIndex));
+        return block.rowCounts[foundRemainder];
+    }
+    
+    /**
+     * Tests whether the given line's row count was set by setRowCount since its text last changed, rather than estimated.
+     */
+    public boolean isRowCountExact(int lineIndex) {
+        checkLineIndex(lineIndex);
+        Block block = blocks.get(findBlock(LINES, lineIndex));
+        return block.rowCountsExact[foundRemainder];
+    }
+    
+    /**
+     * Sets the number of rows the given line is wrapped into, which must be at least 1.
+     */
+    public void setRowCount(int lineIndex, int rowCount) {
+        checkLineIndex(lineIndex);
+        int blockIndex = findBlock(LINES, lineIndex);
+        Block block = blocks.get(blockIndex);
+        int delta = rowCount - block.rowCounts[foundRemainder];
+        block.rowCounts[foundRemainder] = rowCount;
+        block.rowCountsExact[foundRemainder] = true;
+        block.totalRowCount += delta;
+        add(ROWS, blockIndex, delta);
+    }
+    
+    /**
+     * Returns the index of the first row of the given line.
+     */
+    public int getFirstRow(int lineIndex) {
+        checkLineIndex(lineIndex);
+        int blockIndex = findBlock(LINES, lineIndex);
+        int position = foundRemainder;
+        int row = prefixSum(trees[ROWS], blockIndex);
+        int[] rowCounts = blocks.get(blockIndex).rowCounts;
+        for (int i = 0; i < position; ++i) {
+            row += rowCounts[i];
+        }
+        return row;
+    }
+    
+    /**
+     * Returns the index of the line containing the given row.
+     * Rows at or beyond the end belong to the last line.
+     */
+    public int getLineIndexOfRow(int row) {
+        int blockIndex = findBlock(ROWS, row);
+        int remainder = foundRemainder;
+        Block block = blocks.get(blockIndex);
+        int position = 0;
+        while (position < block.size - 1 && remainder >= block.rowCounts[position]) {
+            remainder -= block.rowCounts[position];
+            ++position;
+        }
+        return prefixSum(trees[LINES], blockIndex) + position;
+    }
+    
+    /**
+     * Replaces every line's row count with an estimate for text wrapped at
+     * 'newWrapWidth' pixels. A line whose width we know is exactly one row
+     * if it fits, and otherwise takes as many rows as its width needs. For a
+     * line whose width we don't know, we assume every character is
+     * 'newAverageCharWidth' pixels wide. This costs time proportional to the
+     * number of lines, but doesn't look at the text.
+     */
+    public void estimateRowCounts(int newWrapWidth, int newAverageCharWidth) {
+        this.wrapWidth = newWrapWidth;
+        this.averageCharWidth = newAverageCharWidth;
+        for (Block block : blocks) {
+            block.totalRowCount = 0;
+            for (int i = 0; i < block.size; ++i) {
+                block.rowCounts[i] = estimateRowCount(block.lengths[i], block.widths[i]);
+                block.rowCountsExact[i] = (block.widths[i] != INVALID_WIDTH && block.widths[i] <= wrapWidth);
+                block.totalRowCount += block.rowCounts[i];
+            }
+        }
+        treesValid = false;
+    }
+    
+    private int estimateRowCount(int length, int width) {
+        long estimatedWidth = (width != INVALID_WIDTH) ? width : (long) length * averageCharWidth;
+        return (int) Math.max(1, (estimatedWidth + wrapWidth - 1) / wrapWidth);
+    }
+    
+    /**
+     * Returns the index of the line containing the character at 'charIndex'.
+     * Offsets at or beyond the end of the document belong to the last line.
+     */
+    public int getLineIndex(int charIndex) {
+        int blockIndex = findBlock(CHARS, charIndex);
+        int remainder = foundRemainder;
+        Block block = blocks.get(blockIndex);
+        int position = 0;
+        while (position < block.size - 1 && remainder >= block.lengths[position]) {
+            remainder -= block.lengths[position];
+            ++position;
+        }
+        return prefixSum(trees[LINES], blockIndex) + position;
+    }
+    
+    /**
+     * Inserts new lines with the given lengths before the line currently at
+     * 'lineIndex'. Passing size() appends them to the end.
+     */
+    public void insertLines(int lineIndex, int[] newLengths) {
+        if (lineIndex < 0 || lineIndex > lineCount) {
+            throw new IndexOutOfBoundsException("Line " + lineIndex + " out of bounds in document of " + lineCount + " lines");
+        }
+        final int count = newLengths.length;
+        if (count == 0) {
+            return;
+        }
+        int blockIndex = findBlock(LINES, lineIndex);
+        int position = foundRemainder;
+        Block block = blocks.get(blockIndex);
+        int addedLength = 0;
+        int[] newRowCounts = new int[count];
+        int addedRowCount = 0;
+        for (int i = 0; i < count; ++i) {
+            addedLength += newLengths[i];
+            newRowCounts[i] = estimateRowCount(newLengths[i], INVALID_WIDTH);
+            addedRowCount += newRowCounts[i];
+        }
+        
+        if (block.size + count <= MAX_BLOCK_SIZE) {
+            // The common case: there's room in the existing block.
+            block.makeRoom(position, count);
+            System.arraycopy(newLengths, 0, block.lengths, position, count);
+            Arrays.fill(block.widths, position, position + count, INVALID_WIDTH);
+            System.arraycopy(newRowCounts, 0, block.rowCounts, position, count);
+            Arrays.fill(block.rowCountsExact, position, position + count, false);
+            block.totalLength += addedLength;
+            block.totalRowCount += addedRowCount;
+            lineCount += count;
+            add(CHARS, blockIndex, addedLength);
+            add(LINES, blockIndex, count);
+            add(ROWS, blockIndex, addedRowCount);
+            return;
+        }
+        
+        // Redistribute the old block's lines and the new ones into as many part-full blocks as necessary.
+        Block all = new Block(block.size + count);
+        System.arraycopy(block.lengths, 0, all.lengths, 0, block.size);
+        System.arraycopy(block.widths, 0, all.widths, 0, block.size);
+        System.arraycopy(block.rowCounts, 0, all.rowCounts, 0, block.size);
+        System.arraycopy(block.rowCountsExact, 0, all.rowCountsExact, 0, block.size);
+        all.size = block.size;
+        all.makeRoom(position, count);
+        System.arraycopy(newLengths, 0, all.lengths, position, count);
+        Arrays.fill(all.widths, position, position + count, INVALID_WIDTH);
+        System.arraycopy(newRowCounts, 0, all.rowCounts, position, count);
+        Arrays.fill(all.rowCountsExact, position, position + count, false);
+        ArrayList<Block> newBlocks = new ArrayList<Block>();
+        for (int start = 0; start < all.size; start += NEW_BLOCK_SIZE) {
+            Block newBlock = new Block(MAX_BLOCK_SIZE);
+            newBlock.size = Math.min(NEW_BLOCK_SIZE, all.size - start);
+            System.arraycopy(all.lengths, start, newBlock.lengths, 0, newBlock.size);
+            System.arraycopy(all.widths, start, newBlock.widths, 0, newBlock.size);
+            System.arraycopy(all.rowCounts, start, newBlock.rowCounts, 0, newBlock.size);
+            System.arraycopy(all.rowCountsExact, start, newBlock.rowCountsExact, 0, newBlock.size);
+            for (int i = 0; i < newBlock.size; ++i) {
+                newBlock.totalLength += newBlock.lengths[i];
+                newBlock.totalRowCount += newBlock.rowCounts[i];
+            }
+            newBlocks.add(newBlock);
+        }
+        blocks.remove(blockIndex);
+        blocks.addAll(blockIndex, newBlocks);
+        lineCount += count;
+        treesValid = false;
+    }
+    
+    /**
+     * Removes 'count' lines starting with the line at 'lineIndex'. At least one line must remain.
+     */
+    public void removeLines(int lineIndex, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (lineIndex < 0 || lineIndex + count > lineCount || count >= lineCount) {
+            throw new IndexOutOfBoundsException("Can't remove " + count + " lines at " + lineIndex + " from document of " + lineCount + " lines");
+        }
+        int blockIndex = findBlock(LINES, lineIndex);
+        int position = foundRemainder;
+        lineCount -= count;
+        
+        // Remove the tail of the first block.
+        Block block = blocks.get(blockIndex);
+        int removedFromFirst = Math.min(count, block.size - position);
+        int oldRowCount = block.totalRowCount;
+        int removedLength = block.remove(position, removedFromFirst);
+        count -= removedFromFirst;
+        if (count == 0 && block.size > 0) {
+            // The common case: we didn't need to touch any other block.
+            add(CHARS, blockIndex, -removedLength);
+            add(LINES, blockIndex, -removedFromFirst);
+            add(ROWS, blockIndex, block.totalRowCount - oldRowCount);
+            return;
+        }
+        
+        // Remove any whole blocks, including the first block if we emptied it, in one go.
+        int firstWholeBlock = (block.size == 0) ? blockIndex : blockIndex + 1;
+        int end = blockIndex + 1;
+        while (count > 0 && blocks.get(end).size <= count) {
+            count -= blocks.get(end).size;
+            ++end;
+        }
+        blocks.subList(firstWholeBlock, end).clear();
+        // Remove the head of the last block.
+        if (count > 0) {
+            blocks.get(firstWholeBlock).remove(0, count);
+        }
+        treesValid = false;
+    }
+    
+    private void checkLineIndex(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= lineCount) {
+            throw new IndexOutOfBoundsException("Line " + lineIndex + " out of bounds in document of " + lineCount + " lines");
+        }
+    }
+    
+    /**
+     * Returns the index of the block containing the item (character, line,
+     * or row, according to 'kind') with index 'value', and sets foundRemainder to the item's offset within that
+     * block. Values beyond the end are found at the end of the last block.
+     */
+    private int findBlock(int kind, int value) {
+        ensureTreesValid();
+        int[] tree = trees[kind];
+        final int blockCount = blocks.size();
+        int blockIndex = 0;
+        for (int step = Integer.highestOneBit(blockCount); step > 0; step >>= 1) {
+            int next = blockIndex + step;
+            if (next <= blockCount && tree[next] <= value) {
+                blockIndex = next;
+                value -= tree[next];
+            }
+        }
+        if (blockIndex == blockCount) {
+            // We're past the end, so back up into the last block.
+            --blockIndex;
+            value += prefixSum(tree, blockCount) - prefixSum(tree, blockIndex);
+        }
+        foundRemainder = value;
+        return blockIndex;
+    }
+    
+    /**
+     * Returns the sum of the values in 'tree' for all the blocks before 'blockIndex'.
+     */
+    private static int prefixSum(int[] tree, int blockIndex) {
+        int sum = 0;
+        for (int i = blockIndex; i > 0; i -= (i & -i)) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+    
+    private void add(int kind, int blockIndex, int delta) {
+        if (treesValid == false) {
+            // The whole tree will be rebuilt before it's next used.
+            return;
+        }
+        int[] tree = trees[kind];
+        for (int i = blockIndex + 1; i < tree.length; i += (i & -i)) {
+            tree[i] += delta;
+        }
+    }
+    
+    private void ensureTreesValid() {
+        if (treesValid) {
+            return;
+        }
+        final int blockCount = blocks.size();
+        int[] charTree = new int[blockCount + 1];
+        int[] lineTree = new int[blockCount + 1];
+        int[] rowTree = new int[blockCount + 1];
+        for (int i = 1; i <= blockCount; ++i) {
+            Block block = blocks.get(i - 1);
+            charTree[i] += block.totalLength;
+            lineTree[i] += block.size;
+            rowTree[i] += block.totalRowCount;
+            int parent = i + (i & -i);
+            if (parent <= blockCount) {
+                charTree[parent] += charTree[i];
+                lineTree[parent] += lineTree[i];
+                rowTree[parent] += rowTree[i];
+            }
+        }
+        trees[CHARS] = charTree;
+        trees[LINES] = lineTree;
+        trees[ROWS] = rowTree;
+        treesValid = true;
+    }
+    
+    private static class Block {
+        private final int[] lengths;
+        private final int[] widths;
+        private final int[] rowCounts;
+        private final boolean[] rowCountsExact;
+        private int size;
+        private int totalLength;
+        private int totalRowCount;
+        
+        private Block(int capacity) {
+            lengths = new int[capacity];
+            widths = new int[capacity];
+            rowCounts = new int[capacity];
+            rowCountsExact = new boolean[capacity];
+        }
+        
+        /**
+         * Moves the lines from 'position' on along by 'count', leaving the gap for the caller to fill in.
+         */
+        private void makeRoom(int position, int count) {
+            System.arraycopy(lengths, position, lengths, position + count, size - position);
+            System.arraycopy(widths, position, widths, position + count, size - position);
+            System.arraycopy(rowCounts, position, rowCounts, position + count, size - position);
+            System.arraycopy(rowCountsExact, position, rowCountsExact, position + count, size - position);
+            size += count;
+        }
+        
+        /**
+         * Removes 'count' lines starting at 'position', and returns their total length.
+         */
+        private int remove(int position, int count) {
+            int removedLength = 0;
+            int removedRowCount = 0;
+            for (int i = position; i < position + count; ++i) {
+                removedLength += lengths[i];
+                removedRowCount += rowCounts[i];
+            }
+            System.arraycopy(lengths, position + count, lengths, position, size - position - count);
+            System.arraycopy(widths, position + count, widths, position, size - position - count);
+            System.arraycopy(rowCounts, position + count, rowCounts, position, size - position - count);
+            System.arraycopy(rowCountsExact, position + count, rowCountsExact, position, size - position - count);
+            size -= count;
+            totalLength -= removedLength;
+            totalRowCount -= removedRowCount;
+            return removedLength;
+        }
+    }
+}
@@ -14,8 +14,7 @@ import e.util.*;
 
 public class PLineList implements PTextListener {
     private PTextBuffer text;
-    private ArrayList<Line> lines;
-    private int lastValidLineIndex;
+    private PLineIndex lines;
     private ArrayList<PLineListener> listeners = new ArrayList<PLineListener>();
     
     public PLineList(PTextBuffer text) {
@@ -27,7 +26,7 @@ public class PLineList implements PTextListener {
     public void logLineInfo() {
         Log.warn("Dumping PLineList line info:");
         for (int i = 0; i < lines.size(); i++) {
-            Line line = lines.get(i);
+            Line line = getLine(i);
             Log.warn(i + ": start " + line.getStart() + ", length " + line.getLength() + ", end " + (line.getStart() + line.getLength()) + ", width " + line.getWidth());
         }
     }
@@ -52,9 +51,7 @@ public class PLineList implements PTextListener {
      * contained in the coordinates argument.
      */
     public int getIndex(PCoordinates coords) {
-        validateStartPositions(coords.getLineIndex());
-        Line line = getLine(coords.getLineIndex());
-        return line.getStart() + coords.getCharOffset();
+        return lines.getLineStart(coords.getLineIndex()) + coords.getCharOffset();
     }
     
     /**
@@ -65,9 +62,8 @@ public class PLineList implements PTextListener {
         if (index < 0 || index >= text.length()) {
             throw new IndexOutOfBoundsException("Index " + index + " out of bounds in text of length " + text.length());
         }
-        validateStartPositions(lines.size());
         int line = getLineIndex(index);
-        int charOffset = index - getLine(line).getStart();
+        int charOffset = index - lines.getLineStart(line);
         return new PCoordinates(line, charOffset);
     }
     
@@ -76,21 +72,7 @@ public class PLineList implements PTextListener {
      * within the underlying PTextBuffer model.
      */
     public int getLineIndex(int charIndex) {
-        int minLine = 0;
-        int maxLine = lines.size();
-        while (maxLine - minLine > 1) {
-            int midLine = (maxLine + minLine) / 2;
-            Line mid = getLine(midLine);
-            if (mid.containsIndex(charIndex)) {
-                return midLine;
-            }
-            if (charIndex < mid.getStart()) {
-                maxLine = midLine;
-            } else {
-                minLine = midLine;
-            }
-        }
-        return minLine;
+        return lines.getLineIndex(charIndex);
     }
     
     /**
@@ -100,10 +82,12 @@ public class PLineList implements PTextListener {
         return lines.size();
     }
     
-    /** Returns an object representing information about the line with the given index. */
+    /**
+     * Returns an object representing information about the line with the given index.
+     * The Line is only valid until the text is next modified.
+     */
     public Line getLine(int lineIndex) {
-        validateStartPositions(lineIndex);
-        return lines.get(lineIndex);
+        return new Line(lineIndex, lines.getLineStart(lineIndex), lines.getLineLength(lineIndex));
     }
     
     private void fireEvent(PLineEvent event) {
@@ -124,32 +108,28 @@ public class PLineList implements PTextListener {
             }
         }
     }
-
+    
     /** Handles text insertion notifications from the underlying PTextBuffer model. */
     public void textInserted(PTextEvent event) {
         int lineIndex = getLineIndex(event.getOffset());
-        int startIndex = lineIndex;
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
+        int lineLength = lines.getLineLength(lineIndex);
         if (newlineCount > 0) {
             int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            int endChars = line.getLength() - charOffset;  // The characters after the insert position.
-            line.setLength(charOffset + segmentLengths[0]);
-            for (int i = 1; i < segmentLengths.length; i++) {
-                lineIndex++;
-                line = new Line(line.getStart() + line.getLength(), segmentLengths[i]);
-                lines.add(lineIndex, line);
-            }
-            line.setLength(line.getLength() + endChars);
+            int charOffset = event.getOffset() - lines.getLineStart(lineIndex);
+            int endChars = lineLength - charOffset;  // The characters after the insert position.
+            lines.setLineLength(lineIndex, charOffset + segmentLengths[0]);
+            int[] newLineLengths = new int[newlineCount];
+            System.arraycopy(segmentLengths, 1, newLineLengths, 0, newlineCount);
+            newLineLengths[newlineCount - 1] += endChars;
+            lines.insertLines(lineIndex + 1, newLineLengths);
         } else {
-            line.setLength(line.getLength() + chars.length());
+            lines.setLineLength(lineIndex, lineLength + chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
-        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, startIndex, 1));
+        fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
-            fireEvent(new PLineEvent(this, PLineEvent.ADDED, startIndex + 1, newlineCount));
+            fireEvent(new PLineEvent(this, PLineEvent.ADDED, lineIndex + 1, newlineCount));
         }
     }
     
@@ -158,20 +138,15 @@ public class PLineList implements PTextListener {
         int lineIndex = getLineIndex(event.getOffset());
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
             int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            for (int i = 2; i < segmentLengths.length; i++) {
-                lines.remove(lineIndex + 1);
-            }
-            int endChars = getLine(lineIndex + 1).getLength() - segmentLengths[segmentLengths.length - 1];
-            lines.remove(lineIndex + 1);
-            line.setLength(charOffset + endChars);
+            int charOffset = event.getOffset() - lines.getLineStart(lineIndex);
+            int endChars = lines.getLineLength(lineIndex + newlineCount) - segmentLengths[segmentLengths.length - 1];
+            lines.removeLines(lineIndex + 1, newlineCount);
+            lines.setLineLength(lineIndex, charOffset + endChars);
         } else {
-            line.setLength(line.getLength() - chars.length());
+            lines.setLineLength(lineIndex, lines.getLineLength(lineIndex) - chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
         fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
             fireEvent(new PLineEvent(this, PLineEvent.REMOVED, lineIndex + 1, newlineCount));
@@ -196,75 +171,109 @@ public class PLineList implements PTextListener {
         fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, lines.size()));
     }
     
-    private void linesAreInvalidAfter(int lineIndex) {
-        lastValidLineIndex = Math.min(lastValidLineIndex, lineIndex);
-    }
-    
-    private void validateStartPositions(int toLineIndex) {
-        if (toLineIndex > lastValidLineIndex) {
-            for (int i = lastValidLineIndex; i < toLineIndex; i++) {
-                // We must get the lines straight out of the ArrayList, and must not call getLine,
-                // since that in turn would call this method, resulting in an infinite recursion.
-                Line prevLine = lines.get(i);
-                Line thisLine = lines.get(i + 1);
-                thisLine.setStart(prevLine.getStart() + prevLine.getLength());
-            }
-            lastValidLineIndex = toLineIndex;
-        }
-    }
-    
     private void generateLines() {
-        lines = new ArrayList<Line>();
+        // Reading a large file may have found the lines for us already.
+        PLineIndex precomputedLines = text.takePrecomputedLineIndex();
+        if (precomputedLines != null) {
+            lines = precomputedLines;
+            return;
+        }
+        lines = new PLineIndex();
         int start = 0;
-        for (int i = 0; i < text.length(); i++) {
-            if (text.charAt(i) == '\n') {
-                lines.add(new Line(start, i + 1 - start));  // The +1 is because newlines stick to previous.
-                start = i + 1;
+        // Copying a chunk at a time is much cheaper than calling charAt for every character of a large file.
+        final int textLength = text.length();
+        char[] chunk = new char[Math.min(textLength, 64 * 1024)];
+        for (int chunkStart = 0; chunkStart < textLength; chunkStart += chunk.length) {
+            final int chunkEnd = Math.min(textLength, chunkStart + chunk.length);
+            text.getChars(chunkStart, chunkEnd, chunk, 0);
+            for (int i = chunkStart; i < chunkEnd; ++i) {
+                if (chunk[i - chunkStart] == '\n') {
+                    lines.append(i + 1 - start);  // The +1 is because newlines stick to previous.
+                    start = i + 1;
+                }
             }
         }
-        lines.add(new Line(start, text.length() - start));
-        lastValidLineIndex = lines.size() - 1;
+        lines.append(textLength - start);
     }
     
     public void invalidateWidths() {
-        for (int i = 0; i < lines.size(); ++i) {
-            lines.get(i).setWidthInvalid();
-        }
+        lines.invalidateWidths();
+    }
+    
+    /** Returns the number of rows the lines are wrapped into.  To be used only by the PTextArea. */
+    public int getRowCount() {
+        return lines.getRowCount();
+    }
+    
+    /** Returns the index of the first row of the given line.  To be used only by the PTextArea. */
+    public int getFirstRowOfLine(int lineIndex) {
+        return lines.getFirstRow(lineIndex);
+    }
+    
+    /** Returns the index of the line containing the given row.  To be used only by the PTextArea. */
+    public int getLineIndexOfRow(int row) {
+        return lines.getLineIndexOfRow(row);
+    }
+    
+    /**
+     * Estimates every line's row count for text wrapped at 'wrapWidth'
+     * pixels, assuming characters whose widths we don't know are
+     * 'averageCharWidth' pixels wide.  To be used only by the PTextArea.
+     */
+    public void estimateRowCounts(int wrapWidth, int averageCharWidth) {
+        lines.estimateRowCounts(wrapWidth, averageCharWidth);
     }
     
     /**
      * A PLineList.Line holds information about the location and length of a particular line of
-     * text.  It also contains information about how wide this line is when its text is rendered.
+     * text.  It also gives access to how wide this line is when its text is rendered.
+     * The line lengths and widths themselves are kept in a PLineIndex, so that a document of
+     * millions of lines doesn't need millions of objects; a Line is just a short-lived view.
      */
     public class Line {
-        private int start;
-        private int length;
-        private int width;
+        private final int lineIndex;
+        private final int start;
+        private final int length;
         
-        public Line(int start, int length) {
+        private Line(int lineIndex, int start, int length) {
+            this.lineIndex = lineIndex;
             this.start = start;
             this.length = length;
-            setWidthInvalid();
         }
         
         /** Specifies that the render width of the text is now invalid.  To be used only by PTextArea. */
         public void setWidthInvalid() {
-            width = -1;
+            lines.setWidth(lineIndex, -1);
         }
         
         /** Sets the render width of the text.  To be used only by the PTextArea. */
         public void setWidth(int width) {
-            this.width = width;
+            lines.setWidth(lineIndex, width);
         }
         
         /** Returns whether the render width is valid.  To be used only by the PTextArea. */
         public boolean isWidthValid() {
-            return (width != -1);
+            return (getWidth() != -1);
         }
         
         /** Returns the render width of the text.  To be used only by the PTextArea. */
         public int getWidth() {
-            return width;
+            return lines.getWidth(lineIndex);
+        }
+        
+        /** Returns the number of rows this line is wrapped into, which may be an estimate.  To be used only by the PTextArea. */
+        public int getRowCount() {
+            return lines.getRowCount(lineIndex);
+        }
+        
+        /** Returns whether the row count has been set since the text last changed, rather than estimated.  To be used only by the PTextArea. */
+        public boolean isRowCountExact() {
+            return lines.isRowCountExact(lineIndex);
+        }
+        
+        /** Sets the number of rows this line is wrapped into.  To be used only by the PTextArea. */
+        public void setRowCount(int rowCount) {
+            lines.setRowCount(lineIndex, rowCount);
         }
         
         /** Returns the character offset within the underlying PTextBuffer model of the start of this line. */
@@ -277,15 +286,6 @@ public class PLineList implements PTextListener {
             return length;
         }
         
-        private void setStart(int start) {
-            this.start = start;
-        }
-        
-        private void setLength(int length) {
-            this.length = length;
-            setWidthInvalid();
-        }
-        
         public int getLengthBeforeTerminator() {
             return isLineTerminated() ? length - 1 : length;
         }
@@ -1,6 +1,8 @@
 package e.ptextarea;
 
+import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import e.util.*;
 
 /**
@@ -25,122 +27,410 @@ import e.util.*;
  *         area.getLock().relinquishReadLock();
  *     }
  * }
- *
+ * 
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
- *
+ * 
+ * Each thread's counts are kept in a ThreadLocal, so nested locking never
+ * touches shared state, and an uncontended outermost lock costs a couple of
+ * atomic operations. The monitor is only used to sleep when a lock isn't
+ * available, and releasing a lock only wakes sleepers if there are any.
+ * Nothing is allocated on either path once a thread has used a lock.
+ * 
+ * Every PLock contributes to statistics about how long locks are held and
+ * waited for, and by which threads. See getStatisticsReport.
+ * 
  * @author Phil Norman
  */
 
 public class PLock {
-    private Map<Thread, Integer> readLocks = new HashMap<Thread, Integer>();
-    private Thread writeLock = null;
-    private int writeLockCount = 0;
+    private static final int READ = 0;
+    private static final int WRITE = 1;
     
-    public synchronized void getReadLock() {
-        Thread currentThread = Thread.currentThread();
-        long startTimeMillis = System.currentTimeMillis();
-        boolean gotStuck = false;
-        while (canClaimReadLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get read lock.", ex);
-            }
+    // The number of threads holding at least one read lock.
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private final AtomicReference<Thread> writer = new AtomicReference<Thread>();
+    // The number of threads sleeping on our monitor, how many of those want read locks, and how many want to upgrade a read lock to the write lock. Only modified while synchronized.
+    private volatile int waiterCount = 0;
+    private volatile int waitingReaderCount = 0;
+    private volatile int waitingUpgraderCount = 0;
+    
+    private final ThreadLocal<Holds> holds = new ThreadLocal<Holds>() {
+        @Override
+        protected Holds initialValue() {
+            return new Holds();
         }
-        report(gotStuck, startTimeMillis, "read");
-        if (readLocks.containsKey(currentThread)) {
-            readLocks.put(currentThread, 1 + readLocks.get(currentThread));
-        } else {
-            readLocks.put(currentThread, 1);
+    };
+    
+    public void getReadLock() {
+        Holds myHolds = holds.get();
+        if (myHolds.readCount == 0) {
+            Thread currentThread = Thread.currentThread();
+            if (tryClaimReadLock(currentThread) == false) {
+                waitFor(READ, currentThread, myHolds);
+            }
+            myHolds.readStartNs = System.nanoTime();
         }
+        ++myHolds.readCount;
     }
     
-    private boolean canClaimReadLock(Thread currentThread) {
-        return ((writeLock == null) || (writeLock == currentThread));
+    private boolean tryClaimReadLock(Thread currentThread) {
+        Thread currentWriter = writer.get();
+        if (currentWriter != null && currentWriter != currentThread) {
+            return false;
+        }
+        readerCount.incrementAndGet();
+        // A writer may have checked the reader count before our increment, so check again.
+        currentWriter = writer.get();
+        if (currentWriter == null || currentWriter == currentThread) {
+            return true;
+        }
+        readerCount.decrementAndGet();
+        wakeWaiters();
+        return false;
     }
     
-    public synchronized void relinquishReadLock() {
-        Thread currentThread = Thread.currentThread();
-        if (readLocks.containsKey(currentThread) == false) {
-            throw new RuntimeException("Cannot relinquish read lock on thread " + currentThread + " because it does not hold a lock.");
+    public void relinquishReadLock() {
+        Holds myHolds = holds.get();
+        if (myHolds.readCount == 0) {
+            throw new RuntimeException("Cannot relinquish read lock on thread " + Thread.currentThread() + " because it does not hold a lock.");
         }
-        int newLockCount = readLocks.get(currentThread) - 1;
-        if (newLockCount == 0) {
-            readLocks.remove(currentThread);
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
-        } else {
-            readLocks.put(currentThread, newLockCount);
+        --myHolds.readCount;
+        if (myHolds.readCount == 0) {
+            myHolds.statistics.recordHold(READ, System.nanoTime() - myHolds.readStartNs);
+            readerCount.decrementAndGet();
+            // While we still hold the write lock, nobody else can get a lock, so there's no point waking them.
+            // Something like re-indenting a file takes and drops read locks thousands of times while holding the write lock.
+            if (myHolds.writeCount == 0) {
+                wakeWaiters();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+            }
         }
     }
     
-    public synchronized void getWriteLock() {
-        //Log.warn("getWriteLock() in thread " + Thread.currentThread());
-        //dumpLocks();
-        Thread currentThread = Thread.currentThread();
-        long startTimeMillis = System.currentTimeMillis();
-        boolean gotStuck = false;
-        while (canClaimWriteLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get write lock.", ex);
+    public void getWriteLock() {
+        Holds myHolds = holds.get();
+        if (myHolds.writeCount == 0) {
+            Thread currentThread = Thread.currentThread();
+            if (tryClaimWriteLock(currentThread, myHolds, false) == false) {
+                waitFor(WRITE, currentThread, myHolds);
             }
+            myHolds.writeStartNs = System.nanoTime();
         }
-        report(gotStuck, startTimeMillis, "write");
-        writeLock = currentThread;
-        writeLockCount++;
+        ++myHolds.writeCount;
     }
     
-    private boolean canClaimWriteLock(Thread currentThread) {
-        if (writeLock == currentThread) {
-            return true;
-        } else if (writeLock != null) {
+    /**
+     * Tries to claim the write lock. 'isWaiting' says whether we're called
+     * from waitFor, and so are already counted among the waiters.
+     */
+    private boolean tryClaimWriteLock(Thread currentThread, Holds myHolds, boolean isWaiting) {
+        if (writer.compareAndSet(null, currentThread) == false) {
             return false;
-        } else if (readLocks.size() == 0) {
+        }
+        // Readers back off when they see a writer, so once we've claimed the
+        // write lock, the reader count can only go down. If it isn't already
+        // low enough, give the lock back rather than blocking new readers
+        // while we wait: rule 3 lets readers in whenever there's no writer.
+        int permittedReaderCount = (myHolds.readCount > 0) ? 1 : 0;
+        if (readerCount.get() == permittedReaderCount) {
             return true;
-        } else if (readLocks.size() > 1) {
-            return false;
+        }
+        writer.set(null);
+        // Anyone turned away by our brief claim needs another go, including
+        // a reader waiting to upgrade, who may be the one reader we saw.
+        // Once we're waiting ourselves, though, waking writers that can't
+        // upgrade would just have them fail in the same way and wake us, over
+        // and over for as long as the readers hold on. They're woken when a
+        // reader leaves instead.
+        if (isWaiting == false) {
+            wakeWaiters();
         } else {
-            return readLocks.containsKey(currentThread);
+            int otherWaitingUpgraderCount = waitingUpgraderCount - ((myHolds.readCount > 0) ? 1 : 0);
+            if (waitingReaderCount > 0 || otherWaitingUpgraderCount > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
         }
+        return false;
     }
     
-    public synchronized void relinquishWriteLock() {
-        //Log.warn("relinquishWriteLock() in thread " + Thread.currentThread());
+    public void relinquishWriteLock() {
+        Holds myHolds = holds.get();
         Thread currentThread = Thread.currentThread();
-        if (writeLock != currentThread) {
+        if (writer.get() != currentThread) {
             throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
         }
-        if (writeLockCount <= 0) {
-            throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + writeLockCount);
+        if (myHolds.writeCount <= 0) {
+            throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + myHolds.writeCount);
         }
-        writeLockCount--;
-        if (writeLockCount == 0) {
-            writeLock = null;
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+        --myHolds.writeCount;
+        if (myHolds.writeCount == 0) {
+            myHolds.statistics.recordHold(WRITE, System.nanoTime() - myHolds.writeStartNs);
+            writer.set(null);
+            wakeWaiters();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
         }
     }
     
-    private void report(boolean gotStuck, long startTimeMillis, String type) {
-        if (gotStuck == false) {
-            return;
+    /**
+     * Sleeps until we manage to claim the given type of lock.
+     */
+    private void waitFor(int type, Thread currentThread, Holds myHolds) {
+        long startNs = System.nanoTime();
+        synchronized (this) {
+            // Anyone who changes the lock state after this increment will see it, and notify us.
+            ++waiterCount;
+            final boolean isUpgrade = (type == WRITE && myHolds.readCount > 0);
+            if (type == READ) {
+                ++waitingReaderCount;
+            } else if (isUpgrade) {
+                ++waitingUpgraderCount;
+            }
+            try {
+                while ((type == READ) ? (tryClaimReadLock(currentThread) == false) : (tryClaimWriteLock(currentThread, myHolds, true) == false)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Log.warn("Interrupted while attempting to get " + ((type == READ) ? "read" : "write") + " lock.", ex);
+                    }
+                }
+            } finally {
+                --waiterCount;
+                if (type == READ) {
+                    --waitingReaderCount;
+                } else if (isUpgrade) {
+                    --waitingUpgraderCount;
+                }
+            }
         }
-        long durationMillis = System.currentTimeMillis() - startTimeMillis;
-        if (durationMillis < 10) {
-            return;
+        myHolds.statistics.recordWait(type, System.nanoTime() - startNs);
+    }
+    
+    private void wakeWaiters() {
+        if (waiterCount > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
         }
-        Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + durationMillis + "ms.");
     }
     
-    private synchronized void dumpLocks() {
-        Log.warn("PLock dump...");
-        Log.warn("Write lock on " + writeLock + " (count=" + writeLockCount + ")");
-        Log.warn(readLocks.size() + " read locks:");
-        for (Thread thread : readLocks.keySet()) {
-            Log.warn("  on " + thread + " (count=" + readLocks.get(thread) + ")");
-        }
-        Log.warn("End of PLock dump.");
+    /**
+     * Returns a human-readable summary of how long all threads have held and
+     * waited for all PLocks, including a histogram of wait times and the
+     * threads that have spent longest waiting.
+     */
+    public static String getStatisticsReport() {
+        return Statistics.getReport();
+    }
+    
+    /**
+     * Discards all the statistics collected so far.
+     */
+    public static void resetStatistics() {
+        Statistics.resetAll();
+    }
+    
+    /**
+     * One thread's holds on one PLock.
+     */
+    private static class Holds {
+        private int readCount;
+        private int writeCount;
+        private long readStartNs;
+        private long writeStartNs;
+        private final Statistics statistics = Statistics.forCurrentThread();
+    }
+    
+    /**
+     * One thread's statistics for all PLocks. Only the owning thread writes
+     * to a Statistics, so it needs no synchronization; reports may be very
+     * slightly out of date.
+     */
+    private static class Statistics {
+        private static final String[] TYPE_NAMES = new String[] { "Read", "Write" };
+        private static final long[] HISTOGRAM_LIMITS_NS = new long[] { 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, Long.MAX_VALUE };
+        private static final String[] HISTOGRAM_LABELS = new String[] { "< 100us", "< 1ms", "< 10ms", "< 100ms", "< 1s", ">= 1s" };
+        private static final int MAX_CONTENDERS_REPORTED = 10;
+        // Thread names are often unique (pools number their threads), so only this many dead threads' names are remembered.
+        private static final int MAX_RETIRED_THREAD_NAMES = 100;
+        private static final String OTHER_RETIRED_THREADS_NAME = "(other threads that have died)";
+        
+        private static final ArrayList<Statistics> liveStatistics = new ArrayList<Statistics>();
+        // Statistics for threads that have died, merged by name, and then into OTHER_RETIRED_THREADS_NAME once there are too many names.
+        private static final Map<String, Statistics> retiredStatistics = new HashMap<String, Statistics>();
+        private static final ThreadLocal<Statistics> threadStatistics = new ThreadLocal<Statistics>() {
+            @Override
+            protected Statistics initialValue() {
+                Statistics result = new Statistics(Thread.currentThread());
+                synchronized (liveStatistics) {
+                    retireDeadThreads();
+                    liveStatistics.add(result);
+                }
+                return result;
+            }
+        };
+        
+        private final WeakReference<Thread> thread;
+        private String threadName;
+        
+        private final long[] holdCount = new long[2];
+        private final long[] totalHoldNs = new long[2];
+        private final long[] maxHoldNs = new long[2];
+        private final long[] waitCount = new long[2];
+        private final long[] totalWaitNs = new long[2];
+        private final long[] maxWaitNs = new long[2];
+        private final long[] waitHistogram = new long[HISTOGRAM_LIMITS_NS.length];
+        
+        private Statistics(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+            this.threadName = (thread != null) ? thread.getName() : null;
+        }
+        
+        private static Statistics forCurrentThread() {
+            return threadStatistics.get();
+        }
+        
+        private void recordHold(int type, long durationNs) {
+            ++holdCount[type];
+            totalHoldNs[type] += durationNs;
+            maxHoldNs[type] = Math.max(maxHoldNs[type], durationNs);
+        }
+        
+        private void recordWait(int type, long durationNs) {
+            ++waitCount[type];
+            totalWaitNs[type] += durationNs;
+            maxWaitNs[type] = Math.max(maxWaitNs[type], durationNs);
+            int bucket = 0;
+            while (durationNs >= HISTOGRAM_LIMITS_NS[bucket]) {
+                ++bucket;
+            }
+            ++waitHistogram[bucket];
+        }
+        
+        private void addTo(Statistics total) {
+            for (int type = READ; type <= WRITE; ++type) {
+                total.holdCount[type] += holdCount[type];
+                total.totalHoldNs[type] += totalHoldNs[type];
+                total.maxHoldNs[type] = Math.max(total.maxHoldNs[type], maxHoldNs[type]);
+                total.waitCount[type] += waitCount[type];
+                total.totalWaitNs[type] += totalWaitNs[type];
+                total.maxWaitNs[type] = Math.max(total.maxWaitNs[type], maxWaitNs[type]);
+            }
+            for (int i = 0; i < waitHistogram.length; ++i) {
+                total.waitHistogram[i] += waitHistogram[i];
+            }
+        }
+        
+        private void reset() {
+            Arrays.fill(holdCount, 0);
+            Arrays.fill(totalHoldNs, 0);
+            Arrays.fill(maxHoldNs, 0);
+            Arrays.fill(waitCount, 0);
+            Arrays.fill(totalWaitNs, 0);
+            Arrays.fill(maxWaitNs, 0);
+            Arrays.fill(waitHistogram, 0);
+        }
+        
+        private long getTotalWaitNs() {
+            return totalWaitNs[READ] + totalWaitNs[WRITE];
+        }
+        
+        // Must be called with liveStatistics locked.
+        private static void retireDeadThreads() {
+            for (Iterator<Statistics> it = liveStatistics.iterator(); it.hasNext(); ) {
+                Statistics statistics = it.next();
+                Thread owner = statistics.thread.get();
+                if (owner == null || owner.isAlive() == false) {
+                    String name = statistics.threadName;
+                    if (retiredStatistics.containsKey(name) == false && retiredStatistics.size() >= MAX_RETIRED_THREAD_NAMES) {
+                        name = OTHER_RETIRED_THREADS_NAME;
+                    }
+                    Statistics retired = retiredStatistics.get(name);
+                    if (retired == null) {
+                        retired = new Statistics(null);
+                        retired.threadName = name;
+                        retiredStatistics.put(name, retired);
+                    }
+                    statistics.addTo(retired);
+                    it.remove();
+                }
+            }
+        }
+        
+        private static void resetAll() {
+            synchronized (liveStatistics) {
+                retiredStatistics.clear();
+                for (Statistics statistics : liveStatistics) {
+                    // This races with the owning thread, but the worst that can happen is that we miss a reset.
+                    statistics.reset();
+                }
+            }
+        }
+        
+        private static String getReport() {
+            // Combine the statistics of all threads with the same name.
+            Map<String, Statistics> byThreadName = new HashMap<String, Statistics>();
+            synchronized (liveStatistics) {
+                retireDeadThreads();
+                ArrayList<Statistics> all = new ArrayList<Statistics>(liveStatistics);
+                all.addAll(retiredStatistics.values());
+                for (Statistics statistics : all) {
+                    Thread owner = statistics.thread.get();
+                    String name = (owner != null) ? owner.getName() : statistics.threadName;
+                    Statistics combined = byThreadName.get(name);
+                    if (combined == null) {
+                        combined = new Statistics(null);
+                        combined.threadName = name;
+                        byThreadName.put(name, combined);
+                    }
+                    statistics.addTo(combined);
+                }
+            }
+            Statistics total = new Statistics(null);
+            for (Statistics statistics : byThreadName.values()) {
+                statistics.addTo(total);
+            }
+            
+            StringBuilder result = new StringBuilder();
+            for (int type = READ; type <= WRITE; ++type) {
+                result.append(TYPE_NAMES[type] + " locks: " + total.holdCount[type] + " held");
+                if (total.holdCount[type] > 0) {
+                    result.append(" for " + TimeUtilities.nsToString(total.totalHoldNs[type]) + " total (mean " + TimeUtilities.nsToString(total.totalHoldNs[type] / total.holdCount[type]) + ", max " + TimeUtilities.nsToString(total.maxHoldNs[type]) + ")");
+                }
+                result.append("; " + total.waitCount[type] + " had to wait");
+                if (total.waitCount[type] > 0) {
+                    result.append(" for " + TimeUtilities.nsToString(total.totalWaitNs[type]) + " total (mean " + TimeUtilities.nsToString(total.totalWaitNs[type] / total.waitCount[type]) + ", max " + TimeUtilities.nsToString(total.maxWaitNs[type]) + ")");
+                }
+                result.append("\n");
+            }
+            
+            result.append("\nWait times:\n");
+            for (int i = 0; i < HISTOGRAM_LABELS.length; ++i) {
+                result.append(String.format("  %-8s %d\n", HISTOGRAM_LABELS[i], total.waitHistogram[i]));
+            }
+            
+            ArrayList<Statistics> contenders = new ArrayList<Statistics>();
+            for (Statistics statistics : byThreadName.values()) {
+                if (statistics.getTotalWaitNs() > 0) {
+                    contenders.add(statistics);
+                }
+            }
+            Collections.sort(contenders, new Comparator<Statistics>() {
+                public int compare(Statistics lhs, Statistics rhs) {
+                    long lhsWaitNs = lhs.getTotalWaitNs();
+                    long rhsWaitNs = rhs.getTotalWaitNs();
+                    return (lhsWaitNs < rhsWaitNs) ? 1 : ((lhsWaitNs > rhsWaitNs) ? -1 : 0);
+                }
+            });
+            result.append("\nTop contenders:\n");
+            for (int i = 0; i < Math.min(MAX_CONTENDERS_REPORTED, contenders.size()); ++i) {
+                Statistics contender = contenders.get(i);
+                long waitCount = contender.waitCount[READ] + contender.waitCount[WRITE];
+                result.append("  \"" + contender.threadName + "\": waited " + waitCount + " times for " + TimeUtilities.nsToString(contender.getTotalWaitNs()) + " (max " + TimeUtilities.nsToString(Math.max(contender.maxWaitNs[READ], contender.maxWaitNs[WRITE])) + ")\n");
+            }
+            if (contenders.size() == 0) {
+                result.append("  (No thread has had to wait.)\n");
+            }
+            return result.toString();
+        }
     }
 }
@@ -0,0 +1,354 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Gives access to the characters of a large file without holding them all
+ * in the heap. The file is memory-mapped, and a single streaming pass over
+ * it works out the encoding, the line-ending convention, and where each page
+ * of PAGE_SIZE characters starts. After that, a page is only decoded (and
+ * has its line endings normalized to '\n') when somebody asks for its
+ * characters, and only the MAX_DECODED_PAGES most recently decoded pages are
+ * kept.
+ * 
+ * As with PTextBuffer.readFromFile, we recognize UTF-16BE and UTF-16LE byte
+ * order marks, and otherwise try UTF-8 before falling back to ISO-8859-1.
+ * The same pass builds the PLineIndex for the text, so the PLineList
+ * doesn't have to decode the whole file again to find the lines.
+ * 
+ * The mapping reflects the file on disk, so the file mustn't be truncated or
+ * rewritten in place while we're still using it. See PTextBuffer.writeToFile.
+ * Reading a part of a mapping that has been truncated away is a fault, so
+ * we check the file's length before decoding a page. If another program
+ * has truncated the file anyway, the lost characters are shown as U+FFFD
+ * replacement characters, rather than taking the editor down with them.
+ * 
+ * Offsets are ints, so files of 2GiB or more can't be mapped.
+ */
+class PMappedText {
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int MAX_DECODED_PAGES = 64;
+    // No character in any encoding we decode takes more than this many bytes. (UTF-8 needs four bytes for a surrogate pair, but that's two chars.)
+    private static final int MAX_BYTES_PER_CHAR = 3;
+    
+    private File file;
+    private ByteBuffer bytes;
+    private String charsetName;
+    private String lineEnding = "\n";
+    private long contentHash;
+    private ArrayList<Page> pages = new ArrayList<Page>();
+    private LinkedList<Page> decodedPages = new LinkedList<Page>();
+    private byte[] decodingWindow;
+    // Built by scan, and handed over to the PLineList by takeLineIndex.
+    private PLineIndex lineIndex;
+    private boolean warnedAboutTruncation;
+    
+    private PMappedText(File file, ByteBuffer bytes) {
+        this.file = file;
+        this.bytes = bytes;
+    }
+    
+    /**
+     * Maps the given file, and makes one pass through it to find the page boundaries.
+     */
+    public static PMappedText map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            final long byteCount = channel.size();
+            if (byteCount >= Integer.MAX_VALUE) {
+                throw new IOException("\"" + file + "\" is too large to map (" + byteCount + " bytes)");
+            }
+            // The mapping remains valid after the channel is closed.
+            PMappedText result = new PMappedText(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, byteCount));
+            try {
+                result.scan();
+                result.contentHash = PTextEncoder.hash(result.bytes);
+            } catch (InternalError ex) {
+                // This is how a fault reading the mapping shows up: the file must have been truncated while we were reading it.
+                throw new IOException("\"" + file + "\" was truncated while being read");
+            }
+            return result;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Returns the index of the lines of the text, as worked out by the
+     * initial scan, and forgets it, so it's only kept once. Returns null if
+     * it's already been taken, or if the file mixes CR LF with lone CR line
+     * endings, which the scan doesn't try to cope with.
+     */
+    public PLineIndex takeLineIndex() {
+        PLineIndex result = lineIndex;
+        lineIndex = null;
+        return result;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public String getCharsetName() {
+        return charsetName;
+    }
+    
+    public String getLineEnding() {
+        return lineEnding;
+    }
+    
+    /**
+     * Returns the hash of the mapped bytes, in the sense of PTextEncoder.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+    
+    public List<Page> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+    
+    private void scan() throws IOException {
+        // Assume UTF-8, but check for a UTF-16 BOM, exactly as ByteBufferDecoder does.
+        String guessedCharsetName = "UTF-8";
+        if (bytes.limit() > 1) {
+            int possibleBom = bytes.getShort(0) & 0xffff;
+            if (possibleBom == 0xfeff) {
+                guessedCharsetName = "UTF-16BE";
+            } else if (possibleBom == 0xfffe) {
+                guessedCharsetName = "UTF-16LE";
+            }
+        }
+        try {
+            scanPages(guessedCharsetName);
+        } catch (CharacterCodingException ex) {
+            // See ByteBufferDecoder for why this is the best we can do.
+            scanPages("ISO-8859-1");
+        }
+    }
+    
+    private void scanPages(String charsetName) throws CharacterCodingException {
+        this.charsetName = charsetName;
+        pages.clear();
+        
+        // We assume a '\r' not followed by '\n' is a line ending, which is only true if there are no CR LF pairs (in which case we use null).
+        PLineIndex lines = new PLineIndex();
+        int lineLength = 0;
+        boolean pendingCarriageReturn = false;
+        boolean sawLoneCarriageReturn = false;
+        
+        // CharsetDecoder is reporting by default.
+        CharsetDecoder decoder = Charset.forName(charsetName).newDecoder();
+        byte[] window = new byte[PAGE_SIZE * MAX_BYTES_PER_CHAR];
+        CharBuffer out = CharBuffer.allocate(PAGE_SIZE);
+        char[] chars = out.array();
+        boolean sawCarriageReturn = false;
+        boolean sawCarriageReturnLineFeed = false;
+        Page previousPage = null;
+        int byteOffset = 0;
+        while (byteOffset < bytes.limit()) {
+            ByteBuffer in = copyBytes(byteOffset, Math.min(window.length, bytes.limit() - byteOffset), window);
+            boolean endOfInput = (byteOffset + in.limit() == bytes.limit());
+            decoder.reset();
+            out.clear();
+            CoderResult result = decoder.decode(in, out, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            final int charCount = out.position();
+            if (charCount == 0) {
+                // The window always holds more than enough bytes for a whole page, so we must be stuck on garbage.
+                throw new MalformedInputException(in.remaining());
+            }
+            
+            Page page = new Page(byteOffset, charCount);
+            if (previousPage != null && previousPage.endsWithCarriageReturn && chars[0] == '\n') {
+                previousPage.endsWithCarriageReturnLineFeed = true;
+                ++previousPage.carriageReturnLineFeedCount;
+                sawCarriageReturnLineFeed = true;
+            }
+            for (int i = 0; i < charCount; ++i) {
+                final char ch = chars[i];
+                if (pendingCarriageReturn) {
+                    pendingCarriageReturn = false;
+                    // A CR LF pair, or a lone CR, is one (normalized) character, and ends the line.
+                    lines.append(lineLength + 1);
+                    lineLength = 0;
+                    if (ch == '\n') {
+                        continue;
+                    }
+                    sawLoneCarriageReturn = true;
+                }
+                if (ch == '\r') {
+                    sawCarriageReturn = true;
+                    pendingCarriageReturn = true;
+                    if (i + 1 == charCount) {
+                        page.endsWithCarriageReturn = true;
+                    } else if (chars[i + 1] == '\n') {
+                        ++page.carriageReturnLineFeedCount;
+                        sawCarriageReturnLineFeed = true;
+                    }
+                } else {
+                    ++lineLength;
+                    if (ch == '\n') {
+                        lines.append(lineLength);
+                        lineLength = 0;
+                    }
+                }
+            }
+            pages.add(page);
+            previousPage = page;
+            page.byteLength = in.position();
+            byteOffset += in.position();
+        }
+        
+        if (pendingCarriageReturn) {
+            lines.append(lineLength + 1);
+            lineLength = 0;
+            sawLoneCarriageReturn = true;
+        }
+        // There's always a last line, even if it's empty.
+        lines.append(lineLength);
+        this.lineIndex = (sawCarriageReturnLineFeed && sawLoneCarriageReturn) ? null : lines;
+        
+        // Work out the line ending the same way PTextBuffer.fixLineEndings does.
+        if (sawCarriageReturnLineFeed) {
+            lineEnding = "\r\n";
+        } else if (sawCarriageReturn) {
+            lineEnding = "\r";
+        }
+        for (Page page : pages) {
+            page.length = page.rawLength;
+            if (sawCarriageReturnLineFeed) {
+                page.length -= page.carriageReturnLineFeedCount;
+            }
+        }
+    }
+    
+    /**
+     * Copies 'byteCount' bytes of the file, starting at 'byteOffset', into
+     * 'window'. Decoding from a heap buffer is several times faster than
+     * decoding straight from the mapping.
+     */
+    private ByteBuffer copyBytes(int byteOffset, int byteCount, byte[] window) {
+        ByteBuffer source = bytes.duplicate();
+        source.position(byteOffset);
+        source.get(window, 0, byteCount);
+        return ByteBuffer.wrap(window, 0, byteCount);
+    }
+    
+    private synchronized char[] decodePage(Page page) {
+        char[] chars = page.chars;
+        if (chars != null) {
+            // Someone else decoded it while we were waiting.
+            return chars;
+        }
+        
+        CharsetDecoder decoder = Charset.forName(charsetName).newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (decodingWindow == null) {
+            decodingWindow = new byte[PAGE_SIZE * MAX_BYTES_PER_CHAR];
+        }
+        // Only touch the mapping if the page's bytes are still in the file.
+        ByteBuffer in = null;
+        if (file.length() >= page.byteOffset + page.byteLength) {
+            try {
+                in = copyBytes(page.byteOffset, page.byteLength, decodingWindow);
+            } catch (InternalError ex) {
+                // The file was truncated between our check and the copy, and we got the fault.
+            }
+        }
+        if (in == null) {
+            return cachePage(page, makeReplacementChars(page));
+        }
+        CharBuffer out = CharBuffer.allocate(page.rawLength);
+        decoder.decode(in, out, true);
+        char[] raw = out.array();
+        
+        chars = new char[page.length];
+        if (lineEnding.equals("\r\n")) {
+            int length = 0;
+            for (int i = 0; i < raw.length; ++i) {
+                char ch = raw[i];
+                boolean isFollowedByLineFeed = (i + 1 < raw.length) ? (raw[i + 1] == '\n') : page.endsWithCarriageReturnLineFeed;
+                if (ch != '\r' || isFollowedByLineFeed == false) {
+                    chars[length++] = ch;
+                }
+            }
+        } else if (lineEnding.equals("\r")) {
+            for (int i = 0; i < raw.length; ++i) {
+                chars[i] = (raw[i] == '\r') ? '\n' : raw[i];
+            }
+        } else {
+            chars = raw;
+        }
+        return cachePage(page, chars);
+    }
+    
+    private char[] makeReplacementChars(Page page) {
+        if (warnedAboutTruncation == false) {
+            Log.warn("\"" + file + "\" has been truncated by another program while we had it mapped; the missing text will be shown as replacement characters.");
+            warnedAboutTruncation = true;
+        }
+        char[] chars = new char[page.length];
+        Arrays.fill(chars, '\ufffd');
+        return chars;
+    }
+    
+    private char[] cachePage(Page page, char[] chars) {
+        page.chars = chars;
+        decodedPages.addFirst(page);
+        if (decodedPages.size() > MAX_DECODED_PAGES) {
+            decodedPages.removeLast().chars = null;
+        }
+        return chars;
+    }
+    
+    /**
+     * A Page is a run of at most PAGE_SIZE consecutive characters from the file.
+     */
+    public class Page {
+        private final int byteOffset;
+        private final int rawLength;
+        private int byteLength;
+        private int length;
+        
+        private int carriageReturnLineFeedCount;
+        private boolean endsWithCarriageReturn;
+        private boolean endsWithCarriageReturnLineFeed;
+        
+        // Non-null only while this page is one of the most recently decoded.
+        private volatile char[] chars;
+        
+        private Page(int byteOffset, int rawLength) {
+            this.byteOffset = byteOffset;
+            this.rawLength = rawLength;
+        }
+        
+        /**
+         * Returns the number of characters in this page, after line-ending normalization.
+         */
+        public int length() {
+            return length;
+        }
+        
+        /**
+         * Returns this page's characters, decoding them if necessary.
+         * The array mustn't be modified.
+         */
+        public char[] getChars() {
+            char[] result = chars;
+            if (result == null) {
+                result = decodePage(this);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package e.ptextarea;
+
+import e.gui.*;
+import e.util.*;
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Keeps a PTextArea's find matches up to date, for PTextArea.findAllMatchesInBackground.
+ * 
+ * A search runs on a background thread against a snapshot of the text, so
+ * it doesn't hold the buffer's lock. It searches from the top of the
+ * visible text first and then the rest. It hands its matches to the event
+ * dispatch thread in batches, with their line numbers already worked out for
+ * the BirdView. A new search cancels the old one, and so does editing the
+ * text while a search is running. The caller's next update then starts
+ * again.
+ * 
+ * Once a search has finished, we remember where the text has been edited.
+ * Updating after that only searches the edited lines again, on the event
+ * dispatch thread. A highlight stays with its text as the text moves, so
+ * the matches elsewhere are still right. This assumes matches don't span
+ * lines that weren't edited, which is true of all but the most unusual
+ * searches.
+ */
+class PMatchFinder implements PTextListener {
+    private static final ExecutorService searchExecutor = ThreadUtilities.newSingleThreadExecutor("Find All");
+    
+    // How often a running search hands over what it's found.
+    private static final long PUBLISH_INTERVAL_NS = 100 * 1000 * 1000;
+    // Edits bigger than this are searched again from scratch, in the background.
+    private static final int MAX_EDITED_LENGTH_TO_SEARCH_AGAIN = 64 * 1024;
+    
+    private final PTextArea textArea;
+    
+    // Null when there's no search to keep up to date.
+    private Pattern pattern;
+    private BirdView birdView;
+    private Runnable progressListener;
+    
+    // The search in progress, if any.
+    private Search search;
+    
+    // Which text has changed since the matches were last brought up to date, if they are up to date apart from that.
+    private boolean needsFullSearch = true;
+    private int editedStart = -1;
+    private int editedEnd = -1;
+    // The number of lines in the text the BirdView's marks refer to.
+    private int birdViewLineCount;
+    
+    PMatchFinder(PTextArea textArea) {
+        this.textArea = textArea;
+        textArea.getTextBuffer().addTextListener(this);
+    }
+    
+    /**
+     * Throws away any current search and its matches, and starts searching for 'newPattern' (if it's non-null).
+     * The BirdView and listener may be null. The listener is run on the event dispatch thread each time more matches are highlighted.
+     */
+    void findAllMatches(Pattern newPattern, BirdView newBirdView, Runnable newProgressListener) {
+        cancel();
+        textArea.removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME, 0, textArea.getTextBuffer().length() + 1);
+        for (BirdView staleBirdView : new BirdView[] { birdView, newBirdView }) {
+            if (staleBirdView != null) {
+                staleBirdView.clearMatchingLines();
+            }
+        }
+        this.pattern = newPattern;
+        this.birdView = newBirdView;
+        this.progressListener = newProgressListener;
+        if (pattern != null) {
+            search = new Search();
+            searchExecutor.execute(search);
+        }
+    }
+    
+    /**
+     * Searches for 'newPattern' on the calling thread, for callers who need to know how many matches there are straight away.
+     */
+    void findAllMatchesNow(Pattern newPattern, BirdView newBirdView) {
+        findAllMatches(null, null, null);
+        this.pattern = newPattern;
+        this.birdView = newBirdView;
+        search = new Search();
+        search.run();
+    }
+    
+    /**
+     * Tests whether we're already keeping the matches for 'otherPattern' up to date, in 'otherBirdView'.
+     */
+    boolean isFinding(Pattern otherPattern, BirdView otherBirdView) {
+        if (pattern == null || otherPattern == null) {
+            return false;
+        }
+        return pattern.pattern().equals(otherPattern.pattern()) && pattern.flags() == otherPattern.flags() && birdView == otherBirdView;
+    }
+    
+    /**
+     * Brings the matches for the current pattern up to date with any changes to the text.
+     */
+    void updateMatches() {
+        if (pattern == null || search != null) {
+            return;
+        }
+        if (needsFullSearch || editedEnd - editedStart > MAX_EDITED_LENGTH_TO_SEARCH_AGAIN) {
+            findAllMatches(pattern, birdView, progressListener);
+            return;
+        }
+        if (editedStart == -1) {
+            return;
+        }
+        
+        // Search whole lines again, because that's what most searches' matches depend on.
+        final int firstLine = textArea.getLineOfOffset(editedStart);
+        final int lastLine = textArea.getLineOfOffset(editedEnd);
+        final int start = textArea.getLineStartOffset(firstLine);
+        final int end = textArea.getLineEndOffsetBeforeTerminator(lastLine);
+        textArea.removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME, start, end + 1);
+        Batch batch = new Batch();
+        PTextBuffer buffer = textArea.getTextBuffer();
+        buffer.getLock().getReadLock();
+        try {
+            Matcher matcher = pattern.matcher(buffer);
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+            matcher.region(start, buffer.length());
+            while (matcher.find() && matcher.start() <= end) {
+                batch.add(matcher.start(), matcher.end(), textArea.getLineOfOffset(matcher.end()));
+            }
+        } finally {
+            buffer.getLock().relinquishReadLock();
+        }
+        if (birdView != null) {
+            // Marks after the edited lines move with them; those on the edited lines are replaced.
+            final int lineCountDelta = textArea.getLineCount() - birdViewLineCount;
+            birdView.shiftMatchingLines(lastLine - lineCountDelta + 1, lineCountDelta);
+            birdView.removeMatchingLines(firstLine, lastLine);
+        }
+        editedStart = editedEnd = -1;
+        birdViewLineCount = textArea.getLineCount();
+        apply(batch);
+    }
+    
+    /**
+     * Stops any search in progress, and forgets the current pattern. Any matches already highlighted stay highlighted.
+     */
+    void cancel() {
+        if (search != null) {
+            search.cancelled = true;
+            search = null;
+        }
+        pattern = null;
+        needsFullSearch = true;
+    }
+    
+    public void textInserted(PTextEvent event) {
+        final int offset = event.getOffset();
+        if (editedStart == -1) {
+            editedStart = offset;
+            editedEnd = offset + event.getLength();
+        } else {
+            editedEnd = (offset <= editedEnd) ? editedEnd + event.getLength() : offset + event.getLength();
+            editedStart = Math.min(editedStart, offset);
+        }
+        textChanged();
+    }
+    
+    public void textRemoved(PTextEvent event) {
+        final int offset = event.getOffset();
+        if (editedStart == -1) {
+            editedStart = editedEnd = offset;
+        } else {
+            editedEnd = (editedEnd <= offset) ? offset : Math.max(offset, editedEnd - event.getLength());
+            editedStart = Math.min(editedStart, offset);
+        }
+        textChanged();
+    }
+    
+    public void textCompletelyReplaced(PTextEvent event) {
+        needsFullSearch = true;
+        textChanged();
+    }
+    
+    private void textChanged() {
+        if (search != null) {
+            // The search's snapshot is out of date, so its matches would be in the wrong places.
+            search.cancelled = true;
+            search = null;
+            needsFullSearch = true;
+        }
+    }
+    
+    /**
+     * Highlights the matches in 'batch', unless they come from a search that's since been cancelled.
+     */
+    private void apply(Search from, Batch batch) {
+        if (from != search) {
+            return;
+        }
+        if (batch.isLast) {
+            search = null;
+            needsFullSearch = false;
+            editedStart = editedEnd = -1;
+            birdViewLineCount = from.lineCount;
+        }
+        if (batch.replacedStart != -1) {
+            textArea.removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME, batch.replacedStart, batch.replacedEnd);
+            if (birdView != null) {
+                birdView.removeMatchingLines(batch.replacedFirstLine, batch.replacedLastLine);
+                if (batch.keptLine != -1) {
+                    birdView.addMatchingLine(batch.keptLine);
+                }
+            }
+        }
+        apply(batch);
+    }
+    
+    private void apply(Batch batch) {
+        textArea.addFindMatches(batch.starts, batch.ends, batch.count);
+        if (birdView != null && batch.count > 0) {
+            birdView.setValueIsAdjusting(true);
+            try {
+                for (int i = 0; i < batch.count; ++i) {
+                    birdView.addMatchingLine(batch.lines[i]);
+                }
+            } finally {
+                birdView.setValueIsAdjusting(false);
+            }
+        }
+        if (progressListener != null) {
+            progressListener.run();
+        }
+    }
+    
+    /**
+     * Matches found by a search and not yet highlighted, in order.
+     */
+    private static class Batch {
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int[] lines = new int[16];
+        private int count = 0;
+        // If not -1, the matches overlapping [replacedStart, replacedEnd) should be removed before these are added.
+        private int replacedStart = -1;
+        private int replacedEnd;
+        // The BirdView lines to clear along with them, and the line (or -1) of the first match kept, which may share the last of those lines.
+        private int replacedFirstLine;
+        private int replacedLastLine;
+        private int keptLine = -1;
+        private boolean isLast = false;
+        
+        private void add(int start, int end, int line) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            lines[count] = line;
+            ++count;
+        }
+    }
+    
+    private class Search implements Runnable {
+        private final Pattern pattern;
+        private final PTextSnapshot text;
+        // Where the visible text starts (at the beginning of a line) and ends.
+        private final int visibleStart;
+        private final int visibleEnd;
+        private final int visibleStartLine;
+        private final int lineCount;
+        private volatile boolean cancelled = false;
+        
+        private Batch batch = new Batch();
+        private long lastPublishTime;
+        private boolean isSearchingAgain = false;
+        // The matches from the visible text on, in case we need to check them against a match that started above it.
+        private Batch visibleMatches = new Batch();
+        
+        private Search() {
+            this.pattern = PMatchFinder.this.pattern;
+            this.text = textArea.getTextBuffer().snapshot();
+            this.lineCount = textArea.getLineCount();
+            int start = 0;
+            int end = 0;
+            if (textArea.isShowing() && textArea.isLineWrappingInvalid() == false) {
+                Rectangle visible = textArea.getVisibleRect();
+                start = textArea.getSplitLine(textArea.getNearestCoordinates(new Point(0, visible.y)).getLineIndex()).getTextIndex();
+                SplitLine lastLine = textArea.getSplitLine(textArea.getNearestCoordinates(new Point(0, visible.y + visible.height)).getLineIndex());
+                end = lastLine.getTextIndex() + lastLine.getLength();
+            }
+            this.visibleStartLine = textArea.getLineOfOffset(start);
+            this.visibleStart = textArea.getLineStartOffset(visibleStartLine);
+            this.visibleEnd = end;
+        }
+        
+        public void run() {
+            try {
+                Matcher matcher = pattern.matcher(new CancellableText());
+                matcher.useTransparentBounds(true);
+                matcher.useAnchoringBounds(false);
+                lastPublishTime = System.nanoTime();
+                
+                // The visible text, and on to the end...
+                LineCounter lineCounter = new LineCounter(visibleStart, visibleStartLine);
+                boolean publishedVisibleMatches = false;
+                matcher.region(visibleStart, text.length());
+                while (matcher.find()) {
+                    add(matcher, lineCounter);
+                    visibleMatches.add(matcher.start(), matcher.end(), 0);
+                    if (publishedVisibleMatches == false && matcher.end() >= visibleEnd) {
+                        publish(false);
+                        publishedVisibleMatches = true;
+                    }
+                }
+                
+                // ...and then from the top down to the visible text.
+                if (visibleStart > 0) {
+                    // A batch must be in order, so hand over what we have before going back to the top.
+                    publish(false);
+                    lineCounter = new LineCounter(0, 0);
+                    matcher.region(0, visibleStart);
+                    int searchStart = 0;
+                    boolean lastMatchWasEmpty = false;
+                    while (true) {
+                        final boolean found = matcher.find();
+                        if (matcher.hitEnd()) {
+                            // This attempt reached the visible text, and might have matched differently if it had been allowed into it.
+                            searchAgainIntoVisibleText(matcher, lineCounter, searchStart, lastMatchWasEmpty);
+                            break;
+                        }
+                        if (found == false) {
+                            break;
+                        }
+                        add(matcher, lineCounter);
+                        searchStart = matcher.end();
+                        lastMatchWasEmpty = (matcher.start() == matcher.end());
+                    }
+                }
+                publish(true);
+            } catch (CancellationException ex) {
+                ex = ex;
+            }
+        }
+        
+        /**
+         * Searches on from 'searchStart' without stopping at the visible text,
+         * as a search from the top would, until we find a match we've already
+         * found. Any matches we'd found before that one are replaced by the
+         * ones found here.
+         */
+        private void searchAgainIntoVisibleText(Matcher matcher, LineCounter lineCounter, int searchStart, boolean lastMatchWasEmpty) {
+            // Nothing can be handed over until we know which matches to replace.
+            isSearchingAgain = true;
+            // Searching from a given offset resets the region to the whole text.
+            boolean found = matcher.find(searchStart);
+            if (found && lastMatchWasEmpty && matcher.end() == searchStart) {
+                // A search that carried on from an empty match wouldn't find it again.
+                found = matcher.find();
+            }
+            int replacedEnd = text.length() + 1;
+            int keptLine = -1;
+            for (; found; found = matcher.find()) {
+                if (matcher.start() >= visibleStart && isVisibleMatch(matcher.start(), matcher.end())) {
+                    replacedEnd = matcher.start();
+                    keptLine = lineCounter.getLineOf(matcher.end());
+                    break;
+                }
+                add(matcher, lineCounter);
+            }
+            if (replacedEnd > visibleStart) {
+                batch.replacedStart = visibleStart;
+                batch.replacedEnd = replacedEnd;
+                // A replaced match ends no later than the first kept match, so its line is no later than that one's.
+                batch.replacedFirstLine = visibleStartLine;
+                batch.replacedLastLine = (keptLine != -1) ? keptLine : lineCount;
+                batch.keptLine = keptLine;
+            }
+        }
+        
+        private boolean isVisibleMatch(int start, int end) {
+            int index = Arrays.binarySearch(visibleMatches.starts, 0, visibleMatches.count, start);
+            return (index >= 0 && visibleMatches.ends[index] == end);
+        }
+        
+        private void add(Matcher matcher, LineCounter lineCounter) {
+            batch.add(matcher.start(), matcher.end(), lineCounter.getLineOf(matcher.end()));
+            if (isSearchingAgain == false && System.nanoTime() - lastPublishTime > PUBLISH_INTERVAL_NS) {
+                publish(false);
+            }
+        }
+        
+        private void publish(boolean isLast) {
+            final Batch publishedBatch = batch;
+            publishedBatch.isLast = isLast;
+            batch = new Batch();
+            lastPublishTime = System.nanoTime();
+            if (EventQueue.isDispatchThread()) {
+                apply(this, publishedBatch);
+            } else {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        apply(Search.this, publishedBatch);
+                    }
+                });
+            }
+        }
+        
+        /**
+         * Works out the line numbers of increasing offsets in the snapshot.
+         */
+        private class LineCounter {
+            private char[] chunk = new char[8 * 1024];
+            private int offset;
+            private int line;
+            
+            private LineCounter(int offset, int line) {
+                this.offset = offset;
+                this.line = line;
+            }
+            
+            private int getLineOf(int targetOffset) {
+                while (offset < targetOffset) {
+                    final int chunkLength = Math.min(chunk.length, targetOffset - offset);
+                    text.getChars(offset, offset + chunkLength, chunk, 0);
+                    for (int i = 0; i < chunkLength; ++i) {
+                        if (chunk[i] == '\n') {
+                            ++line;
+                        }
+                    }
+                    offset += chunkLength;
+                }
+                return line;
+            }
+        }
+        
+        /**
+         * The snapshot, as seen by the Matcher, checking every so often whether we've been cancelled.
+         * The Matcher may go a long way between matches, and there's no other way to interrupt it.
+         */
+        private class CancellableText implements CharSequence {
+            private int charsUntilCheck = 64 * 1024;
+            
+            public char charAt(int index) {
+                if (--charsUntilCheck == 0) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                    charsUntilCheck = 64 * 1024;
+                }
+                return text.charAt(index);
+            }
+            
+            public int length() {
+                return text.length();
+            }
+            
+            public CharSequence subSequence(int start, int end) {
+                return text.subSequence(start, end);
+            }
+            
+            public String toString() {
+                return text.toString();
+            }
+        }
+    }
+}
@@ -96,10 +96,8 @@ public class PNewlineInserter {
         final int end = textArea.getSelectionEnd();
         int endLineIndex = textArea.getLineOfOffset(end);
         int suffixPosition = textArea.getLineEndOffsetBeforeTerminator(endLineIndex);
-        String beforeInsertion = textArea.getTextBuffer().subSequence(0, start).toString();
-        String afterInsertion = textArea.getTextBuffer().subSequence(suffixPosition, textArea.getTextBuffer().length()).toString();
-        String unmatchedOpenBrackets = getUnmatchedBrackets(beforeInsertion);
-        String unmatchedCloseBrackets = getUnmatchedBrackets(afterInsertion);
+        String unmatchedOpenBrackets = getEnclosingOpenBrackets(start);
+        String unmatchedCloseBrackets = getEnclosingCloseBrackets(suffixPosition);
         String reflectedCloseBrackets = PBracketUtilities.reflectBrackets(unmatchedCloseBrackets);
         if (unmatchedOpenBrackets.startsWith(reflectedCloseBrackets) == false) {
             return false;
@@ -141,28 +139,28 @@ public class PNewlineInserter {
         textArea.select(newOffset, newOffset);
     }
         
-    private static String getUnmatchedBrackets(final String initialText) {
-        String text = initialText.replaceAll("\\\\.", "_"); // Remove escaped characters.
-        text = text.replaceAll("'.'", "_"); // Remove character literals.
-        text = text.replaceAll("\"([^\\n]*?)\"", "_"); // Remove string literals.
-        text = text.replaceAll("/\\*(?s).*?\\*/", "_"); // Remove C comments.
-        text = text.replaceAll("//[^\\n]*", "_"); // Remove C++ comments.
-        StringBuilder unmatchedBrackets = new StringBuilder();
-        for (int i = 0; i < text.length(); ++i) {
-            char ch = text.charAt(i);
-            if (PBracketUtilities.isOpenBracket(ch) && ch != '<') {
-                unmatchedBrackets.append(ch);
-            } else if (PBracketUtilities.isCloseBracket(ch) && ch != '>') {
-                char openBracket = PBracketUtilities.getPartnerForBracket(ch);
-                int lastCharIndex = unmatchedBrackets.length() - 1;
-                if (lastCharIndex >= 0 && unmatchedBrackets.charAt(lastCharIndex) == openBracket) {
-                    unmatchedBrackets.deleteCharAt(lastCharIndex);
-                } else {
-                    unmatchedBrackets.append(ch);
-                }
-            }
+    /**
+     * Returns the brackets in code that are open at 'offset', outermost first.
+     */
+    private String getEnclosingOpenBrackets(int offset) {
+        CharSequence chars = textArea.getTextBuffer();
+        StringBuilder result = new StringBuilder();
+        for (int i = PBracketUtilities.findEnclosingOpenBracket(textArea, offset); i != -1; i = PBracketUtilities.findEnclosingOpenBracket(textArea, i)) {
+            result.append(chars.charAt(i));
+        }
+        return result.reverse().toString();
+    }
+    
+    /**
+     * Returns the brackets in code at or after 'offset' that close the brackets open there, innermost first.
+     */
+    private String getEnclosingCloseBrackets(int offset) {
+        CharSequence chars = textArea.getTextBuffer();
+        StringBuilder result = new StringBuilder();
+        for (int i = PBracketUtilities.findEnclosingCloseBracket(textArea, offset); i != -1; i = PBracketUtilities.findEnclosingCloseBracket(textArea, i + 1)) {
+            result.append(chars.charAt(i));
         }
-        return unmatchedBrackets.toString();
+        return result.toString();
     }
     
     /**
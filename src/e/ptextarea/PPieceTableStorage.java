@@ -0,0 +1,357 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * Stores text as a sequence of pieces, each referring to a run of characters
+ * in an array that is never modified once written. The text we were given by
+ * setText is the first such array; inserted text is appended to an add
+ * buffer. The pieces are kept in a treap keyed implicitly by character
+ * offset, so finding, inserting, and removing text anywhere in the document
+ * costs O(log n) in the number of pieces, independent of both the document's
+ * size and the distance from the previous edit.
+ * 
+ * Sequential access through charAt is almost as cheap as with a gap buffer,
+ * because we remember the piece that satisfied the last lookup.
+ * 
+ * The original text can also be a PMappedText, in which case each of its
+ * pages starts off as a piece of its own, and the characters are only
+ * decoded when they're needed.
+ */
+class PPieceTableStorage implements PTextStorage {
+    // Insertions are appended to add blocks of this size. Larger insertions get their own array.
+    private static final int ADD_BLOCK_SIZE = 16 * 1024;
+    
+    private Piece root;
+    private PMappedText mappedText;
+    
+    private char[] addBlock;
+    private int addBlockUsed;
+    
+    // Where charAt last found its character. Readers may run concurrently, so
+    // this is replaced wholesale rather than updated field by field.
+    private PieceLocation lastLocation;
+    
+    // The two halves produced by the most recent call to split.
+    private Piece splitLeft;
+    private Piece splitRight;
+    
+    private int seed = (int) System.nanoTime() | 1;
+    
+    public char charAt(int index) {
+        PieceLocation location = lastLocation;
+        if (location == null || index < location.start || index >= location.start + location.piece.length) {
+            location = findPiece(index);
+            lastLocation = location;
+        }
+        Piece piece = location.piece;
+        return piece.getChars()[piece.offset + index - location.start];
+    }
+    
+    private PieceLocation findPiece(int index) {
+        Piece piece = root;
+        int pieceStart = 0;
+        while (true) {
+            int leftLength = totalLength(piece.left);
+            if (index < leftLength) {
+                piece = piece.left;
+            } else if (index < leftLength + piece.length) {
+                return new PieceLocation(piece, pieceStart + leftLength);
+            } else {
+                index -= leftLength + piece.length;
+                pieceStart += leftLength + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+    
+    public int length() {
+        return totalLength(root);
+    }
+    
+    public void setText(char[] text, int length) {
+        lastLocation = null;
+        root = (length == 0) ? null : new Piece(text, null, 0, length, nextPriority());
+        mappedText = null;
+        addBlock = null;
+        addBlockUsed = 0;
+    }
+    
+    /**
+     * Replaces the entire contents with the characters of the given mapped file.
+     */
+    public void setText(PMappedText text) {
+        lastLocation = null;
+        root = null;
+        for (PMappedText.Page page : text.getPages()) {
+            if (page.length() > 0) {
+                root = merge(root, new Piece(null, page, 0, page.length(), nextPriority()));
+            }
+        }
+        mappedText = text;
+        addBlock = null;
+        addBlockUsed = 0;
+    }
+    
+    /**
+     * Tests whether any of our text may still come from a mapping of the given file.
+     */
+    public boolean isBackedBy(File file) {
+        return (mappedText != null && mappedText.getFile().equals(file));
+    }
+    
+    /**
+     * Decodes any text that still comes from a mapped file into the heap, so
+     * that the file can be safely overwritten.
+     */
+    public void detachFromMappedText() {
+        lastLocation = null;
+        detachSubtree(root);
+        mappedText = null;
+    }
+    
+    private static void detachSubtree(Piece piece) {
+        if (piece != null) {
+            detachSubtree(piece.left);
+            piece.chars = piece.getChars();
+            piece.page = null;
+            detachSubtree(piece.right);
+        }
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        final int count = chars.length();
+        if (count == 0) {
+            return;
+        }
+        lastLocation = null;
+        split(root, position);
+        Piece left = splitLeft;
+        Piece right = splitRight;
+        
+        Piece newPiece = null;
+        if (count > ADD_BLOCK_SIZE / 2) {
+            char[] array = new char[count];
+            copyChars(chars, array, 0);
+            newPiece = new Piece(array, null, 0, count, nextPriority());
+        } else {
+            if (addBlock == null || ADD_BLOCK_SIZE - addBlockUsed < count) {
+                addBlock = new char[ADD_BLOCK_SIZE];
+                addBlockUsed = 0;
+            }
+            copyChars(chars, addBlock, addBlockUsed);
+            Piece last = rightmost(left);
+            if (last != null && last.chars == addBlock && last.offset + last.length == addBlockUsed) {
+                // Typing just carries on from the previous insertion, so there's no need for a new piece.
+                for (Piece piece = left; piece != null; piece = piece.right) {
+                    piece.totalLength += count;
+                }
+                last.length += count;
+            } else {
+                newPiece = new Piece(addBlock, null, addBlockUsed, count, nextPriority());
+            }
+            addBlockUsed += count;
+        }
+        root = merge(merge(left, newPiece), right);
+    }
+    
+    private static void copyChars(CharSequence chars, char[] destination, int destinationOffset) {
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(destination, destinationOffset);
+        } else if (chars instanceof String) {
+            ((String) chars).getChars(0, chars.length(), destination, destinationOffset);
+        } else {
+            for (int i = 0; i < chars.length(); ++i) {
+                destination[destinationOffset + i] = chars.charAt(i);
+            }
+        }
+    }
+    
+    public void remove(int position, int count) {
+        if (count == 0) {
+            return;
+        }
+        lastLocation = null;
+        split(root, position);
+        Piece left = splitLeft;
+        split(splitRight, count);
+        root = merge(left, splitRight);
+    }
+    
+    public void copyTo(int start, int count, char[] destination, int destinationOffset) {
+        copyRange(root, 0, start, start + count, destination, destinationOffset - start);
+    }
+    
+    /**
+     * Copies the characters in [from, to) held by the subtree 'piece', whose first
+     * character is at 'subtreeStart'. Character i goes to destination[i + destinationBias].
+     */
+    private static void copyRange(Piece piece, int subtreeStart, int from, int to, char[] destination, int destinationBias) {
+        if (piece == null || to <= subtreeStart || from >= subtreeStart + piece.totalLength) {
+            return;
+        }
+        copyRange(piece.left, subtreeStart, from, to, destination, destinationBias);
+        int pieceStart = subtreeStart + totalLength(piece.left);
+        int pieceEnd = pieceStart + piece.length;
+        int copyStart = Math.max(from, pieceStart);
+        int copyEnd = Math.min(to, pieceEnd);
+        if (copyStart < copyEnd) {
+            System.arraycopy(piece.getChars(), piece.offset + copyStart - pieceStart, destination, copyStart + destinationBias, copyEnd - copyStart);
+        }
+        copyRange(piece.right, pieceEnd, from, to, destination, destinationBias);
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        writeSubtree(root, writer);
+    }
+    
+    private static void writeSubtree(Piece piece, Writer writer) throws IOException {
+        if (piece != null) {
+            writeSubtree(piece.left, writer);
+            writer.write(piece.getChars(), piece.offset, piece.length);
+            writeSubtree(piece.right, writer);
+        }
+    }
+    
+    /**
+     * Copies just the tree of pieces. Existing pieces never change the
+     * characters they refer to, so the arrays themselves can be shared.
+     */
+    public PTextStorage copy() {
+        PPieceTableStorage result = new PPieceTableStorage();
+        result.root = copySubtree(root);
+        return result;
+    }
+    
+    private static Piece copySubtree(Piece piece) {
+        if (piece == null) {
+            return null;
+        }
+        Piece result = new Piece(piece.chars, piece.page, piece.offset, piece.length, piece.priority);
+        result.left = copySubtree(piece.left);
+        result.right = copySubtree(piece.right);
+        result.update();
+        return result;
+    }
+    
+    /**
+     * Splits the subtree 'piece' so that splitLeft holds its first 'count'
+     * characters and splitRight holds the rest. A piece straddling the split
+     * point is cut in two.
+     */
+    private void split(Piece piece, int count) {
+        if (piece == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+        int leftLength = totalLength(piece.left);
+        if (count <= leftLength) {
+            split(piece.left, count);
+            piece.left = splitRight;
+            piece.update();
+            splitRight = piece;
+        } else if (count >= leftLength + piece.length) {
+            split(piece.right, count - leftLength - piece.length);
+            piece.right = splitLeft;
+            piece.update();
+            splitLeft = piece;
+        } else {
+            // The tail inherits our priority, so it's a valid parent for our old right subtree.
+            int cut = count - leftLength;
+            Piece tail = new Piece(piece.chars, piece.page, piece.offset + cut, piece.length - cut, piece.priority);
+            tail.right = piece.right;
+            tail.update();
+            piece.length = cut;
+            piece.right = null;
+            piece.update();
+            splitLeft = piece;
+            splitRight = tail;
+        }
+    }
+    
+    /**
+     * Joins two subtrees, all of whose text in 'left' comes before all the text in 'right'.
+     */
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            right.update();
+            return right;
+        }
+    }
+    
+    private static Piece rightmost(Piece piece) {
+        if (piece == null) {
+            return null;
+        }
+        while (piece.right != null) {
+            piece = piece.right;
+        }
+        return piece;
+    }
+    
+    private static int totalLength(Piece piece) {
+        return (piece == null) ? 0 : piece.totalLength;
+    }
+    
+    private int nextPriority() {
+        // Marsaglia's xorshift is plenty random enough to keep the treap balanced.
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+    
+    private static class Piece {
+        // Exactly one of 'chars' and 'page' is non-null.
+        private char[] chars;
+        private PMappedText.Page page;
+        private final int offset;
+        private int length;
+        private final int priority;
+        
+        // The number of characters in this piece and both its subtrees.
+        private int totalLength;
+        private Piece left;
+        private Piece right;
+        
+        private Piece(char[] chars, PMappedText.Page page, int offset, int length, int priority) {
+            this.chars = chars;
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+            this.priority = priority;
+            this.totalLength = length;
+        }
+        
+        private char[] getChars() {
+            return (chars != null) ? chars : page.getChars();
+        }
+        
+        private void update() {
+            totalLength = totalLength(left) + length + totalLength(right);
+        }
+    }
+    
+    private static class PieceLocation {
+        private final Piece piece;
+        private final int start;
+        
+        private PieceLocation(Piece piece, int start) {
+            this.piece = piece;
+            this.start = start;
+        }
+    }
+}
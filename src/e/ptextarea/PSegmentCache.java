@@ -0,0 +1,205 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Remembers the styled segments of recently-rendered lines, so that painting,
+ * caret movement, and mouse handling don't have to restyle a line every time
+ * they look at it.
+ * 
+ * The cache is bounded: when it holds MAX_LINE_COUNT lines, the quarter of
+ * them that were least recently used are discarded. Since it's the visible
+ * lines that get asked for again and again, this keeps the lines around the
+ * viewport while forgetting the ones scrolled past long ago.
+ * 
+ * Entries are keyed by line index, held in parallel primitive arrays sorted
+ * by line index, so there's no boxing, and inserting or removing lines only
+ * means renumbering the entries after them rather than throwing them away.
+ * Because segments hold absolute offsets into the text, each entry also
+ * remembers where its line started when it was styled. If the line has
+ * moved since, the segments are shifted to match when they're next asked for.
+ * 
+ * Each entry also remembers the styler's state at the start of the line (see
+ * PTextStyler.getLineStartState). An entry whose line now starts in a
+ * different state is stale even though the line's own text hasn't changed:
+ * opening a multi-line comment, for example, restyles the lines below it.
+ * 
+ * All methods are synchronized, because lines are styled while holding only
+ * the text's read lock, and several threads may hold that at once.
+ */
+class PSegmentCache {
+    private static final int MAX_LINE_COUNT = 2048;
+    
+    private int size;
+    private int[] lineIndexes = new int[MAX_LINE_COUNT];
+    private int[] lineStarts = new int[MAX_LINE_COUNT];
+    private int[] lineStartStates = new int[MAX_LINE_COUNT];
+    private long[] lastUses = new long[MAX_LINE_COUNT];
+    private Object[] segmentLists = new Object[MAX_LINE_COUNT];
+    
+    // Incremented on every access, to give us an order for least-recently-used eviction.
+    private long useCount;
+    
+    /**
+     * Returns the cached segments for the given line, or null if we don't
+     * have any that are still good. 'lineStart' is the offset at which the
+     * line currently starts, and 'lineStartState' is the styler's current
+     * state at the start of the line.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<PLineSegment> get(int lineIndex, int lineStart, int lineStartState) {
+        int i = find(lineIndex);
+        if (i < 0) {
+            return null;
+        }
+        if (lineStartStates[i] != lineStartState) {
+            removeAt(i);
+            return null;
+        }
+        List<PLineSegment> segments = (List<PLineSegment>) segmentLists[i];
+        if (lineStarts[i] != lineStart) {
+            segments = moveSegments(segments, lineStart - lineStarts[i]);
+            if (segments == null) {
+                removeAt(i);
+                return null;
+            }
+            segmentLists[i] = segments;
+            lineStarts[i] = lineStart;
+        }
+        lastUses[i] = ++useCount;
+        return segments;
+    }
+    
+    public synchronized void put(int lineIndex, int lineStart, int lineStartState, List<PLineSegment> segments) {
+        int i = find(lineIndex);
+        if (i < 0) {
+            if (size == MAX_LINE_COUNT) {
+                evictLeastRecentlyUsed();
+                i = find(lineIndex);
+            }
+            // Make room at the insertion point.
+            i = -(i + 1);
+            System.arraycopy(lineIndexes, i, lineIndexes, i + 1, size - i);
+            System.arraycopy(lineStarts, i, lineStarts, i + 1, size - i);
+            System.arraycopy(lineStartStates, i, lineStartStates, i + 1, size - i);
+            System.arraycopy(lastUses, i, lastUses, i + 1, size - i);
+            System.arraycopy(segmentLists, i, segmentLists, i + 1, size - i);
+            ++size;
+        }
+        lineIndexes[i] = lineIndex;
+        lineStarts[i] = lineStart;
+        lineStartStates[i] = lineStartState;
+        lastUses[i] = ++useCount;
+        segmentLists[i] = segments;
+    }
+    
+    /**
+     * Forgets the segments for the given line, because its text has changed.
+     */
+    public synchronized void remove(int lineIndex) {
+        int i = find(lineIndex);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+    
+    public synchronized void clear() {
+        Arrays.fill(segmentLists, 0, size, null);
+        size = 0;
+    }
+    
+    /**
+     * Renumbers the entries for the lines at and after 'lineIndex', because
+     * 'count' lines have been inserted before them.
+     */
+    public synchronized void linesAdded(int lineIndex, int count) {
+        for (int i = firstIndexAtOrAfter(lineIndex); i < size; ++i) {
+            lineIndexes[i] += count;
+        }
+    }
+    
+    /**
+     * Forgets the entries for the 'count' lines starting at 'lineIndex', and
+     * renumbers the entries after them.
+     */
+    public synchronized void linesRemoved(int lineIndex, int count) {
+        int from = firstIndexAtOrAfter(lineIndex);
+        int to = firstIndexAtOrAfter(lineIndex + count);
+        removeRange(from, to);
+        for (int i = from; i < size; ++i) {
+            lineIndexes[i] -= count;
+        }
+    }
+    
+    /**
+     * Returns the position of the given line's entry, or (-(insertion point) - 1) if there isn't one.
+     */
+    private int find(int lineIndex) {
+        return Arrays.binarySearch(lineIndexes, 0, size, lineIndex);
+    }
+    
+    private int firstIndexAtOrAfter(int lineIndex) {
+        int i = find(lineIndex);
+        return (i >= 0) ? i : -(i + 1);
+    }
+    
+    private void removeAt(int i) {
+        removeRange(i, i + 1);
+    }
+    
+    private void removeRange(int from, int to) {
+        int count = to - from;
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(lineIndexes, to, lineIndexes, from, size - to);
+        System.arraycopy(lineStarts, to, lineStarts, from, size - to);
+        System.arraycopy(lineStartStates, to, lineStartStates, from, size - to);
+        System.arraycopy(lastUses, to, lastUses, from, size - to);
+        System.arraycopy(segmentLists, to, segmentLists, from, size - to);
+        size -= count;
+        Arrays.fill(segmentLists, size, size + count, null);
+    }
+    
+    /**
+     * Discards the least recently used quarter of the entries, keeping the rest in line order.
+     */
+    private void evictLeastRecentlyUsed() {
+        long[] sortedUses = new long[size];
+        System.arraycopy(lastUses, 0, sortedUses, 0, size);
+        Arrays.sort(sortedUses);
+        long threshold = sortedUses[size / 4];
+        int kept = 0;
+        for (int i = 0; i < size; ++i) {
+            if (lastUses[i] >= threshold) {
+                lineIndexes[kept] = lineIndexes[i];
+                lineStarts[kept] = lineStarts[i];
+                lineStartStates[kept] = lineStartStates[i];
+                lastUses[kept] = lastUses[i];
+                segmentLists[kept] = segmentLists[i];
+                ++kept;
+            }
+        }
+        Arrays.fill(segmentLists, kept, size, null);
+        size = kept;
+    }
+    
+    /**
+     * Returns copies of the given segments, moved 'delta' characters through
+     * the text. We copy rather than modify them in place because whoever we
+     * last gave them to may still be using them. Returns null if we don't
+     * know how to move one of the segments.
+     */
+    private static List<PLineSegment> moveSegments(List<PLineSegment> segments, int delta) {
+        List<PLineSegment> result = new ArrayList<PLineSegment>(segments.size());
+        for (PLineSegment segment : segments) {
+            PLineSegment copy = segment.subSegment(0, segment.getModelTextLength());
+            if (copy instanceof PAbstractSegment == false) {
+                return null;
+            }
+            ((PAbstractSegment) copy).moveBy(delta);
+            result.add(copy);
+        }
+        return result;
+    }
+}
@@ -6,29 +6,77 @@ import e.util.*;
  * Implements the core functionality of any real indenter, which is to look at the line in question, split it into indentation and content, work out the new 
  */
 public abstract class PSimpleIndenter extends PIndenter {
+    // While fixIndentationOnLines is working through a run of lines, the first line of the run and the line it's on.
+    private int firstLineOfRun = -1;
+    private int currentLineOfRun = -1;
+    
     public PSimpleIndenter(PTextArea textArea) {
         super(textArea);
     }
     
     public final void fixIndentationOnLine(int lineIndex) {
-        String originalIndentation = getCurrentIndentationOfLine(lineIndex);
-        String replacementIndentation = calculateNewIndentation(lineIndex);
-        String originalLine = textArea.getLineText(lineIndex);
-        String replacementLine = replacementIndentation + StringUtilities.trimTrailingWhitespace(originalLine.substring(originalIndentation.length()));
-        //Log.warn("originalIndentation=@" + originalIndentation + "@; replacementIndentation=@" + replacementIndentation + "@");
-        if (replacementLine.equals(originalLine)) {
-            return;
+        fixIndentationOnLines(lineIndex, lineIndex);
+    }
+    
+    /**
+     * Fixes each line in turn, in one pass from the first line to the last.
+     * A line's indentation depends on the new text of the lines above it, so
+     * each line is changed as soon as we've worked it out, but the
+     * selection is only restored once, at the end. We hold the write lock
+     * throughout, so the background lexer can't catch up with our changes
+     * (or with a newly loaded file): we bring the lexer states up to date
+     * ourselves before each line, because indenters look at which parts of
+     * the lines are comments. Subclasses can use isEarlierLineOfRun to carry
+     * what they learned about one line on to the next, rather than searching
+     * backwards from every line.
+     */
+    @Override
+    protected final void fixIndentationOnLines(int startLine, int finishLine) {
+        textArea.getLock().getWriteLock();
+        try {
+            firstLineOfRun = startLine;
+            int desiredStartOffset = textArea.getSelectionStart();
+            int desiredEndOffset = textArea.getSelectionEnd();
+            boolean changed = false;
+            for (int lineIndex = startLine; lineIndex <= finishLine; ++lineIndex) {
+                currentLineOfRun = lineIndex;
+                textArea.getTextStyler().updateLineStartStatesThrough(lineIndex);
+                String originalIndentation = getCurrentIndentationOfLine(lineIndex);
+                String replacementIndentation = calculateNewIndentation(lineIndex);
+                String originalLine = textArea.getLineText(lineIndex);
+                String replacementLine = replacementIndentation + StringUtilities.trimTrailingWhitespace(originalLine.substring(originalIndentation.length()));
+                //Log.warn("originalIndentation=@" + originalIndentation + "@; replacementIndentation=@" + replacementIndentation + "@");
+                if (replacementLine.equals(originalLine)) {
+                    continue;
+                }
+                int lineStartOffset = textArea.getLineStartOffset(lineIndex);
+                int charsInserted = replacementIndentation.length() - originalIndentation.length();
+                desiredStartOffset = adjustOffsetAfterInsertion(desiredStartOffset, lineStartOffset, originalIndentation, replacementIndentation);
+                desiredEndOffset = adjustOffsetAfterInsertion(desiredEndOffset, lineStartOffset, originalIndentation, replacementIndentation);
+                int trimOffset = lineStartOffset + replacementLine.length();
+                int charsTrimmed = originalLine.length() - (replacementLine.length() - charsInserted);
+                desiredStartOffset = adjustOffsetAfterDeletion(desiredStartOffset, trimOffset, charsTrimmed);
+                desiredEndOffset = adjustOffsetAfterDeletion(desiredEndOffset, trimOffset, charsTrimmed);
+                textArea.replaceRange(replacementLine, lineStartOffset, lineStartOffset + originalLine.length());
+                changed = true;
+            }
+            if (changed) {
+                textArea.select(desiredStartOffset, desiredEndOffset);
+            }
+        } finally {
+            firstLineOfRun = -1;
+            currentLineOfRun = -1;
+            textArea.getLock().relinquishWriteLock();
         }
-        int lineStartOffset = textArea.getLineStartOffset(lineIndex);
-        int charsInserted = replacementIndentation.length() - originalIndentation.length();
-        int desiredStartOffset = adjustOffsetAfterInsertion(textArea.getSelectionStart(), lineStartOffset, originalIndentation, replacementIndentation);
-        int desiredEndOffset = adjustOffsetAfterInsertion(textArea.getSelectionEnd(), lineStartOffset, originalIndentation, replacementIndentation);
-        int trimOffset = lineStartOffset + replacementLine.length();
-        int charsTrimmed = originalLine.length() - (replacementLine.length() - charsInserted);
-        desiredStartOffset = adjustOffsetAfterDeletion(desiredStartOffset, trimOffset, charsTrimmed);
-        desiredEndOffset = adjustOffsetAfterDeletion(desiredEndOffset, trimOffset, charsTrimmed);
-        textArea.replaceRange(replacementLine, lineStartOffset, lineStartOffset + originalLine.length());
-        textArea.select(desiredStartOffset, desiredEndOffset);
+    }
+    
+    /**
+     * Returns true if we're fixing a run of lines, and the given line is one
+     * we've already fixed. Nothing but the run itself has changed the text
+     * since we started it.
+     */
+    protected final boolean isEarlierLineOfRun(int lineIndex) {
+        return (lineIndex >= firstLineOfRun && lineIndex < currentLineOfRun);
     }
     
     /**
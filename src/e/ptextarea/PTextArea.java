@@ -7,6 +7,7 @@ import java.util.*;
 import java.util.List;
 import java.util.regex.*;
 import javax.swing.*;
+import javax.swing.event.*;
 import e.gui.*;
 import e.util.*;
 
@@ -18,6 +19,10 @@ import e.util.*;
 public class PTextArea extends JComponent implements PLineListener, Scrollable, ClipboardOwner {
     private static final int MIN_WIDTH = 50;
     private static final int MAX_CACHED_CHAR = 128;
+    // Pasting more lines than this leaves them to be laid out as they're scrolled into view.
+    private static final int MAX_LINES_TO_LAY_OUT_EAGERLY = 256;
+    // The row starts of a line that isn't wrapped.
+    private static final int[] ONE_ROW = new int[] { 0 };
     
     public static final int NO_MARGIN = -1;
     
@@ -25,22 +30,37 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private boolean selectionEndIsAnchor;  // Otherwise, selection start is anchor.
     
     private PLineList lines;
-    // TODO: experiment with java.util.ArrayDeque in Java 6.
-    // But ArrayDeque wouldn't help bulk operations in the middle.
-    private List<SplitLine> splitLines;
+    // Whether the lines' row counts (most of them estimates) are up to date with our width.
+    private boolean lineWrappingValid = false;
+    private RowStartCache rowStartCache = new RowStartCache();
+    // Lays out the lines that come into view as we're scrolled, before they're painted. See layOutVisibleLines.
+    private ChangeListener viewportListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent e) {
+            layOutVisibleLines();
+        }
+    };
+    private JViewport listenedViewport;
+    private boolean isLayingOutVisibleLines = false;
+    private volatile boolean isVisibleLineLayoutPending = false;
     
     // We cache the FontMetrics for readability rather than performance.
     private FontMetrics metrics;
     private int[] widthCache;
+    // Our font in each combination of Font.BOLD and Font.ITALIC, derived when first needed.
+    private Font[] styleFonts;
     
-    private PHighlightManager highlights = new PHighlightManager();
+    private PHighlightManager highlights = new PHighlightManager(this);
+    private PMatchFinder matchFinder;
     private PTextStyler textStyler = new PPlainTextStyler(this);
     private List<StyleApplicator> styleApplicators;
     private TabStyleApplicator tabStyleApplicator = new TabStyleApplicator(this);
+    // The style applicators followed by the tab applicator, as an array for getLineSegments.
+    private volatile StyleApplicator[] stylePipeline;
     
     private int rightHandMarginColumn = NO_MARGIN;
     private ArrayList<PCaretListener> caretListeners = new ArrayList<PCaretListener>();
-    private TreeMap<Integer, List<PLineSegment>> segmentCache = new TreeMap<Integer, List<PLineSegment>>();
+    private PSegmentCache segmentCache = new PSegmentCache();
+    private PBracketIndex bracketIndex;
     
     private int rowCount;
     private int columnCount;
@@ -64,11 +84,16 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         this.editable = true;
         this.wordWrap = false;
         this.fileType = FileType.PLAIN_TEXT;
-        this.lines = new PLineList(new PTextBuffer());
+        PTextBuffer buffer = new PTextBuffer();
+        // The highlights need to be up to date before anyone else (the spelling checker, say) hears about a change.
+        buffer.addTextListener(highlights);
+        this.lines = new PLineList(buffer);
         this.selection = new SelectionHighlight(this, 0, 0);
+        this.matchFinder = new PMatchFinder(this);
         this.indenter = new PNoOpIndenter(this);
         
         initStyleApplicators();
+        this.bracketIndex = new PBracketIndex(this);
         lines.addLineListener(this);
         revalidateLineWrappings();
         
@@ -165,10 +190,19 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     public void addStyleApplicator(StyleApplicator styleApplicator) {
         styleApplicators.add(styleApplicator);
+        updateStylePipeline();
     }
     
     public void addStyleApplicatorFirst(StyleApplicator styleApplicator) {
         styleApplicators.add(0, styleApplicator);
+        updateStylePipeline();
+    }
+    
+    private void updateStylePipeline() {
+        StyleApplicator[] pipeline = styleApplicators.toArray(new StyleApplicator[styleApplicators.size() + 1]);
+        // Tabs are always dealt with last.
+        pipeline[pipeline.length - 1] = tabStyleApplicator;
+        stylePipeline = pipeline;
     }
     
     // Selection methods.
@@ -307,7 +341,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     /**
-     * Avoids NullPointerExceptions when we try to use the splitLines before they're available.
+     * Avoids NullPointerExceptions when we try to use the line wrapping before it's available.
      * I think the only way we can fix this properly is to remember what we've been asked to do, and do it as soon as we're able.
      * Hence the name.
      * 
@@ -327,6 +361,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             return;
         }
         
+        layOutLinesAround(offset);
         Point point = getViewCoordinates(getCoordinates(offset));
         final int height = viewport.getExtentSize().height;
         int y = point.y - height/2;
@@ -340,6 +375,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             return;
         }
         
+        layOutLinesAround(offset);
         Point point = getViewCoordinates(getCoordinates(offset));
         scrollRectToVisible(new Rectangle(point.x - 1, point.y - metrics.getMaxAscent(), 3, metrics.getHeight()));
     }
@@ -455,6 +491,44 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    /**
+     * Remembers where the rows of the last few wrapped lines start, because
+     * the renderer asks about them a row at a time. Synchronized, because
+     * several threads may be reading the text at once.
+     */
+    private static class RowStartCache {
+        private static final int SIZE = 16;
+        
+        private final int[] lineIndexes = new int[SIZE];
+        private final int[][] rowStarts = new int[SIZE][];
+        // The entry to replace next.
+        private int next = 0;
+        
+        RowStartCache() {
+            Arrays.fill(lineIndexes, -1);
+        }
+        
+        synchronized int[] get(int lineIndex) {
+            for (int i = 0; i < SIZE; ++i) {
+                if (lineIndexes[i] == lineIndex) {
+                    return rowStarts[i];
+                }
+            }
+            return null;
+        }
+        
+        synchronized void put(int lineIndex, int[] newRowStarts) {
+            lineIndexes[next] = lineIndex;
+            rowStarts[next] = newRowStarts;
+            next = (next + 1) % SIZE;
+        }
+        
+        synchronized void clear() {
+            Arrays.fill(lineIndexes, -1);
+            Arrays.fill(rowStarts, null);
+        }
+    }
+    
     public boolean hasSelection() {
         return (getSelectionStart() != getSelectionEnd());
     }
@@ -475,7 +549,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private void initFocusListening() {
         addFocusListener(new FocusListener() {
             private boolean firstFocusGain = true;
-
+            
             public void focusGained(FocusEvent e) {
                 repaint();
                 if (firstFocusGain) {
@@ -574,9 +648,19 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public void setTextStyler(PTextStyler textStyler) {
-        this.textStyler = textStyler;
+        getLock().getWriteLock();
+        try {
+            // Stylers install themselves as they're constructed, and FileType installs them again, so this may be the styler we already have.
+            if (this.textStyler != null && this.textStyler != textStyler) {
+                this.textStyler.detachFromTextArea();
+            }
+            this.textStyler = textStyler;
+        } finally {
+            getLock().relinquishWriteLock();
+        }
         initStyleApplicators();
         clearSegmentCache();
+        bracketIndex.clear();
         repaint();
     }
     
@@ -606,6 +690,21 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         for (int i = 0; i < MAX_CACHED_CHAR; i++) {
             widthCache[i] = metrics.charWidth(i);
         }
+        styleFonts = new Font[4];
+    }
+    
+    /**
+     * Returns our font, made bold and/or italic as the given style requires.
+     * Deriving a font isn't cheap, and the renderer wants one for every
+     * keyword on the screen, so we only do it once for each combination.
+     */
+    Font getFontForStyle(PStyle style) {
+        final int fontStyle = (style.isBold() ? Font.BOLD : 0) | (style.isItalic() ? Font.ITALIC : 0);
+        Font[] fonts = styleFonts;
+        if (fonts[fontStyle] == null) {
+            fonts[fontStyle] = (fontStyle == Font.PLAIN) ? getFont() : getFont().deriveFont(fontStyle);
+        }
+        return fonts[fontStyle];
     }
     
     public void addHighlight(PHighlight highlight) {
@@ -648,6 +747,10 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public void removeHighlights(String highlightManager) {
+        if (highlightManager.equals(PFind.MatchHighlight.HIGHLIGHTER_NAME)) {
+            // Otherwise a search still in progress would bring them back.
+            matchFinder.cancel();
+        }
         removeHighlights(highlightManager, 0, getTextBuffer().length() + 1);
     }
     
@@ -657,17 +760,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     public void removeHighlights(String highlighterName, int beginOffset, int endOffset) {
         getLock().getWriteLock();
         try {
-            List<PHighlight> removeList = highlights.getNamedHighlightsOverlapping(highlighterName, beginOffset, endOffset);
-            IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
-            for (PHighlight highlight : removeList) {
-                highlight.collectAnchors(deadAnchors);
-                highlights.remove(highlight);
-            }
-            getTextBuffer().getAnchorSet().removeAll(deadAnchors);
-            if (removeList.size() == 1) {
-                repaintHighlight(removeList.get(0));
-            } else if (removeList.size() > 1) {
-                repaint();
+            Range removedRange = highlights.removeNamedHighlightsOverlapping(highlighterName, beginOffset, endOffset);
+            if (removedRange != Range.NULL_RANGE) {
+                repaintIndexRange(removedRange.getStart(), removedRange.getEnd());
             }
         } finally {
             getLock().relinquishWriteLock();
@@ -730,7 +825,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
      * character we're pointing to on the returned line will behave correctly.
      */
     private int getLineIndexAtLocation(Point point) {
-        final int maxLineIndex = splitLines.size() - 1;
+        final int maxLineIndex = getSplitLineCount() - 1;
         int lineIndex = (point.y - getInsets().top) / metrics.getHeight();
         if (lineIndex > maxLineIndex) {
             point.x = Integer.MAX_VALUE;
@@ -811,62 +906,75 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         getLock().getReadLock();
         try {
             // Return it straight away if we've already cached it.
-            synchronized (segmentCache) {
-                if (segmentCache.containsKey(lineIndex)) {
-                    return segmentCache.get(lineIndex);
-                }
+            int lineStart = getLineStartOffset(lineIndex);
+            int lineStartState = textStyler.getLineStartState(lineIndex);
+            List<PLineSegment> cachedSegments = segmentCache.get(lineIndex, lineStart, lineStartState);
+            if (cachedSegments != null) {
+                return cachedSegments;
             }
             
             // Let the styler have the first go.
             List<PLineSegment> segments = textStyler.getTextSegments(lineIndex);
             
-            // Then let the style applicators add their finishing touches.
+            // Then let the style applicators add their finishing touches, and finally deal with tabs.
             String line = getLineContents(lineIndex).toString();
-            for (StyleApplicator styleApplicator : styleApplicators) {
-                segments = applyStyleApplicator(styleApplicator, line, segments);
+            StyleApplicator[] pipeline = stylePipeline;
+            List<PLineSegment> result = new ArrayList<PLineSegment>(segments.size() + 4);
+            List<List<PLineSegment>> scratchLists = new ArrayList<List<PLineSegment>>(pipeline.length);
+            for (PLineSegment segment : segments) {
+                applyStyleApplicators(pipeline, 0, line, lineStart, segment, scratchLists, result);
             }
-            
-            // Finally, deal with tabs.
-            segments = applyStyleApplicator(tabStyleApplicator, line, segments);
-            synchronized (segmentCache) {
-                segmentCache.put(lineIndex, segments);
-            }
-            return segments;
+            segmentCache.put(lineIndex, lineStart, lineStartState, result);
+            return result;
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
-    private void clearSegmentCacheFrom(int lineIndex) {
-        synchronized (segmentCache) {
-            // Take a copy of the indices.  Otherwise, if we try removing stuff from the segment cache
-            // based on values taken from the sub-tree from the line index onwards, we incur a
-            // concurrent modification exception.
-            // FIXME: http://java.sun.com/j2se/1.5.0/docs/api/java/util/HashMap.html#keySet() implies that we can use Iterator.remove to avoid this copy.
-            Set<Integer> keySet = segmentCache.tailMap(lineIndex).keySet();
-            Integer[] indices = keySet.toArray(new Integer[keySet.size()]);
-            for (int index : indices) {
-                segmentCache.remove(index);
-            }
-        }
+    /**
+     * Returns the index of the brackets in our code.  This should only be used within this package.
+     */
+    PBracketIndex getBracketIndex() {
+        return bracketIndex;
     }
     
     private void clearSegmentCache() {
-        synchronized (segmentCache) {
-            segmentCache.clear();
-        }
+        segmentCache.clear();
     }
     
-    private List<PLineSegment> applyStyleApplicator(StyleApplicator styleApplicator, String line, List<PLineSegment> inputSegments) {
-        List<PLineSegment> result = new ArrayList<PLineSegment>();
-        for (PLineSegment segment : inputSegments) {
-            if (styleApplicator.canApplyStylingTo(segment.getStyle())) {
-                result.addAll(styleApplicator.applyStylingTo(line, segment));
-            } else {
-                result.add(segment);
-            }
+    /**
+     * Passes 'segment' through the style applicators in 'pipeline' from
+     * 'depth' onwards, appending the final segments to 'result'. Each piece
+     * an applicator produces goes straight on to the next applicator, so
+     * every segment is passed through the whole pipeline before we look at
+     * the next. That produces the same segments in the same order as running
+     * each applicator over the whole line in turn, but without building a new
+     * list for every applicator, and without even calling the applicators
+     * that aren't interested in the segment's style.
+     * 
+     * 'scratchLists' holds a list for each depth, reused for each segment.
+     */
+    private static void applyStyleApplicators(StyleApplicator[] pipeline, int depth, String line, int lineStart, PLineSegment segment, List<List<PLineSegment>> scratchLists, List<PLineSegment> result) {
+        if (segment.getModelTextLength() == 0) {
+            // The tab applicator sees every segment, and has never passed on empty ones.
+            return;
+        }
+        while (depth < pipeline.length && pipeline[depth].canApplyStylingTo(segment.getStyle()) == false) {
+            ++depth;
+        }
+        if (depth == pipeline.length) {
+            result.add(segment);
+            return;
+        }
+        while (scratchLists.size() <= depth) {
+            scratchLists.add(new ArrayList<PLineSegment>());
+        }
+        List<PLineSegment> pieces = scratchLists.get(depth);
+        pieces.clear();
+        pipeline[depth].applyStylingTo(line, lineStart, segment, pieces);
+        for (int i = 0; i < pieces.size(); ++i) {
+            applyStyleApplicators(pipeline, depth + 1, line, lineStart, pieces.get(i), scratchLists, result);
         }
-        return result;
     }
     
     private void addTabbedSegments(PLineSegment segment, ArrayList<PLineSegment> target) {
@@ -897,20 +1005,15 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             if (isLineWrappingInvalid()) {
                 return new PCoordinates(-1, -1);
             }
-            int min = 0;
-            int max = splitLines.size();
-            while (max - min > 1) {
-                int mid = (min + max) / 2;
-                SplitLine line = getSplitLine(mid);
-                if (line.containsIndex(location)) {
-                    return new PCoordinates(mid, location - line.getTextIndex());
-                } else if (location < line.getTextIndex()) {
-                    max = mid;
-                } else {
-                    min = mid;
-                }
+            final int lineIndex = lines.getLineIndex(location);
+            final int charOffset = location - lines.getLine(lineIndex).getStart();
+            // The location is on the last row starting at or before it.
+            int[] rowStarts = getRowStarts(lineIndex);
+            int row = rowStarts.length - 1;
+            while (row > 0 && rowStarts[row] > charOffset) {
+                --row;
             }
-            return new PCoordinates(min, location - getSplitLine(min).getTextIndex());
+            return new PCoordinates(getSplitLineIndex(lineIndex) + row, charOffset - rowStarts[row]);
         } finally {
             getLock().relinquishReadLock();
         }
@@ -957,10 +1060,10 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         if (isLineWrappingInvalid()) {
             return;
         }
-
+        
         // FIXME: Only repaint the damaged area.
         repaintIndexRange(caret.getStartIndex(), caret.getEndIndex());
-
+        
         /*
         Point point = getViewCoordinates(getCoordinates(caret.getStartIndex()));
         repaint(point.x - 1, point.y - metrics.getMaxAscent(), 3, metrics.getMaxAscent() + metrics.getMaxDescent());
@@ -990,34 +1093,34 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             getLock().relinquishReadLock();
         }
     }
-
+    
     public void linesAdded(PLineEvent event) {
+        segmentCache.linesAdded(event.getLineIndex(), event.getLength());
+        rowStartCache.clear();
         if (isLineWrappingInvalid()) {
             return;
         }
+        // The new lines' row counts are estimates. Unless a lot of text has arrived at once, it's likely to be on the screen, so lay it out now.
         int lineIndex = event.getLineIndex();
-        clearSegmentCacheFrom(lineIndex);
-        int splitIndex = getSplitLineIndex(lineIndex);
-        int firstSplitIndex = splitIndex;
-        changeLineIndices(lineIndex, event.getLength());
-        for (int i = 0; i < event.getLength(); i++) {
-            splitIndex += addSplitLines(lineIndex++, splitIndex);
+        if (event.getLength() <= MAX_LINES_TO_LAY_OUT_EAGERLY) {
+            layOutLines(lineIndex, lineIndex + event.getLength() - 1);
+        } else {
+            layOutVisibleLinesLater();
         }
         updateHeight();
-        repaintFromLine(firstSplitIndex);
+        repaintFromLine(getSplitLineIndex(lineIndex));
     }
     
     public void linesRemoved(PLineEvent event) {
+        segmentCache.linesRemoved(event.getLineIndex(), event.getLength());
+        rowStartCache.clear();
         if (isLineWrappingInvalid()) {
             return;
         }
-        clearSegmentCacheFrom(event.getLineIndex());
-        int beginSplitIndex = getSplitLineIndex(event.getLineIndex());
-        int endSplitIndex = getSplitLineIndex(event.getLineIndex() + event.getLength());
-        removeSplitLines(beginSplitIndex, endSplitIndex);
-        changeLineIndices(event.getLineIndex() + event.getLength(), -event.getLength());
+        // Lines we've only estimated may have moved up into view.
+        layOutVisibleLinesLater();
         updateHeight();
-        repaintFromLine(beginSplitIndex);
+        repaintFromLine(getSplitLineIndex(event.getLineIndex()));
     }
     
     public void linesCompletelyReplaced(PLineEvent event) {
@@ -1025,40 +1128,22 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         revalidateLineWrappings();
     }
     
-    private void changeLineIndices(int lineIndex, int change) {
-        for (int i = getSplitLineIndex(lineIndex); i < splitLines.size(); i++) {
-            SplitLine line = getSplitLine(i);
-            line.setLineIndex(line.getLineIndex() + change);
-        }
-    }
-    
     public void linesChanged(PLineEvent event) {
-        clearSegmentCacheFrom(event.getLineIndex());
+        // Only the changed lines need restyling. Lines after them may have moved, or may now start in a different state, but the cache notices that for itself.
+        for (int i = 0; i < event.getLength(); ++i) {
+            segmentCache.remove(event.getLineIndex() + i);
+        }
+        rowStartCache.clear();
         if (isLineWrappingInvalid()) {
             return;
         }
-        int lineCountChange = 0;
-        int minLine = Integer.MAX_VALUE;
-        int visibleLineCount = 0;
-        for (int i = 0; i < event.getLength(); i++) {
-            PLineList.Line line = lines.getLine(event.getLineIndex() + i);
-            setLineWidth(line);
-            int beginSplitIndex = getSplitLineIndex(event.getLineIndex()); // FIXME: shouldn't this be "+ i" too?
-            int endSplitIndex = getSplitLineIndex(event.getLineIndex() + 1);
-            if (i == 0) {
-                minLine = beginSplitIndex;
-            }
-            int removedCount = removeSplitLines(beginSplitIndex, endSplitIndex);
-            lineCountChange -= removedCount;
-            int addedCount = addSplitLines(event.getLineIndex(), beginSplitIndex);
-            lineCountChange += addedCount;
-            visibleLineCount += addedCount;
-        }
-        if (lineCountChange != 0) {
+        final int lineIndex = event.getLineIndex();
+        final int rowCountChange = layOutLines(lineIndex, lineIndex + event.getLength() - 1);
+        if (rowCountChange != 0) {
             updateHeight();
-            repaintFromLine(getSplitLineIndex(event.getLineIndex()));
+            repaintFromLine(getSplitLineIndex(lineIndex));
         } else {
-            repaintLines(minLine, minLine + visibleLineCount);
+            repaintLines(getSplitLineIndex(lineIndex), getSplitLineIndex(lineIndex + event.getLength()));
         }
     }
     
@@ -1075,17 +1160,21 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public boolean isLineWrappingInvalid() {
-        return (splitLines == null);
+        return (lineWrappingValid == false);
     }
     
     private void revalidateLineWrappings() {
         getLock().getWriteLock();
         try {
-            splitLines = null;
+            lineWrappingValid = false;
             generateLineWrappings();
         } finally {
             getLock().relinquishWriteLock();
         }
+        // Don't leave the estimates on the screen until generateLineWrappings' layout runs.
+        if (EventQueue.isDispatchThread()) {
+            layOutVisibleLines();
+        }
     }
     
     /** Only for use by class Rewrapper. */
@@ -1108,83 +1197,211 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
      */
     public void addNotify() {
         super.addNotify();
+        listenedViewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        if (listenedViewport != null) {
+            listenedViewport.addChangeListener(viewportListener);
+        }
         generateLineWrappings();
     }
     
+    public void removeNotify() {
+        if (listenedViewport != null) {
+            listenedViewport.removeChangeListener(viewportListener);
+            listenedViewport = null;
+        }
+        super.removeNotify();
+    }
+    
+    /**
+     * Estimates how many rows each line will take up at our current width.
+     * Measuring every character of every line would take far too long for a
+     * large file, and most of them will never be shown, so we only lay out
+     * lines properly as they come into view (see layOutVisibleLines). This
+     * costs time proportional to the number of lines, but doesn't look at
+     * the text.
+     */
     private void generateLineWrappings() {
         getLock().getWriteLock();
         try {
             if (isLineWrappingInvalid() && isShowing()) {
-                splitLines = new ArrayList<SplitLine>();
-                for (int i = 0; i < lines.size(); i++) {
-                    PLineList.Line line = lines.getLine(i);
-                    if (line.isWidthValid() == false) {
-                        setLineWidth(line);
-                    }
-                    addSplitLines(i, splitLines.size());
-                }
+                lines.estimateRowCounts(getWrapWidth(), widthCache['n']);
+                rowStartCache.clear();
+                lineWrappingValid = true;
                 updateHeight();
+                // We may be painting, so the lines on the screen are laid out afterwards.
+                layOutVisibleLinesLater();
             }
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
-    private void updateHeight() {
-        Dimension size = getSize();
-        Insets insets = getInsets();
-        size.height = metrics.getHeight() * splitLines.size() + insets.top + insets.bottom;
-        setSize(size);
-        setPreferredSize(size);
+    /**
+     * Lays out the lines on the screen, and a screenful either side, so
+     * that what's shown is wrapped exactly rather than estimated. If that
+     * changes how many rows there are above the top of the screen, we
+     * scroll to keep the same text on the screen.
+     * 
+     * Because this can change our size and scroll position, it's never
+     * done while painting. Instead it's done whenever our viewport scrolls
+     * or changes size, when we're rewrapped, and after changes to the text
+     * that may bring estimated lines into view.
+     */
+    private void layOutVisibleLines() {
+        // Our own scrolling and resizing tells the viewport listener, but everything's already laid out.
+        if (isLayingOutVisibleLines) {
+            return;
+        }
+        isLayingOutVisibleLines = true;
+        getLock().getReadLock();
+        try {
+            layOutVisibleLines(getVisibleRect());
+        } finally {
+            getLock().relinquishReadLock();
+            isLayingOutVisibleLines = false;
+        }
     }
     
-    private int removeSplitLines(int beginSplitIndex, int endSplitIndex) {
-        splitLines.subList(beginSplitIndex, endSplitIndex).clear();
-        return endSplitIndex - beginSplitIndex;
+    private void layOutVisibleLines(Rectangle visible) {
+        if (isLineWrappingInvalid() || visible.height <= 0) {
+            return;
+        }
+        final int lineHeight = metrics.getHeight();
+        final int visibleRowCount = visible.height / lineHeight + 1;
+        final int topRow = Math.max(0, (visible.y - getInsets().top) / lineHeight);
+        final int topLine = lines.getLineIndexOfRow(topRow);
+        final int topRowWithinLine = topRow - lines.getFirstRowOfLine(topLine);
+        
+        final int rowCountChangeAbove = layOutLines(lines.getLineIndexOfRow(Math.max(0, topRow - visibleRowCount)), topLine - 1);
+        boolean changed = (rowCountChangeAbove != 0);
+        int rowCountChange;
+        do {
+            // If the lines turn out to need fewer rows than we thought, more of them will fit, so go round again.
+            int lastLine = lines.getLineIndexOfRow(lines.getFirstRowOfLine(topLine) + topRowWithinLine + 2 * visibleRowCount);
+            rowCountChange = layOutLines(topLine, lastLine);
+            changed = changed || (rowCountChange != 0);
+        } while (rowCountChange < 0);
+        
+        if (changed) {
+            updateHeight();
+            JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+            if (viewport != null && rowCountChangeAbove != 0) {
+                Point position = viewport.getViewPosition();
+                position.y = Math.max(0, position.y + rowCountChangeAbove * lineHeight);
+                viewport.setViewPosition(position);
+            }
+            repaint();
+        }
     }
     
-    public int getSplitLineIndex(int lineIndex) {
+    /**
+     * Arranges for layOutVisibleLines to be called on the event dispatch
+     * thread once whoever called us has finished.
+     */
+    private void layOutVisibleLinesLater() {
+        if (isVisibleLineLayoutPending) {
+            return;
+        }
+        isVisibleLineLayoutPending = true;
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                isVisibleLineLayoutPending = false;
+                layOutVisibleLines();
+            }
+        });
+    }
+    
+    /**
+     * Lays out the lines within a screenful of the one containing 'offset',
+     * so we know exactly where it is before we scroll to it.
+     */
+    private void layOutLinesAround(int offset) {
+        final int visibleRowCount = getVisibleRect().height / metrics.getHeight() + 1;
+        final int lineIndex = getLineOfOffset(offset);
+        if (layOutLines(lineIndex - visibleRowCount, lineIndex + visibleRowCount) != 0) {
+            updateHeight();
+        }
+    }
+    
+    /**
+     * Lays out lines firstLine to lastLine inclusive (or as many of them as
+     * exist), replacing any estimates of how many rows they need. Returns
+     * the change in the number of rows they take up.
+     */
+    private int layOutLines(int firstLine, int lastLine) {
         getLock().getReadLock();
         try {
-            if (lineIndex > getSplitLine(splitLines.size() - 1).getLineIndex()) {
-                return splitLines.size();
+            firstLine = Math.max(0, firstLine);
+            lastLine = Math.min(lines.size() - 1, lastLine);
+            // Usually they're all laid out already, and there's no need to ask for the write lock.
+            while (firstLine <= lastLine && lines.getLine(firstLine).isRowCountExact()) {
+                ++firstLine;
+            }
+            if (firstLine > lastLine) {
+                return 0;
             }
-            int min = 0;
-            int max = splitLines.size();
-            while (max - min > 1) {
-                int mid = (min + max) / 2;
-                int midIndex = getSplitLine(mid).getLineIndex();
-                if (midIndex == lineIndex) {
-                    return backtrackToLineStart(mid);
-                } else if (midIndex > lineIndex) {
-                    max = mid;
-                } else {
-                    min = mid;
+            getLock().getWriteLock();
+            try {
+                int rowCountChange = 0;
+                for (int lineIndex = firstLine; lineIndex <= lastLine; ++lineIndex) {
+                    rowCountChange += layOutLine(lineIndex);
                 }
+                return rowCountChange;
+            } finally {
+                getLock().relinquishWriteLock();
             }
-            return backtrackToLineStart(min);
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
-    private int backtrackToLineStart(int splitIndex) {
-        while (getSplitLine(splitIndex).getOffset() > 0) {
-            splitIndex--;
+    /**
+     * Wraps the given line, replacing any estimate of how many rows it needs, and returns the change in its row count.
+     */
+    private int layOutLine(int lineIndex) {
+        PLineList.Line line = lines.getLine(lineIndex);
+        if (line.isRowCountExact()) {
+            return 0;
+        }
+        final int oldRowCount = line.getRowCount();
+        int[] rowStarts = wrapLine(line);
+        line.setRowCount(rowStarts.length);
+        if (rowStarts.length > 1) {
+            rowStartCache.put(lineIndex, rowStarts);
+        }
+        return rowStarts.length - oldRowCount;
+    }
+    
+    private void updateHeight() {
+        Dimension size = getSize();
+        Insets insets = getInsets();
+        size.height = metrics.getHeight() * getSplitLineCount() + insets.top + insets.bottom;
+        setSize(size);
+        setPreferredSize(size);
+    }
+    
+    public int getSplitLineIndex(int lineIndex) {
+        getLock().getReadLock();
+        try {
+            if (lineIndex >= lines.size()) {
+                return lines.getRowCount();
+            }
+            return lines.getFirstRowOfLine(lineIndex);
+        } finally {
+            getLock().relinquishReadLock();
         }
-        return splitIndex;
     }
     
     public void logLineInfo() {
         Log.warn("Dumping PTextArea SplitLine info:");
-        for (int i = 0; i < splitLines.size(); i++) {
+        for (int i = 0; i < getSplitLineCount(); i++) {
             SplitLine line = getSplitLine(i);
             Log.warn("SplitLine " + i + ": line " + line.getLineIndex() + ", offset " + line.getOffset() + ", length " + line.getLength());
         }
     }
     
     public int getSplitLineCount() {
-        return (splitLines != null) ? splitLines.size() : getLineCount();
+        return isLineWrappingInvalid() ? getLineCount() : lines.getRowCount();
     }
     
     public SplitLine getSplitLineOfOffset(int offset) {
@@ -1192,56 +1409,105 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     public SplitLine getSplitLine(int index) {
-        return splitLines.get(index);
+        getLock().getReadLock();
+        try {
+            final int lineIndex = lines.getLineIndexOfRow(index);
+            final int row = index - lines.getFirstRowOfLine(lineIndex);
+            int[] rowStarts = getRowStarts(lineIndex);
+            if (row < 0 || row >= rowStarts.length) {
+                throw new IndexOutOfBoundsException("Row " + index + " out of bounds in text of " + getSplitLineCount() + " rows");
+            }
+            final int start = rowStarts[row];
+            final int end = (row + 1 < rowStarts.length) ? rowStarts[row + 1] : lines.getLine(lineIndex).getLengthBeforeTerminator();
+            return new SplitLine(this, lineIndex, start, end - start);
+        } finally {
+            getLock().relinquishReadLock();
+        }
     }
     
-    private int addSplitLines(int lineIndex, int index) {
+    /**
+     * Returns the offsets within the given line at which each of its rows
+     * starts. A line we haven't laid out yet is shared evenly between the
+     * rows we've estimated it needs.
+     */
+    private int[] getRowStarts(int lineIndex) {
         PLineList.Line line = lines.getLine(lineIndex);
-        final int initialSplitLineCount = splitLines.size();
-        if (line.isWidthValid() == false) {
-            setLineWidth(line);
+        final int rowCount = line.getRowCount();
+        if (rowCount == 1) {
+            return ONE_ROW;
+        }
+        if (line.isRowCountExact() == false) {
+            int[] result = new int[rowCount];
+            final long length = line.getLengthBeforeTerminator();
+            for (int i = 0; i < rowCount; ++i) {
+                result[i] = (int) (length * i / rowCount);
+            }
+            return result;
+        }
+        int[] result = rowStartCache.get(lineIndex);
+        if (result == null) {
+            result = wrapLine(line);
+            rowStartCache.put(lineIndex, result);
         }
+        return result;
+    }
+    
+    /**
+     * Returns the width available for text; wider lines are wrapped.
+     */
+    private int getWrapWidth() {
         Insets insets = getInsets();
         int width = getWidth() - insets.left - insets.right;
         if (width <= 0) {
             width = Integer.MAX_VALUE;  // Don't wrap if we don't have any size.
         }
-        width = Math.max(width, MIN_WIDTH);  // Ensure we're at least a sensible width.
+        return Math.max(width, MIN_WIDTH);  // Ensure we're at least a sensible width.
+    }
+    
+    /**
+     * Returns the offsets within the given line at which each of its rows starts when it's wrapped to fit our width.
+     */
+    private int[] wrapLine(PLineList.Line line) {
+        if (line.isWidthValid() == false) {
+            setLineWidth(line);
+        }
+        final int width = getWrapWidth();
         if (line.getWidth() <= width) {
             // The whole line fits.
-            splitLines.add(index, new SplitLine(this, lineIndex, 0, line.getContents().length()));
-        } else {
-            // The line's too long, so break it into SplitLines.
-            int x = 0;
-            CharSequence chars = line.getContents();
-            int lastSplitOffset = 0;
-            for (int i = 0; i < chars.length(); i++) {
-                char ch = chars.charAt(i);
-                x = addCharWidth(x, ch);
-                if (x >= width - getMinimumWrapMarkWidth()) {
-                    if (wordWrap) {
-                        // Try to find a break before the last break.
-                        for (int splitOffset = i; splitOffset >= lastSplitOffset; --splitOffset) {
-                            if (chars.charAt(splitOffset) == ' ' && splitOffset < chars.length() - 1) {
-                                // Break so that the word goes to the next line
-                                // but the inter-word character stays where it
-                                // was.
-                                i = splitOffset + 1;
-                                ch = chars.charAt(i);
-                                break;
-                            }
+            return ONE_ROW;
+        }
+        // The line's too long, so break it into rows.
+        int[] rowStarts = new int[8];
+        int rowCount = 1;
+        int x = 0;
+        CharSequence chars = line.getContents();
+        int lastSplitOffset = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char ch = chars.charAt(i);
+            x = addCharWidth(x, ch);
+            if (x >= width - getMinimumWrapMarkWidth()) {
+                if (wordWrap) {
+                    // Try to find a break before the last break.
+                    for (int splitOffset = i; splitOffset >= lastSplitOffset; --splitOffset) {
+                        if (chars.charAt(splitOffset) == ' ' && splitOffset < chars.length() - 1) {
+                            // Break so that the word goes to the next line
+                            // but the inter-word character stays where it
+                            // was.
+                            i = splitOffset + 1;
+                            ch = chars.charAt(i);
+                            break;
                         }
                     }
-                    splitLines.add(index++, new SplitLine(this, lineIndex, lastSplitOffset, i - lastSplitOffset));
-                    lastSplitOffset = i;
-                    x = addCharWidth(0, ch);
                 }
-            }
-            if (x > 0) {
-                splitLines.add(index++, new SplitLine(this, lineIndex, lastSplitOffset, chars.length() - lastSplitOffset));
+                if (rowCount == rowStarts.length) {
+                    rowStarts = Arrays.copyOf(rowStarts, rowCount * 2);
+                }
+                rowStarts[rowCount++] = i;
+                lastSplitOffset = i;
+                x = addCharWidth(0, ch);
             }
         }
-        return (splitLines.size() - initialSplitLineCount);
+        return Arrays.copyOf(rowStarts, rowCount);
     }
     
     /**
@@ -1254,7 +1520,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     private int addCharWidth(int x, char ch) {
-        // FIXME: this is a hack, and doesn't generalize to arbitrary PTextSegments for which getViewText and getCharSequence (that is, the model text) return different strings. I tried to rewrite the wrapping code to use getLineSegments. setLineWidth is easy, but addSplitLines is pretty difficult because you need to keep track of the two strings and the correspondence between offsets in them, or rewrite it completely to work on the text segments itself. This code has been known broken since at least 2005-06, so another special case is better than nothing.
+        // FIXME: this is a hack, and doesn't generalize to arbitrary PTextSegments for which getViewText and getCharSequence (that is, the model text) return different strings. I tried to rewrite the wrapping code to use getLineSegments. setLineWidth is easy, but wrapLine is pretty difficult because you need to keep track of the two strings and the correspondence between offsets in them, or rewrite it completely to work on the text segments itself. This code has been known broken since at least 2005-06, so another special case is better than nothing.
         if (ch == '\t') {
             return x + PTabSegment.SINGLE_TAB.getDisplayWidth(metrics, x);
         } else if (ch < ' ' || ch == '\u007f') {
@@ -1441,49 +1707,62 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     //
     
     /**
-     * Highlights all matches of the given regular expression.
+     * Highlights all matches of the given regular expression, searching on
+     * the calling thread, and returns the number of matches.
      * The given BirdView (which can be null) will be updated to correspond to the new matches.
      */
     public int findAllMatches(String regularExpression, BirdView birdView) {
-        getLock().getWriteLock();
-        try {
-            return findAllMatchesWithWriteLockAlreadyHeld(regularExpression, birdView);
-        } finally {
-            getLock().relinquishWriteLock();
+        Pattern pattern = compileFindPattern(regularExpression);
+        if (pattern == null) {
+            matchFinder.findAllMatches(null, birdView, null);
+            return 0;
         }
+        matchFinder.findAllMatchesNow(pattern, birdView);
+        return getFindMatchCount();
     }
     
-    private int findAllMatchesWithWriteLockAlreadyHeld(String regularExpression, BirdView birdView) {
-        removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME);
-        if (birdView != null) {
-            birdView.clearMatchingLines();
+    /**
+     * Highlights all matches of the given regular expression, searching on a
+     * background thread, starting with the visible text. The given BirdView
+     * and listener (either of which can be null) are updated on the event
+     * dispatch thread as each batch of matches is highlighted.
+     * 
+     * Asking again for the regular expression that's already highlighted
+     * only searches the text edited since then.
+     * 
+     * Throws PatternSyntaxException straight away if the regular expression is invalid.
+     */
+    public void findAllMatchesInBackground(String regularExpression, BirdView birdView, Runnable progressListener) {
+        Pattern pattern = compileFindPattern(regularExpression);
+        if (matchFinder.isFinding(pattern, birdView)) {
+            matchFinder.updateMatches();
+        } else {
+            matchFinder.findAllMatches(pattern, birdView, progressListener);
         }
-        
-        // Anything to search for?
+    }
+    
+    private static Pattern compileFindPattern(String regularExpression) {
         if (regularExpression == null || regularExpression.length() == 0) {
-            return 0;
+            return null;
         }
-        
-        // Find all the matches.
-        if (birdView != null) {
-            birdView.setValueIsAdjusting(true);
+        return PatternUtilities.smartCaseCompile(regularExpression);
+    }
+    
+    void addFindMatches(int[] matchStarts, int[] matchEnds, int matchCount) {
+        if (matchCount == 0) {
+            return;
         }
+        getLock().getWriteLock();
         try {
-            int matchCount = 0;
-            Matcher matcher = PatternUtilities.smartCaseCompile(regularExpression).matcher(getTextBuffer());
-            while (matcher.find()) {
-                if (birdView != null) {
-                    birdView.addMatchingLine(getLineOfOffset(matcher.end()));
+            highlights.addAll(PFind.MatchHighlight.HIGHLIGHTER_NAME, matchStarts, matchEnds, matchCount, new PHighlightManager.HighlightFactory() {
+                public PHighlight makeHighlight(int startIndex, int endIndex) {
+                    return new PFind.MatchHighlight(PTextArea.this, startIndex, endIndex);
                 }
-                addHighlight(new PFind.MatchHighlight(this, matcher.start(), matcher.end()));
-                ++matchCount;
-            }
-            return matchCount;
+            });
         } finally {
-            if (birdView != null) {
-                birdView.setValueIsAdjusting(false);
-            }
+            getLock().relinquishWriteLock();
         }
+        repaint();
     }
     
     public void findNext() {
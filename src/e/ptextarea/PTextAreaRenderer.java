@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import e.util.*;
 import java.awt.*;
+import java.beans.*;
 import java.util.*;
 import javax.swing.*;
 
@@ -19,10 +20,29 @@ final class PTextAreaRenderer {
         disabledLabel.setEnabled(false);
     }
     
+    // The desktop rendering hints, so that if the user's chosen anti-aliased text, we give it to them.
+    // Asking the Toolkit for them on every paint is surprisingly expensive, so we keep a copy, and replace it if they change.
+    private static final String DESKTOP_HINTS_PROPERTY = "awt.font.desktophints";
+    private static volatile Map<?, ?> desktopHints;
+    static {
+        Toolkit toolkit = Toolkit.getDefaultToolkit();
+        desktopHints = (Map<?, ?>) toolkit.getDesktopProperty(DESKTOP_HINTS_PROPERTY);
+        toolkit.addPropertyChangeListener(DESKTOP_HINTS_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent e) {
+                desktopHints = (Map<?, ?>) e.getNewValue();
+            }
+        });
+    }
+    
     private PTextArea textArea;
     private Graphics2D g;
     private FontMetrics metrics;
     
+    // The run of same-style text waiting to be drawn by paintRun, and where it starts.
+    private final StringBuilder run = new StringBuilder();
+    private PStyle runStyle;
+    private int runX;
+    
     PTextAreaRenderer(PTextArea textArea, Graphics2D g, FontMetrics metrics) {
         this.textArea = textArea;
         this.g = g;
@@ -32,10 +52,9 @@ final class PTextAreaRenderer {
     void render() {
         Stopwatch.Timer timer = paintStopwatch.start();
         try {
-            // Get the desktop rendering hints so that if the user's chosen anti-aliased text, we give it to them.
-            Map<?, ?> map = (Map<?, ?>) (Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints"));
-            if (map != null) {
-                g.addRenderingHints(map);
+            Map<?, ?> hints = desktopHints;
+            if (hints != null) {
+                g.addRenderingHints(hints);
             }
             
             Rectangle bounds = g.getClipBounds();
@@ -68,6 +87,9 @@ final class PTextAreaRenderer {
             // Paint the highlights on those lines.
             paintHighlights(minLine, maxLine);
             
+            // The caret goes behind the text, like the highlights.
+            paintCaretIfVisible(minLine, maxLine);
+            
             // Paint the text.
             g.setFont(textArea.getFont());
             int startX = insets.left;
@@ -86,34 +108,31 @@ final class PTextAreaRenderer {
     
     private void paintTextLines(int minLine, int maxLine, int startX, int startY, Color overrideColor) {
         int baseline = startY;
-        int paintCharOffset = textArea.getSplitLine(minLine).getTextIndex();
         int x = startX;
         int line = minLine;
-        int caretOffset = textArea.hasSelection() ? -1 : textArea.getSelectionStart();
-        Iterator<PLineSegment> it = textArea.getWrappedSegmentIterator(paintCharOffset);
+        Iterator<PLineSegment> it = textArea.getWrappedSegmentIterator(textArea.getSplitLine(minLine).getTextIndex());
         while (it.hasNext()) {
             PLineSegment segment = it.next();
-            paintCharOffset = segment.getEnd();
-
-            if (segment.getOffset() == caretOffset && segment.isNewline() == false) {
-                paintCaret(x, baseline);
-            } else if (segment.getOffset() <= caretOffset && segment.getEnd() > caretOffset) {
-                int caretX = x + segment.getDisplayWidth(metrics, x, caretOffset - segment.getOffset());
-                paintCaret(caretX, baseline);
+            PStyle style = segment.getStyle();
+            
+            if (segment instanceof PTextSegment && style.isUnderlined() == false) {
+                // Plain text is just drawn, so rather than draw each segment separately, we draw runs of adjacent segments in the same style in one go.
+                if (style != runStyle) {
+                    paintRun(baseline, overrideColor);
+                    runStyle = style;
+                    runX = x;
+                }
+                String text = segment.getViewText();
+                run.append(text);
+                x += metrics.stringWidth(text);
+                continue;
             }
             
-            PStyle style = segment.getStyle();
+            paintRun(baseline, overrideColor);
             g.setColor(overrideColor != null ? overrideColor : style.getColor());
-            if (style.isBold() || style.isItalic()) {
-                Font orig = g.getFont();
-                g.setFont(orig.deriveFont((style.isBold() ? Font.BOLD : 0) +
-                                          (style.isItalic() ? Font.ITALIC : 0)));
-                segment.paint(g, x, baseline);
-                g.setFont(orig);
-            } else {
-                segment.paint(g, x, baseline);
-            }
-
+            g.setFont(textArea.getFontForStyle(style));
+            segment.paint(g, x, baseline);
+            
             x += segment.getDisplayWidth(metrics, x);
             if (segment.isNewline()) {
                 x = startX;
@@ -124,9 +143,21 @@ final class PTextAreaRenderer {
                 }
             }
         }
-        if (caretOffset == paintCharOffset) {
-            paintCaret(x, baseline);
+        paintRun(baseline, overrideColor);
+    }
+    
+    /**
+     * Draws the text collected by paintTextLines since the last call, if any.
+     */
+    private void paintRun(int baseline, Color overrideColor) {
+        if (run.length() == 0) {
+            return;
         }
+        g.setColor(overrideColor != null ? overrideColor : runStyle.getColor());
+        g.setFont(textArea.getFontForStyle(runStyle));
+        g.drawString(run.toString(), runX, baseline);
+        run.setLength(0);
+        runStyle = null;
     }
     
     /**
@@ -164,12 +195,20 @@ final class PTextAreaRenderer {
         //stopWatch.print("Highlight painting");
     }
 
-    private void paintCaret(int x, int y) {
-        if (textArea.isEnabled() == false) {
-            // A disabled component shouldn't render a caret either.
+    private void paintCaretIfVisible(int minLine, int maxLine) {
+        if (textArea.isEnabled() == false || textArea.hasSelection()) {
+            // A disabled component shouldn't render a caret either, and there's no caret when there's a selection.
             return;
         }
-
+        PCoordinates coordinates = textArea.getCoordinates(textArea.getSelectionStart());
+        if (coordinates.getLineIndex() < minLine || coordinates.getLineIndex() > maxLine) {
+            return;
+        }
+        Point point = textArea.getViewCoordinates(coordinates);
+        paintCaret(point.x, point.y);
+    }
+    
+    private void paintCaret(int x, int y) {
         PCoordinates end = textArea.getCoordinates(textArea.getSelectionStart() + 1);
         Point endPt = textArea.getViewCoordinates(end);
         
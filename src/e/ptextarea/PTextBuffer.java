@@ -3,6 +3,7 @@ package e.ptextarea;
 import e.util.*;
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
@@ -18,7 +19,13 @@ import javax.swing.event.ChangeListener;
  * via 'addTextListener' (see also 'removeTextListener').
  * 
  * This class is responsible for maintaining an undo buffer, accessible via
- * 'getUndoBuffer'.
+ * 'getUndoBuffer'. The history keeps a few numbers per edit, with the text
+ * of every edit in one PUndoArena. Typing is grouped so that it's undone a
+ * word at a time. At most DEFAULT_UNDO_MEMORY_LIMIT characters of history
+ * ("e.ptextarea.PTextBuffer.undoMemoryLimit") are kept in the heap, with
+ * older text in a temporary file, and only the most recent
+ * DEFAULT_MAX_UNDO_EDIT_COUNT edits ("e.ptextarea.PTextBuffer.maxUndoEditCount")
+ * are remembered at all.
  * 
  * In addition to the characters, this class also stores metadata, called
  * properties. There are certain well-known properties, whose names are
@@ -36,6 +43,24 @@ import javax.swing.event.ChangeListener;
  * A file written to disk with 'writeToFile' will use the current
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
+ * Both reading and writing compute a hash of the file's bytes, so callers
+ * can tell whether the file on disk still holds what they last read or wrote
+ * without having to compare the text itself. See 'hashFileContent'.
+ * 
+ * The characters themselves live in a PTextStorage. Small documents use a
+ * gap buffer, which makes typing very cheap; documents of at least
+ * DEFAULT_PIECE_TABLE_THRESHOLD characters (overridable with the
+ * "e.ptextarea.PTextBuffer.pieceTableThreshold" parameter) use a piece table,
+ * so that edits far apart from one another don't copy megabytes of text.
+ * 
+ * Files of at least DEFAULT_MAPPED_FILE_THRESHOLD bytes (overridable with the
+ * "e.ptextarea.PTextBuffer.mappedFileThreshold" parameter) aren't read into
+ * the heap at all. Instead, they're memory-mapped, and the piece table
+ * decodes pages of the file as they're needed. See PMappedText.
+ * 
+ * Every change to the text increments the buffer's version, and 'snapshot'
+ * returns an unchanging copy of the text at the current version, which
+ * background threads can read without the lock. See PTextSnapshot.
  * 
  * @author Elliott Hughes
  * @author Phil Norman
@@ -45,18 +70,33 @@ public class PTextBuffer implements CharSequence {
     public static final String INDENTATION_PROPERTY = "IndentationProperty";
     public static final String LINE_ENDING_PROPERTY = "LineEndingProperty";
     
-    private static final int MIN_BUFFER_EXTENSION = 100;
-    private static final int MAX_GAP_SIZE = 1024 * 2;
+    public static final long UNKNOWN_CONTENT_HASH = PTextEncoder.UNKNOWN_CONTENT_HASH;
+    
+    // Documents at least this long are stored in a piece table rather than a gap buffer.
+    private static final int DEFAULT_PIECE_TABLE_THRESHOLD = 4 * 1024 * 1024;
+    // Files at least this long are memory-mapped rather than read into the heap.
+    private static final int DEFAULT_MAPPED_FILE_THRESHOLD = 32 * 1024 * 1024;
+    // At most this many characters of undo history are kept in the heap; older text goes to a temporary file.
+    private static final int DEFAULT_UNDO_MEMORY_LIMIT = 4 * 1024 * 1024;
+    // Once there are more edits than this in the undo history, the oldest are forgotten.
+    private static final int DEFAULT_MAX_UNDO_EDIT_COUNT = 100 * 1000;
     
-    private char[] text = new char[0];
-    private int gapPosition;
-    private int gapLength;
+    private PTextStorage storage = makeStorage(0);
     private ArrayList<PTextListener> textListeners = new ArrayList<PTextListener>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
     private HashMap<String, Object> properties = new HashMap<String, Object>();
     private PLock lock = new PLock();
     
+    // Incremented, while the write lock is held, whenever the text changes.
+    private volatile int version = 0;
+    // The most recent snapshot, which we hand out again until the text or properties change.
+    private volatile PTextSnapshot latestSnapshot;
+    // The hash of the bytes last read by readFromFile.
+    private long fileContentHash = UNKNOWN_CONTENT_HASH;
+    // While readFromMappedFile tells the listeners about the new text, the lines PMappedText found while it was decoding it.
+    private PLineIndex precomputedLineIndex;
+    
     public PTextBuffer() {
         // Our anchorSet *must* be the first listener.  It needs to update the anchor locations
         // before anyone else starts messing about with them.
@@ -90,6 +130,8 @@ public class PTextBuffer implements CharSequence {
      */
     public void putProperty(String name, Object value) {
         properties.put(name, value);
+        // Snapshots record the charset and line ending.
+        latestSnapshot = null;
     }
     
     public PAnchorSet getAnchorSet() {
@@ -100,6 +142,40 @@ public class PTextBuffer implements CharSequence {
         return undoBuffer;
     }
     
+    /**
+     * Returns a number that changes every time the text changes. It can be
+     * read without the lock, so it's a cheap way for a background thread to
+     * notice that work based on an earlier snapshot is out of date.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns an unchanging copy of the current text that can be read from
+     * any thread without the lock. Copying a small document costs a single
+     * array copy; a large document stored in a piece table only has its list
+     * of pieces copied. Until the text changes, the same snapshot is returned
+     * to every caller.
+     */
+    public PTextSnapshot snapshot() {
+        PTextSnapshot result = latestSnapshot;
+        if (result != null && result.getVersion() == version) {
+            return result;
+        }
+        getLock().getReadLock();
+        try {
+            result = latestSnapshot;
+            if (result == null || result.getVersion() != version) {
+                result = new PTextSnapshot(storage.copy(), version, (String) getProperty(CHARSET_PROPERTY), (String) getProperty(LINE_ENDING_PROPERTY));
+                latestSnapshot = result;
+            }
+            return result;
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
     /**
      * Add a listener which will be informed when text is added or removed, or when the text is completely
      * replaced.
@@ -147,20 +223,30 @@ public class PTextBuffer implements CharSequence {
         DataInputStream dataInputStream = null;
         getLock().getWriteLock();
         try {
-            // Read all the bytes in.
             long byteCount = file.length();
+            if (byteCount >= Integer.MAX_VALUE) {
+                // Neither a mapping nor an array can be that big.
+                throw new IOException("\"" + file + "\" is too large to open (" + byteCount + " bytes)");
+            }
+            if (byteCount >= Parameters.getParameter("e.ptextarea.PTextBuffer.mappedFileThreshold", DEFAULT_MAPPED_FILE_THRESHOLD)) {
+                readFromMappedFile(file);
+                return;
+            }
+            
+            // Read all the bytes in.
             FileInputStream fileInputStream = new FileInputStream(file);
             ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[(int) byteCount]);
             dataInputStream = new DataInputStream(fileInputStream);
             dataInputStream.readFully(byteBuffer.array());
+            fileContentHash = PTextEncoder.hash(byteBuffer);
             
             // Turn the raw bytes into a char[].
             ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteCount);
             char[] chars = decoder.getCharArray();
-            chars = fixLineEndings(chars);
+            int charCount = fixLineEndings(chars);
             putProperty(CHARSET_PROPERTY, decoder.getEncodingName());
             
-            setText(chars);
+            setText(chars, charCount);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
@@ -169,51 +255,189 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    private char[] fixLineEndings(char[] chars) {
-        String lineEnding = "\n";
-        if (charArrayContains(chars, '\r')) {
-            String s = new String(chars);
-            if (s.contains("\r\n")) {
-                lineEnding = "\r\n";
-                s = s.replaceAll("\r\n", "\n");
-            } else {
-                lineEnding = "\r";
-                s = s.replaceAll("\r", "\n");
+    private void readFromMappedFile(File file) throws IOException {
+        PMappedText mappedText = PMappedText.map(file);
+        fileContentHash = mappedText.getContentHash();
+        putProperty(CHARSET_PROPERTY, mappedText.getCharsetName());
+        putProperty(LINE_ENDING_PROPERTY, mappedText.getLineEnding());
+        PPieceTableStorage pieceTable = new PPieceTableStorage();
+        pieceTable.setText(mappedText);
+        storage = pieceTable;
+        ++version;
+        precomputedLineIndex = mappedText.takeLineIndex();
+        try {
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, subSequence(0, length())));
+        } finally {
+            precomputedLineIndex = null;
+        }
+    }
+    
+    /**
+     * Returns the index of the lines of the new text, if we're telling the
+     * listeners about a file we've just read and we already know where its
+     * lines are, or null. Only the first caller gets it.
+     */
+    PLineIndex takePrecomputedLineIndex() {
+        PLineIndex result = precomputedLineIndex;
+        precomputedLineIndex = null;
+        return result;
+    }
+    
+    /**
+     * Converts CR LF or lone CR line endings to '\n' in place, in a single
+     * pass, and returns the number of characters remaining at the start of
+     * the array. As a side-effect, sets the LINE_ENDING_PROPERTY.
+     */
+    private int fixLineEndings(char[] chars) {
+        final int firstCarriageReturn = indexOf(chars, '\r');
+        if (firstCarriageReturn == -1) {
+            putProperty(LINE_ENDING_PROPERTY, "\n");
+            return chars.length;
+        }
+        
+        // A file containing any CR LF pairs is a CR LF file; any other CRs are left alone.
+        final boolean isCarriageReturnLineFeed = containsCarriageReturnLineFeed(chars, firstCarriageReturn);
+        putProperty(LINE_ENDING_PROPERTY, isCarriageReturnLineFeed ? "\r\n" : "\r");
+        int length = firstCarriageReturn;
+        for (int i = firstCarriageReturn; i < chars.length; ++i) {
+            char ch = chars[i];
+            if (ch == '\r') {
+                if (isCarriageReturnLineFeed == false) {
+                    ch = '\n';
+                } else if (i + 1 < chars.length && chars[i + 1] == '\n') {
+                    continue;
+                }
             }
-            chars = s.toCharArray();
+            chars[length++] = ch;
         }
-        putProperty(LINE_ENDING_PROPERTY, lineEnding);
-        return chars;
+        return length;
     }
     
-    private static final boolean charArrayContains(char[] chars, char ch) {
+    private static int indexOf(char[] chars, char ch) {
         final int end = chars.length;
         for (int i = 0; i < end; ++i) {
             if (chars[i] == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean containsCarriageReturnLineFeed(char[] chars, int firstCarriageReturn) {
+        for (int i = firstCarriageReturn; i + 1 < chars.length; ++i) {
+            if (chars[i] == '\r' && chars[i + 1] == '\n') {
                 return true;
             }
         }
         return false;
     }
     
+    /**
+     * Returns the hash of the bytes last read by 'readFromFile', or
+     * UNKNOWN_CONTENT_HASH if nothing has been read.
+     */
+    public long getFileContentHash() {
+        return fileContentHash;
+    }
+    
+    /**
+     * Returns the hash of the bytes currently in 'file', comparable with the
+     * results of 'getFileContentHash' and 'writeToFile'. The file is read in
+     * chunks, so this doesn't need memory proportional to its size.
+     */
+    public static long hashFileContent(File file) throws IOException {
+        return PTextEncoder.hashFile(file);
+    }
+    
     /**
      * Writes the contents of this buffer into the given file, replacing
-     * whatever's already there.
+     * whatever's already there, and returns the hash of the bytes written.
+     * 
+     * The text is encoded just once, straight into a ".bak" file alongside
+     * the original, so a failure part way through (a full disk, or a
+     * character the CHARSET_PROPERTY can't represent, which is reported as a
+     * CharacterCodingException) leaves the original untouched. The backup is
+     * then copied over the original in place rather than renamed over it, so
+     * that the original keeps its permissions, owner, hard links, and any
+     * symbolic links to it, and so we don't upset CIFS. The one exception is
+     * a file we've memory-mapped: rewriting that in place would change the
+     * text under our feet, so we rename the new file into place instead, and
+     * the mapping keeps the old file.
      */
-    public void writeToFile(File file) {
-        FileOutputStream openFile = null;
+    public long writeToFile(File file) throws IOException {
+        // If 'file' is a symbolic link, it's the file it points to that we replace.
+        final File target = file.getCanonicalFile();
+        final File backupFile = new File(target.getPath() + ".bak");
+        final long contentHash = writeToNewFile(backupFile);
+        if (target.exists() == false || isBackedBy(file) || isBackedBy(target)) {
+            backupFile.setExecutable(target.canExecute());
+            if (backupFile.renameTo(target)) {
+                return contentHash;
+            }
+            // Some systems (Windows) won't rename over a file that's mapped, so bring what we need into the heap, and copy after all.
+            detachFromMappedFile(file);
+            detachFromMappedFile(target);
+        }
+        copyFile(backupFile, target);
+        if (backupFile.delete() == false) {
+            Log.warn("Couldn't remove backup file \"" + backupFile + "\".");
+        }
+        return contentHash;
+    }
+    
+    private long writeToNewFile(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        getLock().getReadLock();
         try {
-            openFile = new FileOutputStream(file);
-            String charsetName = (String) getProperty(CHARSET_PROPERTY);
-            // The CharsetEncoder created here will silently replace characters which cannot
-            // be encoded with question marks.
-            // This will currently happen if, for example, you have a file "recognized" as ISO-8859-1
-            // into which you paste a UTF-8 character which isn't Latin1.
-            writeToStream(new OutputStreamWriter(openFile, charsetName));
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            long contentHash = PTextEncoder.encode(storage, (String) getProperty(LINE_ENDING_PROPERTY), makeReportingCharsetEncoder((String) getProperty(CHARSET_PROPERTY)), out.getChannel());
+            written = true;
+            return contentHash;
+        } finally {
+            getLock().relinquishReadLock();
+            out.close();
+            if (written == false) {
+                file.delete();
+            }
+        }
+    }
+    
+    private static void copyFile(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel sourceChannel = in.getChannel();
+                final long byteCount = sourceChannel.size();
+                long position = 0;
+                while (position < byteCount) {
+                    position += sourceChannel.transferTo(position, byteCount - position, out.getChannel());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private boolean isBackedBy(File file) {
+        getLock().getReadLock();
+        try {
+            return storage instanceof PPieceTableStorage && ((PPieceTableStorage) storage).isBackedBy(file);
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    private void detachFromMappedFile(File file) {
+        getLock().getWriteLock();
+        try {
+            if (storage instanceof PPieceTableStorage && ((PPieceTableStorage) storage).isBackedBy(file)) {
+                ((PPieceTableStorage) storage).detachFromMappedText();
+            }
         } finally {
-            FileUtilities.close(openFile);
+            getLock().relinquishWriteLock();
         }
     }
     
@@ -221,21 +445,24 @@ public class PTextBuffer implements CharSequence {
      * Switch charset encoding if the encoding works.
      */
     public boolean attemptEncoding(String charsetName) {
+        getLock().getReadLock();
         try {
             CharsetEncoder charsetEncoder = makeReportingCharsetEncoder(charsetName);
-            writeToStream(new OutputStreamWriter(new NullOutputStream(), charsetEncoder));
+            PTextEncoder.encode(storage, (String) getProperty(LINE_ENDING_PROPERTY), charsetEncoder, null);
             putProperty(CHARSET_PROPERTY, charsetName);
             return true;
         } catch (Exception ex) {
             // FIXME: Present encoding errors to the user in a more palatable fashion.
             // Currently, this just says:
-            // java.lang.RuntimeException: java.nio.charset.UnmappableCharacterException: Input length = 1
+            // java.nio.charset.UnmappableCharacterException: Input length = 1
             // UnmappableCharacterException doesn't appear to have stashed any other, more interesting information.
             // One idea would be to maintain a set of unique characters used in a buffer,
             // to discover which of those characters cannot be encoded in the desired encoding
             // and to highlight them, perhaps as Find matches.
             Log.warn("Failed to encode buffer in charset " + charsetName, ex);
             return false;
+        } finally {
+            getLock().relinquishReadLock();
         }
     }
     
@@ -244,55 +471,27 @@ public class PTextBuffer implements CharSequence {
         return Charset.forName(charsetName).newEncoder();
     }
     
-    private void writeToStream(OutputStreamWriter outputStreamWriter) {
-        getLock().getReadLock();
-        try {
-            Writer writer = new BufferedWriter(outputStreamWriter);
-            
-            String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
-            if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
-            } else {
-                // Split our internal content into lines, and write them
-                // out individually. Expensive, but why aren't you using
-                // Unix line-endings, crazy person?
-                String[] lines = toString().split("\n");
-                for (String line : lines) {
-                    writer.write(line);
-                    writer.write(lineEnding);
-                }
-            }
-            writer.flush();
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            getLock().relinquishReadLock();
-        }
-    }
-    
     /**
-     * Sets the text, replacing anything that was here before.
+     * Sets the text to the first 'length' characters of 'text', replacing anything that was here before.
      * Note that this method does not copy the given char[].
      */
-    private void setText(char[] text) {
+    private void setText(char[] text, int length) {
         getLock().getWriteLock();
         try {
-            this.text = text;
-            gapPosition = 0;
-            gapLength = 0;
-            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
+            storage = makeStorage(length);
+            storage.setText(text, length);
+            ++version;
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text, 0, length)));
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
+    private static PTextStorage makeStorage(int length) {
+        int threshold = Parameters.getParameter("e.ptextarea.PTextBuffer.pieceTableThreshold", DEFAULT_PIECE_TABLE_THRESHOLD);
+        return (length >= threshold) ? new PPieceTableStorage() : new PGapBufferStorage();
+    }
+    
     /**
      * Returns a copy of the specified region of text.  This involves making a
      * complete copy of the specified region of text, and so should only be
@@ -314,15 +513,7 @@ public class PTextBuffer implements CharSequence {
             }
             char[] result = new char[charCount];
             try {
-                int copyCount = 0;
-                if (start < gapPosition) {
-                    copyCount = Math.min(charCount, gapPosition - start);
-                    System.arraycopy(text, start, result, 0, copyCount);
-                }
-                if (start + charCount >= gapPosition) {
-                    int textPosition = Math.max(start, gapPosition) + gapLength;
-                    System.arraycopy(text, textPosition, result, copyCount, result.length - copyCount);
-                }
+                storage.copyTo(start, charCount, result, 0);
             } catch (ArrayIndexOutOfBoundsException ex) {
                 Log.warn("Requested get text from " + start + ", length " + charCount + "; size is " + length() +".", ex);
             }
@@ -332,39 +523,20 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    /** Moves the gap to the specified position. */
-    private void moveGap(int newPosition) {
-        if (gapPosition == newPosition) {
-            return;
-        }
-        if (newPosition < gapPosition) {
-            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
-        } else {
-            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
-        }
-        gapPosition = newPosition;
-    }
-    
-    private void changeBufferLength(int lengthChange) {
-        char[] newText = new char[text.length + lengthChange];
-        System.arraycopy(text, 0, newText, 0, gapPosition);
-        int endOffset = gapPosition + gapLength;
-        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
-        gapLength += lengthChange;
-        text = newText;
-    }
-    
-    /** Expands the buffer. */
-    private void expandBuffer(int requiredGapLength) {
-        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
-        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
-    }
-    
-    /** Shrinks the buffer. */
-    private void shrinkBuffer() {
-        if (gapLength > MAX_GAP_SIZE) {
-            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
-            changeBufferLength(desiredGapLength - gapLength);
+    /**
+     * Copies the characters in [start, end) into 'destination', starting at
+     * 'destinationOffset', like String.getChars. Much faster than calling
+     * charAt for each character when scanning large parts of the buffer.
+     */
+    void getChars(int start, int end, char[] destination, int destinationOffset) {
+        getLock().getReadLock();
+        try {
+            if (start < 0 || end < start || end > length()) {
+                throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length()=" + length());
+            }
+            storage.copyTo(start, end - start, destination, destinationOffset);
+        } finally {
+            getLock().relinquishReadLock();
         }
     }
     
@@ -389,30 +561,15 @@ public class PTextBuffer implements CharSequence {
     
     /** Special remove method used by the undo buffer. */
     private void removeWithoutUndo(int position, CharSequence chars) {
-        moveGap(position + chars.length());
-        gapPosition -= chars.length();
-        gapLength += chars.length();
-        shrinkBuffer();
+        storage.remove(position, chars.length());
+        ++version;
         fireTextEvent(new PTextEvent(this, PTextEvent.REMOVE, position, chars));
     }
     
     /** Special insertion method used by the undo buffer. */
     private void insertWithoutUndo(int position, CharSequence chars) {
-        moveGap(position);
-        int textLength = chars.length();
-        while (textLength > gapLength) {
-            expandBuffer(textLength);
-        }
-        if (chars instanceof CharArrayCharSequence) {
-            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
-        } else {
-            // This is the price you pay for giving us a String.
-            for (int i = 0; i < chars.length(); ++i) {
-                text[gapPosition + i] = chars.charAt(i);
-            }
-        }
-        gapPosition += textLength;
-        gapLength -= textLength;
+        storage.insert(position, chars);
+        ++version;
         fireTextEvent(new PTextEvent(this, PTextEvent.INSERT, position, chars));
     }
     
@@ -421,12 +578,12 @@ public class PTextBuffer implements CharSequence {
         if (index < 0 || index >= length()) {
             throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + length() + ")");
         }
-        return (index < gapPosition) ? text[index] : text[index + gapLength];
+        return storage.charAt(index);
     }
-   
+    
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
-        return text.length - gapLength;
+        return storage.length();
     }
     
     /**
@@ -444,10 +601,7 @@ public class PTextBuffer implements CharSequence {
     public String toString() {
         getLock().getReadLock();
         try {
-            StringBuilder result = new StringBuilder();
-            result.append(text, 0, gapPosition);
-            result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
-            return result.toString();
+            return new String(copyCharArray(0, length()));
         } finally {
             getLock().relinquishReadLock();
         }
@@ -489,7 +643,20 @@ public class PTextBuffer implements CharSequence {
     }
     
     public class Undoer implements PUndoBuffer {
-        private ArrayList<Doable> undoList;
+        // The history is kept in parallel arrays, with one element per edit.
+        // Edit i removed removeLengths[i] characters at positions[i], and
+        // inserted insertLengths[i] characters there. Its removed text,
+        // followed by its inserted text, starts at textOffsets[i] in 'text'.
+        private int[] positions;
+        private long[] textOffsets;
+        private int[] removeLengths;
+        private int[] insertLengths;
+        private int[] compoundIds;
+        private SelectionSetter[] beforeCarets;
+        private SelectionSetter[] afterCarets;
+        private int editCount;
+        private PUndoArena text;
+        
         private int undoPosition;
         
         private int cleanPosition = -1;
@@ -502,10 +669,16 @@ public class PTextBuffer implements CharSequence {
         // flattened out.
         private int compoundId;
         
+        // While compoundingDepth > 0, the index of the first edit of the
+        // outermost compound edit, which we mustn't forget any of.
+        private int openCompoundStart;
+        
         // A special compoundId to make edits that aren't part of any compound
         // edit easily recognizable.
         private static final int NOT_COMPOUND = -1;
         
+        private final int maxEditCount = Math.max(16, Parameters.getParameter("e.ptextarea.PTextBuffer.maxUndoEditCount", DEFAULT_MAX_UNDO_EDIT_COUNT));
+        
         private ArrayList<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
         
         public Undoer() {
@@ -513,7 +686,19 @@ public class PTextBuffer implements CharSequence {
         }
         
         public void resetUndoBuffer() {
-            this.undoList = new ArrayList<Doable>();
+            final int capacity = 16;
+            this.positions = new int[capacity];
+            this.textOffsets = new long[capacity];
+            this.removeLengths = new int[capacity];
+            this.insertLengths = new int[capacity];
+            this.compoundIds = new int[capacity];
+            this.beforeCarets = new SelectionSetter[capacity];
+            this.afterCarets = new SelectionSetter[capacity];
+            this.editCount = 0;
+            if (text != null) {
+                text.clear();
+            }
+            this.text = new PUndoArena(Parameters.getParameter("e.ptextarea.PTextBuffer.undoMemoryLimit", DEFAULT_UNDO_MEMORY_LIMIT));
             this.undoPosition = 0;
             this.compoundingDepth = 0;
             this.compoundId = 0;
@@ -521,27 +706,156 @@ public class PTextBuffer implements CharSequence {
         }
         
         private void addAndDo(SelectionSetter beforeCaret, int position, CharSequence removeChars, CharSequence insertChars, SelectionSetter afterCaret) {
-            // FIXME: use ArrayList.removeRange.
-            while (undoList.size() > undoPosition) {
+            discardRedoHistory();
+            
+            if (canExtendLastEdit(position, removeChars, insertChars)) {
+                text.append(insertChars);
+                insertLengths[editCount - 1] += insertChars.length();
+                afterCarets[editCount - 1] = afterCaret;
+            } else {
+                if (editCount == positions.length) {
+                    makeRoomForEdit();
+                }
+                final int edit = editCount++;
+                positions[edit] = position;
+                textOffsets[edit] = text.length();
+                removeLengths[edit] = (removeChars == null) ? 0 : removeChars.length();
+                insertLengths[edit] = (insertChars == null) ? 0 : insertChars.length();
+                compoundIds[edit] = (compoundingDepth == 0) ? NOT_COMPOUND : compoundId;
+                beforeCarets[edit] = beforeCaret;
+                afterCarets[edit] = afterCaret;
+                if (removeChars != null) {
+                    text.append(removeChars);
+                }
+                if (insertChars != null) {
+                    text.append(insertChars);
+                }
+                ++undoPosition;
+            }
+            
+            getLock().getWriteLock();
+            try {
+                removeAndInsert(position, removeChars, insertChars);
+                afterCaret.modifySelection();
+            } finally {
+                getLock().relinquishWriteLock();
+            }
+            fireChangeListeners();
+        }
+        
+        private void discardRedoHistory() {
+            if (editCount > undoPosition) {
                 cleanPosition = -1;  // We can never be clean again until we save.
-                undoList.remove(undoPosition);
+                text.truncate(textOffsets[undoPosition]);
+                Arrays.fill(beforeCarets, undoPosition, editCount, null);
+                Arrays.fill(afterCarets, undoPosition, editCount, null);
+                editCount = undoPosition;
+            }
+        }
+        
+        /**
+         * Tests whether typing 'insertChars' at 'position' should be undone
+         * along with the last edit, rather than separately. We group typing a
+         * word at a time: a group ends before a newline, or before the start
+         * of a word, or at the clean state.
+         */
+        private boolean canExtendLastEdit(int position, CharSequence removeChars, CharSequence insertChars) {
+            if (compoundingDepth != 0 || removeChars != null || insertChars == null || insertChars.length() != 1) {
+                return false;
+            }
+            final int lastEdit = editCount - 1;
+            if (lastEdit < 0 || cleanPosition == editCount || compoundIds[lastEdit] != NOT_COMPOUND) {
+                return false;
+            }
+            if (insertLengths[lastEdit] == 0 || positions[lastEdit] + insertLengths[lastEdit] != position) {
+                return false;
+            }
+            final char ch = insertChars.charAt(0);
+            if (ch == '\n') {
+                return false;
+            }
+            // The last edit's text is still just before 'position', because nothing has been undone since.
+            return isWordCharacter(ch) == false || isWordCharacter(storage.charAt(position - 1));
+        }
+        
+        private boolean isWordCharacter(char ch) {
+            return Character.isLetterOrDigit(ch) || ch == '_';
+        }
+        
+        /**
+         * Makes room for another edit, growing the arrays up to maxEditCount,
+         * and then forgetting the oldest quarter of the history each time it's
+         * full. Either way, the cost is amortized over the edits added since.
+         * 
+         * We never forget any part of a compound edit that's still in
+         * progress, because undoing it must take the text back to how it was
+         * before it started. If such an edit (a big Replace All, say) fills
+         * the whole history, we grow the arrays past maxEditCount, and shrink
+         * them again the next time we trim after it's finished. The text of
+         * the edits is in the arena, which spills to disk.
+         */
+        private void makeRoomForEdit() {
+            if (positions.length < maxEditCount) {
+                resizeEditArrays(Math.min(maxEditCount, positions.length * 2));
+                return;
             }
             
-            int id = (compoundingDepth == 0) ? NOT_COMPOUND : compoundId;
-            Doable newEdit = new Doable(id, beforeCaret, position, removeChars, insertChars, afterCaret);
-            undoList.add(newEdit);
-            redo();
+            // Forget at least a quarter of the history, and enough to get back under maxEditCount if a compound edit took us over it.
+            int discardCount = Math.max(editCount / 4, editCount - maxEditCount * 3 / 4);
+            // Don't leave half a compound edit behind.
+            while (discardCount < editCount && compoundContinuesAt(discardCount - 1, discardCount)) {
+                ++discardCount;
+            }
+            if (compoundingDepth > 0) {
+                discardCount = Math.min(discardCount, openCompoundStart);
+            }
+            if (discardCount == 0) {
+                resizeEditArrays(positions.length * 2);
+                return;
+            }
+            final int keepCount = editCount - discardCount;
+            text.discardBefore((keepCount == 0) ? text.length() : textOffsets[discardCount]);
+            System.arraycopy(positions, discardCount, positions, 0, keepCount);
+            System.arraycopy(textOffsets, discardCount, textOffsets, 0, keepCount);
+            System.arraycopy(removeLengths, discardCount, removeLengths, 0, keepCount);
+            System.arraycopy(insertLengths, discardCount, insertLengths, 0, keepCount);
+            System.arraycopy(compoundIds, discardCount, compoundIds, 0, keepCount);
+            System.arraycopy(beforeCarets, discardCount, beforeCarets, 0, keepCount);
+            System.arraycopy(afterCarets, discardCount, afterCarets, 0, keepCount);
+            Arrays.fill(beforeCarets, keepCount, editCount, null);
+            Arrays.fill(afterCarets, keepCount, editCount, null);
+            editCount = keepCount;
+            undoPosition -= discardCount;
+            // The clean state may have been forgotten along with the edits that led to it.
+            cleanPosition = (cleanPosition < discardCount) ? -1 : cleanPosition - discardCount;
+            openCompoundStart -= discardCount;
+            if (positions.length > maxEditCount && keepCount < maxEditCount) {
+                resizeEditArrays(maxEditCount);
+            }
+        }
+        
+        private void resizeEditArrays(int capacity) {
+            positions = Arrays.copyOf(positions, capacity);
+            textOffsets = Arrays.copyOf(textOffsets, capacity);
+            removeLengths = Arrays.copyOf(removeLengths, capacity);
+            insertLengths = Arrays.copyOf(insertLengths, capacity);
+            compoundIds = Arrays.copyOf(compoundIds, capacity);
+            beforeCarets = Arrays.copyOf(beforeCarets, capacity);
+            afterCarets = Arrays.copyOf(afterCarets, capacity);
         }
         
         public void startCompoundEdit() {
+            if (compoundingDepth == 0) {
+                // Any redo history will have been discarded by the time the compound edit's first edit is added.
+                openCompoundStart = undoPosition;
+            }
             ++compoundingDepth;
         }
         
         private void dumpUndoList() {
             Log.warn("Dumping PTextBuffer undo list:");
-            int i = 0;
-            for (Doable edit : undoList) {
-                Log.warn(i++ + ": " + edit);
+            for (int i = 0; i < editCount; ++i) {
+                Log.warn(i + ": Edit[compoundId=" + compoundIds[i] + ",position=" + positions[i] + ",removeChars=\"" + getRemovedChars(i) + "\",insertChars=\"" + getInsertedChars(i) + "\"]");
             }
         }
         
@@ -567,34 +881,32 @@ public class PTextBuffer implements CharSequence {
         }
         
         public boolean canRedo() {
-            return (undoPosition < undoList.size());
+            return (undoPosition < editCount);
         }
         
         /**
-         * Tests whether the Doable at 'index' in the undo list is a
-         * continuation of 'doable'.
+         * Tests whether the edit at 'index' in the undo list is a
+         * continuation of the edit at 'edit'.
          */
-        private boolean compoundContinuesAt(Doable doable, int index) {
-            if (doable.isNotCompound()) {
+        private boolean compoundContinuesAt(int edit, int index) {
+            if (edit < 0 || compoundIds[edit] == NOT_COMPOUND) {
                 return false;
             }
-            if (index < 0 || index >= undoList.size()) {
+            if (index < 0 || index >= editCount) {
                 return false;
             }
-            Doable indexedDoable = undoList.get(index);
-            return (indexedDoable.getCompoundId() == doable.getCompoundId());
+            return (compoundIds[index] == compoundIds[edit]);
         }
         
         public void undo() {
             if (canUndo()) {
                 getLock().getWriteLock();
                 try {
-                    Doable doable;
                     do {
                         --undoPosition;
-                        doable = undoList.get(undoPosition);
-                        doable.undo();
-                    } while (compoundContinuesAt(doable, undoPosition - 1));
+                        removeAndInsert(positions[undoPosition], getInsertedChars(undoPosition), getRemovedChars(undoPosition));
+                        beforeCarets[undoPosition].modifySelection();
+                    } while (compoundContinuesAt(undoPosition, undoPosition - 1));
                 } finally {
                     getLock().relinquishWriteLock();
                 }
@@ -606,12 +918,13 @@ public class PTextBuffer implements CharSequence {
             if (canRedo()) {
                 getLock().getWriteLock();
                 try {
-                    Doable doable;
+                    int edit;
                     do {
-                        doable = undoList.get(undoPosition);
+                        edit = undoPosition;
                         ++undoPosition;
-                        doable.redo();
-                    } while (compoundContinuesAt(doable, undoPosition));
+                        removeAndInsert(positions[edit], getRemovedChars(edit), getInsertedChars(edit));
+                        afterCarets[edit].modifySelection();
+                    } while (compoundContinuesAt(edit, undoPosition));
                 } finally {
                     getLock().relinquishWriteLock();
                 }
@@ -619,6 +932,23 @@ public class PTextBuffer implements CharSequence {
             }
         }
         
+        private CharSequence getRemovedChars(int edit) {
+            return (removeLengths[edit] == 0) ? null : text.get(textOffsets[edit], removeLengths[edit]);
+        }
+        
+        private CharSequence getInsertedChars(int edit) {
+            return (insertLengths[edit] == 0) ? null : text.get(textOffsets[edit] + removeLengths[edit], insertLengths[edit]);
+        }
+        
+        private void removeAndInsert(int position, CharSequence remove, CharSequence insert) {
+            if (remove != null) {
+                removeWithoutUndo(position, remove);
+            }
+            if (insert != null) {
+                insertWithoutUndo(position, insert);
+            }
+        }
+        
         public void addChangeListener(ChangeListener listener) {
             changeListeners.add(listener);
         }
@@ -633,53 +963,4 @@ public class PTextBuffer implements CharSequence {
     public interface SelectionSetter {
         public void modifySelection();
     }
-    
-    private class Doable {
-        private int compoundId;
-        private SelectionSetter beforeCaret;
-        private int position;
-        private CharSequence removeChars;
-        private CharSequence insertChars;
-        private SelectionSetter afterCaret;
-        
-        public Doable(int compoundId, SelectionSetter beforeCaret, int position, CharSequence removeChars, CharSequence insertChars, SelectionSetter afterCaret) {
-            this.compoundId = compoundId;
-            this.beforeCaret = beforeCaret;
-            this.position = position;
-            this.removeChars = removeChars;
-            this.insertChars = insertChars;
-            this.afterCaret = afterCaret;
-        }
-        
-        public boolean isNotCompound() {
-            return (compoundId == Undoer.NOT_COMPOUND);
-        }
-        
-        public int getCompoundId() {
-            return compoundId;
-        }
-        
-        public String toString() {
-            return "Doable[compoundId=" + compoundId + ",position=" + position + ",removeChars=\"" + removeChars + "\",insertChars=\"" + insertChars + "\"]";
-        }
-        
-        public void undo() {
-            removeAndInsert(insertChars, removeChars);
-            beforeCaret.modifySelection();
-        }
-        
-        public void redo() {
-            removeAndInsert(removeChars, insertChars);
-            afterCaret.modifySelection();
-        }
-        
-        private void removeAndInsert(CharSequence remove, CharSequence insert) {
-            if (remove != null) {
-                removeWithoutUndo(position, remove);
-            }
-            if (insert != null) {
-                insertWithoutUndo(position, insert);
-            }
-        }
-    }
 }
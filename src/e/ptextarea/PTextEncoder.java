@@ -0,0 +1,141 @@
+package e.ptextarea;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+
+/**
+ * Turns the text of a PTextStorage into the bytes of a file in a single
+ * streaming pass, a chunk at a time, so the extra memory needed doesn't
+ * depend on the size of the text. Line endings are translated from '\n' on
+ * the way, and a hash of the bytes is computed as they go past, so a caller
+ * can later tell cheaply whether a file still holds what was written.
+ * 
+ * The same hash is available for files and bytes we've read, so it can be
+ * compared with the hash of what we wrote or read last. A hash is the CRC32
+ * of the bytes combined with their count; it's never UNKNOWN_CONTENT_HASH.
+ */
+class PTextEncoder {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    static final long UNKNOWN_CONTENT_HASH = -1;
+    
+    /**
+     * Encodes all the text in 'storage', with '\n' replaced by 'lineEnding',
+     * writing the bytes to 'channel' (unless it's null, when they're just
+     * thrown away). Returns the hash of the bytes. Throws
+     * CharacterCodingException if 'encoder' can't represent some character;
+     * it's up to the caller to choose a reporting encoder.
+     */
+    static long encode(PTextStorage storage, String lineEnding, CharsetEncoder encoder, WritableByteChannel channel) throws IOException {
+        final boolean translateLineEndings = (lineEnding.equals("\n") == false);
+        final int length = storage.length();
+        char[] chunk = new char[Math.min(length, CHUNK_SIZE)];
+        // Room for a chunk whose every character is a newline, plus a surrogate left over from the last chunk.
+        CharBuffer chars = CharBuffer.allocate(chunk.length * lineEnding.length() + 1);
+        ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE * 2);
+        ContentHash hash = new ContentHash();
+        encoder.reset();
+        int position = 0;
+        while (true) {
+            final int chunkLength = Math.min(chunk.length, length - position);
+            storage.copyTo(position, chunkLength, chunk, 0);
+            position += chunkLength;
+            if (translateLineEndings) {
+                for (int i = 0; i < chunkLength; ++i) {
+                    if (chunk[i] == '\n') {
+                        chars.put(lineEnding);
+                    } else {
+                        chars.put(chunk[i]);
+                    }
+                }
+            } else {
+                chars.put(chunk, 0, chunkLength);
+            }
+            chars.flip();
+            
+            final boolean endOfInput = (position == length);
+            CoderResult result;
+            while ((result = encoder.encode(chars, bytes, endOfInput)).isOverflow()) {
+                drain(bytes, channel, hash);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            // Anything left (half a surrogate pair) goes in front of the next chunk.
+            chars.compact();
+            if (endOfInput) {
+                break;
+            }
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            drain(bytes, channel, hash);
+        }
+        drain(bytes, channel, hash);
+        return hash.getValue();
+    }
+    
+    private static void drain(ByteBuffer bytes, WritableByteChannel channel, ContentHash hash) throws IOException {
+        bytes.flip();
+        hash.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        if (channel != null) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        bytes.clear();
+    }
+    
+    /**
+     * Returns the hash of the bytes remaining in 'bytes', without changing its position.
+     */
+    static long hash(ByteBuffer bytes) {
+        ContentHash hash = new ContentHash();
+        if (bytes.hasArray()) {
+            hash.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            ByteBuffer source = bytes.duplicate();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (source.hasRemaining()) {
+                int byteCount = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, byteCount);
+                hash.update(chunk, 0, byteCount);
+            }
+        }
+        return hash.getValue();
+    }
+    
+    /**
+     * Returns the hash of the content of 'file'.
+     */
+    static long hashFile(File file) throws IOException {
+        ContentHash hash = new ContentHash();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int byteCount;
+            while ((byteCount = in.read(chunk)) != -1) {
+                hash.update(chunk, 0, byteCount);
+            }
+        } finally {
+            in.close();
+        }
+        return hash.getValue();
+    }
+    
+    private static class ContentHash {
+        private CRC32 crc = new CRC32();
+        private long byteCount = 0;
+        
+        void update(byte[] bytes, int offset, int count) {
+            crc.update(bytes, offset, count);
+            byteCount += count;
+        }
+        
+        long getValue() {
+            return (byteCount << 32) ^ crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * An unchanging copy of the text of a PTextBuffer, as it was at a particular
+ * version. Background workers should use a snapshot rather than the buffer
+ * itself: they can read it without holding the buffer's lock, so they don't
+ * hold up typing, and comparing getVersion against the buffer's current
+ * version tells them cheaply whether their results are already out of date.
+ * 
+ * See PTextBuffer.snapshot.
+ */
+public class PTextSnapshot implements CharSequence {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    
+    private final PTextStorage storage;
+    private final int version;
+    private final String charsetName;
+    private final String lineEnding;
+    private final int start;
+    private final int end;
+    
+    PTextSnapshot(PTextStorage storage, int version, String charsetName, String lineEnding) {
+        this(storage, version, charsetName, lineEnding, 0, storage.length());
+    }
+    
+    private PTextSnapshot(PTextStorage storage, int version, String charsetName, String lineEnding, int start, int end) {
+        this.storage = storage;
+        this.version = version;
+        this.charsetName = charsetName;
+        this.lineEnding = lineEnding;
+        this.start = start;
+        this.end = end;
+    }
+    
+    /**
+     * Returns the version of the buffer this is a snapshot of. See PTextBuffer.getVersion.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the buffer's CHARSET_PROPERTY at the time of the snapshot.
+     */
+    public String getCharsetName() {
+        return charsetName;
+    }
+    
+    /**
+     * Returns the buffer's LINE_ENDING_PROPERTY at the time of the snapshot.
+     */
+    public String getLineEnding() {
+        return lineEnding;
+    }
+    
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + length() + ")");
+        }
+        return storage.charAt(start + index);
+    }
+    
+    public int length() {
+        return end - start;
+    }
+    
+    /**
+     * Returns a snapshot of part of this snapshot. The characters aren't copied.
+     */
+    public CharSequence subSequence(int subStart, int subEnd) {
+        if (subStart < 0 || subEnd < subStart || subEnd > length()) {
+            throw new IndexOutOfBoundsException("subSequence(" + subStart + ", " + subEnd + ") of sequence of length " + length());
+        }
+        return new PTextSnapshot(storage, version, charsetName, lineEnding, start + subStart, start + subEnd);
+    }
+    
+    /**
+     * Copies the characters in [srcBegin, srcEnd) into 'destination', starting at 'destinationOffset', like String.getChars.
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] destination, int destinationOffset) {
+        if (srcBegin < 0 || srcEnd < srcBegin || srcEnd > length()) {
+            throw new IndexOutOfBoundsException("srcBegin=" + srcBegin + " srcEnd=" + srcEnd + " length()=" + length());
+        }
+        storage.copyTo(start + srcBegin, srcEnd - srcBegin, destination, destinationOffset);
+    }
+    
+    public String toString() {
+        char[] chars = new char[length()];
+        getChars(0, chars.length, chars, 0);
+        return new String(chars);
+    }
+    
+    /**
+     * Writes this snapshot to the given file in the buffer's encoding, with
+     * the buffer's line endings. No lock is needed, so this is a good way to
+     * hand the current text to an external program.
+     * 
+     * A snapshot of a large memory-mapped file may still refer to the file on
+     * disk, so a snapshot taken before the file is overwritten shouldn't be
+     * used afterwards.
+     */
+    public void writeToFile(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charsetName));
+        try {
+            char[] chunk = new char[Math.min(length(), CHUNK_SIZE)];
+            for (int chunkStart = 0; chunkStart < length(); chunkStart += chunk.length) {
+                final int chunkEnd = Math.min(length(), chunkStart + chunk.length);
+                getChars(chunkStart, chunkEnd, chunk, 0);
+                if (lineEnding.equals("\n")) {
+                    writer.write(chunk, 0, chunkEnd - chunkStart);
+                } else {
+                    int runStart = 0;
+                    for (int i = 0; i < chunkEnd - chunkStart; ++i) {
+                        if (chunk[i] == '\n') {
+                            writer.write(chunk, runStart, i - runStart);
+                            writer.write(lineEnding);
+                            runStart = i + 1;
+                        }
+                    }
+                    writer.write(chunk, runStart, chunkEnd - chunkStart - runStart);
+                }
+            }
+        } finally {
+            FileUtilities.close(writer);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package e.ptextarea;
+
+import java.io.*;
+
+/**
+ * A PTextStorage holds the characters of a PTextBuffer. PTextBuffer takes
+ * care of locking, undo, and events; the storage only has to hold the text
+ * and apply insertions and removals to it.
+ * 
+ * Callers guarantee that all positions and counts are in range: the storage
+ * doesn't check its arguments.
+ */
+interface PTextStorage {
+    /**
+     * Returns the character at the given index.
+     */
+    public char charAt(int index);
+    
+    /**
+     * Returns the number of characters held.
+     */
+    public int length();
+    
+    /**
+     * Replaces the entire contents with the first 'length' characters of 'text'.
+     * The array is not copied, so the caller must not modify it afterwards.
+     */
+    public void setText(char[] text, int length);
+    
+    /**
+     * Inserts the given characters before the character currently at 'position'.
+     */
+    public void insert(int position, CharSequence chars);
+    
+    /**
+     * Removes 'count' characters starting at 'position'.
+     */
+    public void remove(int position, int count);
+    
+    /**
+     * Copies 'count' characters starting at 'start' into 'destination' at 'destinationOffset'.
+     */
+    public void copyTo(int start, int count, char[] destination, int destinationOffset);
+    
+    /**
+     * Writes all the characters to the given Writer, in order.
+     */
+    public void writeTo(Writer writer) throws IOException;
+    
+    /**
+     * Returns a copy of the current text that won't be affected by later
+     * changes to this storage. Nothing ever modifies the copy, so any number
+     * of threads can read it without locking.
+     */
+    public PTextStorage copy();
+}
@@ -16,6 +16,30 @@ public interface PTextStyler {
      */
     public List<PLineSegment> getTextSegments(int lineIndex);
     
+    /**
+     * Returns a number summarizing everything other than the line's own text
+     * that affects how the given line is styled: whether it starts inside a
+     * multi-line comment, say. PTextArea caches each line's segments until
+     * either the line's text or this number changes, so stylers whose lines
+     * aren't independent of each other must override it.
+     */
+    public int getLineStartState(int lineIndex);
+    
+    /**
+     * Ensures that getLineStartState (and so getTextSegments) gives the right
+     * answer, rather than a guess that will be corrected later, for every
+     * line up to and including the given one. The caller must hold the text
+     * area's lock.
+     */
+    public void updateLineStartStatesThrough(int lineIndex);
+    
+    /**
+     * Tells the styler that the text area has a new styler, so it should
+     * stop listening to the text area, and let go of anything it was
+     * keeping up to date for it.
+     */
+    public void detachFromTextArea();
+    
     /**
      * Adds this language's keywords to the given collection. This lets
      * something like a spelling checker automatically share the knowledge of
@@ -0,0 +1,244 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Holds the text of a PTextBuffer's undo history: one append-only sequence
+ * of characters, addressed by offset, instead of a separate copy of the
+ * removed and inserted text for every edit.
+ * 
+ * The characters live in pages of PAGE_SIZE. Once more pages are in the
+ * heap than the limit given to the constructor allows, the oldest are
+ * written to a temporary file, and read back from there if an undo ever
+ * reaches that far back. If the file can't be written, we keep everything
+ * in the heap rather than lose history.
+ */
+class PUndoArena {
+    private static final int PAGE_SIZE = 32 * 1024;
+    
+    private final int maxResidentPageCount;
+    
+    private ArrayList<Page> pages = new ArrayList<Page>();
+    private long length = 0;
+    // Pages before this one have been discarded.
+    private int firstLivePage = 0;
+    // Pages before this one are spilled or discarded.
+    private int oldestResidentPage = 0;
+    private int residentPageCount = 0;
+    
+    private File spillFile;
+    private int spillSlotCount = 0;
+    private ArrayList<Integer> freeSpillSlots = new ArrayList<Integer>();
+    private boolean spillingFailed = false;
+    
+    /**
+     * Creates an arena that keeps (roughly) no more than 'maxResidentCharCount' characters in the heap.
+     */
+    PUndoArena(int maxResidentCharCount) {
+        // We always need the page we're appending to, and it's silly to spill the one before it straight away.
+        this.maxResidentPageCount = Math.max(2, maxResidentCharCount / PAGE_SIZE);
+    }
+    
+    /**
+     * Returns the offset at which the next append will start.
+     */
+    long length() {
+        return length;
+    }
+    
+    /**
+     * Appends 'chars', and returns the offset of the first of them.
+     */
+    long append(CharSequence chars) {
+        final long result = length;
+        final int count = chars.length();
+        int copiedCount = 0;
+        while (copiedCount < count) {
+            char[] page = getPageForAppend();
+            final int offsetInPage = (int) (length % PAGE_SIZE);
+            final int chunkLength = Math.min(PAGE_SIZE - offsetInPage, count - copiedCount);
+            if (chars instanceof String) {
+                ((String) chars).getChars(copiedCount, copiedCount + chunkLength, page, offsetInPage);
+            } else {
+                for (int i = 0; i < chunkLength; ++i) {
+                    page[offsetInPage + i] = chars.charAt(copiedCount + i);
+                }
+            }
+            copiedCount += chunkLength;
+            length += chunkLength;
+        }
+        spillOldPages();
+        return result;
+    }
+    
+    private char[] getPageForAppend() {
+        final int pageIndex = (int) (length / PAGE_SIZE);
+        if (pageIndex == pages.size()) {
+            pages.add(new Page(new char[PAGE_SIZE]));
+            ++residentPageCount;
+        }
+        return pages.get(pageIndex).chars;
+    }
+    
+    /**
+     * Returns a copy of the 'count' characters starting at 'offset'.
+     */
+    CharSequence get(long offset, int count) {
+        char[] result = new char[count];
+        int copiedCount = 0;
+        while (copiedCount < count) {
+            final long chunkOffset = offset + copiedCount;
+            final Page page = pages.get((int) (chunkOffset / PAGE_SIZE));
+            final int offsetInPage = (int) (chunkOffset % PAGE_SIZE);
+            final int chunkLength = Math.min(PAGE_SIZE - offsetInPage, count - copiedCount);
+            if (page.chars != null) {
+                System.arraycopy(page.chars, offsetInPage, result, copiedCount, chunkLength);
+            } else if (page.spillSlot != -1) {
+                readSpilledChars(page.spillSlot, offsetInPage, chunkLength, result, copiedCount);
+            } else {
+                throw new IllegalArgumentException("offset " + chunkOffset + " has been discarded");
+            }
+            copiedCount += chunkLength;
+        }
+        return new CharArrayCharSequence(result);
+    }
+    
+    /**
+     * Forgets everything from 'newLength' on, so that's where the next append will start.
+     */
+    void truncate(long newLength) {
+        final int pageCount = (int) ((newLength + PAGE_SIZE - 1) / PAGE_SIZE);
+        while (pages.size() > pageCount) {
+            freePage(pages.remove(pages.size() - 1));
+        }
+        length = newLength;
+        // If we're going to append to a page that's been spilled, we need it back in the heap.
+        final int pageIndex = (int) (newLength / PAGE_SIZE);
+        if (pageIndex < pages.size() && pages.get(pageIndex).chars == null) {
+            Page page = pages.get(pageIndex);
+            char[] chars = new char[PAGE_SIZE];
+            readSpilledChars(page.spillSlot, 0, PAGE_SIZE, chars, 0);
+            freePage(page);
+            page.chars = chars;
+            ++residentPageCount;
+            oldestResidentPage = Math.min(oldestResidentPage, pageIndex);
+        }
+        firstLivePage = Math.min(firstLivePage, pages.size());
+        oldestResidentPage = Math.min(oldestResidentPage, pages.size());
+    }
+    
+    /**
+     * Forgets everything before 'offset', which will never be asked for again.
+     */
+    void discardBefore(long offset) {
+        final int pageIndex = (int) (offset / PAGE_SIZE);
+        for (; firstLivePage < pageIndex; ++firstLivePage) {
+            freePage(pages.get(firstLivePage));
+        }
+        oldestResidentPage = Math.max(oldestResidentPage, firstLivePage);
+    }
+    
+    /**
+     * Forgets everything, including any temporary file.
+     */
+    void clear() {
+        pages.clear();
+        length = 0;
+        firstLivePage = 0;
+        oldestResidentPage = 0;
+        residentPageCount = 0;
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        spillSlotCount = 0;
+        freeSpillSlots.clear();
+    }
+    
+    private void freePage(Page page) {
+        if (page.chars != null) {
+            page.chars = null;
+            --residentPageCount;
+        }
+        if (page.spillSlot != -1) {
+            freeSpillSlots.add(page.spillSlot);
+            page.spillSlot = -1;
+        }
+    }
+    
+    private void spillOldPages() {
+        // The last page is the one we're appending to, so it always stays.
+        while (residentPageCount > maxResidentPageCount && spillingFailed == false && oldestResidentPage < pages.size() - 1) {
+            Page page = pages.get(oldestResidentPage);
+            if (page.chars != null) {
+                spill(page);
+            }
+            ++oldestResidentPage;
+        }
+    }
+    
+    private void spill(Page page) {
+        try {
+            if (spillFile == null) {
+                spillFile = File.createTempFile("e.ptextarea.PUndoArena-", ".tmp");
+                spillFile.deleteOnExit();
+            }
+            final int slot = freeSpillSlots.isEmpty() ? spillSlotCount++ : freeSpillSlots.remove(freeSpillSlots.size() - 1);
+            ByteBuffer bytes = ByteBuffer.allocate(PAGE_SIZE * 2);
+            bytes.asCharBuffer().put(page.chars);
+            RandomAccessFile file = new RandomAccessFile(spillFile, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                final long position = (long) slot * PAGE_SIZE * 2;
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, position + bytes.position());
+                }
+            } finally {
+                file.close();
+            }
+            page.spillSlot = slot;
+            page.chars = null;
+            --residentPageCount;
+        } catch (IOException ex) {
+            Log.warn("Couldn't write undo history to \"" + spillFile + "\", so it will all stay in memory.", ex);
+            spillingFailed = true;
+        }
+    }
+    
+    private void readSpilledChars(int slot, int offsetInPage, int count, char[] destination, int destinationOffset) {
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate(count * 2);
+            RandomAccessFile file = new RandomAccessFile(spillFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                final long position = ((long) slot * PAGE_SIZE + offsetInPage) * 2;
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, position + bytes.position()) == -1) {
+                        throw new EOFException("undo history file \"" + spillFile + "\" is too short");
+                    }
+                }
+            } finally {
+                file.close();
+            }
+            bytes.flip();
+            bytes.asCharBuffer().get(destination, destinationOffset, count);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static class Page {
+        // Null if the page has been spilled or discarded.
+        char[] chars;
+        // Where the page is in the temporary file, or -1 if it isn't there.
+        int spillSlot = -1;
+        
+        Page(char[] chars) {
+            this.chars = chars;
+        }
+    }
+}
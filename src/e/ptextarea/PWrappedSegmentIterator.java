@@ -9,13 +9,20 @@ public class PWrappedSegmentIterator implements Iterator<PLineSegment> {
     private CachedSegmentIterator logicalIterator;
     private PLineSegment currentSegment;
     private SplitLine currentLine;
+    // The text offset at which currentLine ends. Working it out means finding the line's start, so we only do it once per line.
+    private int currentLineEnd;
     
     public PWrappedSegmentIterator(PTextArea textArea, int charOffset) {
         this.textArea = textArea;
         this.charOffset = charOffset;
         logicalIterator = new CachedSegmentIterator(textArea.getLogicalSegmentIterator(charOffset));
         nextSplitLineIndex = textArea.getCoordinates(charOffset).getLineIndex();
+        nextLine();
+    }
+    
+    private void nextLine() {
         currentLine = textArea.getSplitLine(nextSplitLineIndex++);
+        currentLineEnd = currentLine.getTextIndex() + currentLine.getLength();
     }
     
     public boolean hasNext() {
@@ -24,8 +31,8 @@ public class PWrappedSegmentIterator implements Iterator<PLineSegment> {
     
     public PLineSegment next() {
         PLineSegment result = null;
-        if (charOffset == currentLine.getTextIndex() + currentLine.getLength()) {
-            currentLine = textArea.getSplitLine(nextSplitLineIndex++);
+        if (charOffset == currentLineEnd) {
+            nextLine();
             if ((currentSegment == null) && logicalIterator.peekNext().isNewline()) {
                 result = logicalIterator.next();
             } else {
@@ -40,9 +47,8 @@ public class PWrappedSegmentIterator implements Iterator<PLineSegment> {
                 }
             }
             result = currentSegment;
-            int lineEndOffset = currentLine.getTextIndex() + currentLine.getLength();
-            if (lineEndOffset < currentSegment.getEnd()) {
-                int splitOffset = lineEndOffset - currentSegment.getOffset();
+            if (currentLineEnd < currentSegment.getEnd()) {
+                int splitOffset = currentLineEnd - currentSegment.getOffset();
                 result = currentSegment.subSegment(0, splitOffset);
                 currentSegment = currentSegment.subSegment(splitOffset);
             } else {
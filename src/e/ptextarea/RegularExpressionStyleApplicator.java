@@ -19,30 +19,51 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
         this.style = style;
     }
     
-    public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
-        ArrayList<PLineSegment> result = new ArrayList<PLineSegment>();
-        Matcher matcher = pattern.matcher(segment.getCharSequence());
+    public void applyStylingTo(String line, int lineStart, PLineSegment segment, List<PLineSegment> result) {
+        final int offset = segment.getOffset();
+        final int segmentStart = offset - lineStart;
+        final int segmentEnd = segment.getEnd() - lineStart;
+        if (mightMatch(line, segmentStart, segmentEnd) == false) {
+            result.add(segment);
+            return;
+        }
+        
+        // Matching within a region of the line with opaque, anchoring bounds behaves exactly like matching the segment's own text.
+        Matcher matcher = pattern.matcher(line);
+        matcher.region(segmentStart, segmentEnd);
         int normalStart = 0;
-        int offset = segment.getOffset();
+        boolean matched = false;
         while (matcher.find()) {
             if (isAcceptableMatch(line, matcher)) {
                 // We need exactly one group, but we accept more in case the user has used extra groups without making them non-capturing.
                 if (matcher.groupCount() < 1) {
                     Log.warn("RegularExpressionStyleApplicator for \"" + pattern + "\" disabled because it has no capturing group.");
                 }
-                final int matchStart = matcher.start(1);
-                final int matchEnd = matcher.end(1);
+                final int matchStart = matcher.start(1) - segmentStart;
+                final int matchEnd = matcher.end(1) - segmentStart;
                 if (matchStart > normalStart) {
                     result.add(segment.subSegment(normalStart, matchStart));
                 }
                 result.add(makeNewSegment(textArea, matcher, offset + matchStart, offset + matchEnd, style));
                 normalStart = matchEnd;
+                matched = true;
             }
         }
-        if (segment.getModelTextLength() > normalStart) {
+        if (matched == false) {
+            result.add(segment);
+        } else if (segment.getModelTextLength() > normalStart) {
             result.add(segment.subSegment(normalStart));
         }
-        return result;
+    }
+    
+    /**
+     * Override this to return false if a cheap test shows that the pattern
+     * can't possibly match line.substring(start, end). Most lines don't
+     * contain a URL, say, and it's much quicker to look for "://" than to
+     * run the regular expression engine over the whole line.
+     */
+    protected boolean mightMatch(String line, int start, int end) {
+        return true;
     }
     
     protected PLineSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
@@ -17,6 +17,7 @@ public class SelectionHighlight extends PHighlight {
     
     public SelectionHighlight(PTextArea textArea, int startIndex, int endIndex) {
         super(textArea, startIndex, endIndex);
+        attachAnchors();
         id = nextId++;
     }
     
@@ -4,12 +4,18 @@ import java.util.*;
 
 public interface StyleApplicator {
     /**
-     * Returns the list of text segments produced by applying a particular
-     * style to a given normal segment. This is used, for example, by the
-     * keyword styler to return segments of KEYWORD style within runs of
-     * NORMAL style.
+     * Appends to 'result' the segments produced by applying a particular
+     * style to the given segment. This is used, for example, by the keyword
+     * styler to produce segments of KEYWORD style within runs of NORMAL
+     * style. If there's nothing to style, 'segment' itself should be added.
+     * 
+     * 'line' is the text of the whole line containing the segment, which
+     * starts at offset 'lineStart' in the text, so the segment's text is
+     * line.substring(segment.getOffset() - lineStart, segment.getEnd() - lineStart).
+     * Looking at the line rather than segment.getCharSequence() avoids going
+     * back to the text buffer for every character.
      */
-    public List<PLineSegment> applyStylingTo(String line, PLineSegment normalSegment);
+    public void applyStylingTo(String line, int lineStart, PLineSegment segment, List<PLineSegment> result);
     
     /**
      * Tests whether this style applicator works on the given style.
@@ -1,21 +1,23 @@
 package e.ptextarea;
 
-import java.util.regex.*;
-
 /**
  * Recognizes runs of ASCII HT characters.
  */
-public class TabStyleApplicator extends RegularExpressionStyleApplicator {
+public class TabStyleApplicator extends CharacterRunStyleApplicator {
     public TabStyleApplicator(PTextArea textArea) {
-        super(textArea, "(\t+)", PStyle.NORMAL);
+        super(textArea);
     }
     
     @Override
-    protected PLineSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
-        return new PTabSegment(textArea, start, end);
+    protected boolean isRunCharacter(char ch) {
+        return (ch == '\t');
     }
     
     @Override
+    protected PLineSegment makeRunSegment(int start, int end) {
+        return new PTabSegment(textArea, start, end);
+    }
+    
     public boolean canApplyStylingTo(PStyle style) {
         return true;
     }
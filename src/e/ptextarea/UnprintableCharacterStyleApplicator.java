@@ -1,17 +1,25 @@
 package e.ptextarea;
 
-import java.util.regex.*;
-
 /**
- * Recognizes unprintable characters.
+ * Recognizes unprintable characters: the ASCII control characters other
+ * than HT and LF, and DEL.
  */
-public class UnprintableCharacterStyleApplicator extends RegularExpressionStyleApplicator {
+public class UnprintableCharacterStyleApplicator extends CharacterRunStyleApplicator {
     public UnprintableCharacterStyleApplicator(PTextArea textArea) {
-        super(textArea, "([\\u0000-\\u0008\\u000a-\\u001f\\u007f]+)", PStyle.UNPRINTABLE);
+        super(textArea);
+    }
+    
+    @Override
+    protected boolean isRunCharacter(char ch) {
+        return (ch < 0x20 && ch != '\t' && ch != '\n') || ch == 0x7f;
     }
     
     @Override
-    protected PTextSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
-        return new UnprintableCharacterTextSegment(textArea, start, end, style);
+    protected PLineSegment makeRunSegment(int start, int end) {
+        return new UnprintableCharacterTextSegment(textArea, start, end, PStyle.UNPRINTABLE);
+    }
+    
+    public boolean canApplyStylingTo(PStyle style) {
+        return (style == PStyle.NORMAL);
     }
 }
@@ -0,0 +1,164 @@
+package e.ptextarea;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Styles a language's keywords and type names within NORMAL text segments.
+ * 
+ * This produces exactly the same segments as a KeywordStyleApplicator for
+ * the keywords followed by another for the types, both using the default
+ * "\b(\w+)\b" pattern, but it finds the words in a single hand-written scan,
+ * and looks them up in an open-addressed hash table of char[]s that's
+ * searched in place, so it neither runs a Matcher nor creates a String for
+ * each word. The keyword and type applicators run over every NORMAL segment
+ * of every line, so this is one of the hottest parts of styling.
+ */
+class WordStyleApplicator implements StyleApplicator {
+    /**
+     * Whether java.util.regex's \b treats all Unicode letters and digits as
+     * word characters (as it did up to Java 18) rather than just \w's
+     * [A-Za-z0-9_]. We ask rather than assume, so we always agree with the
+     * regular expression we replace.
+     */
+    private static final boolean UNICODE_WORD_BOUNDARIES = Pattern.compile("\\b").matcher("\u00e9").find();
+    
+    private PTextArea textArea;
+    private boolean caseSensitive;
+    private char[][] words;
+    private PStyle[] styles;
+    private int mask;
+    
+    /**
+     * Keywords take precedence over types. If 'caseSensitive' is false,
+     * words match regardless of the case of the letters A to Z.
+     */
+    public WordStyleApplicator(PTextArea textArea, Set<String> keywords, Set<String> types, boolean caseSensitive) {
+        this.textArea = textArea;
+        this.caseSensitive = caseSensitive;
+        // Keep the table no more than half full, so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(1, keywords.size() + types.size())) * 4;
+        this.words = new char[capacity][];
+        this.styles = new PStyle[capacity];
+        this.mask = capacity - 1;
+        for (String type : types) {
+            put(type, PStyle.TYPE);
+        }
+        for (String keyword : keywords) {
+            put(keyword, PStyle.KEYWORD);
+        }
+    }
+    
+    public boolean canApplyStylingTo(PStyle style) {
+        return (style == PStyle.NORMAL);
+    }
+    
+    public void applyStylingTo(String line, int lineStart, PLineSegment segment, List<PLineSegment> result) {
+        final int segmentStart = segment.getOffset() - lineStart;
+        final int segmentEnd = segment.getEnd() - lineStart;
+        int normalStart = segmentStart;
+        int i = segmentStart;
+        while (i < segmentEnd) {
+            if (isAsciiWordCharacter(line.charAt(i)) == false) {
+                ++i;
+                continue;
+            }
+            int wordEnd = i + 1;
+            while (wordEnd < segmentEnd && isAsciiWordCharacter(line.charAt(wordEnd))) {
+                ++wordEnd;
+            }
+            PStyle style = isWordBoundary(line, segmentStart, segmentEnd, i, wordEnd) ? get(line, i, wordEnd) : null;
+            if (style != null) {
+                if (i > normalStart) {
+                    result.add(segment.subSegment(normalStart - segmentStart, i - segmentStart));
+                }
+                result.add(new PTextSegment(textArea, lineStart + i, lineStart + wordEnd, style));
+                normalStart = wordEnd;
+            }
+            i = wordEnd;
+        }
+        if (normalStart == segmentStart) {
+            result.add(segment);
+        } else if (normalStart < segmentEnd) {
+            result.add(segment.subSegment(normalStart - segmentStart));
+        }
+    }
+    
+    private static boolean isAsciiWordCharacter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+    
+    /**
+     * Tests whether the maximal run of ASCII word characters [wordStart, wordEnd) has a \b at each end.
+     * The segment's ends always count as boundaries, as they do when matching the segment on its own.
+     */
+    private static boolean isWordBoundary(String line, int segmentStart, int segmentEnd, int wordStart, int wordEnd) {
+        if (UNICODE_WORD_BOUNDARIES == false) {
+            // The run is maximal, so it's bounded by non-word characters or the segment's ends.
+            return true;
+        }
+        if (wordStart > segmentStart && isUnicodeWordCharacter(line.codePointBefore(wordStart))) {
+            return false;
+        }
+        if (wordEnd < segmentEnd && isUnicodeWordCharacter(line.codePointAt(wordEnd))) {
+            return false;
+        }
+        return true;
+    }
+    
+    private static boolean isUnicodeWordCharacter(int codePoint) {
+        return codePoint == '_' || Character.isLetterOrDigit(codePoint) || Character.getType(codePoint) == Character.NON_SPACING_MARK;
+    }
+    
+    private char fold(char ch) {
+        if (caseSensitive == false && ch >= 'A' && ch <= 'Z') {
+            return (char) (ch + ('a' - 'A'));
+        }
+        return ch;
+    }
+    
+    private int hash(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + fold(chars.charAt(i));
+        }
+        // Mix the high bits in, because we only use the low ones.
+        return hash ^ (hash >>> 16);
+    }
+    
+    private void put(String word, PStyle style) {
+        char[] chars = new char[word.length()];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = fold(word.charAt(i));
+        }
+        int slot = hash(word, 0, word.length()) & mask;
+        while (words[slot] != null && Arrays.equals(words[slot], chars) == false) {
+            slot = (slot + 1) & mask;
+        }
+        words[slot] = chars;
+        styles[slot] = style;
+    }
+    
+    /**
+     * Returns the style for line.substring(start, end), or null if it's neither a keyword nor a type.
+     */
+    private PStyle get(String line, int start, int end) {
+        final int length = end - start;
+        for (int slot = hash(line, start, end) & mask; words[slot] != null; slot = (slot + 1) & mask) {
+            char[] word = words[slot];
+            if (word.length == length && regionMatches(word, line, start)) {
+                return styles[slot];
+            }
+        }
+        return null;
+    }
+    
+    private boolean regionMatches(char[] word, String line, int start) {
+        for (int i = 0; i < word.length; ++i) {
+            if (word[i] != fold(line.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package e.testing;
+
+import e.ptextarea.*;
+import e.util.*;
+
+/**
+ * Measures the cost of typing near the top of a document whose buffer has
+ * many anchors after the edit point, and of looking up an anchor's index.
+ * Both should grow only logarithmically with the number of anchors.
+ * 
+ * Usage: PAnchorSetBenchmark [<anchor-count>...]
+ */
+public class PAnchorSetBenchmark {
+    private static final int EDIT_COUNT = 20000;
+    private static final int LOOKUP_COUNT = 1000000;
+    
+    private static final PTextBuffer.SelectionSetter NO_SELECTION_CHANGE = new PTextBuffer.SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    private static class BenchmarkAnchor extends PAnchor {
+        private BenchmarkAnchor(int index) {
+            super(index);
+        }
+        
+        @Override
+        public void anchorDestroyed() {
+        }
+    }
+    
+    private static void run(int anchorCount) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < anchorCount; ++i) {
+            text.append("anchor\n");
+        }
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.replace(NO_SELECTION_CHANGE, 0, 0, text, NO_SELECTION_CHANGE);
+        PAnchor[] anchors = new PAnchor[anchorCount];
+        for (int i = 0; i < anchorCount; ++i) {
+            anchors[i] = new BenchmarkAnchor(i * 7);
+            buffer.getAnchorSet().add(anchors[i]);
+        }
+        
+        long t0 = System.nanoTime();
+        for (int i = 0; i < EDIT_COUNT; ++i) {
+            // Type a character at the top, and take it away again.
+            if (i % 2 == 0) {
+                buffer.replace(NO_SELECTION_CHANGE, 3, 0, "x", NO_SELECTION_CHANGE);
+            } else {
+                buffer.replace(NO_SELECTION_CHANGE, 3, 1, "", NO_SELECTION_CHANGE);
+            }
+        }
+        long nsPerEdit = (System.nanoTime() - t0) / EDIT_COUNT;
+        
+        long t1 = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < LOOKUP_COUNT; ++i) {
+            checksum += anchors[(int) ((i * 7919L) % anchorCount)].getIndex();
+        }
+        long nsPerLookup = (System.nanoTime() - t1) / LOOKUP_COUNT;
+        
+        System.out.println(anchorCount + " anchors: " + TimeUtilities.nsToString(nsPerEdit) + " per edit, " + TimeUtilities.nsToString(nsPerLookup) + " per lookup (checksum " + checksum + ")");
+    }
+    
+    public static void main(String[] args) {
+        int[] counts = new int[] { 1000, 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int anchorCount : counts) {
+            // Run twice so the second run is measured after the JIT has warmed up.
+            run(anchorCount);
+            run(anchorCount);
+        }
+    }
+}
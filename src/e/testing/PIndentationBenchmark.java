@@ -0,0 +1,90 @@
+package e.testing;
+
+import java.io.*;
+import java.util.*;
+import e.ptextarea.*;
+import e.util.*;
+
+/**
+ * Measures how long PTextArea takes to re-indent whole files, as the
+ * "Correct Indentation" action does when everything is selected. Each file
+ * is loaded into a new text area, has its indentation removed, and is then
+ * re-indented from the first line to the last. The files are also
+ * concatenated into one large file, so it's obvious if the time per line
+ * grows with the size of the file.
+ * 
+ * Usage: PIndentationBenchmark [<file-or-directory>...]
+ * 
+ * The default is to re-indent the source and the indenter tests.
+ */
+public class PIndentationBenchmark {
+    private static final int ROUND_COUNT = 5;
+    
+    private static void collectFiles(File file, List<File> result) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (File child : children) {
+                collectFiles(child, result);
+            }
+        } else {
+            result.add(file);
+        }
+    }
+    
+    private static String removeIndentation(String content) {
+        return content.replaceAll("(?m)^[ \t]+", "");
+    }
+    
+    /**
+     * Re-indents the given content as if it came from a file with the given
+     * name, returning the number of lines and the time taken.
+     */
+    private static long[] reindent(String filename, String originalContent) {
+        PTextArea textArea = new PTextArea();
+        PTextBuffer buffer = textArea.getTextBuffer();
+        buffer.putProperty(PTextBuffer.INDENTATION_PROPERTY, IndentationGuesser.guessIndentationFromFile(originalContent));
+        textArea.setText(removeIndentation(originalContent));
+        FileType.guessFileType(filename, originalContent).configureTextArea(textArea);
+        
+        long t0 = System.nanoTime();
+        textArea.getIndenter().fixIndentationBetween(0, buffer.length());
+        long ns = System.nanoTime() - t0;
+        return new long[] { textArea.getLineCount(), ns };
+    }
+    
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            args = new String[] { "src", "tests" };
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            collectFiles(FileUtilities.fileFromString(arg), files);
+        }
+        List<String> contents = new ArrayList<String>();
+        StringBuilder allContent = new StringBuilder();
+        for (File file : files) {
+            String content = StringUtilities.readFile(file);
+            contents.add(content);
+            allContent.append(content);
+        }
+        
+        // Only report the last round, so the JIT has had time to warm up.
+        long lineCount = 0;
+        long ns = 0;
+        long[] concatenated = null;
+        for (int round = 0; round < ROUND_COUNT; ++round) {
+            lineCount = 0;
+            ns = 0;
+            for (int i = 0; i < files.size(); ++i) {
+                long[] result = reindent(files.get(i).getName(), contents.get(i));
+                lineCount += result[0];
+                ns += result[1];
+            }
+            // The concatenation is only as sensible as the first file's type makes it, but it's the size that matters.
+            concatenated = reindent(files.get(0).getName(), allContent.toString());
+        }
+        System.out.println("separately: " + lineCount + " lines in " + files.size() + " files, " + TimeUtilities.nsToString(ns / Math.max(1, lineCount)) + " per line");
+        System.out.println("concatenated: " + concatenated[0] + " lines, " + TimeUtilities.nsToString(concatenated[1] / Math.max(1, concatenated[0])) + " per line");
+    }
+}
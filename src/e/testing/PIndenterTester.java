@@ -9,6 +9,9 @@ import e.util.*;
 
 /**
  * A PIndenterTester tests the indentation engines used for the PTextArea.
+ * Each file is re-indented as a whole, and then (starting again from the
+ * original) just its middle third is stripped of indentation and
+ * re-indented, so the lines being fixed depend on lines that weren't.
  * 
  * @author Phil Norman
  */
@@ -112,6 +115,18 @@ public class PIndenterTester {
         int newLength = textArea.getTextBuffer().length();
     }
     
+    public void correctIndentationOfMiddleLines() {
+        int lineCount = textArea.getLineCount();
+        int startLine = lineCount / 3;
+        int finishLine = Math.max(startLine, 2 * lineCount / 3 - 1);
+        for (int lineIndex = startLine; lineIndex <= finishLine; ++lineIndex) {
+            String line = textArea.getLineText(lineIndex);
+            int lineStart = textArea.getLineStartOffset(lineIndex);
+            textArea.replaceRange(StringUtilities.trimLeadingWhitespace(line), lineStart, lineStart + line.length());
+        }
+        textArea.getIndenter().fixIndentationBetween(textArea.getLineStartOffset(startLine), textArea.getLineEndOffsetBeforeTerminator(finishLine));
+    }
+    
     public static void main(final String[] args) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
@@ -121,6 +136,9 @@ public class PIndenterTester {
                     tester.correctIndentation();
                     PrintWriter out = new PrintWriter(System.out);
                     int differencesFound = tester.printDifferences(out);
+                    tester = new PIndenterTester(filename);
+                    tester.correctIndentationOfMiddleLines();
+                    differencesFound += tester.printDifferences(out);
                     out.flush();
                     errorCounter += differencesFound;
                     if (differencesFound == 0) {
@@ -0,0 +1,76 @@
+package e.testing;
+
+import java.io.*;
+import e.ptextarea.*;
+import e.util.*;
+
+/**
+ * Measures the cost of edits that alternate between the top and the bottom
+ * of documents of increasing size, for each PTextBuffer storage engine.
+ * With the gap buffer, the cost grows with the document; with the piece
+ * table, it should stay flat.
+ * 
+ * Usage: PTextBufferBenchmark [<megabytes>...]
+ */
+public class PTextBufferBenchmark {
+    private static final int EDIT_COUNT = 2000;
+    
+    private static final PTextBuffer.SelectionSetter NO_SELECTION_CHANGE = new PTextBuffer.SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    private static File makeDocument(int megabytes) throws IOException {
+        File file = File.createTempFile("PTextBufferBenchmark-", ".txt");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            String line = "the quick brown fox jumps over the lazy dog; 0123456789 abcdefghijklmnopqrstuvwxyz\n";
+            long lineCount = (megabytes * 1024L * 1024L) / line.length();
+            for (long i = 0; i < lineCount; ++i) {
+                writer.write(line);
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+    
+    private static long timeEdits(File file, String engine) {
+        System.setProperty("e.ptextarea.PTextBuffer.pieceTableThreshold", engine.equals("gap buffer") ? Integer.toString(Integer.MAX_VALUE) : "0");
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.readFromFile(file);
+        
+        long t0 = System.nanoTime();
+        for (int i = 0; i < EDIT_COUNT; ++i) {
+            // Alternate between the very top and the very bottom, inserting on the way there and removing on the way back.
+            int position = (i % 2 == 0) ? 10 : buffer.length() - 10;
+            if ((i / 2) % 2 == 0) {
+                buffer.replace(NO_SELECTION_CHANGE, position, 0, "x", NO_SELECTION_CHANGE);
+            } else {
+                buffer.replace(NO_SELECTION_CHANGE, position, 1, "", NO_SELECTION_CHANGE);
+            }
+        }
+        return (System.nanoTime() - t0) / EDIT_COUNT;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        int[] sizes = new int[] { 1, 10, 50 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int megabytes : sizes) {
+            File file = makeDocument(megabytes);
+            for (String engine : new String[] { "gap buffer", "piece table" }) {
+                // Run twice so the second run is measured after the JIT has warmed up.
+                timeEdits(file, engine);
+                long nsPerEdit = timeEdits(file, engine);
+                System.out.println(megabytes + " MiB, " + engine + ": " + TimeUtilities.nsToString(nsPerEdit) + " per edit");
+            }
+            file.delete();
+        }
+    }
+}
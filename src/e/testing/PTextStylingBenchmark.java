@@ -0,0 +1,88 @@
+package e.testing;
+
+import java.io.*;
+import java.util.*;
+import e.ptextarea.*;
+import e.util.*;
+
+/**
+ * Measures how long PTextArea takes to style a line: running the file type's
+ * styler and then all the style applicators, as getLineSegments does when a
+ * line is first painted. Every line of every file is styled, with each file
+ * loaded into a new text area so that nothing comes from the segment cache.
+ * 
+ * Usage: PTextStylingBenchmark [<file-or-directory>...]
+ * 
+ * The default is to style the source and the indenter tests.
+ */
+public class PTextStylingBenchmark {
+    private static final int ROUND_COUNT = 5;
+    
+    private static void collectFiles(File file, List<File> result) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (File child : children) {
+                collectFiles(child, result);
+            }
+        } else {
+            result.add(file);
+        }
+    }
+    
+    /**
+     * Styles every line of the given file, adding the number of lines and
+     * the time taken to the totals for the file's type.
+     */
+    private static void styleFile(File file, Map<FileType, long[]> totals) {
+        PTextArea textArea = new PTextArea();
+        textArea.getTextBuffer().readFromFile(file);
+        FileType fileType = FileType.guessFileType(file.getName(), textArea.getTextBuffer());
+        fileType.configureTextArea(textArea);
+        BugDatabaseHighlighter.highlightBugs(textArea);
+        
+        final int lineCount = textArea.getLineCount();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < lineCount; ++i) {
+            textArea.getLineSegments(i);
+        }
+        long ns = System.nanoTime() - t0;
+        
+        long[] total = totals.get(fileType);
+        if (total == null) {
+            total = new long[2];
+            totals.put(fileType, total);
+        }
+        total[0] += lineCount;
+        total[1] += ns;
+    }
+    
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            args = new String[] { "src", "tests" };
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            collectFiles(FileUtilities.fileFromString(arg), files);
+        }
+        
+        // Only report the last round, so the JIT has had time to warm up.
+        Map<FileType, long[]> totals = null;
+        for (int round = 0; round < ROUND_COUNT; ++round) {
+            totals = new TreeMap<FileType, long[]>();
+            for (File file : files) {
+                styleFile(file, totals);
+            }
+        }
+        
+        long lineCount = 0;
+        long ns = 0;
+        for (Map.Entry<FileType, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            System.out.println(entry.getKey().getName() + ": " + total[0] + " lines, " + TimeUtilities.nsToString(total[1] / Math.max(1, total[0])) + " per line");
+            lineCount += total[0];
+            ns += total[1];
+        }
+        System.out.println("all: " + lineCount + " lines in " + files.size() + " files, " + TimeUtilities.nsToString(ns / Math.max(1, lineCount)) + " per line");
+    }
+}
@@ -7,37 +7,68 @@ import java.util.*;
  * A simple cross-platform file alteration monitor.
  * Each monitor has its own thread, but checks the times of the set of files it's given sequentially.
  * The intent is that no instance should have to deal with files on different file systems. The unresponsiveness of any one file system will not harm monitoring of any other file system, nor will it cause excessive numbers of threads to be created as the timer fires: all access to that file system will be blocked until the first hung call completes.
+ * 
+ * Whole directory trees can also be monitored. Where inotifywait(1) is available, we use it to hear about changes to individual files anywhere in the tree, without polling anything. Otherwise (or if inotifywait(1) fails, perhaps because the tree needs more watches than the system allows), we fall back to polling the directory itself, which only notices changes to its immediate contents.
+ * 
+ * Changes are delivered in batches: once nothing has changed for QUIET_PERIOD_MS, or once the oldest undelivered change is MAX_DELAY_MS old. Something like a build or switching branches then costs listeners a few notifications rather than thousands.
  */
 public class FileAlterationMonitor {
+    private static final long TICK_MS = 250;
+    private static final long POLL_INTERVAL_MS = 1000;
+    private static final long QUIET_PERIOD_MS = 500;
+    private static final long MAX_DELAY_MS = 5000;
+    
     private ArrayList<FileDetails> files = new ArrayList<FileDetails>();
+    private ArrayList<DirectoryTreeWatcher> watchers = new ArrayList<DirectoryTreeWatcher>();
     private ArrayList<Listener> listeners = new ArrayList<Listener>();
     private Timer timer;
+    private String name;
+    
+    private LinkedHashSet<String> touchedPathnames = new LinkedHashSet<String>();
+    private long firstTouchTime;
+    private long lastTouchTime;
+    private long lastPollTime;
     
     /**
      * Constructs a file alteration monitor with the given name, typically the file system or root directory being monitored.
      * Monitoring begins immediately.
      */
     public FileAlterationMonitor(String name) {
+        this.name = name;
         this.timer = new Timer("FileAlterationMonitor " + name, true);
         timer.schedule(new TimerTask() {
             public void run() {
-                checkFileTimes();
+                tick();
             }
-        }, 0, 1000);
+        }, 0, TICK_MS);
     }
     
     public synchronized void addPathname(String pathname) {
         files.add(new FileDetails(pathname));
     }
     
+    /**
+     * Monitors everything within the given directory. See the class comment for how.
+     */
+    public synchronized void addDirectoryTree(String directory) {
+        DirectoryTreeWatcher watcher = new DirectoryTreeWatcher(directory);
+        if (watcher.start()) {
+            watchers.add(watcher);
+        } else {
+            addPathname(directory);
+        }
+    }
+    
     /**
      * The listener interface for receiving notifications when files are touched.
      */
     public interface Listener {
         /**
-         * Invoked when a file is touched. The pathname returned is exactly as supplied to addPathname.
+         * Invoked with the pathnames touched since the last invocation.
+         * A pathname exactly as supplied to addPathname or addDirectoryTree means something about it changed, but we don't know exactly what, so for a directory tree, anything within it may have changed.
+         * Other pathnames are absolute pathnames of files or directories within a directory tree that were created, written, removed, or renamed.
          */
-        public void fileTouched(String pathname);
+        public void filesTouched(Set<String> pathnames);
     }
     
     public synchronized void addListener(Listener l) {
@@ -53,25 +84,72 @@ public class FileAlterationMonitor {
      */
     public synchronized void dispose() {
         timer.cancel();
+        for (DirectoryTreeWatcher watcher : watchers) {
+            watcher.dispose();
+        }
         files = null;
+        watchers = null;
         listeners = null;
         timer = null;
     }
     
-    private synchronized void checkFileTimes() {
+    private synchronized void touched(String pathname) {
+        if (timer == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (touchedPathnames.isEmpty()) {
+            firstTouchTime = now;
+        }
+        lastTouchTime = now;
+        touchedPathnames.add(pathname);
+    }
+    
+    private void tick() {
+        Set<String> pathnames;
+        ArrayList<Listener> listenersToNotify;
+        synchronized (this) {
+            if (timer == null) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (now - lastPollTime >= POLL_INTERVAL_MS) {
+                lastPollTime = now;
+                checkFileTimes();
+            }
+            if (touchedPathnames.isEmpty() || (now - lastTouchTime < QUIET_PERIOD_MS && now - firstTouchTime < MAX_DELAY_MS)) {
+                return;
+            }
+            pathnames = Collections.unmodifiableSet(touchedPathnames);
+            touchedPathnames = new LinkedHashSet<String>();
+            listenersToNotify = new ArrayList<Listener>(listeners);
+        }
+        // We don't hold our lock while listeners run, so they can't hold up the watchers.
+        for (Listener l : listenersToNotify) {
+            l.filesTouched(pathnames);
+        }
+    }
+    
+    private void checkFileTimes() {
         for (FileDetails fileDetails : files) {
             long newTime = fileDetails.file.lastModified();
             if (fileDetails.lastModified < newTime) {
                 fileDetails.lastModified = newTime;
-                fireFileTouched(fileDetails);
+                touched(fileDetails.pathname);
             }
         }
     }
     
-    private synchronized void fireFileTouched(FileDetails fileDetails) {
-        for (Listener l : listeners) {
-            l.fileTouched(fileDetails.pathname);
+    /**
+     * Called by a DirectoryTreeWatcher whose inotifywait(1) has stopped unexpectedly.
+     */
+    private synchronized void watcherFailed(DirectoryTreeWatcher watcher) {
+        if (watchers == null || watchers.remove(watcher) == false) {
+            return;
         }
+        // We may have missed changes, and can't hear about future ones in detail.
+        addPathname(watcher.pathname);
+        touched(watcher.pathname);
     }
     
     private static class FileDetails {
@@ -85,4 +163,107 @@ public class FileAlterationMonitor {
             this.lastModified = file.lastModified();
         }
     }
+    
+    /**
+     * Runs inotifywait(1) on a directory tree, and reports each pathname it mentions.
+     */
+    private class DirectoryTreeWatcher {
+        private String pathname;
+        private Process process;
+        // inotifywait(1) would otherwise outlive us, holding on to its watches, until the next event made it write to a closed pipe.
+        private Thread shutdownHook;
+        private volatile boolean disposed;
+        
+        DirectoryTreeWatcher(String pathname) {
+            this.pathname = pathname;
+        }
+        
+        boolean start() {
+            String directory = FileUtilities.fileFromString(pathname).getAbsolutePath();
+            String[] command = new String[] {
+                "inotifywait", "--monitor", "--recursive", "--quiet",
+                "--event", "close_write", "--event", "create", "--event", "delete", "--event", "move", "--event", "delete_self",
+                // Hidden directories (such as .git) are never interesting, and can need a lot of watches.
+                "--exclude", "^" + quoteExtendedRegularExpression(directory) + ".*/\\.",
+                "--format", "%w%f",
+                directory
+            };
+            try {
+                process = Runtime.getRuntime().exec(command);
+            } catch (IOException ex) {
+                Log.warn("Couldn't run inotifywait(1), so will poll \"" + pathname + "\" for changes instead.");
+                return false;
+            }
+            try {
+                process.getOutputStream().close();
+            } catch (IOException ex) {
+                ex = ex; // We don't need it anyway.
+            }
+            shutdownHook = new Thread(new Runnable() {
+                public void run() {
+                    disposed = true;
+                    process.destroy();
+                }
+            }, "FileAlterationMonitor " + name + " shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            final ArrayList<String> errors = new ArrayList<String>();
+            final Thread errorReaderThread = new Thread(new Runnable() {
+                public void run() {
+                    ProcessUtilities.readLinesFromStream(new ProcessUtilities.ArrayListLineListener(errors), process.getErrorStream());
+                }
+            }, "FileAlterationMonitor " + name + " errors");
+            errorReaderThread.setDaemon(true);
+            errorReaderThread.start();
+            Thread outputReaderThread = new Thread(new Runnable() {
+                public void run() {
+                    ProcessUtilities.readLinesFromStream(new ProcessUtilities.LineListener() {
+                        public void processLine(String line) {
+                            // Directories are reported with a trailing separator.
+                            touched(new File(line).getPath());
+                        }
+                    }, process.getInputStream());
+                    if (disposed == false) {
+                        try {
+                            // inotifywait(1) has exited, so its stderr is closed too, and this won't take long.
+                            errorReaderThread.join();
+                        } catch (InterruptedException ex) {
+                            ex = ex; // We'll just report whatever errors we've got so far.
+                        }
+                        Log.warn("inotifywait(1) for \"" + pathname + "\" stopped, so will poll it for changes instead: " + errors);
+                        removeShutdownHook();
+                        watcherFailed(DirectoryTreeWatcher.this);
+                    }
+                }
+            }, "FileAlterationMonitor " + name + " events");
+            outputReaderThread.setDaemon(true);
+            outputReaderThread.start();
+            return true;
+        }
+        
+        void dispose() {
+            disposed = true;
+            process.destroy();
+            removeShutdownHook();
+        }
+        
+        private void removeShutdownHook() {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                ex = ex; // We're already shutting down, so the hook will run anyway, and do no harm.
+            }
+        }
+    }
+    
+    private static String quoteExtendedRegularExpression(String s) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < s.length(); ++i) {
+            char ch = s.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(ch) != -1) {
+                result.append('\\');
+            }
+            result.append(ch);
+        }
+        return result.toString();
+    }
 }
@@ -2,82 +2,288 @@ package e.util;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.regex.*;
 
+/**
+ * Finds the lines of a file that match a Pattern.
+ * 
+ * A FileSearcher is meant to be reused for many files, by one thread at a
+ * time. It keeps its byte and char buffers between files, so searching a
+ * typical source file allocates nothing but the results. Before decoding a
+ * file, it checks the raw bytes for the ASCII literals any match must
+ * contain (see PatternUtilities.getRequiredLiterals), and most files are
+ * rejected there without being decoded or seeing the regular expression.
+ * That's safe for both UTF-8 and ISO-8859-1, the only encodings we fall
+ * back on without a BOM, because neither uses ASCII bytes for anything but
+ * ASCII characters. UTF-16 files don't get the prefilter.
+ */
 public class FileSearcher {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // We drop buffers bigger than this before the next file, so one huge file doesn't cost us memory forever.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+    /**
+     * A line that matched, with the [start, end) offsets within it of each match.
+     */
+    public static class LineMatch {
+        public final int lineNumber;
+        public final String line;
+        public final int[] matchOffsets;
+        
+        public LineMatch(int lineNumber, String line, int[] matchOffsets) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.matchOffsets = matchOffsets;
+        }
+        
+        public int getMatchCount() {
+            return matchOffsets.length / 2;
+        }
+    }
+    
     private Pattern pattern;
+    private Matcher matcher;
+    private byte[][] requiredLiterals;
+    private byte[] longestRequiredLiteral;
+    private boolean caseInsensitive;
+    
+    private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private HashMap<String, CharsetDecoder> decoders = new HashMap<String, CharsetDecoder>();
+    private int[] offsets = new int[16];
     
     /** Creates a new FileSearcher for finding the given Pattern. */
     public FileSearcher(Pattern pattern) {
         this.pattern = pattern;
+        this.matcher = pattern.matcher("");
+        this.caseInsensitive = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        List<String> literals = PatternUtilities.getRequiredLiterals(pattern);
+        this.requiredLiterals = new byte[literals.size()][];
+        for (int i = 0; i < requiredLiterals.length; ++i) {
+            String literal = literals.get(i);
+            byte[] literalBytes = new byte[literal.length()];
+            for (int j = 0; j < literalBytes.length; ++j) {
+                literalBytes[j] = (byte) fold(literal.charAt(j));
+            }
+            requiredLiterals[i] = literalBytes;
+            if (longestRequiredLiteral == null || literalBytes.length > longestRequiredLiteral.length) {
+                longestRequiredLiteral = literalBytes;
+            }
+        }
+    }
+    
+    /**
+     * Search for occurrences of the input pattern in the given file.
+     * Returns false if unable to search; true otherwise.
+     */
+    public boolean searchFile(File file, Collection<LineMatch> matches) throws IOException {
+        final int byteCount = readFile(file);
+        
+        if (ByteBufferUtilities.isBinaryByteBuffer(ByteBuffer.wrap(bytes, 0, byteCount), byteCount)) {
+            return false;
+        }
+        
+        String charsetName = guessCharsetName(byteCount);
+        if (charsetName.equals("UTF-8") && containsRequiredLiterals(byteCount) == false) {
+            return true;
+        }
+        
+        CharSequence text = decode(byteCount, charsetName);
+        if (text == null) {
+            text = decode(byteCount, "ISO-8859-1");
+        }
+        searchCharSequence(text, matches);
+        return true;
+    }
+    
+    private int readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            final int expectedByteCount = (int) file.length();
+            if (bytes.length > MAX_RETAINED_BUFFER_SIZE) {
+                bytes = new byte[INITIAL_BUFFER_SIZE];
+                chars = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+            if (expectedByteCount > bytes.length) {
+                bytes = new byte[expectedByteCount];
+            }
+            // Read until EOF rather than trusting the length, in case the file's being truncated.
+            int byteCount = 0;
+            int n;
+            while (byteCount < bytes.length && (n = in.read(bytes, byteCount, bytes.length - byteCount)) != -1) {
+                byteCount += n;
+            }
+            return byteCount;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /** Like ByteBufferDecoder, we assume UTF-8 unless there's a UTF-16 BOM. */
+    private String guessCharsetName(int byteCount) {
+        if (byteCount > 1) {
+            int possibleBom = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+            if (possibleBom == 0xfeff) {
+                return "UTF-16BE";
+            } else if (possibleBom == 0xfffe) {
+                return "UTF-16LE";
+            }
+        }
+        return "UTF-8";
     }
     
-    /** Finds the index of the next newline character in 'charSequence' after 'start'. */
-    private int findEndOfLine(CharSequence charSequence, int start) {
-        final int max = charSequence.length();
-        for (int i = start; i < max; i++) {
-            if (charSequence.charAt(i) == '\n') {
+    /**
+     * Decodes our bytes into our reused CharBuffer, returning null if they
+     * aren't valid in the given character set.
+     */
+    private CharSequence decode(int byteCount, String charsetName) {
+        CharsetDecoder decoder = decoders.get(charsetName);
+        if (decoder == null) {
+            // CharsetDecoder is reporting by default.
+            decoder = Charset.forName(charsetName).newDecoder();
+            decoders.put(charsetName, decoder);
+        }
+        // None of our character sets produce more chars than there are bytes.
+        if (chars.capacity() < byteCount) {
+            chars = CharBuffer.allocate(byteCount);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, byteCount);
+        chars.clear();
+        decoder.reset();
+        if (decoder.decode(in, chars, true).isError() || decoder.flush(chars).isError()) {
+            return null;
+        }
+        chars.flip();
+        return chars;
+    }
+    
+    private char fold(char ch) {
+        if (caseInsensitive && ch >= 'A' && ch <= 'Z') {
+            return (char) (ch + ('a' - 'A'));
+        }
+        return ch;
+    }
+    
+    private boolean containsRequiredLiterals(int byteCount) {
+        for (byte[] literal : requiredLiterals) {
+            if (indexOf(bytes, byteCount, literal) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the index of the first occurrence of 'literal' (which has already
+     * been folded) in haystack[0, end), or -1.
+     */
+    private int indexOf(byte[] haystack, int end, byte[] literal) {
+        final byte first = literal[0];
+        final int max = end - literal.length;
+        for (int i = 0; i <= max; ++i) {
+            if (foldByte(haystack[i]) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < literal.length && foldByte(haystack[i + j]) == literal[j]) {
+                ++j;
+            }
+            if (j == literal.length) {
                 return i;
             }
         }
-        return max - 1;
+        return -1;
+    }
+    
+    private byte foldByte(byte b) {
+        if (caseInsensitive && b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
+        }
+        return b;
     }
     
     /**
-     * Use the linePattern to break the given CharBuffer into lines, applying
-     * the input pattern to each line to see if we have a match.
+     * Applies the pattern to each line of the given text. Lines that can't
+     * contain a match because they lack the longest required literal aren't
+     * given to the regular expression at all.
      */
-    private void searchCharBuffer(CharSequence charSequence, Collection<String> matches) {
+    private void searchCharSequence(CharSequence text, Collection<LineMatch> matches) {
         // Early exit on non-matching files.
-        Matcher firstMatch = pattern.matcher(charSequence);
-        if (firstMatch.find() == false) {
+        matcher.reset(text);
+        if (matcher.find() == false) {
             return;
         }
         
-        Matcher patternMatcher = pattern.matcher("");
+        final int length = text.length();
+        int lineNumber = 1;
         int start = 0;
-        for (int lineNumber = 1; start < charSequence.length(); lineNumber++) {
-            int end = findEndOfLine(charSequence, start);
-            CharSequence currentLine = charSequence.subSequence(start, end);
-            
-            patternMatcher.reset(currentLine);
-            
-            StringBuffer lineBuf = new StringBuffer();
-            boolean found = false;
-            
-            while (patternMatcher.find()) {
-                found = true;
-                patternMatcher.appendReplacement(
-                    lineBuf,
-                    "<font color=\"black\"><i>$0</i></font>");
+        int nextCandidate = nextCandidateIndex(text, 0);
+        while (nextCandidate != -1) {
+            // Skip whole lines until we reach the one containing the next candidate.
+            for (int i = start; i < nextCandidate; ++i) {
+                if (text.charAt(i) == '\n') {
+                    ++lineNumber;
+                    start = i + 1;
+                }
+            }
+            int end = start;
+            while (end < length && text.charAt(end) != '\n') {
+                ++end;
             }
-            patternMatcher.appendTail(lineBuf);
             
-            if (found) {
-                matches.add("<html><font color=\"gray\">" +
-                            lineNumber + ": " + lineBuf.toString().trim() +
-                            "</font></html>");
+            searchLine(text, lineNumber, start, end, matches);
+            
+            if (end == length) {
+                break;
             }
+            ++lineNumber;
             start = end + 1;
+            nextCandidate = nextCandidateIndex(text, start);
         }
     }
     
     /**
-     * Search for occurrences of the input pattern in the given file.
-     * Returns false if unable to search; true otherwise.
+     * Returns the index of the next occurrence of our longest required
+     * literal at or after 'fromIndex', or 'fromIndex' itself if we have no
+     * literals, or -1 if there are no more.
      */
-    public boolean searchFile(File file, Collection<String> matches) throws IOException {
-        int byteCount = (int) file.length();
-        ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
-        
-        if (ByteBufferUtilities.isBinaryByteBuffer(byteBuffer, byteCount)) {
-            return false;
+    private int nextCandidateIndex(CharSequence text, int fromIndex) {
+        final byte[] literal = longestRequiredLiteral;
+        if (literal == null) {
+            return (fromIndex < text.length()) ? fromIndex : -1;
+        }
+        final int max = text.length() - literal.length;
+        for (int i = fromIndex; i <= max; ++i) {
+            int j = 0;
+            while (j < literal.length && fold(text.charAt(i + j)) == literal[j]) {
+                ++j;
+            }
+            if (j == literal.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private void searchLine(CharSequence text, int lineNumber, int start, int end, Collection<LineMatch> matches) {
+        // Matching a region of the whole text behaves just like matching the line on its own, because bounds are anchoring and opaque by default.
+        matcher.region(start, end);
+        int offsetCount = 0;
+        while (matcher.find()) {
+            if (offsetCount + 2 > offsets.length) {
+                int[] newOffsets = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, offsetCount);
+                offsets = newOffsets;
+            }
+            offsets[offsetCount++] = matcher.start() - start;
+            offsets[offsetCount++] = matcher.end() - start;
+        }
+        if (offsetCount > 0) {
+            int[] matchOffsets = new int[offsetCount];
+            System.arraycopy(offsets, 0, matchOffsets, 0, offsetCount);
+            matches.add(new LineMatch(lineNumber, text.subSequence(start, end).toString(), matchOffsets));
         }
-        
-        ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteCount);
-        CharBuffer chars = decoder.getCharBuffer();
-        searchCharBuffer(chars, matches);
-        return true;
     }
 }
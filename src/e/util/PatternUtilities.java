@@ -1,5 +1,6 @@
 package e.util;
 
+import java.util.*;
 import java.util.regex.*;
 
 public final class PatternUtilities {
@@ -78,6 +79,133 @@ public final class PatternUtilities {
         return result;
     }
     
+    /**
+     * Returns runs of ASCII characters that every match of the given Pattern
+     * must contain. Callers can cheaply rule out text that doesn't contain
+     * all of them before running the Pattern itself. The analysis is
+     * deliberately conservative: anything inside a group or alternation is
+     * ignored, and a pattern we don't understand (inline flags, \Q...\E,
+     * comments) yields no literals at all rather than wrong ones.
+     * 
+     * If the Pattern is CASE_INSENSITIVE, so is the required match. Because
+     * the literals are ASCII, and we give up on UNICODE_CASE, callers only
+     * need to fold the letters A to Z.
+     */
+    public static List<String> getRequiredLiterals(Pattern pattern) {
+        final ArrayList<String> result = new ArrayList<String>();
+        final int flags = pattern.flags();
+        final String regex = pattern.pattern();
+        if ((flags & (Pattern.COMMENTS | Pattern.UNICODE_CASE | Pattern.CANON_EQ)) != 0) {
+            return result;
+        }
+        
+        StringBuilder run = new StringBuilder();
+        if ((flags & Pattern.LITERAL) != 0) {
+            for (int i = 0; i < regex.length(); ++i) {
+                char ch = regex.charAt(i);
+                if (ch > '~') {
+                    addLiteral(result, run);
+                } else {
+                    run.append(ch);
+                }
+            }
+            addLiteral(result, run);
+            return result;
+        }
+        
+        int groupDepth = 0;
+        for (int i = 0; i < regex.length(); ++i) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                if (i + 1 == regex.length()) {
+                    return new ArrayList<String>();
+                }
+                char escaped = regex.charAt(++i);
+                if (Character.isLetterOrDigit(escaped) && "dDsSwWbBAGZzRXhHvVtnrfae".indexOf(escaped) == -1) {
+                    // Something like \Q, \x41, \p{Lu} or a back-reference, whose extent we'd have to parse.
+                    return new ArrayList<String>();
+                }
+                if (groupDepth == 0) {
+                    if (Character.isLetterOrDigit(escaped) || escaped > '~') {
+                        // A character class, assertion, or a character we don't bother decoding.
+                        addLiteral(result, run);
+                    } else {
+                        run.append(escaped);
+                    }
+                }
+            } else if (ch == '[') {
+                addLiteral(result, run);
+                i = skipCharacterClass(regex, i);
+            } else if (ch == '(') {
+                if (i + 2 < regex.length() && regex.charAt(i + 1) == '?' && "idmsuxU-".indexOf(regex.charAt(i + 2)) != -1) {
+                    // Inline flags can change the meaning of everything after them.
+                    return new ArrayList<String>();
+                }
+                addLiteral(result, run);
+                ++groupDepth;
+            } else if (ch == ')') {
+                --groupDepth;
+            } else if (ch == '|') {
+                // Nothing is required of every alternative.
+                return new ArrayList<String>();
+            } else if (groupDepth > 0) {
+                continue;
+            } else if (ch == '?' || ch == '*' || ch == '{') {
+                // The preceding character is optional (for '{', it might be).
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                addLiteral(result, run);
+                if (ch == '{') {
+                    i = regex.indexOf('}', i);
+                    if (i == -1) {
+                        return new ArrayList<String>();
+                    }
+                }
+            } else if (ch == '+' || ch == '.' || ch == '^' || ch == '$' || ch > '~' || ch < ' ') {
+                addLiteral(result, run);
+            } else {
+                run.append(ch);
+            }
+        }
+        addLiteral(result, run);
+        return result;
+    }
+    
+    private static void addLiteral(List<String> result, StringBuilder run) {
+        if (run.length() > 0) {
+            result.add(run.toString());
+            run.setLength(0);
+        }
+    }
+    
+    /**
+     * Returns the index of the ']' closing the character class opened by the '[' at 'start'.
+     */
+    private static int skipCharacterClass(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); ++i) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                ++i;
+            } else if (ch == '[') {
+                ++depth;
+                // A ']' straight after the '[' or "[^" is literal.
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    ++i;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    ++i;
+                }
+            } else if (ch == ']') {
+                if (--depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return regex.length();
+    }
+    
     private PatternUtilities() {
     }
 }
@@ -2,10 +2,18 @@ package e.util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 /**
- * Uses an ispell(1)-compatible back end to check spelling.
+ * Checks spelling against a word list compiled into a SpellingDictionary,
+ * falling back to an ispell(1)-compatible back end for words the list
+ * doesn't contain, or for everything if there's no word list.
+ * 
+ * Words in the list (the vast majority of the words in any document) are
+ * checked without locking, so any number of documents can be checked at
+ * once. Only the words the list doesn't know have to queue up for the
+ * back end, and we only ask it about each of them once.
  */
 public class SpellingChecker {
     private static final SpellingChecker instance = new SpellingChecker();
@@ -13,20 +21,32 @@ public class SpellingChecker {
     
     private static final Stopwatch stopwatch = Stopwatch.get("SpellingChecker");
     
-    private static HashSet<String> knownGood = new HashSet<String>();
-    private static HashSet<String> knownBad = new HashSet<String>();
+    // The first of these that exists is used, unless "e.util.SpellingChecker.wordList" names another.
+    private static final String[] WORD_LISTS = { "/usr/share/dict/words", "/usr/dict/words" };
+    
+    // The back end's answers are cached, but only up to a point: we might be asked about every identifier in a large workspace.
+    private static final int MAX_CACHED_ANSWERS = 20000;
+    
+    // Used as sets; the values are always Boolean.TRUE.
+    private static final ConcurrentHashMap<String, Boolean> knownGood = new ConcurrentHashMap<String, Boolean>();
+    private static final ConcurrentHashMap<String, Boolean> knownBad = new ConcurrentHashMap<String, Boolean>();
+    private static final ConcurrentHashMap<String, Boolean> acceptedWords = new ConcurrentHashMap<String, Boolean>();
+    
+    private final SpellingDictionary dictionary;
     
     private Process ispell;
     private PrintWriter out;
     private BufferedReader in;
     
     /** Returns the single instance of SpellingChecker. */
-    public static synchronized SpellingChecker getSharedSpellingCheckerInstance() {
+    public static SpellingChecker getSharedSpellingCheckerInstance() {
         return instance;
     }
     
-    /** Establishes the connection to ispell, if possible. */
+    /** Loads the word list and establishes the connection to ispell, if possible. */
     private SpellingChecker() {
+        this.dictionary = loadDictionary();
+        
         // On Mac OS, we want to use the system's spelling checker, so try our NSSpell utility (which gives Apple's code an ispell-like interface) first.
         // Our start-up scripts ensure it's on our path if we're running on a Mac.
         // Otherwise try aspell(1) -- also used by gedit(1) -- first, and fall back to good old ispell(1).
@@ -38,7 +58,28 @@ public class SpellingChecker {
                 }
             }
         }
-        Log.warn("SpellingChecker: failed to find any back end. Please install aspell(1) or ispell(1).");
+        if (dictionary == null) {
+            Log.warn("SpellingChecker: failed to find any word list or back end. Please install a word list such as /usr/share/dict/words, or aspell(1) or ispell(1).");
+        }
+    }
+    
+    private static SpellingDictionary loadDictionary() {
+        String configuredWordList = Parameters.getParameter("e.util.SpellingChecker.wordList", null);
+        String[] candidates = (configuredWordList != null) ? new String[] { configuredWordList } : WORD_LISTS;
+        for (String candidate : candidates) {
+            if (FileUtilities.fileFromString(candidate).exists() == false) {
+                continue;
+            }
+            try {
+                long t0 = System.nanoTime();
+                SpellingDictionary result = SpellingDictionary.fromFile(candidate);
+                Log.warn("SpellingChecker: loaded " + result.getWordCount() + " words (" + result.getStateCount() + " states) from " + candidate + " in " + TimeUtilities.nsToString(System.nanoTime() - t0) + ".");
+                return result;
+            } catch (RuntimeException ex) {
+                Log.warn("SpellingChecker: couldn't load word list " + candidate + ".", ex);
+            }
+        }
+        return null;
     }
     
     /** Attempts to connect to the given command-line spelling checker, which must be compatible with ispell's -a mode. */
@@ -68,72 +109,124 @@ public class SpellingChecker {
     
     /**
      * Tests whether the given word is misspelled.
-     * If ispell is unavailable, no words are considered misspelled.
+     * If there's neither a word list nor ispell, no words are considered misspelled.
      * We only ask ispell about any given word at most once: the
-     * knownGood and knownBad HashSets are used to save on
+     * knownGood and knownBad sets are used to save on
      * expensive inter-process communication.
      */
-    public synchronized boolean isMisspelledWord(String word) {
+    public boolean isMisspelledWord(String word) {
+        word = word.toLowerCase();
+        
+        if (acceptedWords.containsKey(word)) {
+            return false;
+        }
+        if (dictionary != null && dictionary.contains(word)) {
+            return false;
+        }
         if (ispell == null) {
             debug("ispell == null");
-            return false;
+            if (dictionary == null) {
+                return false;
+            }
+            // The word list is all we have, so this word's wrong; remember it for dumpKnownBadWordsTo.
+            rememberAnswer(knownBad, word);
+            return true;
         }
         
-        word = word.toLowerCase();
-        
         // Check the known-good words first, because good words should be more common.
-        if (knownGood.contains(word)) {
+        if (knownGood.containsKey(word)) {
             return false;
         }
         // Then check the known-bad words.
-        if (knownBad.contains(word)) {
+        if (knownBad.containsKey(word)) {
             return true;
         }
         // Then give in and ask ispell.
-        boolean misspelled = isMisspelledWordAccordingToIspell(word, null);
+        boolean misspelled;
+        synchronized (this) {
+            misspelled = isMisspelledWordAccordingToIspell(word, null);
+        }
         
         // Ensure that this word makes its way into one set or the other.
+        rememberAnswer(misspelled ? knownBad : knownGood, word);
+        return misspelled;
+    }
+    
+    private static void rememberAnswer(ConcurrentHashMap<String, Boolean> knownWords, String word) {
+        if (knownWords.size() >= MAX_CACHED_ANSWERS) {
+            knownWords.clear();
+        }
         // We copy the word into a new string to avoid accidental retention
         // of character arrays representing documents in their entirety.
-        (misspelled ? knownBad : knownGood).add(new String(word));
-        return misspelled;
+        knownWords.put(new String(word), Boolean.TRUE);
     }
     
-    public synchronized String[] getSuggestionsFor(String misspelledWord) {
-        ArrayList<String> suggestions = new ArrayList<String>();
-        boolean isMisspelled = isMisspelledWordAccordingToIspell(misspelledWord, suggestions);
-        if (isMisspelled == false) {
+    /**
+     * Returns the words in the word list nearest the given word, with the
+     * same capitalization, or ispell's suggestions if the word list has none.
+     */
+    public String[] getSuggestionsFor(String misspelledWord) {
+        if (isMisspelledWord(misspelledWord) == false) {
             return new String[0];
         }
+        ArrayList<String> suggestions = new ArrayList<String>();
+        if (dictionary != null) {
+            // One edit is plenty for a short word, and more would suggest half the dictionary.
+            int maxDistance = (misspelledWord.length() <= 4) ? 1 : 2;
+            for (String suggestion : dictionary.getSuggestionsFor(misspelledWord, maxDistance)) {
+                suggestions.add(matchCase(misspelledWord, suggestion));
+            }
+        }
+        if (suggestions.isEmpty() && ispell != null) {
+            synchronized (this) {
+                isMisspelledWordAccordingToIspell(misspelledWord, suggestions);
+            }
+        }
         return suggestions.toArray(new String[suggestions.size()]);
     }
     
     /**
-     * Moves the word from the known bad set to the known good set,
-     * and inserts it into the user's personal ispell dictionary.
+     * Returns the lowercase suggestion with the same capitalization as the
+     * original: all capitals, an initial capital, or all lowercase.
      */
-    public synchronized void acceptSpelling(String word) {
+    private static String matchCase(String original, String suggestion) {
+        if (original.length() > 1 && original.equals(original.toUpperCase())) {
+            return suggestion.toUpperCase();
+        }
+        if (Character.isUpperCase(original.charAt(0))) {
+            return Character.toUpperCase(suggestion.charAt(0)) + suggestion.substring(1);
+        }
+        return suggestion;
+    }
+    
+    /**
+     * Moves the word from the known bad set to the accepted set,
+     * and inserts it into the user's personal ispell dictionary, if
+     * we have ispell. Otherwise, it's only accepted until we exit.
+     */
+    public void acceptSpelling(String word) {
         if (isMisspelledWord(word) == false) {
             return;
         }
         
-        // knownBad and knownGood only contain lowercase words.
+        // The sets only contain lowercase words.
         String setWord = word.toLowerCase();
+        acceptedWords.put(setWord, Boolean.TRUE);
         knownBad.remove(setWord);
-        knownGood.add(setWord);
         
-        // Send the word to ispell to insert into the personal dictionary.
-        // FIXME: we pass it through with its original case, but if it's not all lowercase, ispell(1) takes that to mean that it should only accept that capitalization. This may not be the right choice.
-        out.println("*" + word);
-        out.flush();
+        if (ispell != null) {
+            // Send the word to ispell to insert into the personal dictionary.
+            // FIXME: we pass it through with its original case, but if it's not all lowercase, ispell(1) takes that to mean that it should only accept that capitalization. This may not be the right choice.
+            synchronized (this) {
+                out.println("*" + word);
+                out.flush();
+            }
+        }
     }
     
-    public static synchronized void dumpKnownBadWordsTo(PrintStream out) {
+    public static void dumpKnownBadWordsTo(PrintStream out) {
         // Get a sorted list of the known bad words.
-        ArrayList<String> words = new ArrayList<String>();
-        for (String word : knownBad) {
-            words.add(word);
-        }
+        ArrayList<String> words = new ArrayList<String>(knownBad.keySet());
         Collections.sort(words);
         
         // Dump them.
@@ -0,0 +1,355 @@
+package e.util;
+
+import java.util.*;
+
+/**
+ * An immutable word list, compiled into a DAWG (a directed acyclic word
+ * graph: the minimal automaton accepting exactly the words in the list).
+ * Common prefixes and common suffixes are shared, so a typical
+ * /usr/share/dict/words of 100,000 or so words needs only a few hundred
+ * kilobytes, and lookups touch one small array range per character.
+ * 
+ * The graph is built with Daciuk et al's incremental algorithm for sorted
+ * input, and then flattened so that each state's outgoing edges are a
+ * contiguous run of the labels and targets arrays, sorted by label.
+ * 
+ * Words are case-folded to lowercase, both when building and when
+ * looking up. Nothing changes after construction, so any number of threads
+ * can use a dictionary at once without locking.
+ */
+public class SpellingDictionary {
+    private static final int MAX_SUGGESTIONS = 10;
+    
+    // firstEdges[state] to firstEdges[state + 1] is the range of the state's edges in labels and targets.
+    private final int[] firstEdges;
+    private final char[] labels;
+    private final int[] targets;
+    private final BitSet finalStates;
+    private final int wordCount;
+    private final int maxWordLength;
+    
+    /**
+     * Reads a word list, one word per line, such as /usr/share/dict/words.
+     * Throws a RuntimeException on failure.
+     */
+    public static SpellingDictionary fromFile(String filename) {
+        return new SpellingDictionary(Arrays.asList(StringUtilities.readLinesFromFile(filename)));
+    }
+    
+    /**
+     * Compiles the given words. They needn't be sorted or unique. Anything
+     * other than letters and apostrophes (such as a trailing carriage
+     * return, or a phrase) is ignored, because we'd never be asked about it.
+     */
+    public SpellingDictionary(Collection<String> words) {
+        ArrayList<String> sortedWords = new ArrayList<String>(words.size());
+        for (String word : words) {
+            word = word.trim().toLowerCase();
+            if (isWord(word)) {
+                sortedWords.add(word);
+            }
+        }
+        Collections.sort(sortedWords);
+        
+        Builder builder = new Builder();
+        String previousWord = "";
+        int count = 0;
+        int maxLength = 0;
+        for (String word : sortedWords) {
+            if (word.equals(previousWord)) {
+                continue;
+            }
+            builder.add(previousWord, word);
+            previousWord = word;
+            ++count;
+            maxLength = Math.max(maxLength, word.length());
+        }
+        Node root = builder.finish();
+        
+        // Number the states, root first, and then lay out their edges.
+        ArrayList<Node> states = new ArrayList<Node>();
+        root.id = 0;
+        states.add(root);
+        int edgeCount = 0;
+        for (int i = 0; i < states.size(); ++i) {
+            Node state = states.get(i);
+            edgeCount += state.childCount;
+            for (int j = 0; j < state.childCount; ++j) {
+                Node child = state.children[j];
+                if (child.id == -1) {
+                    child.id = states.size();
+                    states.add(child);
+                }
+            }
+        }
+        this.firstEdges = new int[states.size() + 1];
+        this.labels = new char[edgeCount];
+        this.targets = new int[edgeCount];
+        this.finalStates = new BitSet(states.size());
+        int edge = 0;
+        for (int i = 0; i < states.size(); ++i) {
+            Node state = states.get(i);
+            firstEdges[i] = edge;
+            if (state.isFinal) {
+                finalStates.set(i);
+            }
+            for (int j = 0; j < state.childCount; ++j) {
+                labels[edge] = state.labels[j];
+                targets[edge] = state.children[j].id;
+                ++edge;
+            }
+        }
+        firstEdges[states.size()] = edge;
+        this.wordCount = count;
+        this.maxWordLength = maxLength;
+    }
+    
+    private static boolean isWord(String word) {
+        if (word.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); ++i) {
+            char ch = word.charAt(i);
+            if (Character.isLetter(ch) == false && ch != '\'') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** Returns the number of distinct (lowercase) words. */
+    public int getWordCount() {
+        return wordCount;
+    }
+    
+    /** Returns the number of states in the graph, which is a fair measure of its size. */
+    public int getStateCount() {
+        return firstEdges.length - 1;
+    }
+    
+    /** Tests whether the given word, ignoring case, is in the dictionary. */
+    public boolean contains(CharSequence word) {
+        int state = 0;
+        for (int i = 0; i < word.length(); ++i) {
+            state = nextState(state, Character.toLowerCase(word.charAt(i)));
+            if (state == -1) {
+                return false;
+            }
+        }
+        return finalStates.get(state);
+    }
+    
+    /** Returns the state reached from the given state by the given character, or -1. */
+    private int nextState(int state, char ch) {
+        int low = firstEdges[state];
+        int high = firstEdges[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = labels[mid];
+            if (label < ch) {
+                low = mid + 1;
+            } else if (label > ch) {
+                high = mid - 1;
+            } else {
+                return targets[mid];
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the (lowercase) words within the given edit distance of the
+     * given word, nearest first, and alphabetically among equally near words.
+     * An edit is inserting, deleting, or replacing one character, or
+     * swapping two adjacent characters.
+     * 
+     * We walk the graph depth first, keeping one row of the edit distance
+     * table per character of the path so far, and abandon a path as soon
+     * as no cell of its latest row is within the limit. Shared prefixes are
+     * only ever compared once, and with a small limit only a tiny fraction
+     * of the graph is visited.
+     */
+    public List<String> getSuggestionsFor(String word, int maxDistance) {
+        SuggestionSearch search = new SuggestionSearch(word.toLowerCase(), maxDistance);
+        search.searchFrom(0, 0);
+        Collections.sort(search.suggestions);
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < search.suggestions.size() && result.size() < MAX_SUGGESTIONS; ++i) {
+            result.add(search.suggestions.get(i).word);
+        }
+        return result;
+    }
+    
+    private static class Suggestion implements Comparable<Suggestion> {
+        private final String word;
+        private final int distance;
+        
+        private Suggestion(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+        
+        public int compareTo(Suggestion other) {
+            if (distance != other.distance) {
+                return distance - other.distance;
+            }
+            return word.compareTo(other.word);
+        }
+    }
+    
+    /**
+     * The state of one call to getSuggestionsFor, so that concurrent
+     * searches don't share anything mutable.
+     */
+    private class SuggestionSearch {
+        private final String word;
+        private final int maxDistance;
+        private final char[] path;
+        // rows[depth][i] is the edit distance between the first depth characters of path and the first i characters of word.
+        private final int[][] rows;
+        private final ArrayList<Suggestion> suggestions = new ArrayList<Suggestion>();
+        
+        private SuggestionSearch(String word, int maxDistance) {
+            this.word = word;
+            this.maxDistance = maxDistance;
+            // No word longer than this can be near enough, and nor can the dictionary have any.
+            int maxDepth = Math.min(maxWordLength, word.length() + maxDistance);
+            this.path = new char[maxDepth];
+            this.rows = new int[maxDepth + 1][word.length() + 1];
+            for (int i = 0; i <= word.length(); ++i) {
+                rows[0][i] = i;
+            }
+        }
+        
+        private void searchFrom(int state, int depth) {
+            final int n = word.length();
+            int[] row = rows[depth];
+            if (finalStates.get(state) && row[n] <= maxDistance && depth > 0) {
+                suggestions.add(new Suggestion(new String(path, 0, depth), row[n]));
+            }
+            if (depth == path.length) {
+                return;
+            }
+            int[] nextRow = rows[depth + 1];
+            int[] previousRow = (depth > 0) ? rows[depth - 1] : null;
+            for (int edge = firstEdges[state]; edge < firstEdges[state + 1]; ++edge) {
+                char ch = labels[edge];
+                path[depth] = ch;
+                nextRow[0] = depth + 1;
+                int rowMin = nextRow[0];
+                for (int i = 1; i <= n; ++i) {
+                    int cost = (word.charAt(i - 1) == ch) ? 0 : 1;
+                    int distance = Math.min(Math.min(nextRow[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+                    if (previousRow != null && i > 1 && word.charAt(i - 1) == path[depth - 1] && word.charAt(i - 2) == ch) {
+                        distance = Math.min(distance, previousRow[i - 2] + 1);
+                    }
+                    nextRow[i] = distance;
+                    rowMin = Math.min(rowMin, distance);
+                }
+                if (rowMin <= maxDistance) {
+                    searchFrom(targets[edge], depth + 1);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A state under construction. Children are only ever appended (because
+     * the words arrive in order) or have their last entry replaced by an
+     * equivalent registered state.
+     */
+    private static class Node {
+        private char[] labels = new char[2];
+        private Node[] children = new Node[2];
+        private int childCount;
+        private boolean isFinal;
+        private int id = -1;
+        
+        private void addChild(char label, Node child) {
+            if (childCount == labels.length) {
+                char[] newLabels = new char[childCount * 2];
+                System.arraycopy(labels, 0, newLabels, 0, childCount);
+                labels = newLabels;
+                Node[] newChildren = new Node[childCount * 2];
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                children = newChildren;
+            }
+            labels[childCount] = label;
+            children[childCount] = child;
+            ++childCount;
+        }
+        
+        // Two states are equivalent if they're both final or both not, and have the same edges to the very same (already minimized) states.
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Node == false) {
+                return false;
+            }
+            Node other = (Node) o;
+            if (isFinal != other.isFinal || childCount != other.childCount) {
+                return false;
+            }
+            for (int i = 0; i < childCount; ++i) {
+                if (labels[i] != other.labels[i] || children[i] != other.children[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public int hashCode() {
+            int result = isFinal ? 1 : 0;
+            for (int i = 0; i < childCount; ++i) {
+                result = 31 * result + labels[i];
+                result = 31 * result + System.identityHashCode(children[i]);
+            }
+            return result;
+        }
+    }
+    
+    private static class Builder {
+        private final Node root = new Node();
+        private final HashMap<Node, Node> register = new HashMap<Node, Node>();
+        // The states along the path of the previous word, which may yet gain children and so can't be registered.
+        private final ArrayList<Node> uncheckedStates = new ArrayList<Node>();
+        
+        private Builder() {
+            uncheckedStates.add(root);
+        }
+        
+        /** Adds word, which must sort after previousWord. */
+        private void add(String previousWord, String word) {
+            int commonPrefixLength = StringUtilities.lengthOfCommonPrefix(previousWord, word);
+            minimize(commonPrefixLength);
+            Node state = uncheckedStates.get(uncheckedStates.size() - 1);
+            for (int i = commonPrefixLength; i < word.length(); ++i) {
+                Node child = new Node();
+                state.addChild(word.charAt(i), child);
+                uncheckedStates.add(child);
+                state = child;
+            }
+            state.isFinal = true;
+        }
+        
+        private Node finish() {
+            minimize(0);
+            return root;
+        }
+        
+        /** Registers, or replaces with an equivalent registered state, each unchecked state deeper than the given depth. */
+        private void minimize(int depth) {
+            for (int i = uncheckedStates.size() - 1; i > depth; --i) {
+                Node parent = uncheckedStates.get(i - 1);
+                Node child = uncheckedStates.get(i);
+                Node equivalent = register.get(child);
+                if (equivalent != null) {
+                    parent.children[parent.childCount - 1] = equivalent;
+                } else {
+                    register.put(child, child);
+                }
+                uncheckedStates.remove(i);
+            }
+        }
+    }
+}
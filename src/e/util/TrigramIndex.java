@@ -0,0 +1,519 @@
+package e.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Maps the trigrams (runs of three bytes) found in a set of files to the
+ * files containing them, so that a regular expression search can skip the
+ * files that can't possibly match: any file containing a match must
+ * contain every trigram of every literal the regular expression requires
+ * (see PatternUtilities.getRequiredLiterals).
+ * 
+ * Trigrams are case-folded (ASCII only, like the literals) so one index
+ * serves both case-sensitive and case-insensitive searches, and all
+ * non-ASCII bytes are treated as the same byte, which literals never
+ * contain. A trigram's key is then 21 bits.
+ * 
+ * Each trigram's posting list is a sorted list of file ids, stored as
+ * variable-length deltas, typically a byte or two per id. Files get a new
+ * id when they're re-indexed, and the old id is simply forgotten, so we
+ * never need to know which posting lists a changed file used to be in.
+ * Forgotten ids are removed from the posting lists when they outnumber
+ * the live ones.
+ * 
+ * Queries are thread-safe, but indexFile should only be called by one
+ * thread at a time, because it reuses its buffers.
+ */
+public class TrigramIndex {
+    private static final int MAGIC = 0x74726967;
+    private static final int VERSION = 1;
+    
+    // Bigger files are remembered but not indexed, so they're always searched.
+    private static final int MAX_INDEXED_FILE_SIZE = 16 * 1024 * 1024;
+    
+    private static final int KEY_COUNT = 1 << 21;
+    
+    private static class FileEntry {
+        private int id;
+        private long lastModified;
+        private long length;
+        // False for files we couldn't usefully index, such as UTF-16 files, which must always be searched.
+        private boolean indexed;
+    }
+    
+    /**
+     * An append-only list of increasing ids, stored as deltas encoded seven bits to a byte.
+     */
+    private static class PostingList {
+        private byte[] bytes = new byte[4];
+        private int byteCount;
+        private int lastId = -1;
+        private int idCount;
+        
+        void add(int id) {
+            if (byteCount + 5 > bytes.length) {
+                byte[] newBytes = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, newBytes, 0, byteCount);
+                bytes = newBytes;
+            }
+            int delta = id - lastId;
+            while (delta >= 0x80) {
+                bytes[byteCount++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            bytes[byteCount++] = (byte) delta;
+            lastId = id;
+            ++idCount;
+        }
+        
+        int[] toArray() {
+            int[] result = new int[idCount];
+            int id = -1;
+            int i = 0;
+            for (int offset = 0; offset < byteCount; ) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[offset++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                result[i++] = id;
+            }
+            return result;
+        }
+    }
+    
+    private HashMap<String, FileEntry> entries = new HashMap<String, FileEntry>();
+    // The path for each id, or null for forgotten ids.
+    private ArrayList<String> paths = new ArrayList<String>();
+    private int forgottenIdCount;
+    // An open-addressed hash table from trigram key to posting list. A slot's key is only meaningful if it has a list.
+    private int[] postingKeys = new int[1024];
+    private PostingList[] postingLists = new PostingList[1024];
+    private int postingListCount;
+    private boolean modified;
+    
+    // Scratch space for indexFile, allocated on first use.
+    private byte[] buffer;
+    private long[] seenKeys;
+    private int[] keys;
+    
+    public TrigramIndex() {
+    }
+    
+    /**
+     * Tests whether 'path' was indexed when 'file' had its current
+     * modification time and length.
+     */
+    public synchronized boolean isUpToDate(String path, File file) {
+        FileEntry entry = entries.get(path);
+        return entry != null && entry.lastModified == file.lastModified() && entry.length == file.length();
+    }
+    
+    /**
+     * Returns whether anything has changed since the index was created, read or written.
+     */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+    
+    /**
+     * Indexes the current content of 'file', which is known to callers as
+     * 'path', replacing anything previously indexed for that path.
+     */
+    public void indexFile(String path, File file) throws IOException {
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        FileEntry entry = new FileEntry();
+        entry.lastModified = lastModified;
+        entry.length = length;
+        int keyCount = 0;
+        if (buffer == null) {
+            buffer = new byte[64 * 1024];
+            seenKeys = new long[KEY_COUNT / 64];
+            keys = new int[1024];
+        }
+        if (length <= MAX_INDEXED_FILE_SIZE) {
+            int byteCount = readFile(file, (int) length);
+            entry.indexed = isUtf16(byteCount) == false;
+            if (entry.indexed) {
+                keyCount = collectKeys(byteCount);
+            }
+        }
+        synchronized (this) {
+            forget(path);
+            entry.id = paths.size();
+            paths.add(path);
+            entries.put(path, entry);
+            for (int i = 0; i < keyCount; ++i) {
+                getPostingList(keys[i], true).add(entry.id);
+            }
+            modified = true;
+        }
+    }
+    
+    /**
+     * Returns the posting list for 'key', or null if there isn't one and 'create' is false.
+     */
+    private PostingList getPostingList(int key, boolean create) {
+        final int mask = postingLists.length - 1;
+        int slot = (key * 0x9e3779b1) >>> 11 & mask;
+        while (postingLists[slot] != null) {
+            if (postingKeys[slot] == key) {
+                return postingLists[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (create == false) {
+            return null;
+        }
+        if (2 * (postingListCount + 1) > postingLists.length) {
+            rehash(postingLists.length * 2);
+            return getPostingList(key, true);
+        }
+        PostingList postingList = new PostingList();
+        postingKeys[slot] = key;
+        postingLists[slot] = postingList;
+        ++postingListCount;
+        return postingList;
+    }
+    
+    private void rehash(int capacity) {
+        int[] oldKeys = postingKeys;
+        PostingList[] oldLists = postingLists;
+        postingKeys = new int[capacity];
+        postingLists = new PostingList[capacity];
+        postingListCount = 0;
+        for (int slot = 0; slot < oldLists.length; ++slot) {
+            if (oldLists[slot] != null) {
+                putPostingList(oldKeys[slot], oldLists[slot]);
+            }
+        }
+    }
+    
+    private void putPostingList(int key, PostingList postingList) {
+        if (2 * (postingListCount + 1) > postingLists.length) {
+            rehash(postingLists.length * 2);
+        }
+        final int mask = postingLists.length - 1;
+        int slot = (key * 0x9e3779b1) >>> 11 & mask;
+        while (postingLists[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        postingKeys[slot] = key;
+        postingLists[slot] = postingList;
+        ++postingListCount;
+    }
+    
+    private int readFile(File file, int expectedByteCount) throws IOException {
+        if (expectedByteCount > buffer.length) {
+            buffer = new byte[expectedByteCount];
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int byteCount = 0;
+            int n;
+            while (byteCount < buffer.length && (n = in.read(buffer, byteCount, buffer.length - byteCount)) != -1) {
+                byteCount += n;
+            }
+            return byteCount;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private boolean isUtf16(int byteCount) {
+        if (byteCount < 2) {
+            return false;
+        }
+        int possibleBom = ((buffer[0] & 0xff) << 8) | (buffer[1] & 0xff);
+        return (possibleBom == 0xfeff || possibleBom == 0xfffe);
+    }
+    
+    /**
+     * Fills 'keys' with the distinct trigram keys in the first 'byteCount'
+     * bytes of 'buffer', returning how many there are.
+     */
+    private int collectKeys(int byteCount) {
+        int keyCount = 0;
+        int key = 0;
+        for (int i = 0; i < byteCount; ++i) {
+            key = ((key << 7) | fold(buffer[i])) & (KEY_COUNT - 1);
+            if (i < 2) {
+                continue;
+            }
+            final long bit = 1L << (key & 63);
+            if ((seenKeys[key >>> 6] & bit) == 0) {
+                seenKeys[key >>> 6] |= bit;
+                if (keyCount == keys.length) {
+                    int[] newKeys = new int[keys.length * 2];
+                    System.arraycopy(keys, 0, newKeys, 0, keyCount);
+                    keys = newKeys;
+                }
+                keys[keyCount++] = key;
+            }
+        }
+        // Leave seenKeys clear for next time.
+        for (int i = 0; i < keyCount; ++i) {
+            seenKeys[keys[i] >>> 6] = 0;
+        }
+        return keyCount;
+    }
+    
+    private static int fold(int b) {
+        b &= 0xff;
+        if (b >= 'A' && b <= 'Z') {
+            return b + ('a' - 'A');
+        }
+        return (b < 0x80) ? b : 0x7f;
+    }
+    
+    /**
+     * Removes 'path' from the index. Searches will treat it as unindexed.
+     */
+    public synchronized void removeFile(String path) {
+        forget(path);
+    }
+    
+    /**
+     * Removes all the paths not in 'paths' from the index.
+     */
+    public synchronized void retainAll(Collection<String> paths) {
+        HashSet<String> retainedPaths = new HashSet<String>(paths);
+        for (String path : new ArrayList<String>(entries.keySet())) {
+            if (retainedPaths.contains(path) == false) {
+                forget(path);
+            }
+        }
+    }
+    
+    private void forget(String path) {
+        FileEntry entry = entries.remove(path);
+        if (entry == null) {
+            return;
+        }
+        paths.set(entry.id, null);
+        ++forgottenIdCount;
+        modified = true;
+        if (forgottenIdCount > 1024 && forgottenIdCount > entries.size()) {
+            compact();
+        }
+    }
+    
+    /**
+     * Renumbers the live ids consecutively, dropping forgotten ids from the posting lists.
+     */
+    private void compact() {
+        int[] newIds = new int[paths.size()];
+        ArrayList<String> newPaths = new ArrayList<String>(entries.size());
+        for (int id = 0; id < paths.size(); ++id) {
+            String path = paths.get(id);
+            if (path == null) {
+                newIds[id] = -1;
+            } else {
+                newIds[id] = newPaths.size();
+                entries.get(path).id = newPaths.size();
+                newPaths.add(path);
+            }
+        }
+        int[] oldKeys = postingKeys;
+        PostingList[] oldLists = postingLists;
+        postingKeys = new int[1024];
+        postingLists = new PostingList[1024];
+        postingListCount = 0;
+        for (int slot = 0; slot < oldLists.length; ++slot) {
+            if (oldLists[slot] == null) {
+                continue;
+            }
+            PostingList newList = new PostingList();
+            for (int id : oldLists[slot].toArray()) {
+                if (newIds[id] != -1) {
+                    newList.add(newIds[id]);
+                }
+            }
+            if (newList.idCount > 0) {
+                putPostingList(oldKeys[slot], newList);
+            }
+        }
+        paths = newPaths;
+        forgottenIdCount = 0;
+    }
+    
+    /**
+     * Returns those of 'candidates' (paths relative to 'rootDirectory') that
+     * might contain a match for 'pattern', in their original order.
+     * Candidates the index knows nothing about are always included, and so
+     * are those whose modification time or length has changed since they
+     * were indexed, because another program may have changed them since we
+     * last heard. If the pattern doesn't require any literal of three or
+     * more characters, the index can't help, and 'candidates' itself is
+     * returned.
+     */
+    public List<String> getFilesPossiblyMatching(String rootDirectory, List<String> candidates, Pattern pattern) {
+        ArrayList<Integer> queryKeys = new ArrayList<Integer>();
+        for (String literal : PatternUtilities.getRequiredLiterals(pattern)) {
+            int key = 0;
+            for (int i = 0; i < literal.length(); ++i) {
+                key = ((key << 7) | fold(literal.charAt(i))) & (KEY_COUNT - 1);
+                if (i >= 2) {
+                    queryKeys.add(key);
+                }
+            }
+        }
+        if (queryKeys.isEmpty()) {
+            return candidates;
+        }
+        
+        // The entries of the candidates the index rules out, or null for the rest.
+        final int candidateCount = candidates.size();
+        FileEntry[] ruledOutEntries = new FileEntry[candidateCount];
+        synchronized (this) {
+            BitSet matchingIds = intersectPostingLists(queryKeys);
+            for (int i = 0; i < candidateCount; ++i) {
+                FileEntry entry = entries.get(candidates.get(i));
+                if (entry != null && entry.indexed && matchingIds.get(entry.id) == false) {
+                    ruledOutEntries[i] = entry;
+                }
+            }
+        }
+        // Check the files we'd skip haven't changed, without holding the lock while we touch the disk.
+        // FileEntry fields don't change once the entry is in the index.
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < candidateCount; ++i) {
+            String candidate = candidates.get(i);
+            FileEntry entry = ruledOutEntries[i];
+            if (entry != null) {
+                File file = FileUtilities.fileFromParentAndString(rootDirectory, candidate);
+                if (entry.lastModified == file.lastModified() && entry.length == file.length()) {
+                    continue;
+                }
+            }
+            result.add(candidate);
+        }
+        return result;
+    }
+    
+    private BitSet intersectPostingLists(List<Integer> queryKeys) {
+        BitSet result = new BitSet();
+        // Start with the shortest list, so we do the least work.
+        PostingList shortest = null;
+        for (int key : queryKeys) {
+            PostingList postingList = getPostingList(key, false);
+            if (postingList == null) {
+                return result;
+            }
+            if (shortest == null || postingList.idCount < shortest.idCount) {
+                shortest = postingList;
+            }
+        }
+        int[] ids = shortest.toArray();
+        int idCount = ids.length;
+        for (int key : new HashSet<Integer>(queryKeys)) {
+            PostingList postingList = getPostingList(key, false);
+            if (postingList == shortest) {
+                continue;
+            }
+            int[] otherIds = postingList.toArray();
+            int newIdCount = 0;
+            int j = 0;
+            for (int i = 0; i < idCount; ++i) {
+                while (j < otherIds.length && otherIds[j] < ids[i]) {
+                    ++j;
+                }
+                if (j < otherIds.length && otherIds[j] == ids[i]) {
+                    ids[newIdCount++] = ids[i];
+                }
+            }
+            idCount = newIdCount;
+        }
+        for (int i = 0; i < idCount; ++i) {
+            result.set(ids[i]);
+        }
+        return result;
+    }
+    
+    /**
+     * Writes the index to 'file', via a temporary file so a failure leaves any previous index intact.
+     */
+    public synchronized void writeTo(File file) throws IOException {
+        if (forgottenIdCount > 0) {
+            compact();
+        }
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                FileEntry entry = entries.get(path);
+                out.writeUTF(path);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeBoolean(entry.indexed);
+            }
+            for (int slot = 0; slot < postingLists.length; ++slot) {
+                PostingList postingList = postingLists[slot];
+                if (postingList != null) {
+                    out.writeInt(postingKeys[slot]);
+                    out.writeInt(postingList.idCount);
+                    out.writeInt(postingList.lastId);
+                    out.writeInt(postingList.byteCount);
+                    out.write(postingList.bytes, 0, postingList.byteCount);
+                }
+            }
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && file.delete() == false || temporaryFile.renameTo(file) == false) {
+            throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + file + "\"");
+        }
+        modified = false;
+    }
+    
+    /**
+     * Reads an index written by writeTo. Throws IOException if the file's
+     * missing, damaged, or written by an incompatible version.
+     */
+    public static TrigramIndex readFrom(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("\"" + file + "\" isn't a compatible index");
+            }
+            TrigramIndex index = new TrigramIndex();
+            final int fileCount = in.readInt();
+            for (int id = 0; id < fileCount; ++id) {
+                String path = in.readUTF();
+                FileEntry entry = new FileEntry();
+                entry.id = id;
+                entry.lastModified = in.readLong();
+                entry.length = in.readLong();
+                entry.indexed = in.readBoolean();
+                index.paths.add(path);
+                index.entries.put(path, entry);
+            }
+            for (int key = in.readInt(); key != -1; key = in.readInt()) {
+                if (key < 0 || key >= KEY_COUNT) {
+                    throw new IOException("\"" + file + "\" is corrupt");
+                }
+                PostingList postingList = new PostingList();
+                postingList.idCount = in.readInt();
+                postingList.lastId = in.readInt();
+                postingList.byteCount = in.readInt();
+                postingList.bytes = new byte[Math.max(4, postingList.byteCount)];
+                in.readFully(postingList.bytes, 0, postingList.byteCount);
+                index.putPostingList(key, postingList);
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package foo;
+
+/**
+ * This is a dummy file, never meant to be compiled, which tests that lines
+ * inside multi-line comments are indented as comments, and that the code
+ * after a comment is indented as code.
+ * 
+ * The tester re-indents the whole file, and then just the middle third of
+ * its lines, so some of these comments start before the lines it changes.
+ */
+public class CommentsTest {
+    /**
+     * A doc comment on a field.
+     */
+    private int count;
+    
+    /** A doc comment on one line, with a brace {. */
+    private String name;
+    
+    /**
+     * A doc comment on a method, with a
+     * paragraph that goes on for
+     * several lines, and a brace {.
+     * 
+     * @param name the new name
+     */
+    public void setName(String name) {
+        /**
+         * A doc comment inside a method.
+         */
+        this.name = name; /* A comment after code, with a brace }. */
+        count++;
+    }
+    
+    public int getCount() {
+        /* A comment on one line. */
+        if (count > 0) {
+            /**
+             * A doc comment where one doesn't belong,
+             * with a closing brace }.
+             */
+            return count;
+        }
+        return 0;
+    }
+    
+    /**
+     * The last doc comment.
+     */
+    public String getName() {
+        return name;
+    }
+}